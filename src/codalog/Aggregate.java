@@ -0,0 +1,115 @@
+package codalog;
+
+/**
+ * An aggregate term, like {@code count<Y>} in {@code deg(X, count<Y>) :- e(X, Y).}
+ * <p>
+ * Aggregate terms can appear in the heads of rules and in queries. The other variables of the head or query are
+ * the group-by variables, and the aggregate is computed over the values that its variable takes in each group.
+ * The supported functions are {@code count}, {@code sum}, {@code min} and {@code max}.
+ * </p><p>
+ * Like the other terms, aggregates are stored as strings in the {@link Expression}s, in the form
+ * {@code function<Variable>}; {@link #parse(String)} recognizes them.
+ * </p>
+ */
+public final class Aggregate {
+
+	/**
+	 * The aggregate functions.
+	 */
+	public enum Function {
+		/** The number of rows in the group */
+		COUNT,
+		/** The sum of the values; terms that aren't numbers count as 0 */
+		SUM,
+		/** The least value, compared as in the {@code <} built-in */
+		MIN,
+		/** The greatest value, compared as in the {@code >} built-in */
+		MAX;
+
+		/**
+		 * The name of the function in Datalog source.
+		 * @return the name, like {@code count}
+		 */
+		public String getName() {
+			return name().toLowerCase();
+		}
+	}
+
+	private final Function function;
+	private final String variable;
+
+	private Aggregate(Function function, String variable) {
+		this.function = function;
+		this.variable = variable;
+	}
+
+	/**
+	 * Creates the term for an aggregate.
+	 * @param function The aggregate function
+	 * @param variable The variable to aggregate
+	 * @return The term, like {@code count<Y>}
+	 */
+	public static String term(Function function, String variable) {
+		return function.getName() + "<" + variable + ">";
+	}
+
+	/**
+	 * Parses an aggregate term.
+	 * @param term The term
+	 * @return The aggregate, or null if the term isn't an aggregate
+	 */
+	public static Aggregate parse(String term) {
+		int open = term.indexOf('<');
+		if(open <= 0 || !term.endsWith(">") || open + 2 >= term.length())
+			return null;
+		Function function = function(term.substring(0, open));
+		String variable = term.substring(open + 1, term.length() - 1);
+		if(function == null || !DatalogInterpreter.isVariable(variable))
+			return null;
+		return new Aggregate(function, variable);
+	}
+
+	/**
+	 * Checks whether a term is an aggregate.
+	 * @param term The term
+	 * @return true if the term is an aggregate, like {@code count<Y>}
+	 */
+	public static boolean isAggregate(String term) {
+		return parse(term) != null;
+	}
+
+	/**
+	 * Checks whether any of the terms of an expression is an aggregate.
+	 * @param expression The expression
+	 * @return true if the expression contains an aggregate
+	 */
+	public static boolean hasAggregates(Expression expression) {
+		for(String term : expression.getTerms()) {
+			if(isAggregate(term))
+				return true;
+		}
+		return false;
+	}
+
+	/* Looks up an aggregate function by its name; null if there is none */
+	static Function function(String name) {
+		for(Function function : Function.values()) {
+			if(function.getName().equals(name))
+				return function;
+		}
+		return null;
+	}
+
+	public Function getFunction() {
+		return function;
+	}
+
+	public String getVariable() {
+		return variable;
+	}
+
+	@Override
+	public String toString() {
+		return term(function, variable);
+	}
+}
@@ -1,10 +1,12 @@
 package codalog;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.Reader;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.LinkedList;
 import java.util.List;
@@ -27,18 +29,19 @@ public class CoDalog {
             try {
                 DatalogInterpreter jatalog = new DatalogInterpreter();
                 QueryInterface qo = new DefaultQueryOutput();
+                // The files are parsed in parallel, and executed in order
+                List<File> files = new ArrayList<>();
                 for (String arg : args) {
-                    try (Reader reader = new BufferedReader(new FileReader(arg))) {
-                        jatalog.executeAll(reader, qo);
-                    }
-                }                
+                    files.add(new File(arg));
+                }
+                new ParallelLoader(jatalog).load(files, qo);
             } catch (CodalogException | IOException e) {
                 e.printStackTrace();
             }
         } else {
             // Get input from command line
             DatalogInterpreter jatalog = new DatalogInterpreter();
-            System.out.println("CoDalog: Concordia Datalog Engine\n Press \n 1:Load File \n 2:Parsing Evaluation \n 3:Display Rules and Facts\n 4:Query \n 5:Exit");
+            System.out.println("CoDalog: Concordia Datalog Engine\n Press \n 1:Load File \n 2:Parsing Evaluation \n 3:Display Rules and Facts\n 4:Query \n 5:Exit \n 6:Memory Footprint");
             
             Scanner operationType = new Scanner(System.in);
             String operationString = operationType.next();
@@ -73,6 +76,10 @@ public class CoDalog {
                         System.out.println(jatalog);
 						history.add(line);
 						continue;
+                    } else if(operation==6) {			// memory footprint per predicate
+                        System.out.println(jatalog.getMemoryFootprint());
+						history.add(line);
+						continue;
                     } else if (operation ==1){
                     	if(!tokenizer.hasMoreTokens()) {
 							System.err.println("error: Filename Not Expected");
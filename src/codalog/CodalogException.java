@@ -6,14 +6,17 @@ public class CodalogException extends Exception {
     private static Log log = new Log();
 
     public CodalogException(String message) {
+        super(message);
         log.log(message);
     }
 
     public CodalogException(Exception cause) {
+    	super(cause.getMessage(), cause);
     	log.log(cause.getMessage());
     }
 
     public CodalogException(String message, Exception cause) {
+    	super(message, cause);
     	log.log(message + " : " +cause.getMessage());
     }
 }
\ No newline at end of file
@@ -7,13 +7,20 @@ import java.io.StringReader;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.stream.Collectors;
 
 import codalog.engine.BasicEngine;
 import codalog.engine.Engine;
+import codalog.engine.MemoryFootprint;
+import codalog.engine.Metrics;
 import codalog.interfaces.EDBInterface;
 import codalog.interfaces.QueryInterface;
 import codalog.interfaces.PredicateInterface;
@@ -24,30 +31,35 @@ public class DatalogInterpreter {
     
     private Engine engine = new BasicEngine();
 	private boolean isNaive = false;
+	private QueryCache queryCache = new QueryCache(QueryCache.DEFAULT_CAPACITY);
+	// Serializes the statements, queries and updates of all threads if the EDB doesn't support concurrent reads
+	private final ReentrantLock lock = new ReentrantLock();
     
     public DatalogInterpreter() {
         this.edbProvider = new EDB();
-        this.idb = new ArrayList<>();
+        // Copy on write, so that queries can iterate over the rules while others are added
+        this.idb = new CopyOnWriteArrayList<>();
     }
 
     public void expand() throws CodalogException {
         this.engine.expand(this);
     }
-     static boolean isVariable(String term) {
+    /**
+     * Checks whether a term is a variable. Variables start with an uppercase letter.
+     * @param term The term to check
+     * @return true if the term is a variable
+     */
+    public static boolean isVariable(String term) {
         return Character.isUpperCase(term.charAt(0));
     }
     
-	private static StreamTokenizer getTokenizer(Reader reader) throws IOException {
-		StreamTokenizer scan = new StreamTokenizer(reader);
-		scan.ordinaryChar('.');
-		scan.commentChar('%'); 
-		scan.quoteChar('"');
-		scan.quoteChar('\'');
-		return scan;
+	static StreamTokenizer getTokenizer(Reader reader) throws IOException {
+		return new Tokenizer(reader);
 	}
     
-    private Collection<Map<String, String>> executeSingleStatement(StreamTokenizer scan, Reader reader, QueryInterface output) throws CodalogException {
-    	PredicateInterface statement = Parser.parseStmt(scan);
+    /* Executes a statement and writes its answers to the output. The name of the source, which may be null, and the
+     * line are for the message of an error. */
+    Collection<Map<String, String>> executeSingleStatement(PredicateInterface statement, String source, int line, QueryInterface output) throws CodalogException {
 		try {
 			Collection<Map<String, String>> answers = statement.execute(this);
 			if (answers != null && output != null) {
@@ -55,26 +67,113 @@ public class DatalogInterpreter {
 			}
 			return answers;
 		} catch (CodalogException e) {
-			throw new CodalogException("[line " + scan.lineno() + "] Error executing statement", e);
+			throw new CodalogException(location(source, line) + " Error executing statement", e);
 		}
     }
 
+    /* The location of a statement in the messages of errors, like "[line 3]" or "[facts.cdl, line 3]" */
+    static String location(String source, int line) {
+        return source == null ? "[line " + line + "]" : "[" + source + ", line " + line + "]";
+    }
+
+    /* Executes consecutive query statements together, and returns the answers of the last one */
+    Collection<Map<String, String>> executeQueries(List<PredicateInterface> statements, String source, int line, QueryInterface output) throws CodalogException {
+        if(statements.isEmpty()) {
+            return null;
+        }
+        if(statements.size() == 1) {
+            return executeSingleStatement(statements.remove(0), source, line, output);
+        }
+        List<List<Expression>> queries = new ArrayList<>(statements.size());
+        for(PredicateInterface statement : statements) {
+            queries.add(statement.getQueryGoals());
+        }
+        List<Collection<Map<String, String>>> answers;
+        try {
+            answers = queryAll(queries, null);
+        } catch (CodalogException e) {
+            throw new CodalogException(location(source, line) + " Error executing statement", e);
+        }
+        if(output != null) {
+            for(int i = 0; i < statements.size(); i++) {
+                output.writeResult(statements.get(i), answers.get(i));
+            }
+        }
+        statements.clear();
+        return answers.get(answers.size() - 1);
+    }
 
+    /**
+     * Executes the statements read from a reader.
+     * <p>
+     * Consecutive queries can't change the database, so they are evaluated together through
+     * {@link #queryAll(List, Map)}; the results are still written to the output in order.
+     * </p>
+     * @param reader The source of the statements
+     * @param output Receives the answers of the queries; may be null
+     * @return The answers of the last statement, or null if it wasn't a query
+     * @throws CodalogException if a statement can't be parsed or executed
+     */
     public Collection<Map<String, String>> executeAll(Reader reader, QueryInterface output) throws CodalogException {
+        boolean locked = lock();
         try {
             StreamTokenizer scan = getTokenizer(reader);
             
             // Tracks the last query's answers
             Collection<Map<String, String>> answers = null;
-            scan.nextToken();
-            while(scan.ttype != StreamTokenizer.TT_EOF) {
-                scan.pushBack();
-                answers = executeSingleStatement(scan, reader, output);
+            List<PredicateInterface> queries = new ArrayList<>();
+            InterpreterEvents.Execute event = new InterpreterEvents.Execute();
+            event.begin();
+            try {
                 scan.nextToken();
-            }            
-            return answers;
+                while(scan.ttype != StreamTokenizer.TT_EOF) {
+                    scan.pushBack();
+                    PredicateInterface statement;
+                    try {
+                        statement = Parser.parseStmt(scan);
+                    } catch (CodalogException e) {
+                        // The statements before the error are still executed
+                        executeQueries(queries, null, scan.lineno(), output);
+                        throw e;
+                    }
+                    event.statements++;
+                    if(statement.getQueryGoals() != null) {
+                        event.queries++;
+                        queries.add(statement);
+                    } else {
+                        executeQueries(queries, null, scan.lineno(), output);
+                        answers = executeSingleStatement(statement, null, scan.lineno(), output);
+                    }
+                    scan.nextToken();
+                }
+                if(!queries.isEmpty()) {
+                    answers = executeQueries(queries, null, scan.lineno(), output);
+                }
+                return answers;
+            } finally {
+                event.commit();
+            }
         } catch (IOException e) {
             throw new CodalogException(e);
+        } finally {
+            unlock(locked);
+        }
+    }
+
+    /* Takes the lock that serializes the use of the interpreter from several threads, unless the EDB supports
+     * concurrent reads; the front ends that serve many clients, like QueryServer and QueryExecutor, rely on it.
+     * Returns whether the lock was taken, for unlock() */
+    private boolean lock() {
+        if(edbProvider.supportsConcurrentReads()) {
+            return false;
+        }
+        lock.lock();
+        return true;
+    }
+
+    private void unlock(boolean locked) {
+        if(locked) {
+            lock.unlock();
         }
     }
 
@@ -85,7 +184,119 @@ public class DatalogInterpreter {
     
 	public Collection<Map<String, String>> query(List<Expression> goals, Map<String, String> bindings)
 			throws CodalogException {
-		return engine.query(this, goals, bindings);
+		boolean locked = lock();
+		try {
+			InterpreterEvents.Query event = new InterpreterEvents.Query();
+			event.begin();
+			QueryCache cache = queryCache;
+			Collection<Map<String, String>> answers = null;
+			QueryCache.Key key = null;
+			if(cache != null) {
+				key = cache.key(goals, bindings);
+				answers = cache.get(key, bindings);
+			}
+			boolean cached = answers != null;
+			if(!cached) {
+				answers = engine.query(this, goals, bindings);
+				if(cache != null)
+					cache.put(key, answers, Engine.getRelevantPredicates(this, goals));
+			}
+			if(event.shouldCommit()) {
+				event.set(Collections.singletonList(goals), answers.size(), cached ? 1 : 0);
+				event.commit();
+			}
+			return answers;
+		} finally {
+			unlock(locked);
+		}
+	}
+
+	/**
+	 * Answers several queries against the same state of the database, with a single evaluation of the rules that
+	 * they depend on. The queries that are in the cache are answered from it.
+	 * @param queries The goals of each query
+	 * @param bindings The bindings of all the queries; may be null
+	 * @return The answers of each query, in the same order as the queries
+	 * @throws CodalogException if a query can't be evaluated
+	 */
+	public List<Collection<Map<String, String>>> queryAll(List<List<Expression>> queries, Map<String, String> bindings)
+			throws CodalogException {
+		boolean locked = lock();
+		try {
+			return evaluateAll(queries, bindings);
+		} finally {
+			unlock(locked);
+		}
+	}
+
+	private List<Collection<Map<String, String>>> evaluateAll(List<List<Expression>> queries, Map<String, String> bindings)
+			throws CodalogException {
+		InterpreterEvents.Query event = new InterpreterEvents.Query();
+		event.begin();
+		QueryCache cache = queryCache;
+		if(cache == null) {
+			List<Collection<Map<String, String>>> answers = engine.queryAll(this, queries, bindings);
+			commit(event, queries, answers, 0);
+			return answers;
+		}
+		List<Collection<Map<String, String>>> answers = new ArrayList<>(queries.size());
+		List<QueryCache.Key> keys = new ArrayList<>();
+		List<List<Expression>> misses = new ArrayList<>();
+		List<Integer> positions = new ArrayList<>();
+		for(List<Expression> goals : queries) {
+			QueryCache.Key key = cache.key(goals, bindings);
+			Collection<Map<String, String>> cached = cache.get(key, bindings);
+			if(cached == null) {
+				keys.add(key);
+				misses.add(goals);
+				positions.add(answers.size());
+			}
+			answers.add(cached);
+		}
+		if(!misses.isEmpty()) {
+			List<Collection<Map<String, String>>> evaluated = engine.queryAll(this, misses, bindings);
+			for(int i = 0; i < misses.size(); i++) {
+				answers.set(positions.get(i), evaluated.get(i));
+				cache.put(keys.get(i), evaluated.get(i), Engine.getRelevantPredicates(this, misses.get(i)));
+			}
+		}
+		commit(event, queries, answers, queries.size() - misses.size());
+		return answers;
+	}
+
+	private static void commit(InterpreterEvents.Query event, List<List<Expression>> queries, List<Collection<Map<String, String>>> answers, int cached) {
+		if(!event.shouldCommit())
+			return;
+		int total = 0;
+		for(Collection<Map<String, String>> a : answers) {
+			total += a.size();
+		}
+		event.set(queries, total, cached);
+		event.commit();
+	}
+
+	/**
+	 * Describes how a query is evaluated: the predicates and rules that it depends on, the strata of those rules,
+	 * and the order in which the goals of each rule and of the query are matched. This is what the statement
+	 * {@code explain goals?} prints.
+	 * <p>
+	 * With {@code analyze}, as in {@code explain analyze goals?}, the query is evaluated too, bypassing the query
+	 * cache, and each step of the plan is annotated with its iterations, the facts it derived, the candidates and
+	 * matches of every goal and the time spent.
+	 * </p>
+	 * @param goals The goals of the query
+	 * @param bindings The bindings of the query; may be null
+	 * @param analyze Whether to evaluate the query and report what the evaluation did
+	 * @return The plan, one line per step
+	 * @throws CodalogException if the rules aren't stratified, or the query can't be evaluated
+	 */
+	public String explain(List<Expression> goals, Map<String, String> bindings, boolean analyze) throws CodalogException {
+		boolean locked = lock();
+		try {
+			return engine.explain(this, goals, bindings, analyze);
+		} finally {
+			unlock(locked);
+		}
 	}
 
 	public Collection<Map<String, String>> query(List<Expression> goals) throws CodalogException {
@@ -112,6 +323,7 @@ public class DatalogInterpreter {
     public DatalogInterpreter rule(Rules newRule) throws CodalogException {
         newRule.validate();
         idb.add(newRule);
+        invalidate(newRule.getHead().getPredicate());
         return this;
     }
 
@@ -120,14 +332,46 @@ public class DatalogInterpreter {
     }
    
    public DatalogInterpreter fact(Expression newFact) throws CodalogException {
+        checkFact(newFact);
+        boolean locked = lock();
+        try {
+            edbProvider.add(newFact);
+            invalidate(newFact.getPredicate());
+        } finally {
+            unlock(locked);
+        }
+        return this;
+    }
+
+   /* Checks that an expression can be inserted as a fact */
+   static void checkFact(Expression newFact) throws CodalogException {
         if(!newFact.isGround()) {
             throw new CodalogException("Facts must be ground: " + newFact);
         }
         if(newFact.isNegated()) {
             throw new CodalogException("Facts cannot be negated: " + newFact);
         }
-        edbProvider.add(newFact);
-        return this;
+        if(Aggregate.hasAggregates(newFact)) {
+            throw new CodalogException("Facts cannot contain aggregates: " + newFact);
+        }
+    }
+
+   /* Adds facts that were checked by checkFact(), in order; the cached answers
+    * of each of their predicates are invalidated once */
+   void addFacts(List<Expression> facts) {
+        Set<String> predicates = new HashSet<>();
+        boolean locked = lock();
+        try {
+            for(Expression fact : facts) {
+                edbProvider.add(fact);
+                predicates.add(fact.getPredicate());
+            }
+            for(String predicate : predicates) {
+                invalidate(predicate);
+            }
+        } finally {
+            unlock(locked);
+        }
     }
 
    public boolean delete(Expression... goals) throws CodalogException {
@@ -135,12 +379,31 @@ public class DatalogInterpreter {
     }
 
    public boolean delete(List<Expression> goals, Map<String, String> bindings) throws CodalogException {
-        Collection<Map<String, String>> answers = query(goals, bindings);
-        List<Expression> facts = answers.stream()
-            // and substitute the answer on each goal
-            .flatMap(answer -> goals.stream().map(goal -> goal.substitute(answer)))
-            .collect(Collectors.toList());
-        return edbProvider.removeAll(facts);
+        boolean locked = lock();
+        try {
+            Collection<Map<String, String>> answers = query(goals, bindings);
+            List<Expression> facts = answers.stream()
+                // and substitute the answer on each goal
+                .flatMap(answer -> goals.stream().map(goal -> goal.substitute(answer)))
+                .collect(Collectors.toList());
+            if(!edbProvider.removeAll(facts)) {
+                return false;
+            }
+            for(Expression goal : goals) {
+                invalidate(goal.getPredicate());
+            }
+            return true;
+        } finally {
+            unlock(locked);
+        }
+    }
+
+    /* Discards the cached answers that depend on a predicate whose facts or rules changed */
+    private void invalidate(String predicate) {
+        QueryCache cache = queryCache;
+        if(cache != null) {
+            cache.invalidate(predicate);
+        }
     }
    
    public boolean delete(List<Expression> goals) throws CodalogException {
@@ -220,6 +483,9 @@ public class DatalogInterpreter {
 	
 	public void setEdbProvider(EDBInterface edbProvider) {
 		this.edbProvider = edbProvider;
+		if(queryCache != null) {
+			queryCache.clear();
+		}
 	}
 
 	public Collection<Rules> getIdb() {
@@ -233,4 +499,38 @@ public class DatalogInterpreter {
 	public void setIsNaive(boolean naive) {
 		this.isNaive  = naive;
 	}
+
+	/**
+	 * The metrics of the engine's evaluations; they are disabled until {@link Metrics#setEnabled(boolean)}.
+	 * @return The metrics
+	 */
+	public Metrics getMetrics() {
+		return engine.getMetrics();
+	}
+
+	/**
+	 * Estimates the memory held by the facts of each predicate, their indexes and the dictionary of their terms, as
+	 * reported by the EDB, along with the memory that the last evaluation allocated. This is what option 6 of the
+	 * command line prints.
+	 * @return The footprint
+	 */
+	public MemoryFootprint getMemoryFootprint() {
+		return edbProvider.footprint().withLastAllocatedBytes(engine.getMetrics().getLastAllocatedBytes());
+	}
+
+	/**
+	 * The cache of query answers, with its hit and miss statistics.
+	 * @return The cache, or null if queries aren't cached
+	 */
+	public QueryCache getQueryCache() {
+		return queryCache;
+	}
+
+	/**
+	 * Replaces the cache of query answers.
+	 * @param queryCache The new cache, or null to disable caching
+	 */
+	public void setQueryCache(QueryCache queryCache) {
+		this.queryCache = queryCache;
+	}
 }
@@ -20,7 +20,7 @@ public class EDB implements EDBInterface {
 
 	@Override
 	public void add(Expression fact) {
-		edb.add(fact);
+		edb.add(fact.intern());
 	}
 
 	@Override
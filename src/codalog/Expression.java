@@ -1,44 +1,167 @@
 package codalog;
 
-import java.util.ArrayList;
+import java.lang.ref.WeakReference;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.WeakHashMap;
 
+import codalog.engine.Bindings;
 import codalog.engine.Indexable;
 
+/**
+ * An expression, such as a fact {@code parent(alice, bob)}, a goal {@code ancestor(X, bob)} or
+ * a built-in predicate {@code X <> Y}.
+ * <p>
+ * Expressions are immutable: the predicate, the terms, whether the expression is negated and whether it is a
+ * fact derived by the engine ({@link #isNew()}) can't change after construction, which allows the hash code to
+ * be computed once and cached, and interned instances to be shared. {@link #isNew()} doesn't take part in
+ * {@link #equals(Object)}; {@link #asNew()} returns a derived copy of a fact.
+ * </p><p>
+ * Ground facts can be hash-consed through {@link #intern()}, so that equal facts that are derived many times
+ * share a single instance and can be compared by reference.
+ * </p><p>
+ * The terms are normally kept in an array of their own. A storage that decodes its facts from another
+ * representation can use {@link #view(String, List, boolean)} instead, which reads the terms from a list as they
+ * are needed, so that matching a fact that differs in its first term doesn't decode the others.
+ * </p><p>
+ * The numeric terms are typed once, see {@link #getType(int)}: the constants of a built-in when it is built, and
+ * the terms of a fact when it is interned, which is how facts enter the database.
+ * </p>
+ */
 public class Expression implements Indexable<String> {
 
-    private String predicate;
-    private List<String> terms;
-    private boolean isNew;
+    // Canonical instances for intern(); weak so that facts that are no longer used can be collected. The table is
+    // split into segments with a lock each, so that threads that intern facts at the same time seldom wait for each
+    // other, and facts that are new are kept apart from those that aren't, since isNew doesn't take part in equals()
+    private static final int SEGMENTS = 64;
+    private static final Segment[] canonical = new Segment[2 * SEGMENTS];
+    static {
+        for(int i = 0; i < canonical.length; i++) {
+            canonical[i] = new Segment();
+        }
+    }
+
+    /* A segment of the table of canonical instances, which is also its lock */
+    private static final class Segment {
+        final Map<Expression, WeakReference<Expression>> instances = new WeakHashMap<>();
+    }
+
+    private final String predicate;
+    // null for a view, whose terms are read from termList
+    private final String[] terms;
+    private final List<String> termList;
+    private final boolean negated;
+    private final boolean isNew;
 
-    protected boolean negated = false;
+    // Cached hash code; 0 means it hasn't been computed yet
+    private int hash;
+    // The values of the numeric terms, null where a term isn't a number; null if the terms haven't been typed
+    private volatile Term[] types;
+    private static final Term[] NO_NUMBERS = new Term[0];
 
     public Expression(String predicate, List<String> terms) {
-        this.predicate = predicate;
+        this(predicate, terms.toArray(new String[terms.size()]), false);
+    }
+
+    public Expression(String predicate, List<String> terms, boolean negated) {
+        this(predicate, terms.toArray(new String[terms.size()]), negated);
+    }
+
+    public Expression(String predicate, String... terms) {
+        this(predicate, terms.clone(), false);
+    }
+
+    /* The terms array is owned by the new expression; callers must not modify it afterwards */
+    private Expression(String predicate, String[] terms, boolean negated) {
+        this(predicate, terms, Collections.unmodifiableList(Arrays.asList(terms)), negated, false);
+    }
+
+    private Expression(String predicate, String[] terms, List<String> termList, boolean negated, boolean isNew) {
         // I've seen both versions of the symbol for not equals being used, so I allow
         // both, but we convert to "<>" internally to simplify matters later.
-        if(this.predicate.equals("!=")) {
-            this.predicate = "<>";
+        if(predicate.equals("!=")) {
+            predicate = "<>";
         }
+        this.predicate = predicate;
         this.terms = terms;
-        this.setNew(false);
+        this.termList = termList;
+        this.negated = negated;
+        this.isNew = isNew;
+        if(isBuiltIn()) {
+            this.types = typeTerms();
+        }
     }
 
-   
-    public Expression(String predicate, String... terms) {
-        this(predicate, Arrays.asList(terms));
+    /**
+     * Creates a fact that reads its terms from a list when they are needed, without copying them.
+     * <p>
+     * This is meant for storages that decode facts from their own representation, like the rows of a table:
+     * the list can decode each term when it is asked for. The list must not change while the fact is in use.
+     * {@link #intern()} interns a copy of the fact, so the list isn't kept by the table of interned facts.
+     * </p>
+     * @param predicate The predicate of the fact
+     * @param terms The terms of the fact
+     * @param isNew Whether the fact was derived by the engine; see {@link #isNew()}
+     * @return The fact
+     */
+    public static Expression view(String predicate, List<String> terms, boolean isNew) {
+        return new Expression(predicate, null, terms, false, isNew);
+    }
+
+    /* The term at a position, from the array or from the list of a view */
+    private String term(int i) {
+        return terms != null ? terms[i] : termList.get(i);
+    }
+
+    /* A copy of the terms */
+    private String[] copyTerms() {
+        return terms != null ? terms.clone() : termList.toArray(new String[termList.size()]);
+    }
+
+    /* Types the terms that are numbers, once for all the evaluations that use them */
+    private Term[] typeTerms() {
+        Term[] values = null;
+        for(int i = 0; i < arity(); i++) {
+            String term = term(i);
+            if(!DatalogInterpreter.isVariable(term)) {
+                Term value = Term.of(term);
+                if(value.isNumeric()) {
+                    if(values == null) {
+                        values = new Term[arity()];
+                    }
+                    values[i] = value;
+                }
+            }
+        }
+        return values == null ? NO_NUMBERS : values;
+    }
+
+    /**
+     * Retrieves the typed value of a term.
+     * <p>
+     * The terms of built-ins and of interned facts were typed once, so this doesn't look at their characters.
+     * Other expressions type the term again on every call.
+     * </p>
+     * @param i The position of the term
+     * @return its typed value
+     */
+    public Term getType(int i) {
+        Term[] values = types;
+        if(values == null) {
+            return Term.of(term(i));
+        }
+        return i < values.length && values[i] != null ? values[i] : Term.symbol(term(i));
     }
 
-    
     public int arity() {
-        return terms.size();
+        return terms != null ? terms.length : termList.size();
     }
 
     public boolean isGround() {
-        for(String term : terms) {
-            if(DatalogInterpreter.isVariable(term))
+        for(int i = 0; i < arity(); i++) {
+            if(DatalogInterpreter.isVariable(term(i)))
                 return false;
         }
         return true;
@@ -53,6 +176,19 @@ public class Expression implements Indexable<String> {
         return !Character.isLetterOrDigit(op) && op != '\"';
     }
 
+    /**
+     * Checks whether this is an arithmetic built-in, like {@code D = D1 + D2}.
+     * <p>
+     * Arithmetic built-ins have the operator ({@code +}, {@code -} or {@code *}) as their predicate and three terms:
+     * the result followed by the two operands. If the result is an unbound variable it is bound to the value
+     * of the operation, otherwise it is compared to it.
+     * </p>
+     * @return true if the expression is an arithmetic built-in
+     */
+    public boolean isArithmetic() {
+        return arity() == 3 && (predicate.equals("+") || predicate.equals("-") || predicate.equals("*"));
+    }
+
     /**
      * Unifies {@code this} expression with another expression.
      * @param that The expression to unify with
@@ -63,21 +199,23 @@ public class Expression implements Indexable<String> {
         if(!this.predicate.equals(that.predicate) || this.arity() != that.arity()) {
             return false;
         }
-        for(int i = 0; i < this.arity(); i++) {
-            String term1 = this.terms.get(i);
-            String term2 = that.terms.get(i);
+        for(int i = 0; i < arity(); i++) {
+            String term1 = this.term(i);
+            String term2 = that.term(i);
             if(DatalogInterpreter.isVariable(term1)) {
                 if(!term1.equals(term2)) {
-                    if(!bindings.containsKey(term1)) {
+                    String bound = bindings.get(term1);
+                    if(bound == null) {
                         bindings.put(term1, term2);
-                    } else if (!bindings.get(term1).equals(term2)) {
+                    } else if (!bound.equals(term2)) {
                         return false;
                     }
                 }
             } else if(DatalogInterpreter.isVariable(term2)) {
-                if(!bindings.containsKey(term2)) {
+                String bound = bindings.get(term2);
+                if(bound == null) {
                     bindings.put(term2, term1);
-                } else if (!bindings.get(term2).equals(term1)) {
+                } else if (!bound.equals(term1)) {
                     return false;
                 }
             } else if (!term1.equals(term2)) {
@@ -90,25 +228,75 @@ public class Expression implements Indexable<String> {
     /**
      * Substitutes the variables in this expression with bindings from a unification.
      * @param bindings The bindings to substitute.
-     * @return A new expression with the variables replaced with the values in bindings.
+     * @return An expression with the variables replaced with the values in bindings;
+     * {@code this} if none of the variables have bindings.
      */
     public Expression substitute(Map<String, String> bindings) {
-        // that.terms.add() below doesn't work without the new ArrayList()
-        Expression that = new Expression(this.predicate, new ArrayList<>());
-        that.negated = negated;
-        for(String term : this.terms) {
-            String value;
+        String[] values = null;
+        for(int i = 0; i < arity(); i++) {
+            String term = term(i);
             if(DatalogInterpreter.isVariable(term)) {
-                value = bindings.get(term);
-                if(value == null) {
-                    value = term;
+                String value = bindings.get(term);
+                if(value != null) {
+                    if(values == null) {
+                        values = copyTerms();
+                    }
+                    values[i] = value;
                 }
-            } else {
-                value = term;
             }
-            that.terms.add(value);
         }
-        return that;
+        if(values == null) {
+            // Nothing to substitute, and since expressions are immutable we can share this one
+            return this;
+        }
+        return new Expression(predicate, values, negated);
+    }
+
+    /**
+     * Returns the canonical instance of this expression.
+     * <p>
+     * All expressions that are equal to each other, and are both new or both not, intern to the same instance, so
+     * the result can be compared by reference. This is intended for ground facts, which are stored and compared
+     * many times during the evaluation.
+     * </p>
+     * @return the canonical instance that is equal to this expression
+     */
+    public Expression intern() {
+        int h = hashCode();
+        Segment segment = canonical[((h >>> 16) & (SEGMENTS - 1)) << 1 | (isNew ? 1 : 0)];
+        synchronized(segment) {
+            WeakReference<Expression> ref = segment.instances.get(this);
+            Expression e = ref == null ? null : ref.get();
+            if(e == null) {
+                // A view would keep the storage that it reads from
+                if(terms != null) {
+                    e = this;
+                } else {
+                    String[] copy = copyTerms();
+                    e = new Expression(predicate, copy, Collections.unmodifiableList(Arrays.asList(copy)), negated, isNew).withHash(h);
+                }
+                if(e.types == null) {
+                    e.types = e.typeTerms();
+                }
+                segment.instances.put(e, new WeakReference<>(e));
+            }
+            return e;
+        }
+    }
+
+    /**
+     * The number of expressions in the table of canonical instances of {@link #intern()}, including the ones that
+     * were collected but not yet purged from it.
+     * @return The number of interned expressions
+     */
+    public static int getInternedCount() {
+        int count = 0;
+        for(Segment segment : canonical) {
+            synchronized(segment) {
+                count += segment.instances.size();
+            }
+        }
+        return count;
     }
 
     /**
@@ -121,12 +309,27 @@ public class Expression implements Indexable<String> {
     	// these conditions are supposed to have been caught earlier in the chain by 
     	// methods such as Rule#validate().
     	// The RuntimeException is a requirement of using the Streams API.
-    	String term1 = terms.get(0);
+    	String term1 = term(0);
         if(DatalogInterpreter.isVariable(term1) && bindings.containsKey(term1))
             term1 = bindings.get(term1);
-        String term2 = terms.get(1);
+        String term2 = term(1);
         if(DatalogInterpreter.isVariable(term2) && bindings.containsKey(term2))
             term2 = bindings.get(term2);
+        if(isArithmetic()) {
+            String term3 = term(2);
+            if(DatalogInterpreter.isVariable(term3) && bindings.containsKey(term3))
+                term3 = bindings.get(term3);
+            if(DatalogInterpreter.isVariable(term2) || DatalogInterpreter.isVariable(term3)) {
+            	// Rule#validate() was supposed to catch this condition
+            	throw new RuntimeException("Unbound operand in evaluation of " + this);
+            }
+            Term value = Term.apply(predicate, operand(1, term2, bindings), operand(2, term3, bindings));
+            if(DatalogInterpreter.isVariable(term1)) {
+                bind(bindings, term1, value);
+                return true;
+            }
+            return Term.equal(operand(0, term1, bindings), value);
+        }
         if(predicate.equals("=")) {
             // '=' is special
             if(DatalogInterpreter.isVariable(term1)) {
@@ -134,98 +337,112 @@ public class Expression implements Indexable<String> {
                 	// Rule#validate() was supposed to catch this condition
                     throw new RuntimeException("Both operands of '=' are unbound (" + term1 + ", " + term2 + ") in evaluation of " + this);
                 }
-                bindings.put(term1, term2);
+                bind(bindings, term1, operand(1, term2, bindings));
                 return true;
             } else if(DatalogInterpreter.isVariable(term2)) {
-                bindings.put(term2, term1);
+                bind(bindings, term2, operand(0, term1, bindings));
                 return true;
             } else {
-				if (Parser.tryParseDouble(term1) && Parser.tryParseDouble(term2)) {
-					double d1 = Double.parseDouble(term1);
-					double d2 = Double.parseDouble(term2);
-					return d1 == d2;
-				} else {
-					return term1.equals(term2);
-				}
+                return Term.equal(operand(0, term1, bindings), operand(1, term2, bindings));
             }
         } else {
-            try {
-            	
-            	// These errors can be detected in the validate method:
-                if(DatalogInterpreter.isVariable(term1) || DatalogInterpreter.isVariable(term2)) {
-                	// Rule#validate() was supposed to catch this condition
-                	throw new RuntimeException("Unbound variable in evaluation of " + this);
-                }
-                
-                if(predicate.equals("<>")) {
-                    // '<>' is also a bit special
-                    if(Parser.tryParseDouble(term1) && Parser.tryParseDouble(term2)) {
-                            double d1 = Double.parseDouble(term1);
-                            double d2 = Double.parseDouble(term2);
-                            return d1 != d2;
-                    } else {
-                        return !term1.equals(term2);
-                    }
-                } else {
-                    // Ordinary comparison operator
-                	// If the term doesn't parse to a double it gets treated as 0.0.
-                	double d1 = 0.0, d2 = 0.0;
-                    if(Parser.tryParseDouble(term1)) {
-                    	d1 = Double.parseDouble(term1);
-                    }
-                    if(Parser.tryParseDouble(term2)) {
-                    	d2 = Double.parseDouble(term2);
-                    }
-                    switch(predicate) {
-                        case "<": return d1 < d2;
-                        case "<=": return d1 <= d2;
-                        case ">": return d1 > d2;
-                        case ">=": return d1 >= d2;
-                    }
-                }
-            } catch (NumberFormatException e) {
-                // You found a way to write a double in a way that the regex in tryParseDouble() doesn't understand.
-                throw new RuntimeException("tryParseDouble() experienced a false positive!?", e);
+        	// These errors can be detected in the validate method:
+            if(DatalogInterpreter.isVariable(term1) || DatalogInterpreter.isVariable(term2)) {
+            	// Rule#validate() was supposed to catch this condition
+            	throw new RuntimeException("Unbound variable in evaluation of " + this);
+            }
+            // The operands were typed when they entered the database, so these are primitive comparisons
+            Term t1 = operand(0, term1, bindings), t2 = operand(1, term2, bindings);
+            switch(predicate) {
+                // '<>' is also a bit special: terms that aren't numbers are compared as strings
+                case "<>": return !Term.equal(t1, t2);
+                // If the term isn't a number it gets treated as 0.
+                case "<": return Term.compare(t1, t2) < 0;
+                case "<=": return Term.compare(t1, t2) <= 0;
+                case ">": return Term.compare(t1, t2) > 0;
+                case ">=": return Term.compare(t1, t2) >= 0;
             }
         }
         throw new RuntimeException("Unimplemented built-in predicate " + predicate);
     }
     
+    /* The typed value of an operand of a built-in: of the constant, which was typed when the built-in was built, or
+     * of the value that a variable is bound to, which was typed when the fact it came from entered the database */
+    private Term operand(int i, String value, Map<String, String> bindings) {
+        String term = term(i);
+        if(!DatalogInterpreter.isVariable(term)) {
+            return getType(i);
+        }
+        Term type = bindings instanceof Bindings ? ((Bindings) bindings).getType(term) : null;
+        return type != null ? type : Term.of(value);
+    }
+
+    private static void bind(Map<String, String> bindings, String variable, Term value) {
+        if(bindings instanceof Bindings) {
+            ((Bindings) bindings).bind(variable, value);
+        } else {
+            bindings.put(variable, value.getText());
+        }
+    }
+
     public String getPredicate() {
 		return predicate;
 	}
     
     public List<String> getTerms() {
-		return terms;
+		return termList;
 	}
 
     @Override
     public boolean equals(Object other) {
+        if(this == other) {
+            return true;
+        }
         if(other == null || !(other instanceof Expression)) {
             return false;
         }
         Expression that = ((Expression) other);
+        if(hashCode() != that.hashCode()) {
+            return false;
+        }
         if(!this.predicate.equals(that.predicate)) {
             return false;
         }
         if(arity() != that.arity() || negated != that.negated) {
             return false;
         }
-        for(int i = 0; i < terms.size(); i++) {
-            if(!terms.get(i).equals(that.terms.get(i))) {
+        for(int i = 0; i < arity(); i++) {
+            if(!term(i).equals(that.term(i))) {
                 return false;
             }
         }
         return true;
     }
 
+    /* The hash combines the terms in order, so that e(1,2) and e(2,1) don't collide, and is then
+     * put through the MurmurHash3 finalizer so that the low bits used by HashMap are well mixed. */
     @Override
     public int hashCode() {
-        int hash = predicate.hashCode();
-        for(String term : terms) {
-            hash += term.hashCode();
+        int h = hash;
+        if(h == 0) {
+            h = predicate.hashCode();
+            for(int i = 0; i < arity(); i++) {
+                h = 31 * h + term(i).hashCode();
+            }
+            if(negated) {
+                h = ~h;
+            }
+            h ^= h >>> 16;
+            h *= 0x85ebca6b;
+            h ^= h >>> 13;
+            h *= 0xc2b2ae35;
+            h ^= h >>> 16;
+            if(h == 0) {
+                h = 1;
+            }
+            hash = h;
         }
-        return hash;
+        return h;
     }
 
     @Override
@@ -234,16 +451,21 @@ public class Expression implements Indexable<String> {
         if(isNegated()) {
             sb.append("not ");
         }
-        if(isBuiltIn()) {
-            termToString(sb, terms.get(0));
+        if(isArithmetic()) {
+            termToString(sb, term(0));
+            sb.append(" = ");
+            termToString(sb, term(1));
             sb.append(" ").append(predicate).append(" ");
-            termToString(sb, terms.get(1));
+            termToString(sb, term(2));
+        } else if(isBuiltIn()) {
+            termToString(sb, term(0));
+            sb.append(" ").append(predicate).append(" ");
+            termToString(sb, term(1));
         } else {
             sb.append(predicate).append('(');
-            for(int i = 0; i < terms.size(); i++) {
-                String term = terms.get(i);
-                termToString(sb, term);
-                if(i < terms.size() - 1) {
+            for(int i = 0; i < arity(); i++) {
+                termToString(sb, term(i));
+                if(i < arity() - 1) {
                     sb.append(", ");
                 }
             }
@@ -282,9 +504,7 @@ public class Expression implements Indexable<String> {
      * @return The negated expression
      */
     public static Expression not(String predicate, String... terms) {
-        Expression e = new Expression(predicate, terms);
-        e.negated = true;
-        return e;
+        return new Expression(predicate, terms.clone(), true);
     }
     
     /**
@@ -365,11 +585,30 @@ public class Expression implements Indexable<String> {
         }
 	}
 
+	/**
+	 * Whether this is a fact derived by the engine.
+	 * This flag is not part of the identity of the expression.
+	 * @return true if the fact was derived
+	 */
 	public boolean isNew() {
 		return isNew;
 	}
-	
-	public void setNew(boolean isNew) {
-		this.isNew = isNew;
+
+	/**
+	 * Retrieves this fact marked as derived by the engine.
+	 * @return {@code this} if it is marked already, otherwise a copy that shares its terms
+	 */
+	public Expression asNew() {
+		if(isNew)
+			return this;
+		Expression copy = new Expression(predicate, terms, termList, negated, true).withHash(hash);
+		copy.types = types;
+		return copy;
+	}
+
+	/* Sets the cached hash code of a copy, which is the same as that of the original */
+	private Expression withHash(int hash) {
+		this.hash = hash;
+		return this;
 	}
 }
\ No newline at end of file
@@ -0,0 +1,73 @@
+package codalog;
+
+import java.util.List;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * The JDK Flight Recorder events of {@link DatalogInterpreter}, which mark the queries and the scripts in a recording;
+ * the engine records the strata and iterations that they consist of.
+ * <p>
+ * As with any JFR event, the fields are only filled in if {@link Event#shouldCommit()}, so the events cost next to
+ * nothing while nothing is recording.
+ * </p>
+ */
+final class InterpreterEvents {
+
+	private InterpreterEvents() {
+	}
+
+	@Name("codalog.Query")
+	@Label("Query")
+	@Category({"Codalog"})
+	@Description("The evaluation of a query, or of a batch of queries evaluated together")
+	static final class Query extends Event {
+		@Label("Goals")
+		@Description("The goals of the queries, one query per line")
+		String goals;
+
+		@Label("Queries")
+		int queries;
+
+		@Label("Answers")
+		int answers;
+
+		@Label("Cached")
+		@Description("The number of queries that were answered from the query cache")
+		int cached;
+
+		void set(List<List<Expression>> queries, int answers, int cached) {
+			StringBuilder sb = new StringBuilder();
+			for(List<Expression> goals : queries) {
+				if(sb.length() > 0)
+					sb.append('\n');
+				for(int i = 0; i < goals.size(); i++) {
+					if(i > 0)
+						sb.append(", ");
+					sb.append(goals.get(i));
+				}
+				sb.append('?');
+			}
+			this.goals = sb.toString();
+			this.queries = queries.size();
+			this.answers = answers;
+			this.cached = cached;
+		}
+	}
+
+	@Name("codalog.Execute")
+	@Label("Execute Statements")
+	@Category({"Codalog"})
+	@Description("The execution of the statements of a script or a request")
+	static final class Execute extends Event {
+		@Label("Statements")
+		int statements;
+
+		@Label("Queries")
+		int queries;
+	}
+}
@@ -12,7 +12,9 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.Reader;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
 import java.util.Map;
 import java.util.Scanner;
 public class NewCodalog {
@@ -32,18 +34,19 @@ public class NewCodalog {
 	            try {
 	                DatalogInterpreter jatalog = new DatalogInterpreter();
 	                QueryInterface qo = new DefaultQueryOutput();
+	                // The files are parsed in parallel, and executed in order
+	                List<File> files = new ArrayList<>();
 	                for (String arg : args) {
-	                    try (Reader reader = new BufferedReader(new FileReader(arg))) {
-	                        jatalog.executeAll(reader, qo);
-	                    }
-	                }                
+	                    files.add(new File(arg));
+	                }
+	                new ParallelLoader(jatalog).load(files, qo);
 	            } catch (CodalogException | IOException e) {
 	                e.printStackTrace();
 	            }
 	        } else {
 	            // Get input from command line
 	            DatalogInterpreter codalog = new DatalogInterpreter();
-	            System.out.println("Codalog Engine\n Press \n 1:Load File \n 2:Parsing Evaluation \n 3:Display Rules and Facts\n 4:Query \n 5:Exit");
+	            System.out.println("Codalog Engine\n Press \n 1:Load File \n 2:Parsing Evaluation \n 3:Display Rules and Facts\n 4:Query \n 5:Exit \n 6:Memory Footprint");
 	        
 
             Scanner operationType = new Scanner(System.in);
@@ -74,7 +77,7 @@ public class NewCodalog {
 					else if(eval.equals("seminaive")){codalog.setIsNaive(false);}
 					else{codalog.setIsNaive(false);}
 					codalog.expand();
-		            System.out.println("Codalog Engine\n Press \n 1:Load File \n 2:Parsing Evaluation \n 3:Display Rules and Facts\n 4:Query \n 5:Exit");
+		            System.out.println("Codalog Engine\n Press \n 1:Load File \n 2:Parsing Evaluation \n 3:Display Rules and Facts\n 4:Query \n 5:Exit \n 6:Memory Footprint");
 				}
 				catch(IOException io){
 					System.out.println("File Not Found");
@@ -85,12 +88,12 @@ public class NewCodalog {
             	
             	 codalog.validate();
             	 System.out.println("File Successfully Parsed");
-		         System.out.println("Codalog Engine\n Press \n 1:Load File \n 2:Parsing Evaluation \n 3:Display Rules and Facts\n 4:Query \n 5:Exit");
+		         System.out.println("Codalog Engine\n Press \n 1:Load File \n 2:Parsing Evaluation \n 3:Display Rules and Facts\n 4:Query \n 5:Exit \n 6:Memory Footprint");
 
             }
             else if(operation==3){
                 System.out.println(codalog);
-	            System.out.println("Codalog Engine\n Press \n 1:Load File \n 2:Parsing Evaluation \n 3:Display Rules and Facts\n 4:Query \n 5:Exit");
+	            System.out.println("Codalog Engine\n Press \n 1:Load File \n 2:Parsing Evaluation \n 3:Display Rules and Facts\n 4:Query \n 5:Exit \n 6:Memory Footprint");
 
             }
             else if(operation==4){
@@ -114,7 +117,12 @@ public class NewCodalog {
 					System.out.println("Result is : " + result);
                     System.out.println(String.format("%.3fs Running time: ", runTime));
 				}        
-	            System.out.println("Codalog Engine\n Press \n 1:Load File \n 2:Parsing Evaluation \n 3:Display Rules and Facts\n 4:Query \n 5:Exit");
+	            System.out.println("Codalog Engine\n Press \n 1:Load File \n 2:Parsing Evaluation \n 3:Display Rules and Facts\n 4:Query \n 5:Exit \n 6:Memory Footprint");
+
+            }
+            else if(operation==6){
+                System.out.println(codalog.getMemoryFootprint());
+	            System.out.println("Codalog Engine\n Press \n 1:Load File \n 2:Parsing Evaluation \n 3:Display Rules and Facts\n 4:Query \n 5:Exit \n 6:Memory Footprint");
 
             }
             else if(operation ==5){
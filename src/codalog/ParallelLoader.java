@@ -0,0 +1,311 @@
+package codalog;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StreamTokenizer;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import codalog.interfaces.PredicateInterface;
+import codalog.interfaces.QueryInterface;
+
+/**
+ * Loads program files into a {@link DatalogInterpreter}, parsing them on several threads.
+ * <p>
+ * One thread reads the files in order and cuts them into chunks of about {@link #DEFAULT_CHUNK_SIZE} characters at
+ * the ends of statements, that is at a {@code .}, {@code ?} or {@code ~} followed by a space or a line break,
+ * outside of quotes and comments. The chunks are parsed by a pool of threads while the next ones are read, so small
+ * files are parsed concurrently with each other, and large files in pieces. Each chunk is parsed into a buffer of
+ * its own, where its facts are checked. The calling thread then applies the chunks in the order of the files and of
+ * the chunks in them, so the database ends up exactly as if the files had been executed one after another with
+ * {@link DatalogInterpreter#executeAll(Reader, QueryInterface)}: consecutive facts are added to the EDB in one go,
+ * rules are added between them, and queries, which are evaluated together per file as in {@code executeAll}, see
+ * the facts and rules that precede them. The chunks that wait to be applied are bounded, so a slow statement holds
+ * back the reading instead of filling the heap.
+ * </p><p>
+ * An error stops the loading at the statement where it occurs. The statements before it are applied, and the error
+ * names the file and the line of the statement.
+ * </p>
+ */
+public class ParallelLoader {
+
+	/** The default size of a chunk, in characters */
+	public static final int DEFAULT_CHUNK_SIZE = 1 << 20;
+
+	private final DatalogInterpreter interpreter;
+	private final int threads;
+	private final int chunkSize;
+
+	/**
+	 * Creates a loader with a thread per processor to parse.
+	 * @param interpreter The interpreter to load the files into
+	 */
+	public ParallelLoader(DatalogInterpreter interpreter) {
+		this(interpreter, Runtime.getRuntime().availableProcessors(), DEFAULT_CHUNK_SIZE);
+	}
+
+	/**
+	 * Creates a loader.
+	 * @param interpreter The interpreter to load the files into
+	 * @param threads The number of threads that parse
+	 * @param chunkSize The size above which a file is cut into chunks, in characters
+	 */
+	public ParallelLoader(DatalogInterpreter interpreter, int threads, int chunkSize) {
+		if(threads <= 0)
+			throw new IllegalArgumentException("The number of threads must be positive: " + threads);
+		if(chunkSize <= 0)
+			throw new IllegalArgumentException("The chunk size must be positive: " + chunkSize);
+		this.interpreter = interpreter;
+		this.threads = threads;
+		this.chunkSize = chunkSize;
+	}
+
+	/**
+	 * Loads files, executing their statements in order.
+	 * @param files The files
+	 * @param output Receives the answers of the queries; may be null
+	 * @return The answers of the last statement, or null if it wasn't a query
+	 * @throws CodalogException if a statement can't be parsed or executed
+	 * @throws IOException if a file can't be read
+	 */
+	public Collection<Map<String, String>> load(List<File> files, QueryInterface output) throws CodalogException, IOException {
+		AtomicInteger count = new AtomicInteger();
+		ExecutorService parsers = Executors.newFixedThreadPool(threads, task -> {
+			Thread thread = new Thread(task, "codalog-parser-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+		// The parsed chunks in order; null once all the files are read
+		BlockingQueue<Future<Parsed>> chunks = new ArrayBlockingQueue<>(2 * threads + 2);
+		Thread reader = new Thread(() -> read(files, parsers, chunks), "codalog-loader");
+		reader.setDaemon(true);
+		InterpreterEvents.Execute event = new InterpreterEvents.Execute();
+		event.begin();
+		try {
+			reader.start();
+			Collection<Map<String, String>> answers = null;
+			List<PredicateInterface> queries = new ArrayList<>();
+			int queryLine = 0;
+			while(true) {
+				Parsed parsed = chunks.take().get();
+				if(parsed == null)
+					return answers;
+				String source = parsed.chunk.source;
+				for(Step step : parsed.steps) {
+					event.statements += step.facts.size();
+					if(!step.facts.isEmpty()) {
+						interpreter.executeQueries(queries, source, queryLine, output);
+						interpreter.addFacts(step.facts);
+						answers = null;
+					}
+					if(step.statement == null)
+						continue;
+					event.statements++;
+					if(step.statement.getQueryGoals() != null) {
+						event.queries++;
+						queries.add(step.statement);
+						queryLine = step.line;
+					} else {
+						interpreter.executeQueries(queries, source, queryLine, output);
+						answers = interpreter.executeSingleStatement(step.statement, source, step.line, output);
+					}
+				}
+				if(parsed.error != null || parsed.chunk.last) {
+					// As in executeAll(), the queries of a file are evaluated before its error or its end
+					Collection<Map<String, String>> last = interpreter.executeQueries(queries, source, queryLine, output);
+					if(last != null)
+						answers = last;
+				}
+				if(parsed.error instanceof IOException)
+					throw (IOException) parsed.error;
+				if(parsed.error != null)
+					throw (CodalogException) parsed.error;
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new CodalogException(e);
+		} catch (ExecutionException e) {
+			// parse() only lets unchecked exceptions through
+			if(e.getCause() instanceof Error)
+				throw (Error) e.getCause();
+			throw (RuntimeException) e.getCause();
+		} finally {
+			reader.interrupt();
+			parsers.shutdownNow();
+			event.commit();
+		}
+	}
+
+	/* Reads the files into chunks and submits them to the parsers, in order. An error is passed on as a chunk that
+	 * failed, so that the statements before it are still applied. */
+	private void read(List<File> files, ExecutorService parsers, BlockingQueue<Future<Parsed>> chunks) {
+		try {
+			for(File file : files) {
+				String source = file.getPath();
+				try (Reader in = new FileReader(file)) {
+					Splitter splitter = new Splitter(source);
+					char[] buffer = new char[1 << 16];
+					int n;
+					while((n = in.read(buffer)) >= 0) {
+						for(int i = 0; i < n; i++) {
+							if(splitter.append(buffer[i]) && splitter.text.length() >= chunkSize) {
+								Chunk chunk = splitter.cut(false);
+								chunks.put(parsers.submit(() -> parse(chunk)));
+							}
+						}
+					}
+					Chunk chunk = splitter.cut(true);
+					chunks.put(parsers.submit(() -> parse(chunk)));
+				} catch (IOException e) {
+					chunks.put(CompletableFuture.completedFuture(new Parsed(new Chunk(source, 0, "", true), e)));
+					return;
+				}
+			}
+			chunks.put(CompletableFuture.completedFuture(null));
+		} catch (InterruptedException | RejectedExecutionException e) {
+			// The loading was stopped by an error
+		}
+	}
+
+	/* Parses a chunk into facts and statements, checking the facts */
+	private static Parsed parse(Chunk chunk) {
+		Parsed parsed = new Parsed(chunk, null);
+		Step step = new Step();
+		StreamTokenizer scan = null;
+		try {
+			scan = DatalogInterpreter.getTokenizer(new StringReader(chunk.text));
+			scan.nextToken();
+			while(scan.ttype != StreamTokenizer.TT_EOF) {
+				scan.pushBack();
+				PredicateInterface statement;
+				try {
+					statement = Parser.parseStmt(scan);
+				} catch (CodalogException e) {
+					throw new CodalogException(DatalogInterpreter.location(chunk.source, chunk.line + scan.lineno() - 1) + " Error parsing statement", e);
+				}
+				int line = chunk.line + scan.lineno() - 1;
+				Expression fact = statement.getFact();
+				if(fact != null) {
+					try {
+						DatalogInterpreter.checkFact(fact);
+					} catch (CodalogException e) {
+						throw new CodalogException(DatalogInterpreter.location(chunk.source, line) + " Error executing statement", e);
+					}
+					step.facts.add(fact);
+				} else {
+					step.statement = statement;
+					step.line = line;
+					parsed.steps.add(step);
+					step = new Step();
+				}
+				scan.nextToken();
+			}
+		} catch (CodalogException e) {
+			parsed.error = e;
+		} catch (IOException e) {
+			// A StringReader doesn't throw
+			parsed.error = e;
+		}
+		parsed.steps.add(step);
+		return parsed;
+	}
+
+	/* A piece of a file that ends at the end of a statement */
+	private static final class Chunk {
+		final String source;
+		final int line;
+		final String text;
+		final boolean last;
+
+		Chunk(String source, int line, String text, boolean last) {
+			this.source = source;
+			this.line = line;
+			this.text = text;
+			this.last = last;
+		}
+	}
+
+	/* Facts to add, followed by a statement to execute, if any */
+	private static final class Step {
+		final List<Expression> facts = new ArrayList<>();
+		PredicateInterface statement;
+		int line;
+	}
+
+	/* The steps of a chunk, and the error that stopped its parsing, if any */
+	private static final class Parsed {
+		final Chunk chunk;
+		final List<Step> steps = new ArrayList<>();
+		Exception error;
+
+		Parsed(Chunk chunk, Exception error) {
+			this.chunk = chunk;
+			this.error = error;
+		}
+	}
+
+	/* Accumulates the text of a file, following quotes, comments and lines the way the tokenizer of
+	 * DatalogInterpreter does, to know where statements end */
+	private static final class Splitter {
+		final String source;
+		final StringBuilder text = new StringBuilder();
+		int line = 1, chunkLine = 1;
+		char quote, previous;
+		boolean comment, escaped, terminated;
+
+		Splitter(String source) {
+			this.source = source;
+		}
+
+		/* Appends a character, and returns whether the text can be cut after it */
+		boolean append(char c) {
+			text.append(c);
+			if(c == '\n' && previous != '\r' || c == '\r')
+				line++;
+			previous = c;
+			// A chunk doesn't start with the \n of a \r\n, which would count as a line of its own
+			boolean end = terminated && Character.isWhitespace(c) && c != '\r';
+			boolean afterTerminator = terminated;
+			terminated = false;
+			if(comment) {
+				comment = c != '\n' && c != '\r';
+			} else if(quote != 0) {
+				if(escaped) {
+					escaped = false;
+				} else if(c == '\\') {
+					escaped = true;
+				} else if(c == quote || c == '\n' || c == '\r') {
+					quote = 0;
+				}
+			} else if(c == '%' || c == '/') {
+				comment = true;
+			} else if(c == '"' || c == '\'') {
+				quote = c;
+			} else {
+				terminated = c == '.' || c == '?' || c == '~' || c == '\r' && afterTerminator;
+			}
+			return end;
+		}
+
+		Chunk cut(boolean last) {
+			Chunk chunk = new Chunk(source, chunkLine, text.toString(), last);
+			text.setLength(0);
+			chunkLine = line;
+			return chunk;
+		}
+	}
+}
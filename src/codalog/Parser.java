@@ -5,7 +5,6 @@ import java.io.StreamTokenizer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
-import java.util.regex.Pattern;
 
 import codalog.interfaces.PredicateInterface;
 import codalog.predicate.StatementFactory;
@@ -20,12 +19,27 @@ class Parser {
      * - a rule, like ancestor(A, B) :- ancestor(A, C), parent(C, B).
      * - a query, like ancestor(X, bob)?
      * - a delete clause, like delete parent(alice, bob).
+     * - the plan of a query, like explain ancestor(X, bob)? or explain analyze ancestor(X, bob)?
      */
     static PredicateInterface parseStmt(StreamTokenizer scan) throws CodalogException {
     	
     	List<Expression> goals = new ArrayList<>();
         try {
-            Expression head = parseExpr(scan);
+            Expression head;
+            scan.nextToken();
+            if(scan.ttype == StreamTokenizer.TT_WORD && scan.sval.equalsIgnoreCase("explain")) {
+                // `explain` is only a keyword if a goal follows it; `explain(X)` is still a predicate
+                String word = scan.sval;
+                if(scan.nextToken() == StreamTokenizer.TT_WORD) {
+                    scan.pushBack();
+                    return parseExplain(scan);
+                }
+                scan.pushBack();
+                head = parseExpr(word, false, false, scan);
+            } else {
+                scan.pushBack();
+                head = parseExpr(scan);
+            }
             if(scan.nextToken() == ':') {
                 // We're dealing with a rule
                 if(scan.nextToken() != '-') {
@@ -52,8 +66,7 @@ class Parser {
                     goals.clear();
                     goals.add(head);
                     if (scan.ttype != '.' && scan.ttype != '?' && scan.ttype != ',') {
-                        /* You _can_ write facts like `a = 5 .` but I recommend against it; if you do then you *must* have the space between the
-                        5 and the '.' otherwise the parser sees it as 5.0 and the error message can be a bit confusing. */
+                        /* You _can_ write facts like `a = 5.` but I recommend against it. */
                         throw new CodalogException("[line " + scan.lineno() + "] Expected one of '.', ',' or '?' after fact/query expression");
                         }
                     while(scan.ttype == ',') {
@@ -75,6 +88,35 @@ class Parser {
         }
     }
 
+    /* Parses the goals of an explain statement, after the `explain` keyword */
+    private static PredicateInterface parseExplain(StreamTokenizer scan) throws CodalogException, IOException {
+        List<Expression> goals = new ArrayList<>();
+        boolean analyze = false;
+        scan.nextToken();
+        if(scan.sval.equalsIgnoreCase("analyze")) {
+            String word = scan.sval;
+            if(scan.nextToken() == StreamTokenizer.TT_WORD) {
+                analyze = true;
+                scan.pushBack();
+                goals.add(parseExpr(scan));
+            } else {
+                // A goal like `analyze(X)`
+                scan.pushBack();
+                goals.add(parseExpr(word, false, false, scan));
+            }
+        } else {
+            scan.pushBack();
+            goals.add(parseExpr(scan));
+        }
+        while(scan.nextToken() == ',') {
+            goals.add(parseExpr(scan));
+        }
+        if(scan.ttype != '?') {
+            throw new CodalogException("[line " + scan.lineno() + "] Expected '?' after the query to explain");
+        }
+        return StatementFactory.explain(goals, analyze);
+    }
+
     /* parses an expression */
     static Expression parseExpr(StreamTokenizer scan) throws CodalogException {
         try {
@@ -89,23 +131,30 @@ class Parser {
             String lhs = null;
             boolean builtInExpected = false;
             if(scan.ttype == StreamTokenizer.TT_WORD) {
-                lhs = scan.sval;
+                lhs = Term.normalize(scan.sval);
+                builtInExpected = Term.of(lhs).isNumeric();
             } else if(scan.ttype == '"' || scan.ttype == '\'') {
                 lhs = scan.sval;
                 builtInExpected = true;
-            } else if(scan.ttype == StreamTokenizer.TT_NUMBER) {
-                lhs = numberToString(scan.nval);
+            } else if(scan.ttype == '-') {
+                lhs = parseNegative(scan);
                 builtInExpected = true;
             } else{
             	throw new CodalogException("[line " + scan.lineno() + "] Predicate or start of expression expected");}
-                
 
+            return parseExpr(lhs, negated, builtInExpected, scan);
+        } catch (IOException e) {
+            throw new CodalogException(e);
+        }
+    }
+
+    /* Parses the rest of an expression that starts with `lhs`, which has been read already */
+    private static Expression parseExpr(String lhs, boolean negated, boolean builtInExpected, StreamTokenizer scan) throws CodalogException {
+        try {
             scan.nextToken();
             if(scan.ttype == StreamTokenizer.TT_WORD || scan.ttype == '=' || scan.ttype == '!' || scan.ttype == '<' || scan.ttype == '>') {
                 scan.pushBack();
-                Expression e = parseBuiltInPredicate(lhs, scan);
-                e.negated = negated;
-                return e;
+                return parseBuiltInPredicate(lhs, negated, scan);
             }
 
             if(builtInExpected) {
@@ -120,11 +169,11 @@ class Parser {
                 scan.pushBack();
                 do {
                     if(scan.nextToken() == StreamTokenizer.TT_WORD) {
-                        terms.add(scan.sval);
+                        terms.add(parseAggregate(Term.normalize(scan.sval), scan));
                     } else if(scan.ttype == '"' || scan.ttype == '\'') {
                         terms.add("\"" + scan.sval);
-                    } else if(scan.ttype == StreamTokenizer.TT_NUMBER) {
-                        terms.add(numberToString(scan.nval));
+                    } else if(scan.ttype == '-') {
+                        terms.add(parseNegative(scan));
                     } else {
                     	throw new CodalogException("[line " + scan.lineno() + "] Expected term in expression");
                         }
@@ -133,21 +182,40 @@ class Parser {
                     throw new CodalogException("[line " + scan.lineno() + "] Expected ')'");
                     }
             }
-            Expression e = new Expression(lhs, terms);
-            e.negated = negated;
-            return e;
+            return new Expression(lhs, terms, negated);
         } catch (IOException e) {
             throw new CodalogException(e);
         }
     }
 
+    /* Parses an aggregate term like count<Y> if `word` is the name of an aggregate function followed by '<',
+     * otherwise it just returns `word` */
+    private static String parseAggregate(String word, StreamTokenizer scan) throws CodalogException, IOException {
+        Aggregate.Function function = Aggregate.function(word);
+        if(function == null) {
+            return word;
+        }
+        if(scan.nextToken() != '<') {
+            scan.pushBack();
+            return word;
+        }
+        if(scan.nextToken() != StreamTokenizer.TT_WORD || !DatalogInterpreter.isVariable(scan.sval)) {
+            throw new CodalogException("[line " + scan.lineno() + "] Expected a variable in aggregate " + word + "<>");
+        }
+        String variable = scan.sval;
+        if(scan.nextToken() != '>') {
+            throw new CodalogException("[line " + scan.lineno() + "] Expected '>' after aggregate " + word + "<" + variable);
+        }
+        return Aggregate.term(function, variable);
+    }
+
     private static final List<String> validOperators = Arrays.asList(new String[] {"=", "!=", "<>", "<", "<=", ">", ">="});
 
     /* Parses one of the built-in predicates, eg X <> Y 
      * It is represented internally as a Expr with the operator as the predicate and the 
      * operands as its terms, eg. <>(X, Y) 
      */
-    private static Expression parseBuiltInPredicate(String lhs, StreamTokenizer scan) throws CodalogException {
+    private static Expression parseBuiltInPredicate(String lhs, boolean negated, StreamTokenizer scan) throws CodalogException {
         try {
             String operator;
             scan.nextToken();
@@ -171,38 +239,59 @@ class Parser {
             String rhs = null;
             scan.nextToken();
             if(scan.ttype == StreamTokenizer.TT_WORD) {
-                rhs = scan.sval;
+                rhs = Term.normalize(scan.sval);
             } else if(scan.ttype == '"' || scan.ttype == '\'') {
                 rhs = scan.sval;
-            } else if(scan.ttype == StreamTokenizer.TT_NUMBER) {
-                rhs = numberToString(scan.nval);
+            } else if(scan.ttype == '-') {
+                rhs = parseNegative(scan);
             } else {
                 throw new CodalogException("[line " + scan.lineno() + "] Right hand side of expression expected");
                 }
 
-            return new Expression(operator, lhs, rhs);
+            if(operator.equals("=")) {
+                // `D = D1 + D2` is an arithmetic built-in
+                Expression arithmetic = parseArithmetic(lhs, rhs, negated, scan);
+                if(arithmetic != null) {
+                    return arithmetic;
+                }
+            }
+            return new Expression(operator, Arrays.asList(lhs, rhs), negated);
 
         } catch (IOException e) {
             throw new CodalogException(e);
         }
     }
 
-    /* Converts a number to a string - The StreamTokenizer returns numbers as doubles by default
-     * so we need to convert them back to strings to store them in the expressions */
-    private static String numberToString(double nval) {
-        // Remove trailing zeros; http://stackoverflow.com/a/14126736/115589
-        if(nval == (long) nval)
-            return String.format("%d",(long)nval);
-        else
-            return String.format("%s",nval);
+    /* Parses the rest of an arithmetic built-in like `D = D1 + D2` if the operand `lhs = a` is followed by an operator.
+     * `D1 -1` is read as D1 minus 1, and `D1 - -1` as D1 minus -1.
+     * '/' starts a comment in the tokenizer, so there is no division. */
+    private static Expression parseArithmetic(String result, String a, boolean negated, StreamTokenizer scan) throws CodalogException, IOException {
+        String operator;
+        String b;
+        scan.nextToken();
+        if(scan.ttype == '+' || scan.ttype == '-' || scan.ttype == '*') {
+            operator = Character.toString((char)scan.ttype);
+            scan.nextToken();
+            if(scan.ttype == StreamTokenizer.TT_WORD) {
+                b = Term.normalize(scan.sval);
+            } else if(scan.ttype == '-') {
+                b = parseNegative(scan);
+            } else {
+                throw new CodalogException("[line " + scan.lineno() + "] Operand expected after '" + operator + "'");
+            }
+        } else {
+            scan.pushBack();
+            return null;
+        }
+        return new Expression(operator, Arrays.asList(result, a, b), negated);
     }
 
-    // Regex for tryParseDouble()
-    // There are several suggestions at http://stackoverflow.com/q/1102891/115589, but I chose to roll my own.
-    private static final Pattern numberPattern = Pattern.compile("[+-]?\\d+(\\.\\d*)?([Ee][+-]?\\d+)?");
-
-    /* Checks, via regex, if a String can be parsed as a Double */
-    static boolean tryParseDouble(String str) {
-        return numberPattern.matcher(str).matches();
+    /* Parses the number after a '-', and returns the negative number.
+     * The tokenizer reads numbers as words, so that their digits are kept; see Tokenizer and Term.normalize() */
+    private static String parseNegative(StreamTokenizer scan) throws CodalogException, IOException {
+        if(scan.nextToken() != StreamTokenizer.TT_WORD || !Term.of(scan.sval).isNumeric()) {
+            throw new CodalogException("[line " + scan.lineno() + "] Number expected after '-'");
+        }
+        return Term.normalize("-" + scan.sval);
     }
 }
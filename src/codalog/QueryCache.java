@@ -0,0 +1,329 @@
+package codalog;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import codalog.engine.ResultTable;
+
+/**
+ * A bounded cache of query answers, used by {@link DatalogInterpreter#query(List, Map)}.
+ * <p>
+ * The key of a query is its goals with the bindings substituted and the variables renamed in the order in which
+ * they first appear, so {@code e(X, Y)?} and {@code e(A, B)?} share an entry, and so do {@code e(a, Y)?} and
+ * {@code e(X, Y)?} with the binding {@code X = a}. The answers are stored under the renamed variables, and renamed
+ * back when they are returned.
+ * </p><p>
+ * Each entry records the predicates that its query depends on, that is the predicates of its goals and of the
+ * rules that derive them. {@link #invalidate(String)} discards the entries that depend on a predicate; the
+ * interpreter calls it when facts or rules of that predicate are added or deleted. Changes made directly to
+ * {@link DatalogInterpreter#getEdbProvider()} or {@link DatalogInterpreter#getIdb()} bypass it, so after those
+ * the cache must be {@link #clear() cleared}.
+ * </p><p>
+ * The size of an entry is its number of cells - answers times variables - and the least recently used entries are
+ * evicted to keep the total under the capacity. An entry that would take more than an eighth of the capacity is
+ * not cached at all, so that one large answer doesn't flush all the small ones.
+ * </p>
+ */
+public class QueryCache {
+
+	/** The default capacity, in cells */
+	public static final long DEFAULT_CAPACITY = 1 << 20;
+
+	private final long capacity;
+	private final LinkedHashMap<List<Expression>, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+	private final Map<String, Set<List<Expression>>> dependents = new HashMap<>();
+	private long weight;
+
+	// Incremented by every invalidation, so that answers computed before one aren't stored after it
+	private long version;
+
+	private long hits;
+	private long misses;
+	private long evictions;
+	private long invalidations;
+
+	/**
+	 * Creates a cache.
+	 * @param capacity The maximum total size of the entries, in cells
+	 */
+	public QueryCache(long capacity) {
+		if(capacity <= 0)
+			throw new IllegalArgumentException("The capacity must be positive: " + capacity);
+		this.capacity = capacity;
+	}
+
+	/**
+	 * The key of a query in the cache.
+	 */
+	public static final class Key {
+		private final List<Expression> goals;
+		// The variables and aggregate terms of the query, and the names they have in the key
+		private final Map<String, String> names;
+		private final long version;
+
+		private Key(List<Expression> goals, Map<String, String> names, long version) {
+			this.goals = goals;
+			this.names = names;
+			this.version = version;
+		}
+
+		@Override
+		public String toString() {
+			return goals.toString();
+		}
+	}
+
+	/* The answers of a query, with the values of the terms in the order of Key.names */
+	private static final class Entry {
+		final List<String[]> rows;
+		final Collection<String> predicates;
+		final long weight;
+
+		Entry(List<String[]> rows, Collection<String> predicates, long weight) {
+			this.rows = rows;
+			this.predicates = predicates;
+			this.weight = weight;
+		}
+	}
+
+	/**
+	 * Computes the key of a query.
+	 * @param goals The goals of the query
+	 * @param bindings The bindings of the query; may be null
+	 * @return The key
+	 */
+	public synchronized Key key(List<Expression> goals, Map<String, String> bindings) {
+		Map<String, String> names = new LinkedHashMap<>();
+		List<Expression> canonical = new ArrayList<>(goals.size());
+		for(Expression goal : goals) {
+			if(bindings != null)
+				goal = goal.substitute(bindings);
+			List<String> terms = new ArrayList<>(goal.arity());
+			for(String term : goal.getTerms()) {
+				terms.add(rename(term, names));
+			}
+			canonical.add(new Expression(goal.getPredicate(), terms, goal.isNegated()));
+		}
+		return new Key(canonical, names, version);
+	}
+
+	/* The name of a term in the key: variables are numbered, and so are the variables of aggregates */
+	private static String rename(String term, Map<String, String> names) {
+		String name = names.get(term);
+		if(name != null)
+			return name;
+		Aggregate aggregate = Aggregate.parse(term);
+		if(aggregate != null) {
+			name = Aggregate.term(aggregate.getFunction(), rename(aggregate.getVariable(), names));
+		} else if(DatalogInterpreter.isVariable(term)) {
+			name = "V" + names.size();
+		} else {
+			return term;
+		}
+		names.put(term, name);
+		return name;
+	}
+
+	/**
+	 * Retrieves the answers of a query.
+	 * @param key The key of the query
+	 * @param bindings The bindings of the query, which the answers extend; may be null
+	 * @return The answers, or null if the query isn't in the cache
+	 */
+	public synchronized Collection<Map<String, String>> get(Key key, Map<String, String> bindings) {
+		Entry entry = entries.get(key.goals);
+		if(entry == null) {
+			misses++;
+			return null;
+		}
+		hits++;
+		// The answers are a table of the bindings followed by the variables of the query
+		List<String> columns = new ArrayList<>();
+		if(bindings != null) {
+			for(String variable : bindings.keySet()) {
+				if(!key.names.containsKey(variable))
+					columns.add(variable);
+			}
+		}
+		int bound = columns.size();
+		columns.addAll(key.names.keySet());
+		ResultTable answers = new ResultTable(columns);
+		String[] values = new String[columns.size()];
+		for(int i = 0; i < bound; i++) {
+			values[i] = bindings.get(columns.get(i));
+		}
+		for(String[] row : entry.rows) {
+			System.arraycopy(row, 0, values, bound, row.length);
+			answers.addRow(values);
+		}
+		return answers;
+	}
+
+	/**
+	 * Stores the answers of a query.
+	 * <p>
+	 * The answers are not stored if the cache was invalidated since the key was computed, because they may be out
+	 * of date already.
+	 * </p>
+	 * @param key The key of the query
+	 * @param answers The answers
+	 * @param predicates The predicates that the answers depend on
+	 */
+	public synchronized void put(Key key, Collection<Map<String, String>> answers, Collection<String> predicates) {
+		if(key.version != version)
+			return;
+		String[] terms = key.names.keySet().toArray(new String[key.names.size()]);
+		long size = 1 + (long) answers.size() * Math.max(1, terms.length);
+		if(size > capacity / 8)
+			return;
+		List<String[]> rows = new ArrayList<>(answers.size());
+		for(Map<String, String> answer : answers) {
+			String[] row = new String[terms.length];
+			for(int i = 0; i < row.length; i++) {
+				row[i] = answer.get(terms[i]);
+			}
+			rows.add(row);
+		}
+		remove(key.goals);
+		Entry entry = new Entry(rows, new ArrayList<>(predicates), size);
+		entries.put(key.goals, entry);
+		weight += entry.weight;
+		for(String predicate : entry.predicates) {
+			Set<List<Expression>> keys = dependents.get(predicate);
+			if(keys == null) {
+				keys = new HashSet<>();
+				dependents.put(predicate, keys);
+			}
+			keys.add(key.goals);
+		}
+		// The iteration order is the access order, least recent first
+		Iterator<Map.Entry<List<Expression>, Entry>> eldest = entries.entrySet().iterator();
+		while(weight > capacity && eldest.hasNext()) {
+			Map.Entry<List<Expression>, Entry> evicted = eldest.next();
+			eldest.remove();
+			forget(evicted.getKey(), evicted.getValue());
+			evictions++;
+		}
+	}
+
+	/**
+	 * Discards the entries of the queries that depend on a predicate.
+	 * @param predicate The predicate whose facts or rules changed
+	 */
+	public synchronized void invalidate(String predicate) {
+		version++;
+		Set<List<Expression>> keys = dependents.remove(predicate);
+		if(keys == null)
+			return;
+		for(List<Expression> goals : new ArrayList<>(keys)) {
+			if(remove(goals))
+				invalidations++;
+		}
+	}
+
+	/**
+	 * Discards all the entries. The statistics are kept.
+	 */
+	public synchronized void clear() {
+		version++;
+		entries.clear();
+		dependents.clear();
+		weight = 0;
+	}
+
+	/* Removes an entry, if there is one */
+	private boolean remove(List<Expression> goals) {
+		Entry entry = entries.remove(goals);
+		if(entry == null)
+			return false;
+		forget(goals, entry);
+		return true;
+	}
+
+	/* Updates the weight and the dependents after an entry was removed from `entries` */
+	private void forget(List<Expression> goals, Entry entry) {
+		weight -= entry.weight;
+		for(String predicate : entry.predicates) {
+			Set<List<Expression>> keys = dependents.get(predicate);
+			if(keys != null) {
+				keys.remove(goals);
+				if(keys.isEmpty())
+					dependents.remove(predicate);
+			}
+		}
+	}
+
+	public long getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * The total size of the entries.
+	 * @return The size, in cells
+	 */
+	public synchronized long getWeight() {
+		return weight;
+	}
+
+	/**
+	 * The number of queries in the cache.
+	 * @return The number of entries
+	 */
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	/**
+	 * The number of queries that were answered from the cache.
+	 * @return The number of hits
+	 */
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	/**
+	 * The number of queries that weren't in the cache.
+	 * @return The number of misses
+	 */
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * The number of entries that were discarded to make room for others.
+	 * @return The number of evictions
+	 */
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	/**
+	 * The number of entries that were discarded by {@link #invalidate(String)}.
+	 * @return The number of invalidations
+	 */
+	public synchronized long getInvalidations() {
+		return invalidations;
+	}
+
+	/**
+	 * The fraction of the queries that were answered from the cache.
+	 * @return The hit rate, between 0 and 1
+	 */
+	public synchronized double getHitRate() {
+		long total = hits + misses;
+		return total == 0 ? 0 : (double) hits / total;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format("%d queries, %d/%d cells, %d hits, %d misses (%.1f%%), %d evictions, %d invalidations",
+				entries.size(), weight, capacity, hits, misses, 100 * getHitRate(), evictions, invalidations);
+	}
+}
@@ -0,0 +1,168 @@
+package codalog;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Evaluates statements against a {@link DatalogInterpreter} in the background, so that callers such as event loops
+ * get a {@link CompletableFuture} instead of blocking a thread for the whole evaluation.
+ * <p>
+ * The work runs on a fixed number of threads with a bounded queue. When all threads are busy and the queue is full,
+ * a new request is rejected: its future fails at once with a {@link RejectedExecutionException}, so a burst can't
+ * build up an unbounded backlog, and the latency of the requests that are accepted stays bounded by the queue depth.
+ * </p><p>
+ * If the EDB doesn't {@link codalog.interfaces.EDBInterface#supportsConcurrentReads() support concurrent reads},
+ * the interpreter evaluates the requests one at a time, whatever the number of threads.
+ * </p>
+ */
+public class QueryExecutor implements AutoCloseable {
+
+	private final DatalogInterpreter interpreter;
+	private final ThreadPoolExecutor executor;
+	private final AtomicLong rejected = new AtomicLong();
+
+	/**
+	 * Creates an executor.
+	 * @param interpreter The interpreter to evaluate the statements with
+	 * @param threads The number of threads that evaluate statements
+	 * @param queueDepth The number of requests that can wait for a thread before new ones are rejected
+	 */
+	public QueryExecutor(DatalogInterpreter interpreter, int threads, int queueDepth) {
+		this.interpreter = interpreter;
+		AtomicInteger count = new AtomicInteger();
+		this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<>(queueDepth), task -> {
+					Thread thread = new Thread(task, "codalog-query-" + count.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				});
+	}
+
+	/**
+	 * Evaluates a query in the background.
+	 * @param goals The goals of the query
+	 * @param bindings The bindings of the query; may be null
+	 * @return The answers, or a future that fails with a {@link RejectedExecutionException} if the executor is saturated
+	 */
+	public CompletableFuture<Collection<Map<String, String>>> query(List<Expression> goals, Map<String, String> bindings) {
+		return submit(() -> interpreter.query(goals, bindings));
+	}
+
+	/**
+	 * Evaluates a query in the background.
+	 * @param goals The goals of the query
+	 * @return The answers, as in {@link #query(List, Map)}
+	 */
+	public CompletableFuture<Collection<Map<String, String>>> query(Expression... goals) {
+		return query(Arrays.asList(goals), null);
+	}
+
+	/**
+	 * Executes statements in the background, as with {@link DatalogInterpreter#executeAll(String)}.
+	 * @param statements The statements
+	 * @return The answers of the last statement, or null if it wasn't a query
+	 */
+	public CompletableFuture<Collection<Map<String, String>>> execute(String statements) {
+		return submit(() -> interpreter.executeAll(statements));
+	}
+
+	/**
+	 * Evaluates a query in the background and passes its answers to a consumer in batches, on the thread that
+	 * evaluated it. The consumer can process a large result incrementally instead of receiving it in one piece.
+	 * @param goals The goals of the query
+	 * @param bindings The bindings of the query; may be null
+	 * @param batchSize The maximum number of answers in a batch
+	 * @param consumer Receives the batches, in order
+	 * @return The number of answers, once the consumer has received all of them
+	 */
+	public CompletableFuture<Long> query(List<Expression> goals, Map<String, String> bindings, int batchSize, Consumer<List<Map<String, String>>> consumer) {
+		if(batchSize <= 0)
+			throw new IllegalArgumentException("The batch size must be positive: " + batchSize);
+		return submit(() -> {
+			Collection<Map<String, String>> answers = interpreter.query(goals, bindings);
+			List<Map<String, String>> batch = new ArrayList<>(Math.min(batchSize, answers.size()));
+			for(Map<String, String> answer : answers) {
+				batch.add(answer);
+				if(batch.size() == batchSize) {
+					consumer.accept(Collections.unmodifiableList(batch));
+					batch = new ArrayList<>(batchSize);
+				}
+			}
+			if(!batch.isEmpty())
+				consumer.accept(Collections.unmodifiableList(batch));
+			return (long) answers.size();
+		});
+	}
+
+	private <T> CompletableFuture<T> submit(Callable<T> work) {
+		CompletableFuture<T> future = new CompletableFuture<>();
+		try {
+			executor.execute(() -> {
+				if(future.isDone())
+					return; // Cancelled while it was queued
+				try {
+					future.complete(work.call());
+				} catch (Throwable e) {
+					future.completeExceptionally(e);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			rejected.incrementAndGet();
+			future.completeExceptionally(e);
+		}
+		return future;
+	}
+
+	/**
+	 * The number of requests waiting for a thread.
+	 * @return The queue depth
+	 */
+	public int getQueued() {
+		return executor.getQueue().size();
+	}
+
+	/**
+	 * The number of requests being evaluated.
+	 * @return The number of busy threads
+	 */
+	public int getActive() {
+		return executor.getActiveCount();
+	}
+
+	/**
+	 * The number of requests that were evaluated, successfully or not.
+	 * @return The number of completed requests
+	 */
+	public long getCompleted() {
+		return executor.getCompletedTaskCount();
+	}
+
+	/**
+	 * The number of requests that were rejected because the executor was saturated.
+	 * @return The number of rejected requests
+	 */
+	public long getRejected() {
+		return rejected.get();
+	}
+
+	/**
+	 * Stops accepting requests. The requests that were accepted are still evaluated.
+	 */
+	@Override
+	public void close() {
+		executor.shutdown();
+	}
+}
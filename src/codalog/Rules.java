@@ -48,6 +48,7 @@ public class Rules {
 	 * There are a variety of reasons why a rule may not be valid:
 	 * <ul>
 	 * <li> Each variable in the head of the rule <i>must</i> appear in the body.
+	 * <li> The variable of each aggregate term in the head, like {@code count<Y>}, must appear in the body.
 	 * <li> Each variable in the body of a rule should appear at least once in a positive (that is non-negated) expression.
 	 * <li> Variables that are used in built-in predicates must appear at least once in a positive expression.
 	 * </ul>
@@ -64,7 +65,14 @@ public class Rules {
 		// expression, though.
 		Set<String> bodyVariables = new HashSet<String>();
 		for(Expression clause : getBody()) {
-			if (clause.isBuiltIn()) {
+			if (clause.isArithmetic()) {
+				// The operands of D = D1 + D2 must be bound; D is bound by it
+				for (String term : clause.getTerms().subList(1, 3)) {
+					if (DatalogInterpreter.isVariable(term) && !bodyVariables.contains(term)) {
+						throw new CodalogException("Unbound variable " + term + " in " + clause);
+					}
+				}
+			} else if (clause.isBuiltIn()) {
 				if (clause.getTerms().size() != 2)
 					throw new CodalogException("Operator " + clause.getPredicate() + " must have only two operands");
 				String a = clause.getTerms().get(0);
@@ -100,7 +108,11 @@ public class Rules {
 		
 		// Enforce the rule that variables in the head must appear in the body
 		for (String term : getHead().getTerms()) {
-			if (!DatalogInterpreter.isVariable(term)) {
+			Aggregate aggregate = Aggregate.parse(term);
+			if (aggregate != null) {
+				// The variable of an aggregate like count<Y> must be bound by the body
+				term = aggregate.getVariable();
+			} else if (!DatalogInterpreter.isVariable(term)) {
 				throw new CodalogException("Constant " + term + " in head of rule " + toString());
 			}
 			if (!bodyVariables.contains(term)) {
@@ -110,6 +122,36 @@ public class Rules {
 		}
 	}
 
+	/**
+	 * Checks whether the head of the rule contains aggregate terms, like {@code deg(X, count<Y>) :- e(X, Y)}.
+	 * @return true if the rule computes an aggregate
+	 */
+	public boolean isAggregate() {
+		return Aggregate.hasAggregates(getHead());
+	}
+
+	/**
+	 * Checks whether the aggregates in the head of the rule are all {@code min} or {@code max}.
+	 * <p>
+	 * These aggregates are monotonic: adding facts to the body can only improve the value for a group, never
+	 * make it worse, so unlike {@code count} and {@code sum} they can be used in recursive rules, like
+	 * {@code dist(X, Y, min<D>) :- dist(X, Z, D1), e(Z, Y, D2), D = D1 + D2}.
+	 * </p>
+	 * @return true if the rule has aggregates and all of them are monotonic
+	 */
+	public boolean isMonotonicAggregate() {
+		boolean aggregate = false;
+		for (String term : getHead().getTerms()) {
+			Aggregate a = Aggregate.parse(term);
+			if (a != null) {
+				if (a.getFunction() != Aggregate.Function.MIN && a.getFunction() != Aggregate.Function.MAX)
+					return false;
+				aggregate = true;
+			}
+		}
+		return aggregate;
+	}
+
 	@Override
 	public String toString() {
 		StringBuilder sb = new StringBuilder();
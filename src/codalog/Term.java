@@ -0,0 +1,300 @@
+package codalog;
+
+import java.math.BigDecimal;
+
+/**
+ * The typed value of a constant term.
+ * <p>
+ * Terms travel through the engine as {@code String}s, but the built-in comparison predicates need to know
+ * whether a term is a number. {@link #of(String)} decides the type of a term with a single pass over its characters
+ * instead of a regular expression, and keeps numeric values as primitives: a {@code long} for integers and a
+ * {@code double} for decimals. There is no global table of terms: an {@link Expression} keeps the values of its
+ * numeric terms, which are computed once, when a built-in is built or when a fact is interned into the database.
+ * </p><p>
+ * Comparisons are exact: integers are never rounded through {@code double}, and decimals that a {@code double}
+ * can't tell apart, like integers too large for a {@code long}, are compared by their digits.
+ * </p>
+ */
+public final class Term {
+
+	/**
+	 * The types a term can have.
+	 */
+	public enum Type {
+		/** A whole number that fits in a {@code long}, like {@code 42} */
+		INTEGER,
+		/** Any other number, like {@code 3.14} or {@code 1E10} */
+		DECIMAL,
+		/** An unquoted identifier, like {@code alice} */
+		SYMBOL,
+		/** A quoted string; internally these start with a {@code "} */
+		STRING
+	}
+
+	private final String text;
+	private final Type type;
+	private final long integer;
+	private final double decimal;
+
+	private Term(String text, Type type, long integer, double decimal) {
+		this.text = text;
+		this.type = type;
+		this.integer = integer;
+		this.decimal = decimal;
+	}
+
+	/**
+	 * Retrieves the typed value of a constant term.
+	 * <p>
+	 * This looks at the characters of the term, so the engine calls it once per term rather than once per use:
+	 * {@link Expression#getType(int)} keeps the values of the constants of a built-in and of the terms of the facts
+	 * in the database.
+	 * </p>
+	 * @param text The term
+	 * @return its typed value
+	 */
+	public static Term of(String text) {
+		return classify(text);
+	}
+
+	/* The value of a term that is known not to be a number, without looking at its characters */
+	static Term symbol(String text) {
+		return new Term(text, text.startsWith("\"") ? Type.STRING : Type.SYMBOL, 0, 0.0);
+	}
+
+	/**
+	 * Writes a number literal the way the parser stores it: integers without leading zeros and decimals without
+	 * trailing zeros, so that {@code 007} and {@code 7}, or {@code 2.50} and {@code 2.5}, are the same fact.
+	 * No digits are lost, however large the number.
+	 * @param text The literal
+	 * @return its canonical text, or the literal itself if it isn't a number
+	 */
+	static String normalize(String text) {
+		Term term = classify(text);
+		if(term.type == Type.INTEGER)
+			return Long.toString(term.integer);
+		if(term.type != Type.DECIMAL)
+			return text;
+		BigDecimal value = new BigDecimal(text).stripTrailingZeros();
+		if(value.signum() == 0)
+			return "0";
+		if(Math.abs(value.scale()) > MAX_PLAIN_SCALE)
+			return value.toString();
+		return value.scale() <= 0 ? value.toBigInteger().toString() : value.toPlainString();
+	}
+
+	// Numbers with more zeros than this before or after their digits are written in scientific notation
+	private static final int MAX_PLAIN_SCALE = 100;
+
+	public String getText() {
+		return text;
+	}
+
+	public Type getType() {
+		return type;
+	}
+
+	/**
+	 * The value of an integer term.
+	 * @return the value, or 0 if the term isn't an integer
+	 */
+	public long getInteger() {
+		return integer;
+	}
+
+	/**
+	 * The value of a numeric term as a {@code double}.
+	 * @return the value, or 0.0 if the term isn't a number
+	 */
+	public double getDecimal() {
+		return decimal;
+	}
+
+	public boolean isNumeric() {
+		return type == Type.INTEGER || type == Type.DECIMAL;
+	}
+
+	/**
+	 * Compares the numeric values of two terms.
+	 * Terms that aren't numbers compare as zero.
+	 * @param a The first term
+	 * @param b The second term
+	 * @return a negative number, zero or a positive number as {@code a} is less than, equal to or greater than {@code b}
+	 */
+	public static int compare(Term a, Term b) {
+		int result;
+		if(a.type == Type.DECIMAL) {
+			if(b.type == Type.DECIMAL) {
+				result = a.decimal < b.decimal ? -1 : (a.decimal > b.decimal ? 1 : 0);
+			} else if(b.isNumeric() && isCoarse(a.decimal)) {
+				return exact(a, b);
+			} else {
+				result = -compare(b.integer, a.decimal);
+			}
+		} else if(b.type == Type.DECIMAL) {
+			if(a.isNumeric() && isCoarse(b.decimal))
+				return exact(a, b);
+			result = compare(a.integer, b.decimal);
+		} else {
+			// Integers, and non-numeric terms with a value of zero
+			return Long.compare(a.integer, b.integer);
+		}
+		// Rounding to a double keeps the order of numbers, but can make different numbers equal
+		return result == 0 && a.isNumeric() && b.isNumeric() ? exact(a, b) : result;
+	}
+
+	/* Whether the doubles around a value are so far apart that rounding it may have skipped over an integer */
+	private static boolean isCoarse(double d) {
+		return Math.abs(d) >= 0x1p52;
+	}
+
+	/* Compares two numbers by their digits */
+	private static int exact(Term a, Term b) {
+		if(a.text.equals(b.text))
+			return 0;
+		return new BigDecimal(a.text).compareTo(new BigDecimal(b.text));
+	}
+
+	/**
+	 * Checks whether two terms are equal: numerically if both are numbers, otherwise as text.
+	 * @param a The first term
+	 * @param b The second term
+	 * @return true if the terms are equal
+	 */
+	public static boolean equal(Term a, Term b) {
+		if(a.isNumeric() && b.isNumeric()) {
+			return compare(a, b) == 0;
+		}
+		return a.text.equals(b.text);
+	}
+
+	/**
+	 * Applies an arithmetic operator to two terms.
+	 * Integers stay exact unless the result overflows a {@code long}; terms that aren't numbers count as zero.
+	 * @param operator One of {@code +}, {@code -} or {@code *}
+	 * @param a The left operand
+	 * @param b The right operand
+	 * @return The result, typed without parsing its text
+	 */
+	public static Term apply(String operator, Term a, Term b) {
+		if(a.type != Type.DECIMAL && b.type != Type.DECIMAL) {
+			try {
+				switch(operator) {
+					case "+": return integer(Math.addExact(a.integer, b.integer));
+					case "-": return integer(Math.subtractExact(a.integer, b.integer));
+					case "*": return integer(Math.multiplyExact(a.integer, b.integer));
+				}
+			} catch (ArithmeticException e) {
+				// Overflow; fall through to doubles
+			}
+		}
+		double x = a.type == Type.DECIMAL ? a.decimal : a.integer;
+		double y = b.type == Type.DECIMAL ? b.decimal : b.integer;
+		switch(operator) {
+			case "+": return decimal(x + y);
+			case "-": return decimal(x - y);
+			case "*": return decimal(x * y);
+		}
+		throw new IllegalArgumentException("Unknown arithmetic operator " + operator);
+	}
+
+	private static Term integer(long value) {
+		return new Term(Long.toString(value), Type.INTEGER, value, value);
+	}
+
+	/* The term of a double, with the text and the type that format() and classify() would give it */
+	private static Term decimal(double value) {
+		if(value == (long) value)
+			return integer((long) value);
+		String text = Double.toString(value);
+		return Double.isInfinite(value) || Double.isNaN(value) ? classify(text) : new Term(text, Type.DECIMAL, 0, value);
+	}
+
+	/**
+	 * Formats a number as a term, without a fraction if it is a whole number, the way numbers are parsed.
+	 * @param value The number
+	 * @return its text
+	 */
+	public static String format(double value) {
+		if(value == (long) value)
+			return Long.toString((long) value);
+		return Double.toString(value);
+	}
+
+	/* Compares a long with a double exactly, without converting the long to a double */
+	private static int compare(long l, double d) {
+		if(d < -0x1p63) {
+			return 1;
+		} else if(d >= 0x1p63) {
+			return -1;
+		}
+		long whole = (long) d;
+		if(l != whole) {
+			return l < whole ? -1 : 1;
+		}
+		double fraction = d - whole;
+		return fraction > 0 ? -1 : (fraction < 0 ? 1 : 0);
+	}
+
+	/* Determines the type of a term with a single pass over its characters.
+	 * Numbers have the form [+-]?\d+(\.\d*)?([Ee][+-]?\d+)? */
+	private static Term classify(String text) {
+		if(text.startsWith("\"")) {
+			return new Term(text, Type.STRING, 0, 0.0);
+		}
+		int n = text.length(), i = 0;
+		if(i < n && (text.charAt(i) == '+' || text.charAt(i) == '-')) {
+			i++;
+		}
+		int digits = i;
+		while(i < n && isDigit(text.charAt(i))) {
+			i++;
+		}
+		if(i == digits) {
+			return new Term(text, Type.SYMBOL, 0, 0.0);
+		}
+		boolean whole = true;
+		if(i < n && text.charAt(i) == '.') {
+			whole = false;
+			i++;
+			while(i < n && isDigit(text.charAt(i))) {
+				i++;
+			}
+		}
+		if(i < n && (text.charAt(i) == 'e' || text.charAt(i) == 'E')) {
+			whole = false;
+			i++;
+			if(i < n && (text.charAt(i) == '+' || text.charAt(i) == '-')) {
+				i++;
+			}
+			int exponent = i;
+			while(i < n && isDigit(text.charAt(i))) {
+				i++;
+			}
+			if(i == exponent) {
+				return new Term(text, Type.SYMBOL, 0, 0.0);
+			}
+		}
+		if(i != n) {
+			return new Term(text, Type.SYMBOL, 0, 0.0);
+		}
+		if(whole) {
+			try {
+				long value = Long.parseLong(text);
+				return new Term(text, Type.INTEGER, value, value);
+			} catch (NumberFormatException e) {
+				// Too large for a long; fall through to a decimal
+			}
+		}
+		return new Term(text, Type.DECIMAL, 0, Double.parseDouble(text));
+	}
+
+	private static boolean isDigit(char c) {
+		return c >= '0' && c <= '9';
+	}
+
+	@Override
+	public String toString() {
+		return text;
+	}
+}
@@ -0,0 +1,82 @@
+package codalog;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StreamTokenizer;
+
+/**
+ * The tokenizer of the Datalog language.
+ * <p>
+ * A {@link StreamTokenizer} that parses numbers returns them as doubles, which loses the digits of integers above
+ * 2<sup>53</sup>. This one reads numbers as words instead, so the parser gets their exact text: digits and
+ * {@code .} are word characters, and a {@code -} in front of a number is a token of its own. Since {@code .} also
+ * ends statements, a {@code .} in a word that isn't between two digits is returned as a token of its own, so that
+ * {@code p(X) :- q(X), X > 5.} and {@code p(a).q(b).} end where they did.
+ * </p>
+ */
+class Tokenizer extends StreamTokenizer {
+
+	// The rest of the last word, after a '.' that was split off it
+	private String rest;
+	private boolean pushedBack;
+
+	Tokenizer(Reader reader) {
+		super(reader);
+		ordinaryChars('0', '9');
+		ordinaryChar('.');
+		ordinaryChar('-');
+		wordChars('0', '9');
+		wordChars('.', '.');
+		commentChar('%');
+		quoteChar('"');
+		quoteChar('\'');
+	}
+
+	@Override
+	public int nextToken() throws IOException {
+		if(pushedBack) {
+			pushedBack = false;
+			return ttype;
+		}
+		String word;
+		if(rest != null) {
+			word = rest;
+			rest = null;
+		} else if(super.nextToken() == TT_WORD) {
+			word = sval;
+		} else {
+			return ttype;
+		}
+		int dot = split(word);
+		if(dot < 0) {
+			sval = word;
+			return ttype = TT_WORD;
+		} else if(dot == 0) {
+			if(word.length() > 1)
+				rest = word.substring(1);
+			sval = null;
+			return ttype = '.';
+		}
+		rest = word.substring(dot);
+		sval = word.substring(0, dot);
+		return ttype = TT_WORD;
+	}
+
+	@Override
+	public void pushBack() {
+		pushedBack = true;
+	}
+
+	/* The position of the first '.' of a word that isn't the decimal point of a number, or -1 */
+	private static int split(String word) {
+		for(int i = word.indexOf('.'); i >= 0; i = word.indexOf('.', i + 1)) {
+			if(i == 0 || i == word.length() - 1 || !isDigit(word.charAt(i - 1)) || !isDigit(word.charAt(i + 1)))
+				return i;
+		}
+		return -1;
+	}
+
+	private static boolean isDigit(char c) {
+		return c >= '0' && c <= '9';
+	}
+}
@@ -0,0 +1,44 @@
+package codalog.bench;
+
+/**
+ * Consumes the results of the benchmarked operations, so that the JIT can't remove the operations as dead code.
+ * <p>
+ * The values are folded into a field that is only read when the benchmark is done, which costs a few instructions
+ * per operation and no synchronization.
+ * </p>
+ */
+public final class Blackhole {
+
+	private int sink;
+
+	/**
+	 * Consumes an object.
+	 * @param value The result of an operation
+	 */
+	public void consume(Object value) {
+		sink += System.identityHashCode(value);
+	}
+
+	/**
+	 * Consumes a boolean.
+	 * @param value The result of an operation
+	 */
+	public void consume(boolean value) {
+		sink += value ? 1 : 0;
+	}
+
+	/**
+	 * Consumes an int.
+	 * @param value The result of an operation
+	 */
+	public void consume(int value) {
+		sink += value;
+	}
+
+	/* Read by the harness after each iteration, so that the sink is live */
+	int drain() {
+		int value = sink;
+		sink = 0;
+		return value;
+	}
+}
@@ -0,0 +1,216 @@
+package codalog.bench;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import codalog.CodalogException;
+import codalog.DatalogInterpreter;
+import codalog.Expression;
+import codalog.engine.BasicEngine;
+import codalog.engine.Bindings;
+import codalog.engine.IndexedSet;
+import codalog.engine.StackMap;
+
+/**
+ * Microbenchmarks of the hot paths of the engine: unification, substitution, the {@link StackMap} chains of the
+ * bindings, the {@link IndexedSet} of facts, the matching of rule bodies, the built-in predicates and the parser.
+ * <p>
+ * The benchmarks are parameterized by the {@code size} of the relation that they work on and the {@code arity}
+ * of its facts. The relation is a set of chains, {@code r(v0, v1, ...), r(v1, v2, ...)}, so that joining it with
+ * itself gives about as many answers as it has facts; the columns after the second are constants. The bodies are
+ * matched the way the engine matches them, by unifying every fact of a goal, so the joins grow with the square of
+ * the size. Run it with
+ * </p>
+ * <pre>
+ * java -cp bin codalog.bench.EngineBenchmarks [-wi 3] [-i 5] [-r 1000] [-p size=100,1000] [-p arity=2,3] [-csv file] [regex...]
+ * </pre>
+ * <p>
+ * See {@link Harness} for the options and what is reported.
+ * </p>
+ */
+public class EngineBenchmarks {
+
+	public static void main(String... args) throws Exception {
+		new Harness()
+				.param("size", 100, 1_000)
+				.param("arity", 2, 3)
+				.add("unify", EngineBenchmarks::unify)
+				.add("substitute", EngineBenchmarks::substitute)
+				.add("stackMap.chain", EngineBenchmarks::stackMapChain)
+				.add("indexedSet.add", EngineBenchmarks::indexedSetAdd)
+				.add("indexedSet.getIndexed", EngineBenchmarks::indexedSetGetIndexed)
+				.add("matchGoals.2atoms", params -> matchGoals(params, 2))
+				.add("matchGoals.3atoms", params -> matchGoals(params, 3))
+				.add("evalBuiltIn.compare", EngineBenchmarks::evalBuiltInCompare)
+				.add("evalBuiltIn.arithmetic", EngineBenchmarks::evalBuiltInArithmetic)
+				.add("parseStmt", EngineBenchmarks::parseStmt)
+				.run(args);
+	}
+
+	private static Harness.Benchmark unify(Map<String, Integer> params) {
+		Expression[] facts = relation("r", params).toArray(new Expression[0]);
+		Expression goal = goal("r", params.get("arity"), "X", "Y");
+		int[] next = {0};
+		return blackhole -> {
+			Expression fact = facts[next[0]++ % facts.length];
+			blackhole.consume(fact.unify(goal, new StackMap<>()));
+		};
+	}
+
+	private static Harness.Benchmark substitute(Map<String, Integer> params) {
+		int arity = params.get("arity");
+		Expression goal = goal("r", arity, "X", "Y");
+		Map<String, String> bindings = new HashMap<>();
+		for(String term : goal.getTerms()) {
+			bindings.put(term, "v" + bindings.size());
+		}
+		return blackhole -> blackhole.consume(goal.substitute(bindings));
+	}
+
+	/* A chain of bindings as deep as a rule body with one goal per column, and a lookup of every variable */
+	private static Harness.Benchmark stackMapChain(Map<String, Integer> params) {
+		int depth = params.get("arity") * 2;
+		String[] variables = new String[depth];
+		for(int i = 0; i < depth; i++) {
+			variables[i] = "X" + i;
+		}
+		return blackhole -> {
+			Map<String, String> bindings = new StackMap<>();
+			for(int i = 0; i < depth; i++) {
+				bindings = new StackMap<>(bindings);
+				bindings.put(variables[i], "v" + i);
+			}
+			for(String variable : variables) {
+				blackhole.consume(bindings.get(variable));
+			}
+		};
+	}
+
+	/* Adds the facts of 16 predicates one at a time, starting over with an empty set after the last one */
+	private static Harness.Benchmark indexedSetAdd(Map<String, Integer> params) {
+		Expression[] facts = relations(16, params).toArray(new Expression[0]);
+		Object[] state = {new IndexedSet<Expression, String>(), 0};
+		return blackhole -> {
+			@SuppressWarnings("unchecked")
+			IndexedSet<Expression, String> set = (IndexedSet<Expression, String>) state[0];
+			int i = (Integer) state[1];
+			blackhole.consume(set.add(facts[i]));
+			if(++i == facts.length) {
+				state[0] = new IndexedSet<Expression, String>();
+				i = 0;
+			}
+			state[1] = i;
+		};
+	}
+
+	private static Harness.Benchmark indexedSetGetIndexed(Map<String, Integer> params) {
+		IndexedSet<Expression, String> set = new IndexedSet<>(relations(16, params));
+		int[] next = {0};
+		return blackhole -> blackhole.consume(set.getIndexed("r" + (next[0]++ & 15)).size());
+	}
+
+	/* Joins the relation with itself along a path of `atoms` goals, like r(X0, X1), r(X1, X2) */
+	private static Harness.Benchmark matchGoals(Map<String, Integer> params, int atoms) {
+		int arity = params.get("arity");
+		IndexedSet<Expression, String> facts = new IndexedSet<>(relation("r", params));
+		List<Expression> goals = new ArrayList<>();
+		for(int i = 0; i < atoms; i++) {
+			goals.add(goal("r", arity, "X" + i, "X" + (i + 1)));
+		}
+		return blackhole -> blackhole.consume(Matcher.match(goals, facts).size());
+	}
+
+	private static Harness.Benchmark evalBuiltInCompare(Map<String, Integer> params) throws CodalogException {
+		int size = params.get("size");
+		Expression comparison = builtIn("X < Y");
+		List<Map<String, String>> bindings = numbers(size, "X", "Y");
+		int[] next = {0};
+		return blackhole -> blackhole.consume(comparison.evalBuiltIn(bindings.get(next[0]++ % size)));
+	}
+
+	private static Harness.Benchmark evalBuiltInArithmetic(Map<String, Integer> params) throws CodalogException {
+		int size = params.get("size");
+		Expression arithmetic = builtIn("D = A + B");
+		List<Map<String, String>> bindings = numbers(size, "A", "B");
+		int[] next = {0};
+		return blackhole -> {
+			Map<String, String> scope = Bindings.builtIn(bindings.get(next[0]++ % size));
+			blackhole.consume(arithmetic.evalBuiltIn(scope));
+			blackhole.consume(scope.get("D"));
+		};
+	}
+
+	/* Parses a recursive rule whose goals have `arity` terms */
+	private static Harness.Benchmark parseStmt(Map<String, Integer> params) {
+		int arity = params.get("arity");
+		String rule = goal("path", arity, "X", "Y") + " :- " + goal("path", arity, "X", "Z") + ", "
+				+ goal("r", arity, "Z", "Y") + ", X <> Y.";
+		return blackhole -> blackhole.consume(DatalogInterpreter.prepareStatement(rule));
+	}
+
+	/* The facts of a relation of `size` facts, in chains of 100 */
+	private static List<Expression> relation(String predicate, Map<String, Integer> params) {
+		int size = params.get("size");
+		int arity = params.get("arity");
+		List<Expression> facts = new ArrayList<>(size);
+		for(int i = 0; i < size; i++) {
+			String[] terms = new String[arity];
+			terms[0] = "v" + i;
+			terms[1] = "v" + (i % 100 == 99 ? i + size : i + 1);
+			for(int j = 2; j < arity; j++) {
+				terms[j] = "c" + (i % 10);
+			}
+			facts.add(new Expression(predicate, terms));
+		}
+		return facts;
+	}
+
+	/* The facts of `count` relations r0, r1... that share the `size` facts */
+	private static List<Expression> relations(int count, Map<String, Integer> params) {
+		List<Expression> facts = new ArrayList<>();
+		List<Expression> relation = relation("r", params);
+		for(int i = 0; i < relation.size(); i++) {
+			facts.add(new Expression("r" + (i % count), relation.get(i).getTerms()));
+		}
+		return facts;
+	}
+
+	/* A goal like r(X, Y, XV2) with variables of its own in the columns after the first two */
+	private static Expression goal(String predicate, int arity, String first, String second) {
+		String[] terms = new String[arity];
+		terms[0] = first;
+		terms[1] = second;
+		for(int j = 2; j < arity; j++) {
+			terms[j] = first + "V" + j;
+		}
+		return new Expression(predicate, terms);
+	}
+
+	/* Parses a built-in predicate, so that the types of its constants are registered */
+	private static Expression builtIn(String source) throws CodalogException {
+		return DatalogInterpreter.prepareStatement(source + "?").getQueryGoals().get(0);
+	}
+
+	private static List<Map<String, String>> numbers(int size, String a, String b) {
+		// Unified with interned facts, the way the engine binds variables, so that the values are typed
+		Expression goal = new Expression("n", a, b);
+		List<Map<String, String>> bindings = new ArrayList<>(size);
+		for(int i = 0; i < size; i++) {
+			Expression fact = new Expression("n", Integer.toString(i), Integer.toString(size - i)).intern();
+			Map<String, String> map = new Bindings(new HashMap<>(), fact, goal);
+			fact.unify(goal, map);
+			bindings.add(map);
+		}
+		return bindings;
+	}
+
+	/* Exposes the engine's matching loop */
+	private static final class Matcher extends BasicEngine {
+		static Collection<Map<String, String>> match(List<Expression> goals, IndexedSet<Expression, String> facts) {
+			return matchGoals(goals, facts, null);
+		}
+	}
+}
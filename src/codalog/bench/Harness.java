@@ -0,0 +1,328 @@
+package codalog.bench;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Runs microbenchmarks in the manner of JMH: every benchmark is set up for each combination of its parameters, run
+ * for a number of warmup iterations that are discarded and then for a number of measured iterations of a fixed
+ * duration, and reported as the mean time per operation with the standard deviation over the iterations.
+ * <p>
+ * For every benchmark the harness also reports the bytes allocated per operation and the allocation rate, read
+ * from the allocation counter of the benchmark thread, and the garbage collections during the measured iterations.
+ * That is what JMH's {@code gc} profiler reports, and it is usually what decides whether a change to the engine's
+ * hot paths is worth it.
+ * </p><p>
+ * The command line options are:
+ * </p>
+ * <ul>
+ * <li>{@code -wi n}: the number of warmup iterations, 3 by default
+ * <li>{@code -i n}: the number of measured iterations, 5 by default
+ * <li>{@code -r ms}: the duration of an iteration, 1000 ms by default
+ * <li>{@code -p name=v1,v2}: the values of a parameter, instead of its defaults
+ * <li>{@code -csv file}: also write the results to a CSV file
+ * <li>any other argument is a regular expression that selects the benchmarks to run by name
+ * </ul>
+ * <p>
+ * Run the benchmarks in a JVM of their own, with a fixed heap size, and don't compare results across machines.
+ * </p>
+ */
+public class Harness {
+
+	/**
+	 * An operation to benchmark, set up for one combination of parameters.
+	 */
+	public interface Benchmark {
+		/**
+		 * Performs the operation once.
+		 * @param blackhole Consumes the results of the operation
+		 * @throws Exception if the operation fails, which stops the benchmark
+		 */
+		void run(Blackhole blackhole) throws Exception;
+	}
+
+	/**
+	 * Sets up a benchmark; the time it takes isn't measured.
+	 */
+	public interface Setup {
+		/**
+		 * Sets up a benchmark for a combination of parameters.
+		 * @param params The value of each parameter
+		 * @return The benchmark
+		 * @throws Exception if the benchmark can't be set up
+		 */
+		Benchmark setUp(Map<String, Integer> params) throws Exception;
+	}
+
+	private final Map<String, Setup> benchmarks = new LinkedHashMap<>();
+	private final Map<String, List<Integer>> params = new LinkedHashMap<>();
+	private int warmupIterations = 3;
+	private int iterations = 5;
+	private long iterationMillis = 1000;
+
+	/**
+	 * Adds a benchmark.
+	 * @param name The name of the benchmark, as reported
+	 * @param setup Sets up the benchmark for each combination of the parameters
+	 * @return this harness
+	 */
+	public Harness add(String name, Setup setup) {
+		benchmarks.put(name, setup);
+		return this;
+	}
+
+	/**
+	 * Declares a parameter of the benchmarks and its default values.
+	 * @param name The name of the parameter
+	 * @param values The values to run the benchmarks with
+	 * @return this harness
+	 */
+	public Harness param(String name, int... values) {
+		List<Integer> list = new ArrayList<>(values.length);
+		for(int value : values) {
+			list.add(value);
+		}
+		params.put(name, list);
+		return this;
+	}
+
+	/**
+	 * Runs the benchmarks that the command line selects and prints the results.
+	 * @param args The command line options, see {@link Harness}
+	 * @return The results
+	 * @throws Exception if a benchmark fails, or the CSV file can't be written
+	 */
+	public List<Result> run(String... args) throws Exception {
+		List<Pattern> filters = new ArrayList<>();
+		String csv = null;
+		for(int i = 0; i < args.length; i++) {
+			switch(args[i]) {
+				case "-wi": warmupIterations = Integer.parseInt(args[++i]); break;
+				case "-i": iterations = Integer.parseInt(args[++i]); break;
+				case "-r": iterationMillis = Long.parseLong(args[++i]); break;
+				case "-csv": csv = args[++i]; break;
+				case "-p": {
+					String[] param = args[++i].split("=", 2);
+					if(param.length != 2 || !params.containsKey(param[0]))
+						throw new IllegalArgumentException("Unknown parameter " + args[i] + "; the parameters are " + params.keySet());
+					List<Integer> values = new ArrayList<>();
+					for(String value : param[1].split(",")) {
+						values.add(Integer.parseInt(value.trim()));
+					}
+					params.put(param[0], values);
+					break;
+				}
+				default: filters.add(Pattern.compile(args[i]));
+			}
+		}
+
+		List<Result> results = new ArrayList<>();
+		System.out.println(Result.header());
+		for(Map.Entry<String, Setup> entry : benchmarks.entrySet()) {
+			if(!filters.isEmpty() && filters.stream().noneMatch(filter -> filter.matcher(entry.getKey()).find()))
+				continue;
+			for(Map<String, Integer> combination : combinations()) {
+				Result result = measure(entry.getKey(), combination, entry.getValue().setUp(combination));
+				System.out.println(result);
+				results.add(result);
+			}
+		}
+		if(csv != null) {
+			try (PrintWriter out = new PrintWriter(new FileWriter(csv))) {
+				out.println("benchmark,params,ns_per_op,stddev_ns,bytes_per_op,alloc_mb_per_s,gc_count,gc_ms");
+				for(Result result : results) {
+					out.println(result.toCsv());
+				}
+			} catch (IOException e) {
+				throw new IOException("Can't write " + csv, e);
+			}
+		}
+		return results;
+	}
+
+	/* Every combination of the values of the parameters */
+	private List<Map<String, Integer>> combinations() {
+		List<Map<String, Integer>> combinations = new ArrayList<>();
+		combinations.add(new LinkedHashMap<>());
+		for(Map.Entry<String, List<Integer>> param : params.entrySet()) {
+			List<Map<String, Integer>> next = new ArrayList<>();
+			for(Map<String, Integer> combination : combinations) {
+				for(Integer value : param.getValue()) {
+					Map<String, Integer> extended = new LinkedHashMap<>(combination);
+					extended.put(param.getKey(), value);
+					next.add(extended);
+				}
+			}
+			combinations = next;
+		}
+		return combinations;
+	}
+
+	private Result measure(String name, Map<String, Integer> combination, Benchmark benchmark) throws Exception {
+		Blackhole blackhole = new Blackhole();
+		for(int i = 0; i < warmupIterations; i++) {
+			iteration(benchmark, blackhole);
+		}
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		long[] gcBefore = gcTotals();
+		long bytesBefore = allocatedBytes(threads);
+		double[] nanosPerOp = new double[iterations];
+		long operations = 0;
+		long nanos = 0;
+		for(int i = 0; i < iterations; i++) {
+			long[] measured = iteration(benchmark, blackhole);
+			operations += measured[0];
+			nanos += measured[1];
+			nanosPerOp[i] = (double) measured[1] / measured[0];
+		}
+		long bytes = allocatedBytes(threads) - bytesBefore;
+		long[] gcAfter = gcTotals();
+		return new Result(name, combination, nanosPerOp, bytesBefore < 0 ? -1 : (double) bytes / operations,
+				bytesBefore < 0 ? -1 : bytes / (nanos / 1e9) / (1 << 20), gcAfter[0] - gcBefore[0], gcAfter[1] - gcBefore[1]);
+	}
+
+	/* Runs the operation for the duration of an iteration; returns the number of operations and the time they took.
+	 * The clock is read after batches of operations that grow until a batch takes about a tenth of a millisecond,
+	 * so that reading it doesn't weigh on the fast operations. */
+	private long[] iteration(Benchmark benchmark, Blackhole blackhole) throws Exception {
+		long start = System.nanoTime();
+		long end = start + iterationMillis * 1_000_000;
+		long operations = 0;
+		long batch = 1;
+		long now;
+		while(true) {
+			long batchStart = System.nanoTime();
+			for(long i = 0; i < batch; i++) {
+				benchmark.run(blackhole);
+			}
+			operations += batch;
+			now = System.nanoTime();
+			if(now >= end)
+				break;
+			if(now - batchStart < 100_000)
+				batch *= 2;
+		}
+		blackhole.drain();
+		return new long[] {operations, now - start};
+	}
+
+	/* The bytes allocated by the current thread so far, or -1 if the JVM doesn't count them */
+	private static long allocatedBytes(ThreadMXBean threads) {
+		if(!(threads instanceof com.sun.management.ThreadMXBean))
+			return -1;
+		com.sun.management.ThreadMXBean counting = (com.sun.management.ThreadMXBean) threads;
+		if(!counting.isThreadAllocatedMemorySupported() || !counting.isThreadAllocatedMemoryEnabled())
+			return -1;
+		return counting.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	/* The number of collections and their time in milliseconds so far */
+	private static long[] gcTotals() {
+		long[] totals = new long[2];
+		for(GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			totals[0] += Math.max(0, gc.getCollectionCount());
+			totals[1] += Math.max(0, gc.getCollectionTime());
+		}
+		return totals;
+	}
+
+	/**
+	 * The measurements of a benchmark for one combination of parameters.
+	 */
+	public static final class Result {
+		private final String benchmark;
+		private final Map<String, Integer> params;
+		private final double nanosPerOp;
+		private final double stddev;
+		private final double bytesPerOp;
+		private final double allocationRate;
+		private final long gcCount;
+		private final long gcMillis;
+
+		Result(String benchmark, Map<String, Integer> params, double[] nanosPerOp, double bytesPerOp, double allocationRate, long gcCount, long gcMillis) {
+			this.benchmark = benchmark;
+			this.params = Collections.unmodifiableMap(params);
+			this.nanosPerOp = Arrays.stream(nanosPerOp).average().orElse(Double.NaN);
+			double variance = 0;
+			for(double value : nanosPerOp) {
+				variance += (value - this.nanosPerOp) * (value - this.nanosPerOp);
+			}
+			this.stddev = nanosPerOp.length > 1 ? Math.sqrt(variance / (nanosPerOp.length - 1)) : 0;
+			this.bytesPerOp = bytesPerOp;
+			this.allocationRate = allocationRate;
+			this.gcCount = gcCount;
+			this.gcMillis = gcMillis;
+		}
+
+		/** @return The name of the benchmark */
+		public String getBenchmark() {
+			return benchmark;
+		}
+
+		/** @return The value of each parameter */
+		public Map<String, Integer> getParams() {
+			return params;
+		}
+
+		/** @return The mean time of an operation over the measured iterations, in nanoseconds */
+		public double getNanosPerOp() {
+			return nanosPerOp;
+		}
+
+		/** @return The standard deviation of the time of an operation over the iterations, in nanoseconds */
+		public double getStddev() {
+			return stddev;
+		}
+
+		/** @return The bytes allocated per operation, or -1 if the JVM doesn't count allocations */
+		public double getBytesPerOp() {
+			return bytesPerOp;
+		}
+
+		/** @return The allocation rate in MB/s, or -1 if the JVM doesn't count allocations */
+		public double getAllocationRate() {
+			return allocationRate;
+		}
+
+		/** @return The number of garbage collections during the measured iterations */
+		public long getGcCount() {
+			return gcCount;
+		}
+
+		static String header() {
+			return String.format("%-28s %-22s %14s %12s %12s %10s %8s", "Benchmark", "Params", "ns/op", "+/- stddev", "B/op", "MB/s", "GCs");
+		}
+
+		private String paramsToString() {
+			StringBuilder sb = new StringBuilder();
+			for(Map.Entry<String, Integer> param : params.entrySet()) {
+				if(sb.length() > 0)
+					sb.append(' ');
+				sb.append(param.getKey()).append('=').append(param.getValue());
+			}
+			return sb.toString();
+		}
+
+		String toCsv() {
+			return String.format("%s,%s,%.3f,%.3f,%.1f,%.1f,%d,%d", benchmark, paramsToString(), nanosPerOp, stddev,
+					bytesPerOp, allocationRate, gcCount, gcMillis);
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%-28s %-22s %14.3f %12.3f %12.1f %10.1f %8d", benchmark, paramsToString(), nanosPerOp,
+					stddev, bytesPerOp, allocationRate, gcCount);
+		}
+	}
+}
@@ -0,0 +1,137 @@
+package codalog.bench;
+
+import java.util.Arrays;
+
+/**
+ * A histogram of latencies in nanoseconds with a bounded relative error, in the manner of HdrHistogram: the values
+ * below 256 have a bucket each, and every power of two above that is split into 128 linear buckets, so a value is
+ * reported within 0.8% of what was recorded, from nanoseconds to hours, in a fixed 60 KB.
+ * <p>
+ * The percentiles are the highest value of the bucket that holds them, capped by the largest recorded value, which
+ * is kept exactly, as is the mean.
+ * </p><p>
+ * A histogram is not thread-safe; each thread records into its own, and they are combined with {@link #add(LatencyHistogram)}.
+ * </p>
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 8;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int HALF = SUB_BUCKETS / 2;
+
+	private final long[] counts = new long[SUB_BUCKETS + (64 - SUB_BUCKET_BITS) * HALF];
+	private long count;
+	private long sum;
+	private long max;
+
+	/**
+	 * Records a value.
+	 * @param nanos The latency; negative values are recorded as 0
+	 */
+	public void record(long nanos) {
+		long value = Math.max(0, nanos);
+		counts[index(value)]++;
+		count++;
+		sum += value;
+		max = Math.max(max, value);
+	}
+
+	/**
+	 * Records a value that was measured by a loop that expects to take a sample every {@code expectedInterval}, along
+	 * with the samples that the loop missed while it waited for this one: {@code nanos - expectedInterval},
+	 * {@code nanos - 2 * expectedInterval} and so on down to {@code expectedInterval}. This corrects for coordinated
+	 * omission when the measurements can't be taken against a schedule.
+	 * @param nanos The latency
+	 * @param expectedInterval The expected time between samples, or 0 not to correct
+	 */
+	public void record(long nanos, long expectedInterval) {
+		record(nanos);
+		if(expectedInterval <= 0)
+			return;
+		for(long missing = nanos - expectedInterval; missing >= expectedInterval; missing -= expectedInterval) {
+			record(missing);
+		}
+	}
+
+	/**
+	 * Adds the values of another histogram to this one.
+	 * @param other The other histogram
+	 */
+	public void add(LatencyHistogram other) {
+		for(int i = 0; i < counts.length; i++) {
+			counts[i] += other.counts[i];
+		}
+		count += other.count;
+		sum += other.sum;
+		max = Math.max(max, other.max);
+	}
+
+	/**
+	 * Discards the recorded values.
+	 */
+	public void reset() {
+		Arrays.fill(counts, 0);
+		count = 0;
+		sum = 0;
+		max = 0;
+	}
+
+	/**
+	 * The value below which a percentage of the recorded values fall.
+	 * @param percentile The percentage, like 99.9
+	 * @return The value, or 0 if nothing was recorded
+	 */
+	public long getValueAtPercentile(double percentile) {
+		if(count == 0)
+			return 0;
+		long rank = Math.max(1, (long) Math.ceil(Math.min(100, percentile) / 100 * count));
+		long seen = 0;
+		for(int i = 0; i < counts.length; i++) {
+			seen += counts[i];
+			if(seen >= rank)
+				return Math.min(highestValue(i), max);
+		}
+		return max;
+	}
+
+	/** @return The number of recorded values */
+	public long getCount() {
+		return count;
+	}
+
+	/** @return The mean of the recorded values, or 0 if there are none */
+	public double getMean() {
+		return count == 0 ? 0 : (double) sum / count;
+	}
+
+	/** @return The largest recorded value */
+	public long getMax() {
+		return max;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("count=%d mean=%.3fms p50=%.3fms p90=%.3fms p99=%.3fms p99.9=%.3fms max=%.3fms", count,
+				getMean() / 1e6, getValueAtPercentile(50) / 1e6, getValueAtPercentile(90) / 1e6,
+				getValueAtPercentile(99) / 1e6, getValueAtPercentile(99.9) / 1e6, max / 1e6);
+	}
+
+	/* The bucket of a value: the value itself below SUB_BUCKETS, and above that the `HALF` buckets of its power
+	 * of two that the bits after its leading one select */
+	private static int index(long value) {
+		if(value < SUB_BUCKETS)
+			return (int) value;
+		int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BUCKET_BITS - 1);
+		return SUB_BUCKETS + (shift - 1) * HALF + (int) (value >>> shift) - HALF;
+	}
+
+	/* The highest value that falls in a bucket */
+	private static long highestValue(int index) {
+		if(index < SUB_BUCKETS)
+			return index;
+		int shift = (index - SUB_BUCKETS) / HALF + 1;
+		long sub = (index - SUB_BUCKETS) % HALF + HALF;
+		long lowest = sub << shift;
+		return lowest + (1L << shift) - 1;
+	}
+}
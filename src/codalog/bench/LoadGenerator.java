@@ -0,0 +1,334 @@
+package codalog.bench;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.LockSupport;
+
+import codalog.CodalogException;
+import codalog.DatalogInterpreter;
+import codalog.Expression;
+import codalog.bench.WorkloadBenchmark.Workload;
+import codalog.server.QueryServer;
+import codalog.storage.VersionedEDB;
+
+/**
+ * Drives a knowledge base with a number of concurrent clients that send a mix of point queries and new facts for a
+ * fixed duration, and reports the latency percentiles and the throughput, every second and at the end.
+ * <p>
+ * The knowledge base is a {@link Workload} of {@link WorkloadBenchmark}, loaded and expanded before the clients
+ * start. The clients either call the {@link DatalogInterpreter} directly, serialized like {@link codalog.QueryExecutor}
+ * if the EDB doesn't support concurrent reads, or go through a {@link QueryServer} on the loopback interface, one
+ * connection each, so that the protocol and the scheduling of the server are measured too. A query is one of the
+ * workload's point queries; a write is a new fact made of the terms of two of its base facts.
+ * </p><p>
+ * Without a target rate every client sends its next request as soon as it has the response to the last one and has
+ * waited for the think time, if any: a closed loop. With a target rate, the clients share it and every request has
+ * an intended start time on a fixed schedule; a client that falls behind sends its next request at once. The latency
+ * is reported twice: <i>uncorrected</i>, from when the request was actually sent, and <i>corrected</i>, from when it
+ * was meant to be sent. The difference is coordinated omission: a client that waits for a slow response doesn't send
+ * the requests that would have waited behind it, so the uncorrected latencies miss exactly the samples that a stall
+ * makes slow. In a closed loop with a think time the correction is made the way HdrHistogram makes it, by
+ * {@link LatencyHistogram#record(long, long) recording the missed samples} of a schedule of one request per think
+ * time; without a think time there is no schedule, and both are the same.
+ * </p>
+ * <p>
+ * The options are:
+ * </p>
+ * <ul>
+ * <li>{@code -clients n}: the number of clients, 4 by default
+ * <li>{@code -duration s}: how long to measure, 10 seconds by default
+ * <li>{@code -warmup s}: how long to run before measuring, 2 seconds by default
+ * <li>{@code -rate r}: the target number of requests per second of all the clients; 0, the default, for a closed loop
+ * <li>{@code -write-ratio f}: the fraction of the requests that are writes, 0.1 by default
+ * <li>{@code -think ms}: the pause of a client between requests in a closed loop, 0 by default
+ * <li>{@code -workload name}: the workload, {@code tc-random} by default
+ * <li>{@code -scale n}: the scale of the workload, 1000 by default
+ * <li>{@code -edb default|versioned}: the EDB; only {@link VersionedEDB} serves the clients concurrently
+ * <li>{@code -server}: go through a {@link QueryServer} instead of calling the interpreter
+ * <li>{@code -seed n}: the seed of the facts and of the requests, 42 by default
+ * </ul>
+ * <p>
+ * The query cache is off, so that the queries evaluate the rules.
+ * </p>
+ */
+public class LoadGenerator {
+
+	private int clients = 4;
+	private long durationNanos = 10_000_000_000L;
+	private long warmupNanos = 2_000_000_000L;
+	private double rate;
+	private double writeRatio = 0.1;
+	private long thinkNanos;
+	private Workload workload = Workload.TC_RANDOM;
+	private int scale = 1000;
+	private String edb = "default";
+	private boolean server;
+	private long seed = 42;
+
+	private final LatencyHistogram interval = new LatencyHistogram();
+	private int intervalErrors;
+
+	public static void main(String... args) throws Exception {
+		LoadGenerator generator = new LoadGenerator();
+		for(int i = 0; i < args.length; i++) {
+			switch(args[i]) {
+				case "-clients": generator.clients = Integer.parseInt(args[++i]); break;
+				case "-duration": generator.durationNanos = (long) (Double.parseDouble(args[++i]) * 1e9); break;
+				case "-warmup": generator.warmupNanos = (long) (Double.parseDouble(args[++i]) * 1e9); break;
+				case "-rate": generator.rate = Double.parseDouble(args[++i]); break;
+				case "-write-ratio": generator.writeRatio = Double.parseDouble(args[++i]); break;
+				case "-think": generator.thinkNanos = (long) (Double.parseDouble(args[++i]) * 1e6); break;
+				case "-workload": generator.workload = Workload.of(args[++i]); break;
+				case "-scale": generator.scale = Integer.parseInt(args[++i]); break;
+				case "-edb": generator.edb = args[++i]; break;
+				case "-server": generator.server = true; break;
+				case "-seed": generator.seed = Long.parseLong(args[++i]); break;
+				default:
+					System.err.println("Usage: LoadGenerator [-clients 4] [-duration 10] [-warmup 2] [-rate 0] [-write-ratio 0.1]"
+							+ " [-think 0] [-workload tc-random] [-scale 1000] [-edb default|versioned] [-server] [-seed 42]");
+					return;
+			}
+		}
+		generator.run();
+	}
+
+	private void run() throws Exception {
+		Random random = new Random(seed);
+		List<Expression> facts = new ArrayList<>();
+		workload.generate(scale, random, facts);
+		Map<String, List<Expression>> factsByPredicate = new HashMap<>();
+		for(Expression fact : facts) {
+			factsByPredicate.computeIfAbsent(fact.getPredicate(), key -> new ArrayList<>()).add(fact);
+		}
+
+		DatalogInterpreter interpreter = new DatalogInterpreter();
+		interpreter.setQueryCache(null);
+		if(edb.equals("versioned")) {
+			interpreter.setEdbProvider(new VersionedEDB());
+		} else if(!edb.equals("default")) {
+			throw new IllegalArgumentException("Unknown EDB " + edb + "; the EDBs are default and versioned");
+		}
+		for(Expression fact : facts) {
+			interpreter.fact(fact);
+		}
+		interpreter.executeAll(workload.getRules());
+		interpreter.expand();
+
+		QueryServer queryServer = server ? new QueryServer(interpreter, 0).start() : null;
+		System.out.printf(Locale.ROOT, "%s, scale %d, %d base facts, %s EDB, %s, %d clients, %s, %.0f%% writes%n",
+				workload.getName(), scale, facts.size(), edb, server ? "server on port " + queryServer.getPort() : "direct",
+				clients, rate > 0 ? String.format(Locale.ROOT, "%.0f requests/s", rate) : "closed loop", writeRatio * 100);
+
+		long start = System.nanoTime();
+		long warmupEnd = start + warmupNanos;
+		long end = warmupEnd + durationNanos;
+		List<Client> all = new ArrayList<>();
+		ExecutorService executor = Executors.newFixedThreadPool(clients);
+		List<Future<?>> futures = new ArrayList<>();
+		try {
+			for(int i = 0; i < clients; i++) {
+				Client client = new Client(interpreter, queryServer, factsByPredicate, facts, new Random(seed + 1 + i));
+				all.add(client);
+				futures.add(executor.submit(() -> {
+					client.run(start, warmupEnd, end);
+					return null;
+				}));
+			}
+			report(start, warmupEnd, end);
+			for(Future<?> future : futures) {
+				future.get();
+			}
+		} finally {
+			executor.shutdownNow();
+			if(queryServer != null)
+				queryServer.close();
+		}
+
+		LatencyHistogram reads = new LatencyHistogram(), readsUncorrected = new LatencyHistogram();
+		LatencyHistogram writes = new LatencyHistogram(), writesUncorrected = new LatencyHistogram();
+		long errors = 0;
+		for(Client client : all) {
+			reads.add(client.reads);
+			readsUncorrected.add(client.readsUncorrected);
+			writes.add(client.writes);
+			writesUncorrected.add(client.writesUncorrected);
+			errors += client.errors;
+		}
+		LatencyHistogram total = new LatencyHistogram(), totalUncorrected = new LatencyHistogram();
+		total.add(reads);
+		total.add(writes);
+		totalUncorrected.add(readsUncorrected);
+		totalUncorrected.add(writesUncorrected);
+		long requests = readsUncorrected.getCount() + writesUncorrected.getCount();
+		System.out.println();
+		System.out.println("reads             " + reads);
+		System.out.println("reads uncorrected " + readsUncorrected);
+		System.out.println("writes            " + writes);
+		System.out.println("writes uncorr.    " + writesUncorrected);
+		System.out.println("all               " + total);
+		System.out.println("all uncorrected   " + totalUncorrected);
+		System.out.printf(Locale.ROOT, "throughput %.1f requests/s, %d errors%n", requests / (durationNanos / 1e9), errors);
+	}
+
+	/* Prints the throughput and the latencies of every second until the end */
+	private void report(long start, long warmupEnd, long end) throws InterruptedException {
+		LatencyHistogram snapshot = new LatencyHistogram();
+		long next = start;
+		while(next < end) {
+			long now = System.nanoTime();
+			long previous = next;
+			next = Math.min(end, next + 1_000_000_000L);
+			if(next > now)
+				LockSupport.parkNanos(next - now);
+			int errors;
+			synchronized(interval) {
+				snapshot.reset();
+				snapshot.add(interval);
+				interval.reset();
+				errors = intervalErrors;
+				intervalErrors = 0;
+			}
+			double seconds = (next - previous) / 1e9;
+			System.out.printf(Locale.ROOT, "%6.1fs %-7s %9.1f req/s  p50=%.3fms p99=%.3fms max=%.3fms errors=%d%n",
+					(next - start) / 1e9, next <= warmupEnd ? "warmup" : "", snapshot.getCount() / seconds,
+					snapshot.getValueAtPercentile(50) / 1e6, snapshot.getValueAtPercentile(99) / 1e6,
+					snapshot.getMax() / 1e6, errors);
+		}
+	}
+
+	/* A client, with its own histograms so that recording doesn't contend */
+	private final class Client {
+		private final DatalogInterpreter interpreter;
+		private final Map<String, List<Expression>> factsByPredicate;
+		private final List<Expression> facts;
+		private final Random random;
+		private BufferedReader in;
+		private Writer out;
+
+		final LatencyHistogram reads = new LatencyHistogram();
+		final LatencyHistogram readsUncorrected = new LatencyHistogram();
+		final LatencyHistogram writes = new LatencyHistogram();
+		final LatencyHistogram writesUncorrected = new LatencyHistogram();
+		long errors;
+
+		Client(DatalogInterpreter interpreter, QueryServer server, Map<String, List<Expression>> factsByPredicate,
+				List<Expression> facts, Random random) throws IOException {
+			this.interpreter = interpreter;
+			this.factsByPredicate = factsByPredicate;
+			this.facts = facts;
+			this.random = random;
+			if(server != null) {
+				Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.getPort());
+				socket.setTcpNoDelay(true);
+				in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+				out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+			}
+		}
+
+		void run(long start, long warmupEnd, long end) throws IOException {
+			// Each client takes its share of the rate, so its requests are `clients` intervals apart
+			long period = rate > 0 ? (long) (clients * 1e9 / rate) : 0;
+			long intended = start + (period > 0 ? random.nextInt((int) Math.min(Integer.MAX_VALUE, period)) : 0);
+			try {
+				while(true) {
+					long now = System.nanoTime();
+					if(period > 0 && intended > now) {
+						LockSupport.parkNanos(intended - now);
+						now = System.nanoTime();
+					} else if(period == 0) {
+						intended = now;
+					}
+					if(now >= end)
+						break;
+
+					boolean write = random.nextDouble() < writeRatio;
+					String request = write ? write() : query();
+					boolean failed = !send(request);
+					long done = System.nanoTime();
+
+					if(intended >= warmupEnd) {
+						long corrected = done - intended;
+						long uncorrected = done - now;
+						(write ? writes : reads).record(corrected, period == 0 ? thinkNanos : 0);
+						(write ? writesUncorrected : readsUncorrected).record(uncorrected);
+						if(failed)
+							errors++;
+					}
+					synchronized(interval) {
+						interval.record(done - intended);
+						if(failed)
+							intervalErrors++;
+					}
+
+					if(period > 0) {
+						intended += period;
+					} else if(thinkNanos > 0) {
+						LockSupport.parkNanos(thinkNanos);
+					}
+				}
+			} finally {
+				if(out != null)
+					out.close();
+			}
+		}
+
+		private String query() {
+			StringBuilder sb = new StringBuilder();
+			for(Expression goal : workload.query(scale, random)) {
+				if(sb.length() > 0)
+					sb.append(", ");
+				sb.append(goal);
+			}
+			return sb.append('?').toString();
+		}
+
+		/* A new fact made of the first term of one base fact and the other terms of another of the same predicate */
+		private String write() {
+			Expression first = facts.get(random.nextInt(facts.size()));
+			List<Expression> same = factsByPredicate.get(first.getPredicate());
+			Expression second = same.get(random.nextInt(same.size()));
+			List<String> terms = new ArrayList<>(second.getTerms());
+			terms.set(0, first.getTerms().get(0));
+			return new Expression(first.getPredicate(), terms) + ".";
+		}
+
+		/* Sends a request and waits for its response; returns whether it succeeded */
+		private boolean send(String request) throws IOException {
+			if(out == null) {
+				try {
+					interpreter.executeAll(request);
+					return true;
+				} catch (CodalogException | RuntimeException e) {
+					return false;
+				}
+			}
+			out.write(request);
+			out.write('\n');
+			out.flush();
+			String line;
+			while((line = in.readLine()) != null) {
+				if(line.startsWith("OK"))
+					return true;
+				if(line.startsWith("ERROR"))
+					return false;
+			}
+			throw new IOException("The server closed the connection");
+		}
+	}
+}
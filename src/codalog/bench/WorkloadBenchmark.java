@@ -0,0 +1,416 @@
+package codalog.bench;
+
+import java.io.FileWriter;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import codalog.CodalogException;
+import codalog.DatalogInterpreter;
+import codalog.Expression;
+import codalog.storage.VersionedEDB;
+
+/**
+ * Runs standard Datalog workloads end to end through {@link DatalogInterpreter} and reports, for every run, the time
+ * it took to load the facts and rules, to expand the database, the latency of point queries against the expanded
+ * database, the number of derived facts and the peak heap usage, as CSV, so that scaling curves can be compared from
+ * one release to the next.
+ * <p>
+ * Every combination of the workloads, scales, evaluation modes and thread counts is run on a fresh interpreter,
+ * without the query cache. The options, which all take comma-separated lists, are:
+ * </p>
+ * <ul>
+ * <li>{@code -workload}: the {@link Workload}s, by name; all of them by default
+ * <li>{@code -scale}: the number of base facts of the main relation, 1000 by default
+ * <li>{@code -mode}: {@code naive} and/or {@code semi-naive}; both by default
+ * <li>{@code -threads}: the number of threads that run the queries concurrently, 1 by default
+ * <li>{@code -edb}: {@code default} for {@link codalog.EDB} and/or {@code versioned} for {@link VersionedEDB};
+ *     only the versioned EDB runs queries concurrently, and it doesn't keep the facts derived by the expansion, so
+ *     its queries evaluate the rules again
+ * <li>{@code -queries}: the number of queries per run, 100 by default
+ * <li>{@code -seed}: the seed of the random graphs and queries, 42 by default
+ * <li>{@code -csv}: also write the results to a file
+ * </ul>
+ * <p>
+ * The number of derived facts of the closures grows quickly with the scale: with a thousand edges the grid already
+ * derives tens of thousands of facts, so the largest scales are only practical for the chains and the random graphs.
+ * </p>
+ */
+public class WorkloadBenchmark {
+
+	/**
+	 * A workload: how to generate its facts at a given scale, its rules, and the point queries that are run against it.
+	 */
+	public enum Workload {
+		/** Transitive closure over chains of 100 nodes */
+		TC_CHAIN("tc-chain", TC_RULES) {
+			@Override
+			void generate(int scale, Random random, List<Expression> facts) {
+				for(int i = 0; i < scale; i++) {
+					facts.add(new Expression("e", "n" + (i + i / 99), "n" + (i + i / 99 + 1)));
+				}
+			}
+
+			@Override
+			List<Expression> query(int scale, Random random) {
+				return goals(new Expression("tc", "n" + random.nextInt(scale), "Y"));
+			}
+		},
+		/** Transitive closure over a random graph with half as many edges as nodes, below the giant component */
+		TC_RANDOM("tc-random", TC_RULES) {
+			@Override
+			void generate(int scale, Random random, List<Expression> facts) {
+				int nodes = scale * 2;
+				for(int i = 0; i < scale; i++) {
+					facts.add(new Expression("e", "n" + random.nextInt(nodes), "n" + random.nextInt(nodes)));
+				}
+			}
+
+			@Override
+			List<Expression> query(int scale, Random random) {
+				return goals(new Expression("tc", "n" + random.nextInt(scale * 2), "Y"));
+			}
+		},
+		/** Transitive closure over a square grid, with edges to the right and downwards */
+		TC_GRID("tc-grid", TC_RULES) {
+			@Override
+			void generate(int scale, Random random, List<Expression> facts) {
+				int side = side(scale);
+				for(int x = 0; x < side; x++) {
+					for(int y = 0; y < side; y++) {
+						if(x + 1 < side)
+							facts.add(new Expression("e", cell(x, y), cell(x + 1, y)));
+						if(y + 1 < side)
+							facts.add(new Expression("e", cell(x, y), cell(x, y + 1)));
+					}
+				}
+			}
+
+			@Override
+			List<Expression> query(int scale, Random random) {
+				int side = side(scale);
+				return goals(new Expression("tc", cell(random.nextInt(side), random.nextInt(side)), "Y"));
+			}
+
+			private int side(int scale) {
+				return Math.max(2, (int) Math.sqrt(scale / 2.0) + 1);
+			}
+
+			private String cell(int x, int y) {
+				return "c" + x + "_" + y;
+			}
+		},
+		/** Same generation over a binary tree of `scale` nodes */
+		SAME_GENERATION("sg",
+				"sg(X, Y) :- par(X, P), par(Y, P), X <> Y.\n"
+				+ "sg(X, Y) :- par(X, A), sg(A, B), par(Y, B).\n") {
+			@Override
+			void generate(int scale, Random random, List<Expression> facts) {
+				for(int i = 1; i < scale; i++) {
+					facts.add(new Expression("par", "n" + i, "n" + ((i - 1) / 2)));
+				}
+			}
+
+			@Override
+			List<Expression> query(int scale, Random random) {
+				return goals(new Expression("sg", "n" + (1 + random.nextInt(scale - 1)), "Y"));
+			}
+		},
+		/** Stratified negation: the nodes of a random graph that aren't reachable from the first one */
+		NEGATION("negation",
+				"reach(n0).\n"
+				+ "reach(Y) :- reach(X), e(X, Y).\n"
+				+ "unreachable(X) :- node(X), not reach(X).\n") {
+			@Override
+			void generate(int scale, Random random, List<Expression> facts) {
+				int nodes = Math.max(2, scale / 2);
+				for(int i = 0; i < nodes; i++) {
+					facts.add(new Expression("node", "n" + i));
+				}
+				for(int i = 0; i < scale; i++) {
+					facts.add(new Expression("e", "n" + random.nextInt(nodes), "n" + random.nextInt(nodes)));
+				}
+			}
+
+			@Override
+			List<Expression> query(int scale, Random random) {
+				return goals(new Expression("unreachable", "n" + random.nextInt(Math.max(2, scale / 2))));
+			}
+		},
+		/** A star join of a fact table with three dimension tables a tenth of its size */
+		STAR("star",
+				"star(K, X, Y, Z) :- fact(K, A, B, C), da(A, X), db(B, Y), dc(C, Z).\n") {
+			@Override
+			void generate(int scale, Random random, List<Expression> facts) {
+				int dimension = Math.max(1, scale / 10);
+				for(int i = 0; i < scale; i++) {
+					facts.add(new Expression("fact", "k" + i, "a" + random.nextInt(dimension), "b" + random.nextInt(dimension),
+							"c" + random.nextInt(dimension)));
+				}
+				for(int i = 0; i < dimension; i++) {
+					facts.add(new Expression("da", "a" + i, "x" + i));
+					facts.add(new Expression("db", "b" + i, "y" + i));
+					facts.add(new Expression("dc", "c" + i, "z" + i));
+				}
+			}
+
+			@Override
+			List<Expression> query(int scale, Random random) {
+				return goals(new Expression("star", "k" + random.nextInt(scale), "X", "Y", "Z"));
+			}
+		};
+
+		private final String name;
+		private final String rules;
+
+		Workload(String name, String rules) {
+			this.name = name;
+			this.rules = rules;
+		}
+
+		/** @return The name of the workload on the command line and in the results */
+		public String getName() {
+			return name;
+		}
+
+		/** @return The rules of the workload, as Datalog source */
+		public String getRules() {
+			return rules;
+		}
+
+		/* Generates the base facts at a scale */
+		abstract void generate(int scale, Random random, List<Expression> facts);
+
+		/* Generates the goals of a random point query */
+		abstract List<Expression> query(int scale, Random random);
+
+		/**
+		 * Finds a workload by name.
+		 * @param name The name of the workload
+		 * @return The workload
+		 */
+		public static Workload of(String name) {
+			for(Workload workload : values()) {
+				if(workload.name.equals(name))
+					return workload;
+			}
+			throw new IllegalArgumentException("Unknown workload " + name + "; the workloads are " + names());
+		}
+
+		private static List<String> names() {
+			List<String> names = new ArrayList<>();
+			for(Workload workload : values()) {
+				names.add(workload.name);
+			}
+			return names;
+		}
+
+		private static List<Expression> goals(Expression goal) {
+			return Collections.singletonList(goal);
+		}
+	}
+
+	private static final String TC_RULES = "tc(X, Y) :- e(X, Y).\ntc(X, Y) :- tc(X, Z), e(Z, Y).\n";
+
+	/** The columns of the CSV report */
+	public static final String HEADER = "workload,scale,mode,edb,threads,base_facts,load_ms,expand_ms,derived_facts,"
+			+ "queries,query_mean_ms,query_p50_ms,query_p99_ms,query_max_ms,throughput_qps,peak_heap_mb";
+
+	public static void main(String... args) throws Exception {
+		List<String> workloads = Workload.names();
+		List<String> scales = Arrays.asList("1000");
+		List<String> modes = Arrays.asList("naive", "semi-naive");
+		List<String> threads = Arrays.asList("1");
+		List<String> edbs = Arrays.asList("default");
+		int queries = 100;
+		long seed = 42;
+		String csv = null;
+		for(int i = 0; i < args.length; i++) {
+			switch(args[i]) {
+				case "-workload": workloads = Arrays.asList(args[++i].split(",")); break;
+				case "-scale": scales = Arrays.asList(args[++i].split(",")); break;
+				case "-mode": modes = Arrays.asList(args[++i].split(",")); break;
+				case "-threads": threads = Arrays.asList(args[++i].split(",")); break;
+				case "-edb": edbs = Arrays.asList(args[++i].split(",")); break;
+				case "-queries": queries = Integer.parseInt(args[++i]); break;
+				case "-seed": seed = Long.parseLong(args[++i]); break;
+				case "-csv": csv = args[++i]; break;
+				default:
+					System.err.println("Usage: WorkloadBenchmark [-workload " + String.join(",", Workload.names())
+							+ "] [-scale 1000,10000] [-mode naive,semi-naive] [-threads 1,4] [-edb default,versioned]"
+							+ " [-queries 100] [-seed 42] [-csv file]");
+					return;
+			}
+		}
+
+		PrintWriter out = csv != null ? new PrintWriter(new FileWriter(csv)) : null;
+		try {
+			System.out.println(HEADER);
+			if(out != null)
+				out.println(HEADER);
+			for(String workload : workloads) {
+				for(String scale : scales) {
+					for(String mode : modes) {
+						for(String edb : edbs) {
+							for(String count : threads) {
+								String row = run(Workload.of(workload), Integer.parseInt(scale), mode, edb,
+										Integer.parseInt(count), queries, seed);
+								System.out.println(row);
+								if(out != null) {
+									out.println(row);
+									out.flush();
+								}
+							}
+						}
+					}
+				}
+			}
+		} finally {
+			if(out != null)
+				out.close();
+		}
+	}
+
+	/**
+	 * Runs a workload once.
+	 * @param workload The workload
+	 * @param scale The number of base facts of its main relation
+	 * @param mode {@code naive} or {@code semi-naive}
+	 * @param edb {@code default} or {@code versioned}
+	 * @param threads The number of threads that run the queries
+	 * @param queries The number of queries
+	 * @param seed The seed of the random facts and queries
+	 * @return The results, as a row of CSV with the columns of {@link #HEADER}
+	 * @throws CodalogException if the workload can't be evaluated
+	 * @throws Exception if a query fails
+	 */
+	public static String run(Workload workload, int scale, String mode, String edb, int threads, int queries, long seed) throws Exception {
+		if(!mode.equals("naive") && !mode.equals("semi-naive"))
+			throw new IllegalArgumentException("Unknown mode " + mode + "; the modes are naive and semi-naive");
+		Random random = new Random(seed);
+		List<Expression> facts = new ArrayList<>();
+		workload.generate(scale, random, facts);
+
+		System.gc();
+		resetPeakHeap();
+		DatalogInterpreter interpreter = new DatalogInterpreter();
+		interpreter.setQueryCache(null);
+		interpreter.setIsNaive(mode.equals("naive"));
+		if(edb.equals("versioned")) {
+			interpreter.setEdbProvider(new VersionedEDB());
+		} else if(!edb.equals("default")) {
+			throw new IllegalArgumentException("Unknown EDB " + edb + "; the EDBs are default and versioned");
+		}
+
+		long start = System.nanoTime();
+		for(Expression fact : facts) {
+			interpreter.fact(fact);
+		}
+		interpreter.executeAll(workload.getRules());
+		long load = System.nanoTime() - start;
+
+		int before = interpreter.getEdbProvider().allFacts().size();
+		start = System.nanoTime();
+		interpreter.expand();
+		long expand = System.nanoTime() - start;
+		int derived = interpreter.getEdbProvider().allFacts().size() - before;
+		if(edb.equals("versioned")) {
+			// The snapshot that the expansion wrote to is discarded; count the facts of one evaluation instead
+			derived = 0;
+			for(String predicate : headPredicates(interpreter)) {
+				derived += interpreter.query(new Expression(predicate, variables(interpreter, predicate))).size();
+			}
+		}
+
+		List<List<Expression>> goals = new ArrayList<>(queries);
+		for(int i = 0; i < queries; i++) {
+			goals.add(workload.query(scale, random));
+		}
+		long[] latencies = new long[queries];
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		start = System.nanoTime();
+		try {
+			List<Future<?>> futures = new ArrayList<>();
+			for(int t = 0; t < threads; t++) {
+				int first = t;
+				futures.add(executor.submit(() -> {
+					for(int i = first; i < queries; i += threads) {
+						long begin = System.nanoTime();
+						interpreter.query(goals.get(i), null);
+						latencies[i] = System.nanoTime() - begin;
+					}
+					return null;
+				}));
+			}
+			for(Future<?> future : futures) {
+				future.get();
+			}
+		} finally {
+			executor.shutdown();
+		}
+		long elapsed = System.nanoTime() - start;
+
+		long[] sorted = latencies.clone();
+		Arrays.sort(sorted);
+		double mean = Arrays.stream(latencies).average().orElse(0);
+		return String.format(Locale.ROOT, "%s,%d,%s,%s,%d,%d,%.3f,%.3f,%d,%d,%.3f,%.3f,%.3f,%.3f,%.1f,%.1f",
+				workload.getName(), scale, mode, edb, threads, facts.size(), load / 1e6, expand / 1e6, derived,
+				queries, mean / 1e6, percentile(sorted, 0.5) / 1e6, percentile(sorted, 0.99) / 1e6,
+				(queries > 0 ? sorted[queries - 1] : 0) / 1e6, queries / (elapsed / 1e9), peakHeap() / (double) (1 << 20));
+	}
+
+	private static List<String> headPredicates(DatalogInterpreter interpreter) {
+		List<String> predicates = new ArrayList<>();
+		interpreter.getIdb().forEach(rule -> {
+			if(!predicates.contains(rule.getHead().getPredicate()))
+				predicates.add(rule.getHead().getPredicate());
+		});
+		return predicates;
+	}
+
+	private static List<String> variables(DatalogInterpreter interpreter, String predicate) {
+		int arity = interpreter.getIdb().stream().filter(rule -> rule.getHead().getPredicate().equals(predicate))
+				.findFirst().get().getHead().arity();
+		List<String> variables = new ArrayList<>(arity);
+		for(int i = 0; i < arity; i++) {
+			variables.add("V" + i);
+		}
+		return variables;
+	}
+
+	/* The value at a quantile of sorted values, by the nearest rank */
+	private static long percentile(long[] sorted, double quantile) {
+		if(sorted.length == 0)
+			return 0;
+		int rank = (int) Math.ceil(quantile * sorted.length);
+		return sorted[Math.max(0, Math.min(sorted.length - 1, rank - 1))];
+	}
+
+	private static void resetPeakHeap() {
+		for(MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if(pool.getType() == MemoryType.HEAP)
+				pool.resetPeakUsage();
+		}
+	}
+
+	/* The sum of the peak usage of the heap pools since the last reset; the pools don't peak at the same time,
+	 * so this is an upper bound */
+	private static long peakHeap() {
+		long peak = 0;
+		for(MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if(pool.getType() == MemoryType.HEAP && pool.getPeakUsage() != null)
+				peak += pool.getPeakUsage().getUsed();
+		}
+		return peak;
+	}
+}
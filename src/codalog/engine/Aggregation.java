@@ -0,0 +1,213 @@
+package codalog.engine;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import codalog.Aggregate;
+import codalog.DatalogInterpreter;
+import codalog.Expression;
+import codalog.Term;
+
+/**
+ * Hash-grouped aggregation of the answers to a rule body or a query.
+ * <p>
+ * The aggregation is a {@link Consumer} of bindings, so that it can be passed directly as the visitor of
+ * {@link Engine#matchBody(List, IndexedSet, Map, Consumer)}: each answer is folded into the running accumulators
+ * of its group as soon as it is found, and then discarded. The memory used is proportional to the number of
+ * groups rather than to the number of answers.
+ * </p><p>
+ * The group-by variables are the variables outside the aggregate terms. Because the facts are a set, every answer
+ * to the body is a distinct binding of its variables, so {@code count} counts those bindings, and {@code sum}
+ * adds up the value of the aggregated variable in each of them.
+ * </p>
+ */
+class Aggregation implements Consumer<Map<String, String>> {
+
+	private final String[] groupBy;
+	private final Aggregate[] aggregates;
+	private final Map<List<String>, Accumulator[]> groups = new HashMap<>();
+
+	/**
+	 * Creates an aggregation for terms like those of a rule head or a query.
+	 * @param terms The terms; aggregate terms are aggregated and variables are grouped by, while constants are ignored
+	 */
+	Aggregation(List<String> terms) {
+		List<String> groupBy = new ArrayList<>();
+		List<Aggregate> aggregates = new ArrayList<>();
+		for(String term : terms) {
+			Aggregate aggregate = Aggregate.parse(term);
+			if(aggregate != null) {
+				aggregates.add(aggregate);
+			} else if(DatalogInterpreter.isVariable(term) && !groupBy.contains(term)) {
+				groupBy.add(term);
+			}
+		}
+		this.groupBy = groupBy.toArray(new String[groupBy.size()]);
+		this.aggregates = aggregates.toArray(new Aggregate[aggregates.size()]);
+	}
+
+	/**
+	 * Replaces the aggregate terms of some goals with their variables, so that they can be matched against the facts.
+	 * @param goals The goals, like {@code e(X, count<Y>)}
+	 * @return The goals without aggregates, like {@code e(X, Y)}
+	 */
+	static List<Expression> strip(List<Expression> goals) {
+		List<Expression> stripped = new ArrayList<>(goals.size());
+		for(Expression goal : goals) {
+			if(!Aggregate.hasAggregates(goal)) {
+				stripped.add(goal);
+				continue;
+			}
+			List<String> terms = new ArrayList<>(goal.getTerms());
+			for(int i = 0; i < terms.size(); i++) {
+				Aggregate aggregate = Aggregate.parse(terms.get(i));
+				if(aggregate != null)
+					terms.set(i, aggregate.getVariable());
+			}
+			stripped.add(new Expression(goal.getPredicate(), terms, goal.isNegated()));
+		}
+		return stripped;
+	}
+
+	/* Collects the terms of some goals */
+	static List<String> terms(List<Expression> goals) {
+		List<String> terms = new ArrayList<>();
+		for(Expression goal : goals) {
+			terms.addAll(goal.getTerms());
+		}
+		return terms;
+	}
+
+	@Override
+	public void accept(Map<String, String> bindings) {
+		String[] key = new String[groupBy.length];
+		for(int i = 0; i < key.length; i++) {
+			key[i] = bindings.get(groupBy[i]);
+		}
+		List<String> group = Arrays.asList(key);
+		Accumulator[] accumulators = groups.get(group);
+		if(accumulators == null) {
+			accumulators = new Accumulator[aggregates.length];
+			for(int i = 0; i < accumulators.length; i++) {
+				accumulators[i] = new Accumulator(aggregates[i].getFunction());
+			}
+			groups.put(group, accumulators);
+		}
+		for(int i = 0; i < accumulators.length; i++) {
+			accumulators[i].add(bindings.get(aggregates[i].getVariable()));
+		}
+	}
+
+	/**
+	 * The results as bindings: one per group, with the group-by variables and the aggregate terms as keys.
+	 * @param bindings The bindings that the answers extend; may be null
+	 * @return The answers
+	 */
+	Collection<Map<String, String>> answers(Map<String, String> bindings) {
+		Collection<Map<String, String>> answers = new ArrayList<>(groups.size());
+		for(Map.Entry<List<String>, Accumulator[]> entry : groups.entrySet()) {
+			Map<String, String> answer = new StackMap<String, String>(bindings);
+			for(int i = 0; i < groupBy.length; i++) {
+				answer.put(groupBy[i], entry.getKey().get(i));
+			}
+			for(int i = 0; i < aggregates.length; i++) {
+				answer.put(aggregates[i].toString(), entry.getValue()[i].result());
+			}
+			answers.add(answer);
+		}
+		return answers;
+	}
+
+	/**
+	 * The results as facts: one per group, with the group-by variables and the aggregates of {@code head} replaced by
+	 * their values.
+	 * @param head The head of the aggregate rule
+	 * @return The facts
+	 */
+	List<Expression> facts(Expression head) {
+		List<Expression> facts = new ArrayList<>(groups.size());
+		for(Map<String, String> answer : answers(null)) {
+			List<String> terms = new ArrayList<>(head.arity());
+			for(String term : head.getTerms()) {
+				String value = answer.get(term);
+				terms.add(value != null ? value : term);
+			}
+			facts.add(new Expression(head.getPredicate(), terms));
+		}
+		return facts;
+	}
+
+	/* The terms of a fact of an aggregate rule's head at the positions of the group-by variables */
+	static List<String> groupOf(Expression head, Expression fact) {
+		List<String> group = new ArrayList<>(head.arity());
+		for(int i = 0; i < head.arity(); i++) {
+			if(!Aggregate.isAggregate(head.getTerms().get(i)))
+				group.add(fact.getTerms().get(i));
+		}
+		return group;
+	}
+
+	/* The running value of one aggregate in one group */
+	private static final class Accumulator {
+		private final Aggregate.Function function;
+		private long count;
+		private long integer;
+		private double decimal;
+		private boolean isDecimal;
+		private Term best;
+
+		Accumulator(Aggregate.Function function) {
+			this.function = function;
+		}
+
+		void add(String value) {
+			count++;
+			if(function == Aggregate.Function.COUNT)
+				return;
+			Term term = Term.of(value);
+			switch(function) {
+				case SUM:
+					if(!isDecimal && term.getType() == Term.Type.INTEGER) {
+						long sum = integer + term.getInteger();
+						// Overflow: continue the sum as a double
+						if(((integer ^ sum) & (term.getInteger() ^ sum)) < 0) {
+							isDecimal = true;
+							decimal = (double) integer + term.getInteger();
+						} else {
+							integer = sum;
+						}
+					} else if(term.isNumeric()) {
+						if(!isDecimal) {
+							isDecimal = true;
+							decimal = integer;
+						}
+						decimal += term.getDecimal();
+					}
+					break;
+				case MIN:
+					if(best == null || Term.compare(term, best) < 0)
+						best = term;
+					break;
+				case MAX:
+					if(best == null || Term.compare(term, best) > 0)
+						best = term;
+					break;
+				default:
+					break;
+			}
+		}
+
+		String result() {
+			switch(function) {
+				case COUNT: return Long.toString(count);
+				case SUM: return isDecimal ? Term.format(decimal) : Long.toString(integer);
+				default: return best.getText();
+			}
+		}
+	}
+}
@@ -1,16 +1,21 @@
 package codalog.engine;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.stream.Collectors;
 
+import codalog.Aggregate;
 import codalog.CodalogException;
 import codalog.Expression;
 import codalog.DatalogInterpreter;
 import codalog.Rules;
+import codalog.interfaces.EDBInterface;
 
 
 public class BasicEngine extends Engine {
@@ -18,19 +23,29 @@ public class BasicEngine extends Engine {
 	@Override
 	public void expand(DatalogInterpreter codalog) throws CodalogException
 	{
+	long allocated = Metrics.startAllocation();
 	expandDatabase(codalog.getEdbProvider().allFacts(), codalog.getIdb(), codalog.getIsNaive());
+	metrics.endAllocation(allocated);
 	}
 
 	@Override
 	public Collection<Map<String, String>> query(DatalogInterpreter codalog, List<Expression> goals, Map<String, String> bindings) throws CodalogException {
 		if (goals.isEmpty())
 			return Collections.emptyList();
+		return queryAll(codalog, Collections.singletonList(goals), bindings).get(0);
+	}
 
-		// Reorganize the goals so that negated literals are at the end.
-		List<Expression> orderedGoals = Engine.reorderQuery(goals);
-
-		
-		Collection<String> predicates = getRelevantPredicates(codalog, goals);			
+	/**
+	 * Answers several queries with a single evaluation: the rules that any of the queries depend on are expanded
+	 * together, in one fixpoint, and every query is then matched against the result. The queries of a batch
+	 * typically share most of their predicates, so this takes about as long as the most expensive query.
+	 */
+	@Override
+	public List<Collection<Map<String, String>>> queryAll(DatalogInterpreter codalog, List<List<Expression>> queries, Map<String, String> bindings) throws CodalogException {
+		Collection<String> predicates = new HashSet<>();
+		for(List<Expression> goals : queries) {
+			predicates.addAll(getRelevantPredicates(codalog, goals));
+		}
 		Collection<Rules> rules = codalog.getIdb().stream().filter(rule -> predicates.contains(rule.getHead().getPredicate())).collect(Collectors.toSet());
 
 		// Build an IndexedSet<> with only the relevant facts for this particular query.			
@@ -38,12 +53,69 @@ public class BasicEngine extends Engine {
 		//for(String predicate : predicates) {
 		//	facts.addAll(jatalog.getEdbProvider().getFacts(predicate));
 		//}
-		IndexedSet<Expression, String> facts = codalog.getEdbProvider().allFacts();
+		EDBInterface edb = codalog.getEdbProvider();
+		IndexedSet<Expression, String> facts = edb.beginRead();
+		long allocated = Metrics.startAllocation();
+		try {
+			// Build the database. A Set ensures that the facts are unique
+			IndexedSet<Expression, String> resultSet = expandDatabase(facts, rules, codalog.getIsNaive());
+			// Now match the expanded database to the goals of each query
+			List<Collection<Map<String, String>>> answers = new ArrayList<>(queries.size());
+			for(List<Expression> goals : queries) {
+				answers.add(goals.isEmpty() ? Collections.emptyList() : answer(goals, resultSet, bindings));
+			}
+			return answers;
+		} finally {
+			metrics.endAllocation(allocated);
+			edb.endRead(facts);
+		}
+	}
+
+	/* Matches the goals of a query against the expanded database */
+	private Collection<Map<String, String>> answer(List<Expression> goals, IndexedSet<Expression, String> facts, Map<String, String> bindings) {
+		// A query like `e(X, count<Y>)?` is matched as `e(X, Y)?` and its answers are aggregated per X
+		boolean aggregate = goals.stream().anyMatch(Aggregate::hasAggregates);
 
-		// Build the database. A Set ensures that the facts are unique
-		IndexedSet<Expression, String> resultSet = expandDatabase(facts, rules, codalog.getIsNaive());
-		// Now match the expanded database to the goals
-		return matchGoals(orderedGoals, resultSet, bindings);
+		// Reorganize the goals so that negated literals are at the end.
+		List<Expression> orderedGoals = Engine.reorderQuery(aggregate ? Aggregation.strip(goals) : goals);
+
+		long start = metrics.startQuery(orderedGoals);
+		try {
+			if(aggregate) {
+				Aggregation aggregation = new Aggregation(Aggregation.terms(goals));
+				matchBody(orderedGoals, facts, bindings, aggregation);
+				return aggregation.answers(bindings);
+			}
+			// The values are copied out of the bindings as each answer is found, so that its StackMaps can be collected
+			ResultTable table = new ResultTable(ResultTable.columns(goals, bindings));
+			matchBody(orderedGoals, facts, bindings, table::add);
+			return table;
+		} finally {
+			metrics.endQuery(start);
+		}
+	}
+
+	/**
+	 * Describes how a query is evaluated. With {@code analyze}, the query is also evaluated, by an engine of its own
+	 * so that the metrics of this one are left alone, and the plan is annotated with the work that was done;
+	 * see {@link Plan}. The query isn't answered from the interpreter's query cache.
+	 */
+	@Override
+	public String explain(DatalogInterpreter codalog, List<Expression> goals, Map<String, String> bindings, boolean analyze) throws CodalogException {
+		if(!analyze)
+			return Plan.describe(codalog, goals, bindings, null, 0, 0);
+		BasicEngine analyzer = new BasicEngine();
+		Metrics analyzed = analyzer.getMetrics();
+		analyzed.traceGoals();
+		analyzed.setEnabled(true);
+		try {
+			long start = System.nanoTime();
+			Collection<Map<String, String>> answers = analyzer.query(codalog, goals, bindings);
+			long nanos = System.nanoTime() - start;
+			return Plan.describe(codalog, goals, bindings, analyzed, answers.size(), nanos);
+		} finally {
+			analyzed.setEnabled(false);
+		}
 	}
 	
     /* The core of the bottom-up implementation:
@@ -51,101 +123,248 @@ public class BasicEngine extends Engine {
      * strata in turn, returning a collection of newly derived facts. */
     private IndexedSet<Expression,String> expandDatabase(IndexedSet<Expression,String> facts, Collection<Rules> allRules, boolean isNaive) throws CodalogException {
         List< Collection<Rules> > strata = computeStratification(allRules);
+        metrics.evaluation();
+        Set<String> closures = new HashSet<>();
         for(int i = 0; i < strata.size(); i++) {
-            Collection<Rules> rules = strata.get(i);
+            Metrics.StratumTotals stratum = metrics.startStratum(strata.get(i));
+            long start = stratum != null ? System.nanoTime() : 0;
+            EngineEvents.Stratum event = new EngineEvents.Stratum();
+            event.begin();
+            int size = event.isEnabled() ? facts.size() : 0;
+            // The bodies of the aggregate rules in this stratum are complete, so they are computed first
+            Collection<Rules> rules = evaluateAggregates(facts, strata.get(i));
+            int iterations;
 			if(isNaive){
             	//System.out.println("Naive evaluation");
-            	expandStrataNaive(facts, rules);}
+            	iterations = expandStrataNaive(facts, rules, stratum);}
             else{
             	//System.out.println("SemiNaive evaluation");
-            	expandStrata(facts, rules);
+            	iterations = expandStrata(facts, evaluateClosures(facts, rules, stratum, closures), stratum);
             	}
+            if(stratum != null) {
+                stratum.end(start);
+            }
+            if(event.shouldCommit()) {
+                event.predicates = Metrics.stratumKey(strata.get(i));
+                event.rules = strata.get(i).size();
+                event.iterations = iterations;
+                event.derived = facts.size() - size;
+                event.commit();
+            }
         }
         return facts;
     }
 
+    /* Computes the facts of the aggregate rules in a stratum, and returns the other rules.
+     * The stratification puts aggregate rules above the predicates in their bodies, so each of them
+     * only needs to be evaluated once. A fact that was computed earlier for the same group, but that has a
+     * different value now because facts were added since, is replaced. */
+    private Collection<Rules> evaluateAggregates(IndexedSet<Expression,String> facts, Collection<Rules> strataRules) {
+        Collection<Rules> rules = new ArrayList<>(strataRules.size());
+        for(Rules rule : strataRules) {
+            // min and max can be recursive, so they are evaluated with the other rules; see Lattice
+            if(!rule.isAggregate() || rule.isMonotonicAggregate()) {
+                rules.add(rule);
+                continue;
+            }
+            long start = metrics.startRule();
+            Aggregation aggregation = new Aggregation(rule.getHead().getTerms());
+            matchBody(rule.getBody(), facts, null, aggregation);
+            Expression head = rule.getHead();
+            Map<List<String>, Expression> derived = new HashMap<>();
+            for(Expression fact : aggregation.facts(head)) {
+                derived.put(Aggregation.groupOf(head, fact), fact);
+            }
+            List<Expression> stale = new ArrayList<>();
+            for(Expression fact : facts.getIndexed(head.getPredicate())) {
+                if(fact.arity() != head.arity())
+                    continue;
+                Expression current = derived.get(Aggregation.groupOf(head, fact));
+                if(current != null && !current.equals(fact)) {
+                    stale.add(fact);
+                }
+            }
+            if(!stale.isEmpty()) {
+                facts.removeAll(stale);
+            }
+            int added = 0;
+            for(Expression fact : derived.values()) {
+                if(!facts.contains(fact)) {
+                    facts.add(fact.asNew().intern());
+                    added++;
+                }
+            }
+            metrics.endRule(rule, start, added);
+        }
+        return rules;
+    }
+
+    /* Evaluates the predicates in a stratum that are recognized as transitive closures with the dedicated
+     * operator, and returns the rules of the stratum that still need to be evaluated. `computed` holds the
+     * closures that earlier strata of the evaluation computed: the last stratum holds all the rules again, and
+     * those closures are complete by then, so they are neither computed again nor left to their rules. */
+    private Collection<Rules> evaluateClosures(IndexedSet<Expression,String> facts, Collection<Rules> strataRules, Metrics.StratumTotals stratum, Set<String> computed) {
+        List<TransitiveClosure> closures = TransitiveClosure.recognize(strataRules);
+        if(closures.isEmpty()) {
+            return strataRules;
+        }
+        Collection<Rules> rules = new ArrayList<>(strataRules);
+        for(TransitiveClosure closure : closures) {
+            if(computed.add(closure.getPredicate())) {
+                int derived = closure.evaluate(facts);
+                if(stratum != null) {
+                    // The closure is computed in one go, which counts as one iteration of its stratum
+                    stratum.iteration(derived);
+                }
+            }
+            rules.removeAll(closure.getRules());
+        }
+        return rules;
+    }
+
     /* This implements the semi-naive part of the evaluator.
      * For all the rules derive a collection of new facts; Repeat until no new
      * facts can be derived.
      * The semi-naive part is to only use the rules that are affected by newly derived
      * facts in each iteration of the loop.
+     * Returns the number of iterations.
      */
-    private Collection<Expression> expandStrata(IndexedSet<Expression,String> facts, Collection<Rules> strataRules) {
+    private int expandStrata(IndexedSet<Expression,String> facts, Collection<Rules> strataRules, Metrics.StratumTotals stratum) {
 
 		if (strataRules == null || strataRules.isEmpty()) {
-			return Collections.emptyList();
+			return 0;
 		}
 		
 		Collection<Rules> rules = strataRules;
 
         Map<String, Collection<Rules>> dependentRules = buildDependentRulesSemiNaive(strataRules);
+        Map<String, Lattice> lattices = Lattice.of(strataRules, facts, true);
 
-        while(true) {
+        for(int iteration = 1; ; iteration++) {
+            EngineEvents.Iteration event = new EngineEvents.Iteration();
+            event.begin();
             // Match each rule to the facts
-        	IndexedSet<Expression,String> newFacts = new IndexedSet<>();
+        	IndexedSet<Expression,String> newFacts = facts.newDelta();
             for(Rules rule : rules) {
-                newFacts.addAll(matchRule(facts, rule));
+                long start = metrics.startRule();
+                int derived = matchRule(facts, rule, lattices, newFacts);
+                metrics.endRule(rule, start, derived);
+            }
+            if(!lattices.isEmpty()) {
+                // Facts of min/max predicates only count if they improve on the fact of their group
+                IndexedSet<Expression,String> delta = newFacts;
+                newFacts = Lattice.apply(lattices, facts, delta);
+                delta.clear();
+            }
+
+            if(stratum != null) {
+                stratum.iteration(newFacts.size());
+            }
+            if(event.shouldCommit()) {
+                event.predicates = Metrics.stratumKey(strataRules);
+                event.iteration = iteration;
+                event.rules = rules.size();
+                event.delta = newFacts.size();
+                event.commit();
             }
 
             // Repeat until there are no more facts added
             if(newFacts.isEmpty()) {
-                return facts;
+                return iteration;
             }
 
             // Determine which rules depend on the newly derived facts
             rules = getDependentRules(newFacts, dependentRules);
-            for (Expression e : newFacts)
-            {
-            e.setNew(true);	
-            }	
             facts.addAll(newFacts);
+            newFacts.clear();
         }
     }
     
     /* This implements the naive part of the evaluator.
      * For all the rules derive a collection of new facts; Repeat until no new
      * facts can be derived.
+     * Returns the number of iterations.
      */
-    private Collection<Expression> expandStrataNaive(IndexedSet<Expression,String> facts, Collection<Rules> strataRules) {
+    private int expandStrataNaive(IndexedSet<Expression,String> facts, Collection<Rules> strataRules, Metrics.StratumTotals stratum) {
 
 		if (strataRules == null || strataRules.isEmpty()) {
-			return Collections.emptyList();
+			return 0;
 		}
 		
 		Collection<Rules> rules = strataRules;
 
         Map<String, Collection<Rules>> dependentRules = buildDependentRulesNaive(strataRules);
+        Map<String, Lattice> lattices = Lattice.of(strataRules, facts, false);
 
-        while(true) {
+        for(int iteration = 1; ; iteration++) {
+            EngineEvents.Iteration event = new EngineEvents.Iteration();
+            event.begin();
             // Match each rule to the facts
-        	IndexedSet<Expression,String> newFacts = new IndexedSet<>();
+        	IndexedSet<Expression,String> newFacts = facts.newDelta();
             for(Rules rule : rules) {
-                newFacts.addAll(matchRule(facts, rule));
+                long start = metrics.startRule();
+                int derived = matchRule(facts, rule, lattices, newFacts);
+                metrics.endRule(rule, start, derived);
+            }
+            if(!lattices.isEmpty()) {
+                // Facts of min/max predicates only count if they improve on the fact of their group
+                IndexedSet<Expression,String> delta = newFacts;
+                newFacts = Lattice.apply(lattices, facts, delta);
+                delta.clear();
+            }
+
+            if(stratum != null) {
+                stratum.iteration(newFacts.size());
+            }
+            if(event.shouldCommit()) {
+                event.predicates = Metrics.stratumKey(strataRules);
+                event.iteration = iteration;
+                event.rules = rules.size();
+                event.delta = newFacts.size();
+                event.commit();
             }
 
             // Repeat until there are no more facts added
             if(newFacts.isEmpty()) {
-                return facts;
-            }
-            for (Expression e : newFacts)
-            {
-            e.setNew(true);	
+                return iteration;
             }
             facts.addAll(newFacts);
+            newFacts.clear();
         }
     }
     
-    /* Match the facts in the EDB against a specific rule */
-    private Set<Expression> matchRule(IndexedSet<Expression,String> facts, Rules rule) {
+    /* Match the facts in the EDB against a specific rule, adding the facts it derives that aren't in the EDB yet
+     * to `newFacts` as they are found, marked as new. Returns the number of facts that it added. */
+    private int matchRule(IndexedSet<Expression,String> facts, Rules rule, Map<String, Lattice> lattices, IndexedSet<Expression,String> newFacts) {
         if(rule.getBody().isEmpty()) // If this happens, you're using the API wrong.
-            return Collections.emptySet();
-
-        // Match the rule body to the facts.
-        Collection<Map<String, String>> answers = matchGoals(rule.getBody(), facts, null);
-        
-        return answers.stream().map(answer -> rule.getHead().substitute(answer))
-        		.filter(derivedFact -> !facts.contains(derivedFact))
-        		.collect(Collectors.toSet());
+            return 0;
+
+        Lattice lattice = lattices.get(rule.getHead().getPredicate());
+        if(lattice != null) {
+            // A min/max rule; the candidates are filtered by Lattice.apply()
+            Aggregation aggregation = new Aggregation(rule.getHead().getTerms());
+            lattice.matchBody(rule, facts, aggregation);
+            int added = 0;
+            for(Expression derivedFact : aggregation.facts(rule.getHead())) {
+                if(!facts.contains(derivedFact) && newFacts.add(derivedFact))
+                    added++;
+            }
+            return added;
+        }
+
+        // Match the rule body to the facts; the answers aren't collected, so that only the new facts are kept.
+        // Derived facts are interned, so that a fact derived by several rules is a single instance
+        int[] added = {0};
+        Expression head = rule.getHead();
+        matchBody(rule.getBody(), facts, null, answer -> {
+            Expression derivedFact = head.substitute(answer);
+            if(facts.contains(derivedFact) || newFacts.contains(derivedFact))
+                return;
+            derivedFact = derivedFact.asNew().intern();
+            if(newFacts.add(derivedFact))
+                added[0]++;
+        });
+        return added[0];
     }
 
 }
@@ -0,0 +1,102 @@
+package codalog.engine;
+
+import java.util.List;
+import java.util.Map;
+
+import codalog.Expression;
+import codalog.Term;
+
+/**
+ * The bindings of one step of the evaluation, which also know the typed values of the variables that the step bound.
+ * <p>
+ * A step that unifies a goal with a fact keeps both: the value of a variable of the goal is then the term of the fact
+ * at the same position, whose type {@link Expression#intern()} computed when the fact entered the database. The
+ * bindings of a built-in, see {@link #builtIn(Map)}, keep the typed value of the variable that it binds.
+ * {@link Expression#evalBuiltIn(Map)} looks the values of its variables up through {@link #getType(String)}, so it
+ * compares primitives instead of parsing the terms again.
+ * </p><p>
+ * Bindings that were made by other means, like the scans of a {@link FactScanner}, are plain {@link StackMap}s; the
+ * lookup stops at the first of them, and the built-in types those values itself.
+ * </p>
+ */
+public class Bindings extends StackMap<String, String> {
+
+	private final Map<String, String> parent;
+	// The fact that was unified with the goal of this step, if any
+	private final Expression fact;
+	private final Expression goal;
+
+	/**
+	 * Creates the bindings of a goal that is unified with a fact.
+	 * @param parent The bindings of the previous steps
+	 * @param fact The fact
+	 * @param goal The goal
+	 */
+	public Bindings(Map<String, String> parent, Expression fact, Expression goal) {
+		super(parent);
+		this.parent = parent;
+		this.fact = fact;
+		this.goal = goal;
+	}
+
+	/**
+	 * Creates the bindings of a built-in.
+	 * @param parent The bindings of the previous steps
+	 * @return The bindings, where {@link #bind(String, Term)} keeps the type of the value
+	 */
+	public static Bindings builtIn(Map<String, String> parent) {
+		return new BuiltIn(parent);
+	}
+
+	/**
+	 * Binds a variable to a value whose type is known.
+	 * @param variable The variable
+	 * @param value The value
+	 */
+	public void bind(String variable, Term value) {
+		put(variable, value.getText());
+	}
+
+	/**
+	 * Retrieves the typed value of a bound variable, if one of the steps knows it.
+	 * @param variable The variable
+	 * @return The value, or null if it isn't known
+	 */
+	public Term getType(String variable) {
+		Map<String, String> bindings = this;
+		while(bindings instanceof Bindings) {
+			Bindings step = (Bindings) bindings;
+			if(step instanceof BuiltIn) {
+				BuiltIn builtIn = (BuiltIn) step;
+				if(variable.equals(builtIn.variable))
+					return builtIn.value;
+			} else if(step.fact != null) {
+				List<String> terms = step.goal.getTerms();
+				for(int i = 0; i < terms.size(); i++) {
+					if(variable.equals(terms.get(i)))
+						return step.fact.getType(i);
+				}
+			}
+			bindings = step.parent;
+		}
+		return null;
+	}
+
+	/* The bindings of a built-in, which binds at most one variable; kept apart so that the bindings of the far more
+	 * numerous unifications don't carry its fields */
+	private static final class BuiltIn extends Bindings {
+		private String variable;
+		private Term value;
+
+		BuiltIn(Map<String, String> parent) {
+			super(parent, null, null);
+		}
+
+		@Override
+		public void bind(String variable, Term value) {
+			super.bind(variable, value);
+			this.variable = variable;
+			this.value = value;
+		}
+	}
+}
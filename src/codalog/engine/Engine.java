@@ -5,11 +5,14 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.function.Consumer;
 
+import codalog.Aggregate;
 import codalog.CodalogException;
 import codalog.Expression;
 import codalog.DatalogInterpreter;
@@ -17,46 +20,191 @@ import codalog.Rules;
 
 public abstract  class Engine {
 
+	protected final Metrics metrics = new Metrics();
+
+	/**
+	 * The metrics of the evaluations done by this engine; they are disabled until {@link Metrics#setEnabled(boolean)}.
+	 * @return The metrics
+	 */
+	public Metrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Answers a query.
+	 * @param jatalog The database
+	 * @param goals The goals of the query
+	 * @param bindings The bindings of the query; may be null
+	 * @return The answers, as a {@link ResultTable} unless the query aggregates; see
+	 *     {@link codalog.interfaces.PredicateInterface#execute(DatalogInterpreter, Map)}
+	 * @throws CodalogException if the query can't be evaluated
+	 */
 	public abstract Collection<Map<String, String>> query(DatalogInterpreter jatalog, List<Expression> goals, Map<String, String> bindings) throws CodalogException;
 
+	/**
+	 * Answers several queries against the same state of the database.
+	 * <p>
+	 * Engines can override this to share work between the queries; by default each query is evaluated on its own.
+	 * </p>
+	 * @param jatalog The database
+	 * @param queries The goals of each query
+	 * @param bindings The bindings of all the queries; may be null
+	 * @return The answers of each query, in the same order as the queries
+	 * @throws CodalogException if a query can't be evaluated
+	 */
+	public List<Collection<Map<String, String>>> queryAll(DatalogInterpreter jatalog, List<List<Expression>> queries, Map<String, String> bindings) throws CodalogException {
+		List<Collection<Map<String, String>>> answers = new ArrayList<>(queries.size());
+		for(List<Expression> goals : queries) {
+			answers.add(query(jatalog, goals, bindings));
+		}
+		return answers;
+	}
+
+	/**
+	 * Describes the plan of a query: the strata of the rules it depends on, and the order in which the goals of each
+	 * rule and of the query are matched.
+	 * @param jatalog The database
+	 * @param goals The goals of the query
+	 * @param bindings The bindings of the query; may be null
+	 * @param analyze Whether to evaluate the query and annotate the plan with what the evaluation did
+	 * @return The plan, one line per step
+	 * @throws CodalogException if the engine can't explain queries, or the query can't be evaluated
+	 */
+	public String explain(DatalogInterpreter jatalog, List<Expression> goals, Map<String, String> bindings, boolean analyze) throws CodalogException {
+		throw new CodalogException(getClass().getSimpleName() + " can't explain queries");
+	}
+
 	/* Reorganize the goals in a query so that negated literals are at the end.
     A rule such as `a(X) :- not b(X), c(X)` won't work if the `not b(X)` is evaluated first, since X will not
     be bound to anything yet, meaning there are an infinite number of values for X that satisfy `not b(X)`.
     Reorganising the goals will solve the problem: every variable in the negative literals will have a binding
     by the time they are evaluated if the rule is /safe/, which we assume they are - see Rule#validate()
     Also, the built-in predicates (except `=`) should only be evaluated after their variables have been bound
-    for the same reason; see [ceri] for more information. */
+    for the same reason; see [ceri] for more information.
+    They should not be evaluated any later than that, though: a filter like `X > 1000` discards bindings, so
+    each comparison is placed directly after the goal that binds the last of its variables, before the joins
+    that follow it multiply the bindings. This also lets matchGoals() use the comparison to select the facts
+    of that goal through a range index. */
     public static List<Expression> reorderQuery(List<Expression> query) {
         List<Expression> ordered = new ArrayList<>(query.size());
+        List<Expression> pending = new ArrayList<>();
+        for(Expression e : query) {
+            if(isComparison(e) || (e.isArithmetic() && !e.isNegated())) {
+                pending.add(e);
+            }
+        }
+        Set<String> bound = new HashSet<>();
+        placeComparisons(ordered, pending, bound);
         for(Expression e : query) {
-            if(!e.isNegated() && !(e.isBuiltIn() && !e.getPredicate().equals("="))) {
+            if(!e.isNegated() && !isComparison(e) && !e.isArithmetic()) {
                 ordered.add(e);
+                bind(e, bound);
+                placeComparisons(ordered, pending, bound);
             }
         }
         // Note that a rule like s(A, B) :- r(A, B), X = Y, q(Y), A > X. will cause an error relating to both sides
         // of the '=' being unbound, and it can be fixed by moving the '=' operators to here, but I've decided against
         // it, because the '=' should be evaluated ASAP, and it is difficult to determine programatically when that is.
         // The onus is thus on the user to structure '=' operators properly.
+        // Comparisons with variables that are never bound go to the end too, where Rule#validate() reports them.
         for(Expression e : query) {
-            if(e.isNegated() || (e.isBuiltIn() && !e.getPredicate().equals("="))) {
+            if(e.isNegated() && !isComparison(e)) {
+                ordered.add(e);
+            } else if(pending.contains(e)) {
                 ordered.add(e);
+                pending.remove(e);
             }
         }
         return ordered;
     }
 
+    /* Moves the comparisons whose variables are all bound from `pending` to `ordered`, along with
+     * the arithmetic whose operands are bound, which binds more variables in turn */
+    private static void placeComparisons(List<Expression> ordered, List<Expression> pending, Set<String> bound) {
+        boolean placed = true;
+        while(placed) {
+            placed = false;
+            for(Iterator<Expression> i = pending.iterator(); i.hasNext(); ) {
+                Expression e = i.next();
+                if(isBound(e, bound)) {
+                    ordered.add(e);
+                    i.remove();
+                    if(e.isArithmetic()) {
+                        bound.add(e.getTerms().get(0));
+                        placed = true;
+                    }
+                }
+            }
+        }
+    }
+
+    /* Built-in predicates other than `=` and arithmetic, which only compare their operands and can't bind them */
+    private static boolean isComparison(Expression e) {
+        return e.isBuiltIn() && !e.getPredicate().equals("=") && !e.isArithmetic();
+    }
+
+    /* Checks whether the variables that `e` needs are bound: all of them, or the operands of arithmetic */
+    private static boolean isBound(Expression e, Set<String> bound) {
+        List<String> terms = e.isArithmetic() ? e.getTerms().subList(1, 3) : e.getTerms();
+        for(String term : terms) {
+            if(DatalogInterpreter.isVariable(term) && !bound.contains(term))
+                return false;
+        }
+        return true;
+    }
+
+    /* Adds the variables that a positive goal binds to `bound` */
+    private static void bind(Expression e, Set<String> bound) {
+        if(e.isBuiltIn()) {
+            // `X = Y` binds one side if the other side is known
+            String a = e.getTerms().get(0), b = e.getTerms().get(1);
+            boolean knownA = !DatalogInterpreter.isVariable(a) || bound.contains(a);
+            boolean knownB = !DatalogInterpreter.isVariable(b) || bound.contains(b);
+            if(knownA || knownB) {
+                bound.add(a);
+                bound.add(b);
+            }
+            return;
+        }
+        for(String term : e.getTerms()) {
+            if(DatalogInterpreter.isVariable(term))
+                bound.add(term);
+        }
+    }
+
     /* Computes the stratification of the rules in the IDB by doing a depth-first search.
      * It throws a DatalogException if there are negative loops in the rules, in which case the
-     * rules aren't stratified and cannot be computed. */
+     * rules aren't stratified and cannot be computed.
+     * Aggregates are treated like negation: the body of a rule like `deg(X, count<Y>) :- e(X, Y)` must be
+     * complete before the aggregate is computed, so the head goes in a stratum above the body, and a predicate
+     * can't be recursive through an aggregate.
+     * The exception are rules with only min and max aggregates, which may refer to their own head; see Lattice.
+     * The facts of such a predicate only become final at the end of its stratum, so the other predicates
+     * that use it go in a stratum above it. */
     public static List< Collection<Rules> > computeStratification(Collection<Rules> allRules) throws CodalogException {
         ArrayList<Collection<Rules>> strata = new ArrayList<>(10);
 
+        // All the rules of a min/max predicate must agree on where its aggregates are
+        Map<String, Rules> lattices = new HashMap<>();
+        for(Rules rule : allRules) {
+            if(rule.isMonotonicAggregate()) {
+                lattices.putIfAbsent(rule.getHead().getPredicate(), rule);
+            }
+        }
+        for(Rules rule : allRules) {
+            Rules lattice = lattices.get(rule.getHead().getPredicate());
+            if(lattice != null && !sameAggregates(lattice.getHead(), rule.getHead())) {
+                throw new CodalogException("The rules for " + rule.getHead().getPredicate()
+                        + " must all have the same min/max aggregates in their heads: " + rule);
+            }
+        }
+
         Map<String, Integer> strats = new HashMap<>();
         for(Rules rule : allRules) {
             String pred = rule.getHead().getPredicate();
             Integer stratum = strats.get(pred);
             if(stratum == null) {
-                stratum = depthFirstSearch(rule.getHead(), allRules, new ArrayList<>(), 0);
+                stratum = depthFirstSearch(rule.getHead(), false, allRules, new ArrayList<>(), new ArrayList<>(), 0);
                 strats.put(pred, stratum);
             }
 
@@ -70,35 +218,50 @@ public abstract  class Engine {
         return strata;
     }
     
-    /* The recursive depth-first method that computes the stratification of a set of rules */
-    private static int depthFirstSearch(Expression goal, Collection<Rules> graph, List<Expression> visited, int level) throws CodalogException {
+    /* The recursive depth-first method that computes the stratification of a set of rules.
+     * `aggregated` is true if `goal` was reached through the body of an aggregate rule; `through` holds
+     * that flag for each of the goals in `visited`. */
+    private static int depthFirstSearch(Expression goal, boolean aggregated, Collection<Rules> graph, List<Expression> visited, List<Boolean> through, int level) throws CodalogException {
         String pred = goal.getPredicate();
 
-        // Step (1): Guard against negative recursion
+        // Step (1): Guard against negative recursion, and recursion through aggregates
         boolean negated = goal.isNegated();
+        boolean aggregate = aggregated;
         StringBuilder route = new StringBuilder(pred); // for error reporting
         for(int i = visited.size()-1; i >= 0; i--) {
             Expression e = visited.get(i);
-            route.append(e.isNegated() ? " <- ~" : " <- ").append(e.getPredicate());
+            route.append(e.isNegated() ? " <- ~" : (through.get(i) ? " <- #" : " <- ")).append(e.getPredicate());
             if(e.getPredicate().equals(pred)) {
                 if(negated) {
                     throw new CodalogException("Program is not stratified - predicate " + pred + " has a negative recursion: " + route);
                 }
+                if(aggregate) {
+                    throw new CodalogException("Program is not stratified - predicate " + pred + " is recursive through an aggregate: " + route);
+                }
                 return 0;
             }
             if(e.isNegated()) {
                 negated = true;
             }
+            if(through.get(i)) {
+                aggregate = true;
+            }
         }
         visited.add(goal);
+        through.add(aggregated);
 
         // Step (2): Do the actual depth-first search to compute the strata
         int m = 0;
         for(Rules rule : graph) {
             if(rule.getHead().getPredicate().equals(pred)) {
                 for(Expression expr : rule.getBody()) {
-                    int x = depthFirstSearch(expr, graph, visited, level + 1);
-                    if(expr.isNegated())
+                    String bodyPred = expr.getPredicate();
+                    // The body of an aggregate must be complete before it is computed, unless it's a min/max
+                    // aggregate that refers to itself, and so must a min/max predicate before it is used elsewhere
+                    boolean isAggregate = (rule.isAggregate() && !(rule.isMonotonicAggregate() && bodyPred.equals(pred)))
+                            || (!bodyPred.equals(pred) && isLattice(bodyPred, graph));
+                    int x = depthFirstSearch(expr, isAggregate, graph, visited, through, level + 1);
+                    if(expr.isNegated() || isAggregate)
                         x++;
                     if(x > m) {
                         m = x;
@@ -107,14 +270,36 @@ public abstract  class Engine {
             }
         }
         visited.remove(visited.size()-1);
+        through.remove(through.size()-1);
 
         return m;
     }
     
+    /* Checks whether a predicate is defined by min/max rules */
+    private static boolean isLattice(String pred, Collection<Rules> graph) {
+        for(Rules rule : graph) {
+            if(rule.getHead().getPredicate().equals(pred) && rule.isMonotonicAggregate())
+                return true;
+        }
+        return false;
+    }
+
+    /* Checks whether two heads have the same aggregates in the same positions */
+    private static boolean sameAggregates(Expression a, Expression b) {
+        if(a.arity() != b.arity())
+            return false;
+        for(int i = 0; i < a.arity(); i++) {
+            Aggregate x = Aggregate.parse(a.getTerms().get(i)), y = Aggregate.parse(b.getTerms().get(i));
+            if((x == null) != (y == null) || (x != null && x.getFunction() != y.getFunction()))
+                return false;
+        }
+        return true;
+    }
+
     /* Returns a list of rules that are relevant to the query.
     If for example you're querying employment status, you don't care about family relationships, etc.
     The advantages of this of this optimization becomes bigger the more complex the rules get. */
-    protected static Collection<String> getRelevantPredicates(DatalogInterpreter jatalog, List<Expression> originalGoals) {
+    public static Collection<String> getRelevantPredicates(DatalogInterpreter jatalog, List<Expression> originalGoals) {
 	    Collection<String> relevant = new HashSet<>();
 	    LinkedList<Expression> goals = new LinkedList<>(originalGoals);
 	    while(!goals.isEmpty()) {
@@ -175,40 +360,147 @@ public abstract  class Engine {
         return dependantRules;
     }
     
-    /* Match the goals in a rule to the facts in the database (recursively). 
-     * If the goal is a built-in predicate, it is also evaluated here. */
+    /* Match the goals of a rule body or a query to the facts in the database, collecting the answers. */
+    protected static Collection<Map<String, String>> matchBody(List<Expression> goals, IndexedSet<Expression,String> facts, Map<String, String> bindings) {
+        Collection<Map<String, String>> answers = new ArrayList<>();
+        matchBody(goals, facts, bindings, answers::add);
+        return answers;
+    }
+
+    /* Match the goals of a rule body or a query to the facts in the database, passing each answer to `visitor`.
+     * If the positive atoms at the start of the goals form a cyclic query, like the triangle
+     * `e(X,Y), e(Y,Z), e(Z,X)`, joining them one atom at a time can produce intermediate results that
+     * are much larger than the output, so they are joined with a worst-case optimal Leapfrog Triejoin instead,
+     * and the remaining goals are matched against each of its results. Comparisons that reorderQuery() placed
+     * between those atoms are applied after the join. Otherwise this is just matchGoals(). */
+    protected static void matchBody(List<Expression> goals, IndexedSet<Expression,String> facts, Map<String, String> bindings, Consumer<Map<String, String>> visitor) {
+        List<Expression> atoms = cyclicPrefix(goals);
+        if(atoms == null) {
+            matchGoals(goals, facts, bindings, visitor);
+            return;
+        }
+        Collection<Map<String, String>> joined = LeapfrogTriejoin.join(atoms, facts, bindings);
+        List<Expression> rest = new ArrayList<>();
+        for(Expression goal : goals) {
+            if(atoms.stream().noneMatch(atom -> atom == goal)) {
+                rest.add(goal);
+            }
+        }
+        for(Map<String, String> partial : joined) {
+            if(rest.isEmpty()) {
+                visitor.accept(partial);
+            } else {
+                matchGoals(rest, facts, partial, visitor);
+            }
+        }
+    }
+
+    /* The positive atoms at the start of the goals if they form a cyclic query that matchBody() joins with the
+     * Leapfrog Triejoin, otherwise null */
+    static List<Expression> cyclicPrefix(List<Expression> goals) {
+        List<Expression> atoms = new ArrayList<>();
+        for(Expression goal : goals) {
+            if(goal.isNegated() || goal.getPredicate().equals("="))
+                break;
+            if(!goal.isBuiltIn())
+                atoms.add(goal);
+        }
+        return atoms.size() >= 3 && LeapfrogTriejoin.isCyclic(atoms) ? atoms : null;
+    }
+
+    /* Match the goals in a rule to the facts in the database, collecting the answers. */
     protected static Collection<Map<String, String>> matchGoals(List<Expression> goals, IndexedSet<Expression,String> facts, Map<String, String> bindings) {
+        Collection<Map<String, String>> answers = new ArrayList<>();
+        matchGoals(goals, facts, bindings, answers::add);
+        return answers;
+    }
+
+    /* Match the goals in a rule to the facts in the database (recursively). 
+     * If the goal is a built-in predicate, it is also evaluated here.
+     * Each answer is passed to `visitor` as soon as it is found, rather than collected, so that callers
+     * that fold the answers, like the aggregates, only use memory for the result of the fold. */
+    protected static void matchGoals(List<Expression> goals, IndexedSet<Expression,String> facts, Map<String, String> bindings, Consumer<Map<String, String>> visitor) {
 
         Expression goal = goals.get(0); // First goal; Assumes goals won't be empty
 
         boolean lastGoal = (goals.size() == 1);
 
         if(goal.isBuiltIn()) {
-            Map<String, String> newBindings = new StackMap<String, String>(bindings);
+            long[] trace = trace(goal);
+            Map<String, String> newBindings = Bindings.builtIn(bindings);
             boolean eval = goal.evalBuiltIn(newBindings);
+            if(trace != null) {
+                trace[0]++;
+            }
             if(eval && !goal.isNegated() || !eval && goal.isNegated()) {
+                if(trace != null) {
+                    trace[1]++;
+                }
                 if(lastGoal) {
-                    return Collections.singletonList(newBindings);
+                    visitor.accept(newBindings);
                 } else {
-                    return matchGoals(goals.subList(1, goals.size()), facts, newBindings);
+                    matchGoals(goals.subList(1, goals.size()), facts, newBindings, visitor);
                 }
             }
-            return Collections.emptyList();
+            return;
         }
 
-        Collection<Map<String, String>> answers = new ArrayList<>();
         if(!goal.isNegated()) {
             // Positive rule: Match each fact to the first goal.
             // If the fact matches: If it is the last/only goal then we can return the bindings
             // as an answer, otherwise we recursively check the remaining goals.
-            for(Expression fact : facts.getIndexed(goal.getPredicate())) {
-                Map<String, String> newBindings = new StackMap<String, String>(bindings);
+            // The comparisons that follow the goal may restrict one of its columns to a range,
+            // in which case only the facts in that range need to be unified with it
+            Metrics.Counters counters = Metrics.counters();
+            long[] trace = counters != null ? counters.goal(goal) : null;
+            Collection<Expression> candidates = RangeIndex.select(goal, goals, facts, bindings);
+            if(candidates == null && facts instanceof FactScanner) {
+                // The facts can do the matching themselves, without unifying each of them
+                for(Map<String, String> newBindings : ((FactScanner) facts).scan(goal, bindings)) {
+                    if(counters != null) {
+                        counters.candidates++;
+                        counters.attempted++;
+                        counters.unified++;
+                    }
+                    if(trace != null) {
+                        trace[0]++;
+                        trace[1]++;
+                    }
+                    if(lastGoal) {
+                        visitor.accept(newBindings);
+                    } else {
+                        matchGoals(goals.subList(1, goals.size()), facts, newBindings, visitor);
+                    }
+                }
+                return;
+            }
+            if(candidates == null) {
+                candidates = facts.getIndexed(goal.getPredicate());
+            }
+            if(counters != null) {
+                counters.candidates += candidates.size();
+            }
+            if(trace != null) {
+                trace[0] += candidates.size();
+            }
+            for(Expression fact : candidates) {
+                // The bindings keep the fact, so that the built-ins that follow can use the types of its terms
+                Map<String, String> newBindings = new Bindings(bindings, fact, goal);
+                if(counters != null) {
+                    counters.attempted++;
+                }
                 if(fact.unify(goal, newBindings)) {
+                    if(counters != null) {
+                        counters.unified++;
+                    }
+                    if(trace != null) {
+                        trace[1]++;
+                    }
                     if(lastGoal) {
-                        answers.add(newBindings);
+                        visitor.accept(newBindings);
                     } else {
                         // More goals to match. Recurse with the remaining goals.
-                        answers.addAll(matchGoals(goals.subList(1, goals.size()), facts, newBindings));
+                        matchGoals(goals.subList(1, goals.size()), facts, newBindings, visitor);
                     }
                 }
             }
@@ -219,23 +511,41 @@ public abstract  class Engine {
             // If your rule is `und(X) :- stud(X), not grad(X)` and you're at the `not grad` part, and in the
             // previous goal stud(a) was true, then bindings now contains X:a so we want to search the database
             // for the fact grad(a).
+            long[] trace = trace(goal);
+            if(trace != null) {
+                trace[0]++;
+            }
             if(bindings != null) {
                 goal = goal.substitute(bindings);
             }
-            for(Expression fact : facts.getIndexed(goal.getPredicate())) {
-                Map<String, String> newBindings = new StackMap<String, String>(bindings);
-                if(fact.unify(goal, newBindings)) {
-                    return Collections.emptyList();
+            if(facts instanceof FactScanner) {
+                if(((FactScanner) facts).scan(goal, bindings).iterator().hasNext()) {
+                    return;
+                }
+            } else {
+                for(Expression fact : facts.getIndexed(goal.getPredicate())) {
+                    Map<String, String> newBindings = new StackMap<String, String>(bindings);
+                    if(fact.unify(goal, newBindings)) {
+                        return;
+                    }
                 }
             }
             // not found
+            if(trace != null) {
+                trace[1]++;
+            }
             if(lastGoal) {
-                answers.add(bindings);
+                visitor.accept(bindings);
             } else {
-                answers.addAll(matchGoals(goals.subList(1, goals.size()), facts, bindings));
+                matchGoals(goals.subList(1, goals.size()), facts, bindings, visitor);
             }
         }
-        return answers;
+    }
+
+    /* The candidates and the matches of a goal, if the goals are traced for explain analyze */
+    private static long[] trace(Expression goal) {
+        Metrics.Counters counters = Metrics.counters();
+        return counters != null ? counters.goal(goal) : null;
     }
 
 	public void expand(DatalogInterpreter codalog) throws CodalogException {
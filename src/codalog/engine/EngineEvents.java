@@ -0,0 +1,75 @@
+package codalog.engine;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * The JDK Flight Recorder events of the engine, so that a recording shows which strata were being evaluated when
+ * the garbage collector or the CPU got busy.
+ * <p>
+ * The events follow the usual pattern: they are created and begun unconditionally, and their fields are only
+ * filled in and committed if {@link Event#shouldCommit()}. While nothing is recording, that is a check of a flag,
+ * and the JIT removes the allocation of the event.
+ * </p>
+ */
+final class EngineEvents {
+
+	private EngineEvents() {
+	}
+
+	@Name("codalog.Stratum")
+	@Label("Stratum")
+	@Category({"Codalog", "Engine"})
+	@Description("The evaluation of a stratum of rules up to its fixpoint")
+	static final class Stratum extends Event {
+		@Label("Predicates")
+		String predicates;
+
+		@Label("Rules")
+		int rules;
+
+		@Label("Iterations")
+		int iterations;
+
+		@Label("Derived Facts")
+		long derived;
+	}
+
+	@Name("codalog.Iteration")
+	@Label("Fixpoint Iteration")
+	@Category({"Codalog", "Engine"})
+	@Description("One iteration of the fixpoint of a stratum")
+	static final class Iteration extends Event {
+		@Label("Predicates")
+		String predicates;
+
+		@Label("Iteration")
+		int iteration;
+
+		@Label("Rules")
+		@Description("The rules evaluated by the iteration")
+		int rules;
+
+		@Label("Delta")
+		@Description("The new facts derived by the iteration")
+		int delta;
+	}
+
+	@Name("codalog.IndexBuild")
+	@Label("Index Build")
+	@Category({"Codalog", "Engine"})
+	@Description("The construction of an index over the facts of a predicate, such as a trie or a range index")
+	static final class IndexBuild extends Event {
+		@Label("Predicate")
+		String predicate;
+
+		@Label("Index")
+		String index;
+
+		@Label("Facts")
+		int facts;
+	}
+}
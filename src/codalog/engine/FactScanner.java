@@ -0,0 +1,29 @@
+package codalog.engine;
+
+import java.util.Map;
+
+import codalog.Expression;
+
+/**
+ * Interface for sets of facts that can match a goal against their contents directly.
+ * <p>
+ * Normally {@link Engine} retrieves the facts with the goal's predicate from an {@link IndexedSet}
+ * and unifies each of them with the goal. An {@link IndexedSet} that also implements this interface
+ * is asked for the matching bindings instead, which allows it to use its own indexes and to compare
+ * its stored representation of the terms without creating an {@link Expression} for every fact.
+ * </p>
+ */
+public interface FactScanner {
+
+	/**
+	 * Matches a positive, non-built-in goal against the facts in the set.
+	 * <p>
+	 * The result must be equivalent to unifying every fact with the goal's predicate with the goal,
+	 * as in {@code fact.unify(goal, new StackMap<>(bindings))}, and keeping the bindings of the facts that unify.
+	 * </p>
+	 * @param goal The goal to match
+	 * @param bindings The bindings of the variables at this point; may be null
+	 * @return The bindings, extended with the goal's unbound variables, for every fact that matches the goal
+	 */
+	public Iterable<Map<String, String>> scan(Expression goal, Map<String, String> bindings);
+}
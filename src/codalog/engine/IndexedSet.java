@@ -7,6 +7,7 @@ import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
+import java.util.function.Function;
 
 /**
  * Subclass of {@link Set} that can quickly access a subset of its elements through an index.
@@ -19,6 +20,8 @@ public class IndexedSet<E extends Indexable<I>, I> implements Set<E> {
 	private Set<E> contents;	
 
 	private Map<I, Set<E>> index;
+
+	private Map<I, Map<Object, Object>> derived = new HashMap<>();
 	
 	/**
 	 * Default constructor.
@@ -52,8 +55,66 @@ public class IndexedSet<E extends Indexable<I>, I> implements Set<E> {
 	public Collection<I> getIndexes() {
 		return index.keySet();
 	}
+
+	/**
+	 * Retrieves a structure that is derived from the subset of the elements with a specific index,
+	 * such as a sorted copy of them, building it if it doesn't exist yet.
+	 * <p>
+	 * The structures are discarded as soon as an element with that index is added or removed,
+	 * so they are rebuilt only when their subset has changed.
+	 * </p>
+	 * @param key The index of the subset
+	 * @param name Identifies the structure among the ones derived from the same subset
+	 * @param builder Builds the structure from the subset if it isn't available
+	 * @param <T> The type of the structure
+	 * @return The derived structure
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> T getDerived(I key, Object name, Function<Set<E>, T> builder) {
+		Map<Object, Object> structures = derived.get(key);
+		if(structures == null) {
+			structures = new HashMap<>();
+			derived.put(key, structures);
+		}
+		T structure = (T) structures.get(name);
+		if(structure == null) {
+			EngineEvents.IndexBuild event = new EngineEvents.IndexBuild();
+			event.begin();
+			Set<E> subset = getIndexed(key);
+			structure = builder.apply(subset);
+			structures.put(name, structure);
+			if(event.shouldCommit()) {
+				event.predicate = String.valueOf(key);
+				event.index = String.valueOf(name);
+				event.facts = subset.size();
+				event.commit();
+			}
+		}
+		return structure;
+	}
+
+	/**
+	 * Creates an empty set for the facts that an evaluation derives from this one in an iteration, before they are
+	 * added to it. Subclasses with storage of their own can return a set that shares it, for example to share a
+	 * memory budget; the engine clears the set when it is done with it.
+	 * @return A new, empty set; a plain {@link IndexedSet} by default
+	 */
+	public IndexedSet<E, I> newDelta() {
+		return new IndexedSet<>();
+	}
+
+	/**
+	 * Discards the structures derived through {@link #getDerived(Object, Object, Function)} from
+	 * the elements with a specific index.
+	 * Subclasses that manage their own storage must call this when they add or remove elements.
+	 * @param key The index whose subset has changed
+	 */
+	protected void invalidate(I key) {
+		derived.remove(key);
+	}
 	
 	private void reindex() {
+		derived.clear();
 		index = new HashMap<I, Set<E>>();
 		for (E element : contents) {
 			Set<E> elements = index.get(element.index());
@@ -74,6 +135,7 @@ public class IndexedSet<E extends Indexable<I>, I> implements Set<E> {
 				index.put(element.index(), elements);
 			}
 			elements.add(element);
+			invalidate(element.index());
 			return true;
 		}
 		return false;
@@ -93,6 +155,7 @@ public class IndexedSet<E extends Indexable<I>, I> implements Set<E> {
 	public void clear() {
 		contents.clear();
 		index.clear();
+		derived.clear();
 	}
 
 	@Override
@@ -116,21 +179,31 @@ public class IndexedSet<E extends Indexable<I>, I> implements Set<E> {
 	}
 
 	@Override
+	@SuppressWarnings("unchecked")
 	public boolean remove(Object o) {
 		if(contents.remove(o)) {
-			// This makes the remove O(n), but you need it like this if remove()
-			// is to work through an iterator.
-			// It doesn't really matter, since Jatalog doesn't use this method
-			reindex();
+			// Only elements are in contents, so the cast is safe.
+			// The min/max aggregates replace facts as they improve, so this has to be O(1).
+			I key = ((E) o).index();
+			Set<E> elements = index.get(key);
+			if(elements != null) {
+				elements.remove(o);
+				if(elements.isEmpty()) {
+					index.remove(key);
+				}
+			}
+			invalidate(key);
+			return true;
 		}
 		return false;
 	}
 
 	@Override
 	public boolean removeAll(Collection<?> c) {
-		boolean changed = contents.removeAll(c);
-		if (changed) {
-			reindex();
+		boolean changed = false;
+		for(Object o : c) {
+			if(remove(o))
+				changed = true;
 		}
 		return changed;
 	}
@@ -0,0 +1,224 @@
+package codalog.engine;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import codalog.Aggregate;
+import codalog.Expression;
+import codalog.Rules;
+import codalog.Term;
+
+/**
+ * The facts of a predicate that is defined by rules with {@code min} or {@code max} aggregates, which are
+ * allowed to be recursive, as in
+ * <pre>
+ * dist(X, Y, min&lt;D&gt;) :- e(X, Y, D).
+ * dist(X, Y, min&lt;D&gt;) :- dist(X, Z, D1), e(Z, Y, D2), D = D1 + D2.
+ * </pre>
+ * <p>
+ * Each group - the terms at the positions of the head's variables - has at most one fact, holding the best value
+ * found so far for each aggregate. The values form a lattice: a derived fact replaces the fact of its group only if
+ * it improves one of the values, and it is then merged with the old fact, so a group's values only ever move in one
+ * direction. Evaluation stops when no rule improves anything, so the number of facts stays proportional to the number
+ * of groups rather than to the number of paths, which would be infinite on a cyclic graph.
+ * </p><p>
+ * The rules of the predicate are evaluated with the other rules of their stratum; {@link #apply(Map, IndexedSet, IndexedSet)}
+ * turns the facts that they derive into the improvements that the semi-naive evaluation propagates, and in the next
+ * iteration a recursive rule is only matched against those improvements.
+ * </p>
+ */
+class Lattice {
+
+	private final Expression head;
+	private final int[] positions;
+	private final boolean[] minimum;
+	private final Map<List<String>, Expression> best = new HashMap<>();
+
+	// The predicates derived in the same stratum, and the facts improved by the last iteration;
+	// null until the first iteration is done
+	private final Set<String> stratum;
+	private List<Expression> delta;
+
+	private Lattice(Expression head, Set<String> stratum) {
+		this.head = head;
+		this.stratum = stratum;
+		List<Integer> positions = new ArrayList<>();
+		for(int i = 0; i < head.arity(); i++) {
+			if(Aggregate.isAggregate(head.getTerms().get(i)))
+				positions.add(i);
+		}
+		this.positions = new int[positions.size()];
+		this.minimum = new boolean[positions.size()];
+		for(int i = 0; i < this.positions.length; i++) {
+			this.positions[i] = positions.get(i);
+			this.minimum[i] = Aggregate.parse(head.getTerms().get(this.positions[i])).getFunction() == Aggregate.Function.MIN;
+		}
+	}
+
+	/**
+	 * Creates the lattices for the predicates that are defined by {@code min} or {@code max} rules among some rules,
+	 * loaded with the facts that are already in the database.
+	 * <p>
+	 * If the database has several facts for a group, they are merged into a single one.
+	 * </p>
+	 * @param rules The rules of a stratum
+	 * @param facts The database
+	 * @param incremental Whether {@link #matchBody(Rules, IndexedSet, Aggregation)} may match recursive rules
+	 * against only the facts that improved in the previous iteration, for semi-naive evaluation
+	 * @return The lattices, by predicate
+	 */
+	static Map<String, Lattice> of(Collection<Rules> rules, IndexedSet<Expression, String> facts, boolean incremental) {
+		Set<String> stratum = null;
+		if(incremental) {
+			stratum = new HashSet<>();
+			for(Rules rule : rules) {
+				stratum.add(rule.getHead().getPredicate());
+			}
+		}
+		Map<String, Lattice> lattices = new HashMap<>();
+		for(Rules rule : rules) {
+			String predicate = rule.getHead().getPredicate();
+			if(!rule.isMonotonicAggregate() || lattices.containsKey(predicate))
+				continue;
+			Lattice lattice = new Lattice(rule.getHead(), stratum);
+			List<Expression> superseded = new ArrayList<>();
+			for(Expression fact : facts.getIndexed(predicate)) {
+				if(fact.arity() == lattice.head.arity())
+					lattice.update(fact, superseded);
+			}
+			if(!superseded.isEmpty()) {
+				facts.removeAll(superseded);
+				for(Expression fact : lattice.best.values()) {
+					if(!facts.contains(fact))
+						facts.add(fact.intern());
+				}
+			}
+			lattices.put(predicate, lattice);
+		}
+		return lattices;
+	}
+
+	/**
+	 * Filters the facts derived in an iteration of the evaluation of a stratum: the facts of a lattice's predicate
+	 * are kept only if they improve the fact of their group, which is then removed from the database. The other
+	 * facts are kept as they are.
+	 * @param lattices The lattices of the stratum
+	 * @param facts The database
+	 * @param derived The facts that the rules derived
+	 * @return The facts to add to the database, marked as new
+	 */
+	static IndexedSet<Expression, String> apply(Map<String, Lattice> lattices, IndexedSet<Expression, String> facts, IndexedSet<Expression, String> derived) {
+		IndexedSet<Expression, String> result = new IndexedSet<>();
+		List<Expression> superseded = new ArrayList<>();
+		for(Expression fact : derived) {
+			Lattice lattice = lattices.get(fact.getPredicate());
+			if(lattice == null || fact.arity() != lattice.head.arity()) {
+				result.add(fact.asNew());
+				continue;
+			}
+			Expression improved = lattice.update(fact, superseded);
+			if(improved != null) {
+				result.add(improved.asNew().intern());
+			}
+		}
+		// A fact can be improved more than once in the same iteration
+		result.removeAll(superseded);
+		facts.removeAll(superseded);
+		for(Map.Entry<String, Lattice> entry : lattices.entrySet()) {
+			entry.getValue().delta = new ArrayList<>(result.getIndexed(entry.getKey()));
+		}
+		return result;
+	}
+
+	/**
+	 * Matches the body of one of the lattice's rules, passing the answers to the aggregation.
+	 * <p>
+	 * This is where the evaluation becomes semi-naive: after the first iteration, a rule that refers to its own
+	 * head once is only matched against the facts of the head that improved in the previous iteration. The answers
+	 * for the other facts can't improve anything, because they have already been merged. This requires the other
+	 * predicates of the body to be complete, that is derived in a lower stratum; otherwise the whole body is matched.
+	 * A rule without predicates of the stratum in its body is only matched in the first iteration.
+	 * </p>
+	 * @param rule The rule
+	 * @param facts The database
+	 * @param aggregation The aggregation of the rule's head
+	 */
+	void matchBody(Rules rule, IndexedSet<Expression, String> facts, Aggregation aggregation) {
+		List<Expression> body = rule.getBody();
+		if(stratum == null || delta == null) {
+			Engine.matchBody(body, facts, null, aggregation);
+			return;
+		}
+		int recursive = -1;
+		boolean complete = true;
+		for(int i = 0; i < body.size(); i++) {
+			Expression goal = body.get(i);
+			if(goal.getPredicate().equals(head.getPredicate()) && recursive < 0 && !goal.isNegated()) {
+				recursive = i;
+			} else if(stratum.contains(goal.getPredicate())) {
+				complete = false;
+			}
+		}
+		if(recursive < 0 && complete) {
+			// Only facts of lower strata: the rule has nothing new to derive
+			return;
+		}
+		if(recursive < 0 || !complete) {
+			Engine.matchBody(body, facts, null, aggregation);
+			return;
+		}
+		// Start from the improved facts; the rest of the body keeps its order
+		Expression goal = body.get(recursive);
+		List<Expression> rest = new ArrayList<>(body);
+		rest.remove(recursive);
+		for(Expression fact : delta) {
+			Map<String, String> bindings = new StackMap<>();
+			if(fact.unify(goal, bindings)) {
+				if(rest.isEmpty()) {
+					aggregation.accept(bindings);
+				} else {
+					Engine.matchBody(rest, facts, bindings, aggregation);
+				}
+			}
+		}
+	}
+
+	/* Merges a fact into the best fact of its group. Returns the new best fact if it changed, or null;
+	 * the fact that it replaces is added to `superseded` */
+	private Expression update(Expression fact, Collection<Expression> superseded) {
+		List<String> group = Aggregation.groupOf(head, fact);
+		Expression current = best.get(group);
+		Expression merged = current == null ? fact : merge(current, fact);
+		if(merged == current) {
+			return null;
+		}
+		if(current != null) {
+			superseded.add(current);
+		}
+		best.put(group, merged);
+		return merged;
+	}
+
+	/* The fact of the group with the better of the values of `current` and `candidate` for each aggregate;
+	 * `current` itself if `candidate` improves none of them */
+	private Expression merge(Expression current, Expression candidate) {
+		String[] terms = null;
+		for(int i = 0; i < positions.length; i++) {
+			int position = positions[i];
+			int c = Term.compare(candidate.getType(position), current.getType(position));
+			if(minimum[i] ? c < 0 : c > 0) {
+				if(terms == null)
+					terms = current.getTerms().toArray(new String[current.arity()]);
+				terms[position] = candidate.getTerms().get(position);
+			}
+		}
+		if(terms == null)
+			return current;
+		return new Expression(current.getPredicate(), terms);
+	}
+}
@@ -0,0 +1,236 @@
+package codalog.engine;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import codalog.DatalogInterpreter;
+import codalog.Expression;
+
+/**
+ * Worst-case optimal multiway join of a conjunction of positive atoms, after Veldhuizen's Leapfrog Triejoin.
+ * <p>
+ * {@link Engine#matchGoals(List, IndexedSet, Map)} joins the goals of a rule one atom at a time, so the
+ * intermediate results of a cyclic body like {@code tri(X,Y,Z) :- e(X,Y), e(Y,Z), e(Z,X)} can be much larger
+ * than the output. This join binds one <i>variable</i> at a time instead: every atom is stored in a
+ * {@link TrieIndex} whose levels follow a global variable order, and the values for a variable are found by
+ * intersecting the matching trie levels of all the atoms that contain it. The amount of work is bounded by the
+ * AGM bound on the size of the output, rather than by the size of the pairwise joins.
+ * </p><p>
+ * The tries of atoms without constants are cached in the {@link IndexedSet} through
+ * {@link IndexedSet#getDerived(Object, Object, java.util.function.Function)}, so they are only rebuilt
+ * when their relation changes.
+ * </p>
+ */
+class LeapfrogTriejoin {
+
+	private final String[] variables;
+	private final List<List<TrieIndex.Cursor>> participants;
+	private final Map<String, String> bindings;
+	private final Collection<Map<String, String>> answers = new ArrayList<>();
+	private final String[] values;
+	private boolean satisfiable = true;
+
+	private LeapfrogTriejoin(List<Expression> atoms, IndexedSet<Expression, String> facts, Map<String, String> bindings) {
+		this.bindings = bindings;
+		this.variables = variableOrder(atoms);
+		this.values = new String[variables.length];
+		List<String> order = Arrays.asList(variables);
+
+		this.participants = new ArrayList<>(variables.length);
+		for(int i = 0; i < variables.length; i++) {
+			participants.add(new ArrayList<>());
+		}
+		for(Expression atom : atoms) {
+			List<String> terms = atom.getTerms();
+			// The levels of this atom's trie are its distinct variables, in the global order
+			List<String> own = new ArrayList<>();
+			for(String term : terms) {
+				if(DatalogInterpreter.isVariable(term) && !own.contains(term))
+					own.add(term);
+			}
+			own.sort(Comparator.comparingInt(order::indexOf));
+
+			int[] pattern = new int[terms.size()];
+			String[] constants = new String[terms.size()];
+			StringBuilder name = new StringBuilder("trie");
+			boolean cacheable = true;
+			for(int i = 0; i < pattern.length; i++) {
+				String term = terms.get(i);
+				if(DatalogInterpreter.isVariable(term)) {
+					pattern[i] = own.indexOf(term);
+				} else {
+					pattern[i] = -1;
+					constants[i] = term;
+					cacheable = false;
+				}
+				name.append(':').append(pattern[i]);
+			}
+			int depth = own.size();
+			TrieIndex trie;
+			if(cacheable) {
+				trie = facts.getDerived(atom.getPredicate(), name.toString(), subset -> new TrieIndex(subset, pattern, constants, depth));
+			} else {
+				trie = new TrieIndex(facts.getIndexed(atom.getPredicate()), pattern, constants, depth);
+			}
+			if(trie.size() == 0) {
+				// One of the atoms can't be satisfied, so neither can the conjunction
+				satisfiable = false;
+				return;
+			}
+			TrieIndex.Cursor cursor = trie.cursor();
+			for(String variable : own) {
+				participants.get(order.indexOf(variable)).add(cursor);
+			}
+		}
+	}
+
+	/**
+	 * Joins a list of positive atoms.
+	 * @param atoms The atoms to join; they must not be negated nor built-in
+	 * @param facts The facts against which to match the atoms
+	 * @param bindings The bindings of variables at this point; may be null
+	 * @return The bindings, extended with the variables of the atoms, for every solution of the conjunction
+	 */
+	static Collection<Map<String, String>> join(List<Expression> atoms, IndexedSet<Expression, String> facts, Map<String, String> bindings) {
+		if(bindings != null) {
+			List<Expression> substituted = new ArrayList<>(atoms.size());
+			for(Expression atom : atoms) {
+				substituted.add(atom.substitute(bindings));
+			}
+			atoms = substituted;
+		}
+		LeapfrogTriejoin join = new LeapfrogTriejoin(atoms, facts, bindings);
+		if(join.satisfiable) {
+			join.search(0);
+		}
+		return join.answers;
+	}
+
+	/**
+	 * Checks whether the hypergraph formed by the variables of a list of atoms is cyclic, through the GYO reduction:
+	 * variables that occur in only one atom are removed, as are atoms whose variables are a subset of another atom's,
+	 * until nothing changes. The atoms are acyclic if at most one atom remains.
+	 * @param atoms The atoms
+	 * @return true if the atoms form a cyclic query
+	 */
+	static boolean isCyclic(List<Expression> atoms) {
+		List<Set<String>> edges = new ArrayList<>();
+		for(Expression atom : atoms) {
+			Set<String> edge = new HashSet<>();
+			for(String term : atom.getTerms()) {
+				if(DatalogInterpreter.isVariable(term))
+					edge.add(term);
+			}
+			edges.add(edge);
+		}
+		boolean changed = true;
+		while(changed && edges.size() > 1) {
+			changed = false;
+			for(Set<String> edge : edges) {
+				for(String variable : new ArrayList<>(edge)) {
+					int occurrences = 0;
+					for(Set<String> other : edges) {
+						if(other.contains(variable))
+							occurrences++;
+					}
+					if(occurrences == 1) {
+						edge.remove(variable);
+						changed = true;
+					}
+				}
+			}
+			for(int i = 0; i < edges.size(); i++) {
+				for(int j = 0; j < edges.size(); j++) {
+					if(i != j && edges.get(j).containsAll(edges.get(i))) {
+						edges.remove(i);
+						changed = true;
+						i--;
+						break;
+					}
+				}
+			}
+		}
+		return edges.size() > 1;
+	}
+
+	/* Orders the variables so that the ones that occur in the most atoms are bound first, which
+	 * makes the intersections at the top of the tries as selective as possible */
+	private static String[] variableOrder(List<Expression> atoms) {
+		List<String> order = new ArrayList<>();
+		for(Expression atom : atoms) {
+			for(String term : atom.getTerms()) {
+				if(DatalogInterpreter.isVariable(term) && !order.contains(term))
+					order.add(term);
+			}
+		}
+		List<String> firstSeen = new ArrayList<>(order);
+		order.sort((a, b) -> {
+			int c = Integer.compare(occurrences(atoms, b), occurrences(atoms, a));
+			return c != 0 ? c : Integer.compare(firstSeen.indexOf(a), firstSeen.indexOf(b));
+		});
+		return order.toArray(new String[order.size()]);
+	}
+
+	private static int occurrences(List<Expression> atoms, String variable) {
+		int n = 0;
+		for(Expression atom : atoms) {
+			if(atom.getTerms().contains(variable))
+				n++;
+		}
+		return n;
+	}
+
+	/* Binds the variable at `depth` to every value in the intersection of its participants' trie levels */
+	private void search(int depth) {
+		if(depth == variables.length) {
+			Map<String, String> answer = new StackMap<String, String>(bindings);
+			for(int i = 0; i < variables.length; i++) {
+				answer.put(variables[i], values[i]);
+			}
+			answers.add(answer);
+			return;
+		}
+		List<TrieIndex.Cursor> cursors = participants.get(depth);
+		for(TrieIndex.Cursor cursor : cursors) {
+			cursor.open();
+		}
+		leapfrog(cursors, depth);
+		for(TrieIndex.Cursor cursor : cursors) {
+			cursor.up();
+		}
+	}
+
+	private void leapfrog(List<TrieIndex.Cursor> cursors, int depth) {
+		int k = cursors.size();
+		for(TrieIndex.Cursor cursor : cursors) {
+			if(cursor.atEnd())
+				return;
+		}
+		TrieIndex.Cursor[] ring = cursors.toArray(new TrieIndex.Cursor[k]);
+		Arrays.sort(ring, (a, b) -> a.key().compareTo(b.key()));
+		int p = 0;
+		String max = ring[k - 1].key();
+		while(true) {
+			TrieIndex.Cursor cursor = ring[p];
+			String key = cursor.key();
+			if(key.equals(max)) {
+				// All the cursors agree on the key
+				values[depth] = key;
+				search(depth + 1);
+				cursor.next();
+			} else {
+				cursor.seek(max);
+			}
+			if(cursor.atEnd())
+				return;
+			max = cursor.key();
+			p = (p + 1) % k;
+		}
+	}
+}
@@ -0,0 +1,253 @@
+package codalog.engine;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import codalog.Expression;
+
+/**
+ * An estimate of the memory held by the facts of an EDB, per predicate: the facts themselves, the indexes that
+ * find them, and the dictionary of their terms, along with the memory that the last evaluation of the engine
+ * allocated and left to the garbage collector.
+ * <p>
+ * The estimate of an {@link IndexedSet} of {@link Expression}s, see {@link #estimate(IndexedSet)}, assumes a 64-bit
+ * JVM with compressed references and compact strings. The facts are the {@code Expression}s, their arrays of
+ * terms and the typed values of their numeric terms; the indexes are the entries of the set of all facts and of the set of each predicate; the dictionary is the
+ * distinct term strings, counted once however many facts share them, and the table of
+ * {@link Expression#intern() interned} facts, which is shared by all the interpreters of the JVM. The structures that
+ * the engine derives from the facts of a predicate, like the sorted copies of its range index, aren't counted,
+ * because they are rebuilt on demand. EDBs with storage of their own, like {@link codalog.storage.ColumnarEDB},
+ * account for it themselves through {@link codalog.interfaces.EDBInterface#footprint()}.
+ * </p><p>
+ * The transient allocation is read from the allocation counter of the thread that ran the evaluation, so it
+ * includes every {@link StackMap} of bindings and every copy of an {@code Expression} that the engine made, whether
+ * or not they were kept.
+ * </p>
+ */
+public final class MemoryFootprint {
+
+	// The sizes of the objects, with 12-byte headers and 4-byte references
+	private static final int EXPRESSION_BYTES = 40;
+	private static final int TERM_BYTES = 40;
+	private static final int TERM_LIST_BYTES = 24 + 16;
+	private static final int STRING_BYTES = 24;
+	private static final int ARRAY_BYTES = 16;
+	private static final int HASH_NODE_BYTES = 32;
+	private static final int HASH_SET_BYTES = 16 + 48;
+	private static final int WEAK_ENTRY_BYTES = 40 + 32;
+
+	/**
+	 * The memory held by the facts of one predicate.
+	 */
+	public static final class Relation {
+		private final String predicate;
+		private final int facts;
+		private final long factBytes;
+		private final long indexBytes;
+
+		public Relation(String predicate, int facts, long factBytes, long indexBytes) {
+			this.predicate = predicate;
+			this.facts = facts;
+			this.factBytes = factBytes;
+			this.indexBytes = indexBytes;
+		}
+
+		/** @return The predicate */
+		public String getPredicate() {
+			return predicate;
+		}
+
+		/** @return The number of facts of the predicate */
+		public int getFacts() {
+			return facts;
+		}
+
+		/** @return The bytes of the facts, without their terms */
+		public long getFactBytes() {
+			return factBytes;
+		}
+
+		/** @return The bytes of the indexes of the facts */
+		public long getIndexBytes() {
+			return indexBytes;
+		}
+
+		/** @return The bytes of the facts and of their indexes */
+		public long getBytes() {
+			return factBytes + indexBytes;
+		}
+	}
+
+	private final List<Relation> relations;
+	private final int terms;
+	private final long dictionaryBytes;
+	private final long lastAllocatedBytes;
+
+	/**
+	 * Creates a footprint.
+	 * @param relations The memory held by each predicate
+	 * @param terms The number of distinct terms
+	 * @param dictionaryBytes The bytes of the dictionary of the terms
+	 */
+	public MemoryFootprint(List<Relation> relations, int terms, long dictionaryBytes) {
+		this(relations, terms, dictionaryBytes, -1);
+	}
+
+	private MemoryFootprint(List<Relation> relations, int terms, long dictionaryBytes, long lastAllocatedBytes) {
+		List<Relation> sorted = new ArrayList<>(relations);
+		sorted.sort((a, b) -> Long.compare(b.getBytes(), a.getBytes()));
+		this.relations = Collections.unmodifiableList(sorted);
+		this.terms = terms;
+		this.dictionaryBytes = dictionaryBytes;
+		this.lastAllocatedBytes = lastAllocatedBytes;
+	}
+
+	/**
+	 * Estimates the memory held by the facts of an {@link IndexedSet} that keeps them as {@code Expression}s.
+	 * This walks all the facts, so it takes about as long as a scan of the EDB.
+	 * @param facts The facts
+	 * @return The estimate
+	 */
+	public static MemoryFootprint estimate(IndexedSet<Expression, String> facts) {
+		Map<String, Boolean> strings = new IdentityHashMap<>();
+		List<Relation> relations = new ArrayList<>();
+		int total = facts.size();
+		long contentsTable = hashTableBytes(total);
+		for(String predicate : new ArrayList<>(facts.getIndexes())) {
+			Set<Expression> subset = facts.getIndexed(predicate);
+			int size = subset.size();
+			long factBytes = 0;
+			for(Expression fact : subset) {
+				factBytes += EXPRESSION_BYTES + TERM_LIST_BYTES + align(ARRAY_BYTES + 4L * fact.arity());
+				int numbers = 0;
+				for(int i = 0; i < fact.arity(); i++) {
+					if(fact.getType(i).isNumeric())
+						numbers++;
+				}
+				if(numbers > 0)
+					factBytes += align(ARRAY_BYTES + 4L * fact.arity()) + (long) numbers * TERM_BYTES;
+				strings.put(fact.getPredicate(), Boolean.TRUE);
+				for(String term : fact.getTerms()) {
+					strings.put(term, Boolean.TRUE);
+				}
+			}
+			// An entry in the set of all facts, with its share of the table, and one in the set of the predicate
+			long indexBytes = (long) size * HASH_NODE_BYTES + (total == 0 ? 0 : contentsTable * size / total)
+					+ HASH_SET_BYTES + (long) size * HASH_NODE_BYTES + hashTableBytes(size) + HASH_NODE_BYTES;
+			relations.add(new Relation(predicate, size, factBytes, indexBytes));
+		}
+		long dictionaryBytes = 0;
+		for(String string : strings.keySet()) {
+			dictionaryBytes += stringBytes(string);
+		}
+		int interned = Expression.getInternedCount();
+		dictionaryBytes += (long) interned * WEAK_ENTRY_BYTES + hashTableBytes(interned);
+		return new MemoryFootprint(relations, strings.size(), dictionaryBytes);
+	}
+
+	/**
+	 * Estimates the size of a string on the heap, with its array of Latin-1 bytes.
+	 * @param string The string
+	 * @return The bytes
+	 */
+	public static long stringBytes(String string) {
+		return STRING_BYTES + align(ARRAY_BYTES + string.length());
+	}
+
+	/**
+	 * Estimates the size of the table of a {@code HashMap} or {@code HashSet} that grew to a number of entries,
+	 * without the entries.
+	 * @param entries The number of entries
+	 * @return The bytes
+	 */
+	public static long hashTableBytes(int entries) {
+		long capacity = 16;
+		while(capacity * 3 / 4 < entries) {
+			capacity *= 2;
+		}
+		return align(ARRAY_BYTES + 4 * capacity);
+	}
+
+	/**
+	 * Estimates the size of a {@code HashMap} or {@code HashSet} with a number of entries, without their keys and values.
+	 * @param entries The number of entries
+	 * @return The bytes
+	 */
+	public static long hashMapBytes(int entries) {
+		return HASH_SET_BYTES + (long) entries * HASH_NODE_BYTES + hashTableBytes(entries);
+	}
+
+	private static long align(long bytes) {
+		return (bytes + 7) & ~7L;
+	}
+
+	/**
+	 * Adds the transient allocation of the last evaluation to this footprint.
+	 * @param bytes The bytes allocated by the last evaluation, see {@link Metrics#getLastAllocatedBytes()}
+	 * @return A copy of this footprint with the allocation
+	 */
+	public MemoryFootprint withLastAllocatedBytes(long bytes) {
+		return new MemoryFootprint(relations, terms, dictionaryBytes, bytes);
+	}
+
+	/** @return The memory held by each predicate, the largest first */
+	public List<Relation> getRelations() {
+		return relations;
+	}
+
+	/** @return The number of facts of all the predicates */
+	public long getFacts() {
+		long facts = 0;
+		for(Relation relation : relations) {
+			facts += relation.getFacts();
+		}
+		return facts;
+	}
+
+	/** @return The number of distinct terms */
+	public int getTerms() {
+		return terms;
+	}
+
+	/** @return The bytes of the dictionary of the terms */
+	public long getDictionaryBytes() {
+		return dictionaryBytes;
+	}
+
+	/** @return The bytes of the facts, their indexes and the dictionary */
+	public long getTotalBytes() {
+		long bytes = dictionaryBytes;
+		for(Relation relation : relations) {
+			bytes += relation.getBytes();
+		}
+		return bytes;
+	}
+
+	/** @return The bytes allocated by the last evaluation, or -1 if there was none or the JVM doesn't count them */
+	public long getLastAllocatedBytes() {
+		return lastAllocatedBytes;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format("%-24s %10s %12s %12s %12s%n", "Predicate", "Facts", "Facts KB", "Indexes KB", "Total KB"));
+		for(Relation relation : relations) {
+			sb.append(String.format("%-24s %10d %12.1f %12.1f %12.1f%n", relation.getPredicate(), relation.getFacts(),
+					relation.getFactBytes() / 1024.0, relation.getIndexBytes() / 1024.0, relation.getBytes() / 1024.0));
+		}
+		sb.append(String.format("dictionary: %d terms, %.1f KB%n", terms, dictionaryBytes / 1024.0));
+		sb.append(String.format("total: %d facts, %.1f KB%n", getFacts(), getTotalBytes() / 1024.0));
+		Runtime runtime = Runtime.getRuntime();
+		sb.append(String.format("heap: %.1f MB used of %.1f MB, at most %.1f MB%n",
+				(runtime.totalMemory() - runtime.freeMemory()) / 1048576.0, runtime.totalMemory() / 1048576.0,
+				runtime.maxMemory() / 1048576.0));
+		if(lastAllocatedBytes >= 0)
+			sb.append(String.format("last evaluation allocated %.1f KB%n", lastAllocatedBytes / 1024.0));
+		return sb.toString();
+	}
+}
@@ -0,0 +1,454 @@
+package codalog.engine;
+
+import java.beans.ConstructorProperties;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import codalog.Expression;
+import codalog.Rules;
+
+/**
+ * Counters of the work done by {@link BasicEngine}, per rule and per stratum.
+ * <p>
+ * For each rule: the number of times it was evaluated, the facts that were considered as candidates for its goals,
+ * the unifications attempted and the ones that succeeded, the new facts it derived and the time spent evaluating it.
+ * For each stratum, identified by the predicates it derives: the number of times it was evaluated, the iterations
+ * of the fixpoint, the facts derived by all iterations and by the largest one, and the time spent.
+ * </p><p>
+ * The metrics are disabled by default. While they are, the engine only checks a flag per rule and per call of its
+ * inner matching loop, so the cost is negligible. When they are enabled, the counts of a rule are accumulated in
+ * thread-local counters while the rule is evaluated and added to the totals when it is done, so that concurrent
+ * queries don't contend on them. The sets that match goals themselves, through {@link FactScanner}, only report
+ * the facts that match, so for them the candidates and attempted unifications are the successful ones. The rules that
+ * are evaluated by the transitive closure operator are only accounted for in their stratum.
+ * </p><p>
+ * The metrics can be read through {@link #getRules()} and {@link #getStrata()}, or through JMX after
+ * {@link #registerMBean(String)}.
+ * </p><p>
+ * For {@code explain analyze}, the engine can also count the candidates and the matches of every goal, see
+ * {@link #traceGoals()}.
+ * </p>
+ */
+public class Metrics implements MetricsMXBean {
+
+	// The number of enabled instances, so that the matching loop only looks for counters if there can be any
+	private static final AtomicInteger enabledCount = new AtomicInteger();
+	private static volatile boolean counting;
+
+	private static final ThreadLocal<Counters> counters = ThreadLocal.withInitial(Counters::new);
+
+	private volatile boolean enabled;
+	private final LongAdder evaluations = new LongAdder();
+	private final Map<Rules, RuleTotals> rules = new ConcurrentHashMap<>();
+	private final Map<String, StratumTotals> strata = new ConcurrentHashMap<>();
+	private ObjectName objectName;
+
+	// The candidates and the matches of each goal, by identity, if they are traced; see traceGoals()
+	private Map<Expression, long[]> goals;
+	private List<Expression> queryGoals;
+	private long queryNanos;
+
+	// Recorded whether or not the metrics are enabled, since reading the allocation counter is cheap
+	private volatile long lastAllocatedBytes = -1;
+
+	@Override
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	@Override
+	public synchronized void setEnabled(boolean enabled) {
+		if(this.enabled == enabled)
+			return;
+		this.enabled = enabled;
+		counting = (enabled ? enabledCount.incrementAndGet() : enabledCount.decrementAndGet()) > 0;
+	}
+
+	@Override
+	public long getEvaluations() {
+		return evaluations.sum();
+	}
+
+	@Override
+	public List<RuleMetrics> getRules() {
+		List<RuleMetrics> result = new ArrayList<>(rules.size());
+		for(Map.Entry<Rules, RuleTotals> entry : rules.entrySet()) {
+			result.add(entry.getValue().snapshot(entry.getKey().toString()));
+		}
+		return result;
+	}
+
+	@Override
+	public List<StratumMetrics> getStrata() {
+		List<StratumMetrics> result = new ArrayList<>(strata.size());
+		for(Map.Entry<String, StratumTotals> entry : strata.entrySet()) {
+			result.add(entry.getValue().snapshot(entry.getKey()));
+		}
+		return result;
+	}
+
+	@Override
+	public long getLastAllocatedBytes() {
+		return lastAllocatedBytes;
+	}
+
+	@Override
+	public void reset() {
+		evaluations.reset();
+		rules.clear();
+		strata.clear();
+	}
+
+	/**
+	 * Registers the metrics with the platform MBean server, under the name {@code codalog:type=Metrics,name=<name>}.
+	 * @param name Distinguishes the interpreter
+	 * @return The name of the MBean
+	 * @throws JMException if the MBean can't be registered, for example because the name is in use
+	 */
+	public synchronized ObjectName registerMBean(String name) throws JMException {
+		unregisterMBean();
+		ObjectName objectName = ObjectName.getInstance("codalog:type=Metrics,name=" + ObjectName.quote(name));
+		ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+		this.objectName = objectName;
+		return objectName;
+	}
+
+	/**
+	 * Unregisters the metrics from the platform MBean server, if they were registered.
+	 * @throws JMException if the MBean can't be unregistered
+	 */
+	public synchronized void unregisterMBean() throws JMException {
+		if(objectName == null)
+			return;
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		if(server.isRegistered(objectName))
+			server.unregisterMBean(objectName);
+		objectName = null;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(getEvaluations()).append(" evaluations\n");
+		for(StratumMetrics stratum : getStrata()) {
+			sb.append(String.format("stratum %s: %d evaluations, %d iterations, %d facts (largest delta %d), %.3f ms%n",
+					stratum.getPredicates(), stratum.getEvaluations(), stratum.getIterations(), stratum.getDerived(),
+					stratum.getLargestDelta(), stratum.getTimeNanos() / 1e6));
+		}
+		for(RuleMetrics rule : getRules()) {
+			sb.append(String.format("%s: %d firings, %d candidates, %d/%d unified, %d facts, %.3f ms%n",
+					rule.getRule(), rule.getFirings(), rule.getCandidates(), rule.getUnified(), rule.getAttempted(),
+					rule.getDerived(), rule.getTimeNanos() / 1e6));
+		}
+		return sb.toString();
+	}
+
+	/* Counts the candidates and the matches of each goal from now on, as well as the time spent matching the goals
+	 * of the queries. The counts are kept in a single map, so the engine must only be used by one thread while they
+	 * are traced; explain analyze uses an engine of its own for this. */
+	void traceGoals() {
+		goals = new IdentityHashMap<>();
+	}
+
+	/* The candidates and the matches of a goal, or null if it was never matched */
+	long[] getGoal(Expression goal) {
+		return goals != null ? goals.get(goal) : null;
+	}
+
+	/* The goals of the last query, in the order they were matched */
+	List<Expression> getQueryGoals() {
+		return queryGoals;
+	}
+
+	/* The time spent matching the goals of the queries against the expanded database */
+	long getQueryNanos() {
+		return queryNanos;
+	}
+
+	/* The metrics of a rule, or null if it wasn't evaluated */
+	RuleMetrics getRule(Rules rule) {
+		RuleTotals totals = rules.get(rule);
+		return totals != null ? totals.snapshot(rule.toString()) : null;
+	}
+
+	/* The metrics of the stratum that derives the heads of some rules, or null if it wasn't evaluated */
+	StratumMetrics getStratum(Collection<Rules> rules) {
+		String key = stratumKey(rules);
+		StratumTotals totals = strata.get(key);
+		return totals != null ? totals.snapshot(key) : null;
+	}
+
+	/* The predicates of a stratum, which identify it */
+	static String stratumKey(Collection<Rules> rules) {
+		TreeSet<String> predicates = new TreeSet<>();
+		for(Rules rule : rules) {
+			predicates.add(rule.getHead().getPredicate());
+		}
+		return String.join(", ", predicates);
+	}
+
+	/* Called by the engine at the start of an evaluation of the database */
+	void evaluation() {
+		if(enabled)
+			evaluations.increment();
+	}
+
+	/* The bytes allocated by the current thread so far, or -1 if the JVM doesn't count them; the engine passes this
+	 * to endAllocation() when the evaluation is done */
+	static long startAllocation() {
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if(!(threads instanceof com.sun.management.ThreadMXBean))
+			return -1;
+		com.sun.management.ThreadMXBean counting = (com.sun.management.ThreadMXBean) threads;
+		if(!counting.isThreadAllocatedMemorySupported() || !counting.isThreadAllocatedMemoryEnabled())
+			return -1;
+		return counting.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	/* Called by the engine at the end of an evaluation that startAllocation() returned `start` for */
+	void endAllocation(long start) {
+		if(start >= 0)
+			lastAllocatedBytes = startAllocation() - start;
+	}
+
+	/* Called by the engine before it evaluates a rule; returns the start time, or 0 if the metrics are disabled */
+	long startRule() {
+		if(!enabled)
+			return 0;
+		counters.get().reset(true, goals);
+		return System.nanoTime();
+	}
+
+	/* Called by the engine after it evaluated a rule that startRule() returned `start` for */
+	void endRule(Rules rule, long start, int derived) {
+		if(start == 0)
+			return;
+		long nanos = System.nanoTime() - start;
+		Counters current = counters.get();
+		RuleTotals totals = rules.computeIfAbsent(rule, r -> new RuleTotals());
+		totals.firings.increment();
+		totals.candidates.add(current.candidates);
+		totals.attempted.add(current.attempted);
+		totals.unified.add(current.unified);
+		totals.derived.add(derived);
+		totals.nanos.add(nanos);
+		current.reset(false, null);
+	}
+
+	/* Called by the engine before it matches the goals of a query; returns the start time, or 0 if the goals
+	 * aren't traced */
+	long startQuery(List<Expression> goals) {
+		if(!enabled || this.goals == null)
+			return 0;
+		queryGoals = goals;
+		counters.get().reset(true, this.goals);
+		return System.nanoTime();
+	}
+
+	/* Called by the engine after it matched the goals of a query that startQuery() returned `start` for */
+	void endQuery(long start) {
+		if(start == 0)
+			return;
+		queryNanos += System.nanoTime() - start;
+		counters.get().reset(false, null);
+	}
+
+	/* Called by the engine before it evaluates a stratum; null if the metrics are disabled */
+	StratumTotals startStratum(Collection<Rules> rules) {
+		if(!enabled)
+			return null;
+		StratumTotals totals = strata.computeIfAbsent(stratumKey(rules), p -> new StratumTotals());
+		totals.evaluations.increment();
+		return totals;
+	}
+
+	/* The counters of the rule that the current thread is evaluating, or null if nothing is being counted */
+	static Counters counters() {
+		if(!counting)
+			return null;
+		Counters current = counters.get();
+		return current.active ? current : null;
+	}
+
+	/* The work done by the matching loop for one rule, on one thread */
+	static final class Counters {
+		boolean active;
+		long candidates;
+		long attempted;
+		long unified;
+		Map<Expression, long[]> goals;
+
+		void reset(boolean active, Map<Expression, long[]> goals) {
+			this.active = active;
+			this.goals = goals;
+			candidates = 0;
+			attempted = 0;
+			unified = 0;
+		}
+
+		/* The candidates and the matches of a goal if the goals are traced, otherwise null */
+		long[] goal(Expression goal) {
+			return goals != null ? goals.computeIfAbsent(goal, g -> new long[2]) : null;
+		}
+	}
+
+	private static final class RuleTotals {
+		final LongAdder firings = new LongAdder();
+		final LongAdder candidates = new LongAdder();
+		final LongAdder attempted = new LongAdder();
+		final LongAdder unified = new LongAdder();
+		final LongAdder derived = new LongAdder();
+		final LongAdder nanos = new LongAdder();
+
+		RuleMetrics snapshot(String rule) {
+			return new RuleMetrics(rule, firings.sum(), candidates.sum(), attempted.sum(), unified.sum(), derived.sum(), nanos.sum());
+		}
+	}
+
+	static final class StratumTotals {
+		final LongAdder evaluations = new LongAdder();
+		final LongAdder iterations = new LongAdder();
+		final LongAdder derived = new LongAdder();
+		final LongAccumulator largestDelta = new LongAccumulator(Math::max, 0);
+		final LongAdder nanos = new LongAdder();
+
+		void iteration(int delta) {
+			iterations.increment();
+			derived.add(delta);
+			largestDelta.accumulate(delta);
+		}
+
+		void end(long start) {
+			nanos.add(System.nanoTime() - start);
+		}
+
+		StratumMetrics snapshot(String predicates) {
+			return new StratumMetrics(predicates, evaluations.sum(), iterations.sum(), derived.sum(), largestDelta.get(), nanos.sum());
+		}
+	}
+
+	/**
+	 * The metrics of a rule at some point.
+	 */
+	public static final class RuleMetrics {
+		private final String rule;
+		private final long firings;
+		private final long candidates;
+		private final long attempted;
+		private final long unified;
+		private final long derived;
+		private final long timeNanos;
+
+		@ConstructorProperties({"rule", "firings", "candidates", "attempted", "unified", "derived", "timeNanos"})
+		public RuleMetrics(String rule, long firings, long candidates, long attempted, long unified, long derived, long timeNanos) {
+			this.rule = rule;
+			this.firings = firings;
+			this.candidates = candidates;
+			this.attempted = attempted;
+			this.unified = unified;
+			this.derived = derived;
+			this.timeNanos = timeNanos;
+		}
+
+		/** @return The rule, as Datalog source */
+		public String getRule() {
+			return rule;
+		}
+
+		/** @return The number of times the rule was evaluated */
+		public long getFirings() {
+			return firings;
+		}
+
+		/** @return The number of facts that were considered for the goals of the rule */
+		public long getCandidates() {
+			return candidates;
+		}
+
+		/** @return The number of facts that were unified with the goals of the rule */
+		public long getAttempted() {
+			return attempted;
+		}
+
+		/** @return The number of unifications that succeeded */
+		public long getUnified() {
+			return unified;
+		}
+
+		/** @return The number of new facts the rule derived */
+		public long getDerived() {
+			return derived;
+		}
+
+		/** @return The time spent evaluating the rule, in nanoseconds */
+		public long getTimeNanos() {
+			return timeNanos;
+		}
+	}
+
+	/**
+	 * The metrics of a stratum at some point.
+	 */
+	public static final class StratumMetrics {
+		private final String predicates;
+		private final long evaluations;
+		private final long iterations;
+		private final long derived;
+		private final long largestDelta;
+		private final long timeNanos;
+
+		@ConstructorProperties({"predicates", "evaluations", "iterations", "derived", "largestDelta", "timeNanos"})
+		public StratumMetrics(String predicates, long evaluations, long iterations, long derived, long largestDelta, long timeNanos) {
+			this.predicates = predicates;
+			this.evaluations = evaluations;
+			this.iterations = iterations;
+			this.derived = derived;
+			this.largestDelta = largestDelta;
+			this.timeNanos = timeNanos;
+		}
+
+		/** @return The predicates derived by the stratum, separated by commas */
+		public String getPredicates() {
+			return predicates;
+		}
+
+		/** @return The number of times the stratum was evaluated */
+		public long getEvaluations() {
+			return evaluations;
+		}
+
+		/** @return The number of iterations of the fixpoint, over all the evaluations */
+		public long getIterations() {
+			return iterations;
+		}
+
+		/** @return The number of facts derived by the iterations */
+		public long getDerived() {
+			return derived;
+		}
+
+		/** @return The number of facts derived by the most productive iteration */
+		public long getLargestDelta() {
+			return largestDelta;
+		}
+
+		/** @return The time spent evaluating the stratum, in nanoseconds */
+		public long getTimeNanos() {
+			return timeNanos;
+		}
+	}
+}
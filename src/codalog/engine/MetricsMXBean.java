@@ -0,0 +1,43 @@
+package codalog.engine;
+
+import java.util.List;
+
+/**
+ * The JMX view of {@link Metrics}; see {@link Metrics#registerMBean(String)}.
+ */
+public interface MetricsMXBean {
+
+	public boolean isEnabled();
+
+	public void setEnabled(boolean enabled);
+
+	/**
+	 * The number of times the database was expanded, for a query, a batch of queries or {@code expand()}.
+	 * @return The number of evaluations
+	 */
+	public long getEvaluations();
+
+	/**
+	 * The metrics of every rule that was evaluated while the metrics were enabled.
+	 * @return The metrics, by rule
+	 */
+	public List<Metrics.RuleMetrics> getRules();
+
+	/**
+	 * The metrics of every stratum that was evaluated while the metrics were enabled.
+	 * @return The metrics, by stratum
+	 */
+	public List<Metrics.StratumMetrics> getStrata();
+
+	/**
+	 * The bytes that the last evaluation allocated on the heap, including the bindings and the copies of facts that
+	 * it discarded. This is recorded even while the metrics are disabled, and {@link #reset()} doesn't clear it.
+	 * @return The bytes, or -1 if nothing was evaluated yet or the JVM doesn't count allocations
+	 */
+	public long getLastAllocatedBytes();
+
+	/**
+	 * Discards all the metrics collected so far.
+	 */
+	public void reset();
+}
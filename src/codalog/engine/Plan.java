@@ -0,0 +1,234 @@
+package codalog.engine;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import codalog.Aggregate;
+import codalog.CodalogException;
+import codalog.DatalogInterpreter;
+import codalog.Expression;
+import codalog.Rules;
+import codalog.output.OutputUtils;
+
+/**
+ * The evaluation plan of a query, as {@link BasicEngine} would evaluate it, in a readable form.
+ * <p>
+ * The plan lists the predicates that the query depends on, then each stratum of their rules in the order the strata
+ * are evaluated, with the predicates recognized as transitive closures and, for every rule, the goals of its body in
+ * the order that they are matched and how they are matched. It ends with the goals of the query itself.
+ * </p><p>
+ * With the {@link Metrics} of an engine that evaluated the query while tracing its goals, every part of the plan is
+ * annotated with what actually happened: the iterations of each stratum with the facts they derived and their time,
+ * the firings of each rule with its facts and time, and the candidates that each goal was unified with and the
+ * matches among them. A goal without counts was never reached, or was joined by the Leapfrog Triejoin or the
+ * transitive closure operator, which don't match goals one at a time. The counts of a rule include its evaluation in
+ * the last stratum, which evaluates all the rules again to make sure nothing more can be derived.
+ * </p>
+ */
+final class Plan {
+
+	private final StringBuilder text = new StringBuilder();
+	private final Metrics analyzed;
+
+	private Plan(Metrics analyzed) {
+		this.analyzed = analyzed;
+	}
+
+	/**
+	 * Describes the plan of a query.
+	 * @param codalog The database
+	 * @param goals The goals of the query
+	 * @param bindings The bindings of the query; may be null
+	 * @param analyzed The metrics of an engine that evaluated the query with traced goals, or null to describe
+	 * the plan only
+	 * @param answers The number of answers of the query, if it was evaluated
+	 * @param nanos The time the evaluation of the query took, if it was evaluated
+	 * @return The plan, one line per step
+	 * @throws CodalogException if the rules aren't stratified
+	 */
+	static String describe(DatalogInterpreter codalog, List<Expression> goals, Map<String, String> bindings,
+			Metrics analyzed, int answers, long nanos) throws CodalogException {
+		Plan plan = new Plan(analyzed);
+		plan.line(0, "query " + join(goals) + "?"
+				+ (bindings != null && !bindings.isEmpty() ? " with " + OutputUtils.bindingsToString(bindings) : ""));
+
+		Set<String> predicates = new TreeSet<>(Engine.getRelevantPredicates(codalog, goals));
+		Collection<Rules> rules = new ArrayList<>();
+		for(Rules rule : codalog.getIdb()) {
+			if(predicates.contains(rule.getHead().getPredicate()))
+				rules.add(rule);
+		}
+		// The built-ins are relevant too, as far as the engine is concerned, but they have no facts
+		predicates.removeIf(predicate -> !Character.isLetterOrDigit(predicate.charAt(0)));
+		plan.line(0, "relevant predicates: " + String.join(", ", predicates));
+		plan.line(0, rules.size() + " of " + codalog.getIdb().size() + " rules, "
+				+ (codalog.getIsNaive() ? "naive" : "semi-naive") + " evaluation");
+
+		List<Collection<Rules>> strata = Engine.computeStratification(rules);
+		for(int i = 0; i < strata.size(); i++) {
+			if(i == strata.size() - 1) {
+				plan.describeLastStratum(i, strata);
+			} else if(!strata.get(i).isEmpty()) {
+				plan.describeStratum(i, strata.get(i), codalog.getIsNaive());
+			}
+		}
+		plan.describeQuery(goals);
+		if(analyzed != null) {
+			plan.line(0, String.format("%d answers in %.3f ms", answers, nanos / 1e6));
+		}
+		return plan.text.toString();
+	}
+
+	private void describeStratum(int index, Collection<Rules> stratum, boolean naive) {
+		line(0, "stratum " + index + ": " + Metrics.stratumKey(stratum) + annotate(stratum));
+		Set<String> predicates = new HashSet<>();
+		for(Rules rule : stratum) {
+			predicates.add(rule.getHead().getPredicate());
+		}
+		Collection<Rules> rules = new ArrayList<>(stratum);
+		if(!naive) {
+			List<Rules> iterated = new ArrayList<>();
+			for(Rules rule : stratum) {
+				if(!rule.isAggregate() || rule.isMonotonicAggregate())
+					iterated.add(rule);
+			}
+			for(TransitiveClosure closure : TransitiveClosure.recognize(iterated)) {
+				line(1, "transitive closure of " + closure.getPredicate() + ", instead of:");
+				for(Rules rule : closure.getRules()) {
+					line(2, rule.toString());
+				}
+				rules.removeAll(closure.getRules());
+			}
+		}
+		for(Rules rule : rules) {
+			line(1, "rule " + rule + " [" + kind(rule, predicates, naive) + "]" + annotate(rule));
+			describeGoals(rule.getBody());
+		}
+	}
+
+	/* The last stratum holds all the rules again, which only derives something if the stratification missed it */
+	private void describeLastStratum(int index, List<Collection<Rules>> strata) {
+		Collection<Rules> last = strata.get(index);
+		if(last.isEmpty())
+			return;
+		String annotation = "";
+		if(analyzed != null) {
+			String key = Metrics.stratumKey(last);
+			boolean shared = false;
+			for(int i = 0; i < index; i++) {
+				shared |= Metrics.stratumKey(strata.get(i)).equals(key);
+			}
+			// A stratum with the same predicates is counted with it
+			annotation = shared ? " (counted with the stratum of the same predicates)" : annotate(last);
+		}
+		line(0, "stratum " + index + ": all " + last.size() + " rules again, until nothing more is derived" + annotation);
+	}
+
+	private void describeQuery(List<Expression> goals) {
+		List<Expression> ordered = analyzed != null ? analyzed.getQueryGoals() : null;
+		boolean aggregate = goals.stream().anyMatch(Aggregate::hasAggregates);
+		if(ordered == null) {
+			ordered = Engine.reorderQuery(aggregate ? Aggregation.strip(goals) : goals);
+		}
+		line(0, "match " + join(ordered) + (aggregate ? ", aggregating the answers" : "")
+				+ (analyzed != null ? String.format(" (%.3f ms)", analyzed.getQueryNanos() / 1e6) : ""));
+		describeGoals(ordered);
+	}
+
+	/* The goals of a rule or query in the order they are matched, and how they are matched */
+	private void describeGoals(List<Expression> goals) {
+		List<Expression> joined = Engine.cyclicPrefix(goals);
+		if(joined == null)
+			joined = Collections.emptyList();
+		else
+			line(2, "leapfrog triejoin of the cyclic goals " + join(joined));
+		for(int i = 0; i < goals.size(); i++) {
+			Expression goal = goals.get(i);
+			String how;
+			if(joined.contains(goal)) {
+				how = "joined";
+			} else if(goal.isArithmetic()) {
+				how = "arithmetic";
+			} else if(goal.getPredicate().equals("=") && !goal.isNegated()) {
+				how = "binding or filter";
+			} else if(goal.isBuiltIn()) {
+				how = goal.isNegated() ? "negated filter" : "filter";
+			} else if(goal.isNegated()) {
+				how = "negation, tested per binding";
+			} else {
+				how = "scan of " + goal.getPredicate();
+			}
+			line(2, (i + 1) + ". " + goal + " [" + how + "]" + annotate(goal));
+		}
+	}
+
+	/* How the engine evaluates a rule */
+	private static String kind(Rules rule, Set<String> stratum, boolean naive) {
+		List<String> kind = new ArrayList<>();
+		if(rule.isMonotonicAggregate()) {
+			kind.add("min/max lattice");
+		} else if(rule.isAggregate()) {
+			kind.add("aggregate, evaluated once");
+		}
+		boolean recursive = false;
+		for(Expression goal : rule.getBody()) {
+			recursive |= stratum.contains(goal.getPredicate());
+		}
+		if(!rule.isAggregate() || rule.isMonotonicAggregate()) {
+			kind.add(recursive ? "recursive" : "not recursive");
+			if(recursive && !naive)
+				kind.add("re-evaluated when its goals get new facts");
+		}
+		return String.join(", ", kind);
+	}
+
+	private String annotate(Collection<Rules> stratum) {
+		if(analyzed == null)
+			return "";
+		Metrics.StratumMetrics metrics = analyzed.getStratum(stratum);
+		if(metrics == null)
+			return " (not evaluated)";
+		return String.format(" (%d iterations, %d facts, largest delta %d, %.3f ms)", metrics.getIterations(),
+				metrics.getDerived(), metrics.getLargestDelta(), metrics.getTimeNanos() / 1e6);
+	}
+
+	private String annotate(Rules rule) {
+		if(analyzed == null)
+			return "";
+		Metrics.RuleMetrics metrics = analyzed.getRule(rule);
+		if(metrics == null)
+			return " (not evaluated)";
+		return String.format(" (%d firings, %d facts, %.3f ms)", metrics.getFirings(), metrics.getDerived(),
+				metrics.getTimeNanos() / 1e6);
+	}
+
+	private String annotate(Expression goal) {
+		if(analyzed == null)
+			return "";
+		long[] counts = analyzed.getGoal(goal);
+		if(counts == null)
+			return "";
+		return String.format(" (%d candidates, %d matched)", counts[0], counts[1]);
+	}
+
+	private void line(int indent, String line) {
+		for(int i = 0; i < indent; i++) {
+			text.append("  ");
+		}
+		text.append(line).append('\n');
+	}
+
+	private static String join(List<Expression> goals) {
+		List<String> strings = new ArrayList<>(goals.size());
+		for(Expression goal : goals) {
+			strings.add(goal.toString());
+		}
+		return String.join(", ", strings);
+	}
+}
@@ -0,0 +1,150 @@
+package codalog.engine;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import codalog.DatalogInterpreter;
+import codalog.Expression;
+import codalog.Term;
+
+/**
+ * The facts of a relation sorted on one of their columns, for the comparison built-ins.
+ * <p>
+ * {@link Engine#reorderQuery(List)} places a comparison like {@code X > 1000} directly after the goal that binds
+ * {@code X}. When {@code X} is a column of that goal and the other operand is a constant or an already bound
+ * variable, {@link #select(Expression, List, IndexedSet, Map)} uses the comparison to find the facts with a
+ * binary search, so that only the facts in the range are unified with the goal, instead of all the facts of
+ * the predicate. The comparison itself is still evaluated afterwards.
+ * </p><p>
+ * The facts are ordered the way {@link Term#compare(Term, Term)} orders them, so terms that aren't numbers
+ * sort as zero, as they do in the comparisons. The index is cached in the {@link IndexedSet} through
+ * {@link IndexedSet#getDerived(Object, Object, java.util.function.Function)}.
+ * </p>
+ */
+class RangeIndex {
+
+	private final Expression[] facts;
+	private final Term[] keys;
+
+	private RangeIndex(Collection<Expression> relation, int arity, int column) {
+		// Look up the key of each fact once, rather than in every comparison of the sort
+		List<Map.Entry<Term, Expression>> entries = new ArrayList<>();
+		for(Expression fact : relation) {
+			if(fact.arity() == arity)
+				entries.add(new AbstractMap.SimpleImmutableEntry<>(fact.getType(column), fact));
+		}
+		entries.sort((a, b) -> Term.compare(a.getKey(), b.getKey()));
+		facts = new Expression[entries.size()];
+		keys = new Term[entries.size()];
+		for(int i = 0; i < facts.length; i++) {
+			keys[i] = entries.get(i).getKey();
+			facts[i] = entries.get(i).getValue();
+		}
+	}
+
+	/**
+	 * Selects the facts that can match a goal, given the comparisons that immediately follow it.
+	 * @param goal The goal; the first element of {@code goals}
+	 * @param goals The goal and the goals after it
+	 * @param facts The database
+	 * @param bindings The bindings of variables at this point; may be null
+	 * @return The facts of the goal's predicate in the range that the comparisons allow, or null if none of the
+	 * comparisons restricts a column of the goal
+	 */
+	static Collection<Expression> select(Expression goal, List<Expression> goals, IndexedSet<Expression, String> facts, Map<String, String> bindings) {
+		List<String> terms = goal.getTerms();
+		int column = -1;
+		Term low = null, high = null;
+		boolean lowInclusive = true, highInclusive = true;
+		for(int i = 1; i < goals.size(); i++) {
+			Expression comparison = goals.get(i);
+			if(!comparison.isBuiltIn() || comparison.getPredicate().equals("="))
+				break;
+			String operator = comparison.getPredicate();
+			if(comparison.isNegated() || comparison.isArithmetic() || operator.equals("<>"))
+				continue;
+			String a = comparison.getTerms().get(0), b = comparison.getTerms().get(1);
+			int position = unboundColumn(a, terms, bindings);
+			String bound = value(b, bindings);
+			if(position < 0 || bound == null) {
+				// Try `c op X`, which is `X op' c`
+				position = unboundColumn(b, terms, bindings);
+				bound = value(a, bindings);
+				operator = flip(operator);
+				if(position < 0 || bound == null)
+					continue;
+			}
+			if(column < 0) {
+				column = position;
+			} else if(column != position) {
+				continue;
+			}
+			Term value = Term.of(bound);
+			boolean inclusive = operator.endsWith("=");
+			if(operator.startsWith(">")) {
+				if(low == null || Term.compare(value, low) > 0 || (Term.compare(value, low) == 0 && !inclusive)) {
+					low = value;
+					lowInclusive = inclusive;
+				}
+			} else {
+				if(high == null || Term.compare(value, high) < 0 || (Term.compare(value, high) == 0 && !inclusive)) {
+					high = value;
+					highInclusive = inclusive;
+				}
+			}
+		}
+		if(column < 0)
+			return null;
+
+		final int key = column;
+		RangeIndex index = facts.getDerived(goal.getPredicate(), "range:" + terms.size() + ":" + column,
+				relation -> new RangeIndex(relation, terms.size(), key));
+		int from = low == null ? 0 : index.bound(low, !lowInclusive);
+		int to = high == null ? index.facts.length : index.bound(high, highInclusive);
+		if(from >= to)
+			return Collections.emptyList();
+		return Arrays.asList(index.facts).subList(from, to);
+	}
+
+	/* The column of `term` in the goal, if it is a variable without a binding */
+	private static int unboundColumn(String term, List<String> terms, Map<String, String> bindings) {
+		if(!DatalogInterpreter.isVariable(term) || (bindings != null && bindings.containsKey(term)))
+			return -1;
+		return terms.indexOf(term);
+	}
+
+	/* The value of a constant or a bound variable; null if the variable isn't bound */
+	private static String value(String term, Map<String, String> bindings) {
+		if(!DatalogInterpreter.isVariable(term))
+			return term;
+		return bindings == null ? null : bindings.get(term);
+	}
+
+	private static String flip(String operator) {
+		switch(operator) {
+			case "<": return ">";
+			case "<=": return ">=";
+			case ">": return "<";
+			default: return "<=";
+		}
+	}
+
+	/* The first position whose key is greater than (if `after`) or greater than or equal to `key` */
+	private int bound(Term key, boolean after) {
+		int lo = 0, hi = keys.length;
+		while(lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			int c = Term.compare(keys[mid], key);
+			if(c < 0 || (after && c == 0))
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+}
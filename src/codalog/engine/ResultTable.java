@@ -0,0 +1,294 @@
+package codalog.engine;
+
+import java.util.AbstractCollection;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import codalog.DatalogInterpreter;
+import codalog.Expression;
+
+/**
+ * The answers of a query as a table: the names of the variables once, and a row of values per answer.
+ * <p>
+ * The answers that the engine finds are {@link StackMap}s whose parents are the bindings of every goal that was
+ * matched to reach them, so keeping them keeps the whole chain alive, several objects per answer. A table copies
+ * the values out of each answer as it is found and keeps them in large arrays of cells instead, which costs a
+ * reference per value. The values are the same {@code String}s as the terms of the facts, so they aren't copied.
+ * </p><p>
+ * The table is still a {@code Collection<Map<String, String>>}, so it can be returned wherever answers are: its
+ * iterator returns a lightweight read-only view of each row, which maps the columns to the values of the row and
+ * leaves out the columns that the row doesn't bind. Consumers that know about tables can read the cells directly
+ * through {@link #getColumns()} and {@link #get(int, int)}. A query without variables that is true has a row with
+ * no columns.
+ * </p><p>
+ * A table is filled by one thread; once filled it can be read by any number of threads.
+ * </p>
+ */
+public final class ResultTable extends AbstractCollection<Map<String, String>> {
+
+	// The number of cells per chunk of rows
+	private static final int CHUNK_CELLS = 1 << 14;
+
+	private final String[] columns;
+	private final Map<String, Integer> positions;
+	private final int chunkRows;
+	private final List<String[]> chunks = new ArrayList<>();
+	private int size;
+
+	/**
+	 * Creates an empty table.
+	 * @param columns The names of the columns, distinct
+	 */
+	public ResultTable(List<String> columns) {
+		this.columns = columns.toArray(new String[columns.size()]);
+		this.positions = new HashMap<>();
+		for(int i = 0; i < this.columns.length; i++) {
+			if(positions.put(this.columns[i], i) != null)
+				throw new IllegalArgumentException("Duplicate column " + this.columns[i]);
+		}
+		this.chunkRows = Math.max(1, CHUNK_CELLS / Math.max(1, this.columns.length));
+	}
+
+	/**
+	 * Retrieves the columns of the answers of a query: the variables of the bindings, then the variables of the
+	 * goals in the order in which they first appear. The variables of negated goals are left out, since they aren't
+	 * bound by the answers.
+	 * @param goals The goals of the query
+	 * @param bindings The bindings of the query; may be null
+	 * @return The columns
+	 */
+	public static List<String> columns(List<Expression> goals, Map<String, String> bindings) {
+		Set<String> columns = new LinkedHashSet<>();
+		if(bindings != null)
+			columns.addAll(bindings.keySet());
+		for(Expression goal : goals) {
+			if(goal.isNegated())
+				continue;
+			for(String term : goal.getTerms()) {
+				if(DatalogInterpreter.isVariable(term))
+					columns.add(term);
+			}
+		}
+		return new ArrayList<>(columns);
+	}
+
+	/**
+	 * Converts answers to a table. The columns are the keys of the answers, in the order in which they first appear.
+	 * @param answers The answers
+	 * @return The answers themselves if they are a table already, otherwise a new table
+	 */
+	public static ResultTable of(Collection<Map<String, String>> answers) {
+		if(answers instanceof ResultTable)
+			return (ResultTable) answers;
+		Set<String> columns = new LinkedHashSet<>();
+		for(Map<String, String> answer : answers) {
+			columns.addAll(answer.keySet());
+		}
+		ResultTable table = new ResultTable(new ArrayList<>(columns));
+		table.addAll(answers);
+		return table;
+	}
+
+	/**
+	 * Adds a row with the values of an answer for the columns of the table. Its other bindings are ignored.
+	 * @param answer The answer
+	 * @return true
+	 */
+	@Override
+	public boolean add(Map<String, String> answer) {
+		int offset = reserve();
+		String[] chunk = chunks.get(chunks.size() - 1);
+		for(int i = 0; i < columns.length; i++) {
+			chunk[offset + i] = answer.get(columns[i]);
+		}
+		return true;
+	}
+
+	/**
+	 * Adds a row.
+	 * @param values The values of the columns, in order; null where the row doesn't bind a column
+	 */
+	public void addRow(String... values) {
+		if(values.length != columns.length)
+			throw new IllegalArgumentException("Expected " + columns.length + " values, got " + values.length);
+		int offset = reserve();
+		System.arraycopy(values, 0, chunks.get(chunks.size() - 1), offset, values.length);
+	}
+
+	/* Makes room for a row in the last chunk, and returns the offset of the row in it */
+	private int reserve() {
+		int row = size % chunkRows;
+		if(row == 0)
+			chunks.add(new String[chunkRows * columns.length]);
+		size++;
+		return row * columns.length;
+	}
+
+	/** @return The names of the columns */
+	public List<String> getColumns() {
+		return Collections.unmodifiableList(Arrays.asList(columns));
+	}
+
+	/** @return The number of columns */
+	public int getColumnCount() {
+		return columns.length;
+	}
+
+	/**
+	 * Retrieves the position of a column.
+	 * @param column The name of the column
+	 * @return Its position, or -1 if the table doesn't have it
+	 */
+	public int indexOf(String column) {
+		Integer position = positions.get(column);
+		return position == null ? -1 : position;
+	}
+
+	/**
+	 * Retrieves a cell.
+	 * @param row The row
+	 * @param column The position of the column
+	 * @return The value, or null if the row doesn't bind the column
+	 */
+	public String get(int row, int column) {
+		if(row < 0 || row >= size)
+			throw new IndexOutOfBoundsException("Row " + row + " of " + size);
+		if(column < 0 || column >= columns.length)
+			throw new IndexOutOfBoundsException("Column " + column + " of " + columns.length);
+		return chunks.get(row / chunkRows)[(row % chunkRows) * columns.length + column];
+	}
+
+	/**
+	 * Copies the values of a row.
+	 * @param row The row
+	 * @param values Receives the values of the columns, in order; it must hold at least {@link #getColumnCount()}
+	 */
+	public void getRow(int row, String[] values) {
+		if(row < 0 || row >= size)
+			throw new IndexOutOfBoundsException("Row " + row + " of " + size);
+		System.arraycopy(chunks.get(row / chunkRows), (row % chunkRows) * columns.length, values, 0, columns.length);
+	}
+
+	/**
+	 * Creates a table with the rows of this one without the repeated ones, in the order in which they first appear.
+	 * @return The new table
+	 */
+	public ResultTable distinct() {
+		ResultTable table = new ResultTable(Arrays.asList(columns));
+		Set<List<String>> seen = new HashSet<>();
+		for(int row = 0; row < size; row++) {
+			String[] values = new String[columns.length];
+			getRow(row, values);
+			if(seen.add(Arrays.asList(values)))
+				table.addRow(values);
+		}
+		return table;
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public void clear() {
+		chunks.clear();
+		size = 0;
+	}
+
+	@Override
+	public Iterator<Map<String, String>> iterator() {
+		return new Iterator<Map<String, String>>() {
+			private int next;
+
+			@Override
+			public boolean hasNext() {
+				return next < size;
+			}
+
+			@Override
+			public Map<String, String> next() {
+				if(next >= size)
+					throw new NoSuchElementException();
+				return new Row(next++);
+			}
+		};
+	}
+
+	/* A read-only view of a row as a map of the columns that it binds */
+	private final class Row extends AbstractMap<String, String> {
+		private final String[] chunk;
+		private final int offset;
+
+		Row(int row) {
+			this.chunk = chunks.get(row / chunkRows);
+			this.offset = (row % chunkRows) * columns.length;
+		}
+
+		@Override
+		public String get(Object key) {
+			Integer position = positions.get(key);
+			return position == null ? null : chunk[offset + position];
+		}
+
+		@Override
+		public boolean containsKey(Object key) {
+			return get(key) != null;
+		}
+
+		@Override
+		public Set<Map.Entry<String, String>> entrySet() {
+			return new AbstractSet<Map.Entry<String, String>>() {
+				@Override
+				public Iterator<Map.Entry<String, String>> iterator() {
+					return new Iterator<Map.Entry<String, String>>() {
+						private int column = advance(0);
+
+						private int advance(int from) {
+							while(from < columns.length && chunk[offset + from] == null) {
+								from++;
+							}
+							return from;
+						}
+
+						@Override
+						public boolean hasNext() {
+							return column < columns.length;
+						}
+
+						@Override
+						public Map.Entry<String, String> next() {
+							if(column >= columns.length)
+								throw new NoSuchElementException();
+							Map.Entry<String, String> entry = new AbstractMap.SimpleImmutableEntry<>(columns[column], chunk[offset + column]);
+							column = advance(column + 1);
+							return entry;
+						}
+					};
+				}
+
+				@Override
+				public int size() {
+					int size = 0;
+					for(int i = 0; i < columns.length; i++) {
+						if(chunk[offset + i] != null)
+							size++;
+					}
+					return size;
+				}
+			};
+		}
+	}
+}
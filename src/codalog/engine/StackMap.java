@@ -30,6 +30,7 @@ import java.util.Set;
  * {@code newMap.putAll(parent)} and removed the StackMap entirely. My rough benchmarks showed the StackMap-based implementation to be about 30%
  * faster than the alternative.
  * I've also tried a version that extends {@link java.util.AbstractMap}, but it proved to be significantly slower.
+ * The {@code stackMap.chain} benchmark of {@link codalog.bench.EngineBenchmarks} measures the chains of bindings.
  * </p>
  */
 public class StackMap<K,V> implements Map<K,V> {
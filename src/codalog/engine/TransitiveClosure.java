@@ -0,0 +1,285 @@
+package codalog.engine;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+import codalog.DatalogInterpreter;
+import codalog.Expression;
+import codalog.Rules;
+
+/**
+ * Dedicated operator for predicates that are defined as the transitive closure of another predicate.
+ * <p>
+ * A pair of rules like
+ * </p>
+ * <pre>
+ * path(X,Y) :- e(X,Y).
+ * path(X,Y) :- path(X,Z), path(Z,Y).
+ * </pre>
+ * <p>
+ * is recognized by {@link #recognize(Collection)}, along with its linear variants where the recursive rule is
+ * {@code path(X,Y) :- path(X,Z), e(Z,Y)} or {@code path(X,Y) :- e(X,Z), path(Z,Y)}.
+ * Instead of evaluating these with repeated joins, {@link #evaluate(IndexedSet)} builds an adjacency index of
+ * {@code e} and does a breadth-first search from every source node, in parallel, with a bitset to track the
+ * visited nodes. The sources are searched in blocks, and the facts found from a block are added before the next
+ * block is searched, so the reachable sets of only one block are held at once. The result is the same as that of
+ * the rules.
+ * </p><p>
+ * The operator only applies if {@code e} is not derived by rules in the same stratum; it must be complete
+ * before the closure is computed.
+ * </p>
+ */
+class TransitiveClosure {
+
+	private enum Shape { NONLINEAR, RIGHT_LINEAR, LEFT_LINEAR }
+
+	// The number of sources that are searched in parallel before their facts are added
+	private static final int BLOCK = 1024;
+
+	private final String predicate;
+	private final String edge;
+	private final Shape shape;
+	private final List<Rules> rules;
+
+	private TransitiveClosure(String predicate, String edge, Shape shape, List<Rules> rules) {
+		this.predicate = predicate;
+		this.edge = edge;
+		this.shape = shape;
+		this.rules = rules;
+	}
+
+	/**
+	 * Finds the predicates in a stratum that are defined as the transitive closure of another predicate.
+	 * @param stratum The rules of the stratum
+	 * @return The recognized closures; the rules they replace are available through {@link #getRules()}
+	 */
+	static List<TransitiveClosure> recognize(Collection<Rules> stratum) {
+		Map<String, List<Rules>> byHead = new HashMap<>();
+		for(Rules rule : stratum) {
+			String head = rule.getHead().getPredicate();
+			List<Rules> list = byHead.get(head);
+			if(list == null) {
+				list = new ArrayList<>();
+				byHead.put(head, list);
+			}
+			list.add(rule);
+		}
+		List<TransitiveClosure> closures = new ArrayList<>();
+		for(Map.Entry<String, List<Rules>> entry : byHead.entrySet()) {
+			if(entry.getValue().size() != 2)
+				continue;
+			TransitiveClosure closure = recognize(entry.getKey(), entry.getValue().get(0), entry.getValue().get(1));
+			if(closure == null)
+				closure = recognize(entry.getKey(), entry.getValue().get(1), entry.getValue().get(0));
+			// The edge relation must be complete before the closure is computed
+			if(closure != null && !byHead.containsKey(closure.edge))
+				closures.add(closure);
+		}
+		return closures;
+	}
+
+	/* Checks for `p(X,Y) :- e(X,Y)` as `base` and one of the recursive forms as `recursive` */
+	private static TransitiveClosure recognize(String predicate, Rules base, Rules recursive) {
+		if(!isBinary(base.getHead()) || base.getBody().size() != 1)
+			return null;
+		String x = base.getHead().getTerms().get(0), y = base.getHead().getTerms().get(1);
+		if(x.equals(y))
+			return null;
+		Expression e = base.getBody().get(0);
+		if(!isBinary(e) || e.getPredicate().equals(predicate) || !e.getTerms().get(0).equals(x) || !e.getTerms().get(1).equals(y))
+			return null;
+
+		Expression head = recursive.getHead();
+		if(!isBinary(head) || recursive.getBody().size() != 2)
+			return null;
+		String a = head.getTerms().get(0), b = head.getTerms().get(1);
+		if(a.equals(b))
+			return null;
+		// The body is two atoms a->z and z->b, in either order
+		Expression first = null, second = null;
+		for(Expression atom : recursive.getBody()) {
+			if(!isBinary(atom))
+				return null;
+			if(atom.getTerms().get(0).equals(a))
+				first = atom;
+			else if(atom.getTerms().get(1).equals(b))
+				second = atom;
+		}
+		if(first == null || second == null)
+			return null;
+		String z = first.getTerms().get(1);
+		if(!z.equals(second.getTerms().get(0)) || z.equals(a) || z.equals(b) || first.getTerms().get(1).equals(b) || second.getTerms().get(0).equals(a))
+			return null;
+
+		String edge = e.getPredicate();
+		List<Rules> rules = new ArrayList<>();
+		rules.add(base);
+		rules.add(recursive);
+		if(first.getPredicate().equals(predicate) && second.getPredicate().equals(predicate))
+			return new TransitiveClosure(predicate, edge, Shape.NONLINEAR, rules);
+		if(first.getPredicate().equals(predicate) && second.getPredicate().equals(edge))
+			return new TransitiveClosure(predicate, edge, Shape.RIGHT_LINEAR, rules);
+		if(first.getPredicate().equals(edge) && second.getPredicate().equals(predicate))
+			return new TransitiveClosure(predicate, edge, Shape.LEFT_LINEAR, rules);
+		return null;
+	}
+
+	private static boolean isBinary(Expression e) {
+		return e.arity() == 2 && !e.isNegated() && !e.isBuiltIn()
+				&& DatalogInterpreter.isVariable(e.getTerms().get(0)) && DatalogInterpreter.isVariable(e.getTerms().get(1));
+	}
+
+	/* The rules that this operator replaces */
+	List<Rules> getRules() {
+		return rules;
+	}
+
+	String getPredicate() {
+		return predicate;
+	}
+
+	/**
+	 * Computes the closure and adds the facts that are new to {@code facts}.
+	 * <p>
+	 * Facts of the closure's predicate that are already in the database are taken into account the way the rules
+	 * would: with the nonlinear rule they are edges like any other, and with a linear rule they can only be the
+	 * first (right-linear) or last (left-linear) step of a path.
+	 * </p>
+	 * @param facts The database
+	 * @return The number of facts that were derived
+	 */
+	int evaluate(IndexedSet<Expression, String> facts) {
+		Map<String, Integer> ids = new HashMap<>();
+		List<String> nodes = new ArrayList<>();
+		List<int[]> edges = new ArrayList<>();
+		List<int[]> existing = new ArrayList<>();
+		collect(facts.getIndexed(edge), ids, nodes, edges);
+		collect(facts.getIndexed(predicate), ids, nodes, existing);
+		if(edges.isEmpty() && existing.isEmpty()) {
+			return 0;
+		}
+		int n = nodes.size();
+
+		// A left-linear closure is a right-linear one over the reversed graph
+		boolean reverse = shape == Shape.LEFT_LINEAR;
+		List<int[]> all = new ArrayList<>(edges);
+		all.addAll(existing);
+		Adjacency first = new Adjacency(n, all, reverse);
+		Adjacency step = shape == Shape.NONLINEAR ? first : new Adjacency(n, edges, reverse);
+
+		ThreadLocal<Search> searches = ThreadLocal.withInitial(() -> new Search(n));
+		int[][] reachable = new int[Math.min(n, BLOCK)][];
+		int derived = 0;
+		for(int block = 0; block < n; block += BLOCK) {
+			int offset = block, end = Math.min(n, block + BLOCK);
+			IntStream.range(offset, end).parallel().forEach(source -> {
+				reachable[source - offset] = first.degree(source) > 0 ? searches.get().run(source, first, step) : null;
+			});
+
+			// Derived facts are interned and marked as new, as those of the rules are
+			for(int source = offset; source < end; source++) {
+				if(reachable[source - offset] == null)
+					continue;
+				for(int target : reachable[source - offset]) {
+					String from = nodes.get(reverse ? target : source), to = nodes.get(reverse ? source : target);
+					Expression fact = new Expression(predicate, from, to);
+					if(!facts.contains(fact)) {
+						facts.add(fact.asNew().intern());
+						derived++;
+					}
+				}
+				reachable[source - offset] = null;
+			}
+		}
+		return derived;
+	}
+
+	private static void collect(Collection<Expression> facts, Map<String, Integer> ids, List<String> nodes, List<int[]> edges) {
+		for(Expression fact : facts) {
+			if(fact.arity() != 2)
+				continue;
+			edges.add(new int[] {id(fact.getTerms().get(0), ids, nodes), id(fact.getTerms().get(1), ids, nodes)});
+		}
+	}
+
+	private static int id(String node, Map<String, Integer> ids, List<String> nodes) {
+		Integer id = ids.get(node);
+		if(id == null) {
+			id = nodes.size();
+			ids.put(node, id);
+			nodes.add(node);
+		}
+		return id;
+	}
+
+	/* Adjacency lists in compressed sparse row form */
+	private static final class Adjacency {
+		final int[] offsets;
+		final int[] targets;
+
+		Adjacency(int n, List<int[]> edges, boolean reverse) {
+			offsets = new int[n + 1];
+			targets = new int[edges.size()];
+			int from = reverse ? 1 : 0, to = reverse ? 0 : 1;
+			for(int[] e : edges) {
+				offsets[e[from] + 1]++;
+			}
+			for(int i = 0; i < n; i++) {
+				offsets[i + 1] += offsets[i];
+			}
+			int[] fill = new int[n];
+			for(int[] e : edges) {
+				targets[offsets[e[from]] + fill[e[from]]++] = e[to];
+			}
+		}
+
+		int degree(int node) {
+			return offsets[node + 1] - offsets[node];
+		}
+	}
+
+	/* The state of a breadth-first search; reused by a thread across sources */
+	private static final class Search {
+		final BitSet visited;
+		final int[] queue;
+
+		Search(int n) {
+			visited = new BitSet(n);
+			queue = new int[n];
+		}
+
+		/* Nodes reachable from `source` through one step of `first` followed by any number of steps of `step` */
+		int[] run(int source, Adjacency first, Adjacency step) {
+			int head = 0, tail = 0;
+			for(int i = first.offsets[source]; i < first.offsets[source + 1]; i++) {
+				int target = first.targets[i];
+				if(!visited.get(target)) {
+					visited.set(target);
+					queue[tail++] = target;
+				}
+			}
+			while(head < tail) {
+				int node = queue[head++];
+				for(int i = step.offsets[node]; i < step.offsets[node + 1]; i++) {
+					int target = step.targets[i];
+					if(!visited.get(target)) {
+						visited.set(target);
+						queue[tail++] = target;
+					}
+				}
+			}
+			int[] result = new int[tail];
+			for(int i = 0; i < tail; i++) {
+				result[i] = queue[i];
+				visited.clear(queue[i]);
+			}
+			return result;
+		}
+	}
+}
@@ -0,0 +1,155 @@
+package codalog.engine;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+
+import codalog.Expression;
+
+/**
+ * Sorted trie over the facts of a relation, as used by {@link LeapfrogTriejoin}.
+ * <p>
+ * The facts that match an atom's pattern are projected onto the atom's variables, in the order in which the join
+ * binds them, and sorted lexicographically. Level {@code d} of the trie is then column {@code d} of the sorted tuples,
+ * and a node's children are the contiguous range of tuples that share its prefix. The {@link Cursor} navigates
+ * the trie with binary searches over those ranges.
+ * </p>
+ */
+class TrieIndex {
+
+	private static final Comparator<String[]> LEXICOGRAPHIC = (a, b) -> {
+		for(int i = 0; i < a.length; i++) {
+			int c = a[i].compareTo(b[i]);
+			if(c != 0)
+				return c;
+		}
+		return 0;
+	};
+
+	private final String[][] tuples;
+	private final int depth;
+
+	/**
+	 * Builds a trie from the facts that match a pattern.
+	 * <p>
+	 * The pattern has an entry for each argument of the facts: a non-negative number is the level in the trie
+	 * of the variable at that position, and {@code -1} marks a constant that must be equal to the
+	 * corresponding entry in {@code constants}. When a variable occurs at more than one position, all of
+	 * those positions must hold the same term.
+	 * </p>
+	 * @param facts The facts of the relation
+	 * @param pattern The level of each argument position, or -1 for a constant
+	 * @param constants The constant of each argument position where {@code pattern} is -1
+	 * @param depth The number of levels, that is the number of distinct variables in the pattern
+	 */
+	TrieIndex(Collection<Expression> facts, int[] pattern, String[] constants, int depth) {
+		this.depth = depth;
+		List<String[]> list = new ArrayList<>();
+		next: for(Expression fact : facts) {
+			List<String> terms = fact.getTerms();
+			if(terms.size() != pattern.length)
+				continue;
+			String[] tuple = new String[depth];
+			for(int i = 0; i < pattern.length; i++) {
+				String term = terms.get(i);
+				if(pattern[i] < 0) {
+					if(!term.equals(constants[i]))
+						continue next;
+				} else if(tuple[pattern[i]] == null) {
+					tuple[pattern[i]] = term;
+				} else if(!tuple[pattern[i]].equals(term)) {
+					continue next;
+				}
+			}
+			list.add(tuple);
+		}
+		tuples = list.toArray(new String[list.size()][]);
+		Arrays.sort(tuples, LEXICOGRAPHIC);
+	}
+
+	/* Number of tuples in the trie */
+	int size() {
+		return tuples.length;
+	}
+
+	Cursor cursor() {
+		return new Cursor();
+	}
+
+	/**
+	 * The trie iterator interface of the Leapfrog Triejoin algorithm.
+	 * <p>
+	 * The cursor is positioned at a key on some level. {@link #open()} moves to the first child of the current key
+	 * and {@link #up()} back to the parent. On a level, {@link #next()} and {@link #seek(String)} move forward
+	 * through the keys that share the same parent, in sorted order.
+	 * </p>
+	 */
+	final class Cursor {
+		// The range of tuples that share the prefix of the current level, for each level
+		private final int[] from = new int[depth + 1];
+		private final int[] to = new int[depth + 1];
+		private int level = -1;
+		private int position;
+
+		Cursor() {
+			from[0] = 0;
+			to[0] = tuples.length;
+		}
+
+		/* Descends to the first key below the current one */
+		void open() {
+			level++;
+			if(level > 0) {
+				from[level] = position;
+				to[level] = upperBound(position, to[level - 1], level - 1, tuples[position][level - 1]);
+			}
+			position = from[level];
+		}
+
+		/* Returns to the parent of the current level */
+		void up() {
+			position = level > 0 ? from[level] : 0;
+			level--;
+		}
+
+		boolean atEnd() {
+			return position >= to[level];
+		}
+
+		String key() {
+			return tuples[position][level];
+		}
+
+		/* Moves to the next distinct key on this level */
+		void next() {
+			position = upperBound(position, to[level], level, key());
+		}
+
+		/* Moves to the least key on this level that is greater than or equal to {@code key} */
+		void seek(String key) {
+			int lo = position, hi = to[level];
+			while(lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if(tuples[mid][level].compareTo(key) < 0)
+					lo = mid + 1;
+				else
+					hi = mid;
+			}
+			position = lo;
+		}
+
+		/* The first position in [lo, hi) where column `column` is greater than `key` */
+		private int upperBound(int lo, int hi, int column, String key) {
+			while(lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if(tuples[mid][column].compareTo(key) <= 0)
+					lo = mid + 1;
+				else
+					hi = mid;
+			}
+			return lo;
+		}
+	}
+}
@@ -5,6 +5,7 @@ import java.util.Collection;
 import codalog.EDB;
 import codalog.Expression;
 import codalog.engine.IndexedSet;
+import codalog.engine.MemoryFootprint;
 import codalog.DatalogInterpreter;
 
 /**
@@ -46,4 +47,45 @@ public interface EDBInterface {
 	 * @return A collection of facts matching the {@code predicate}
 	 */
 	public Collection<Expression> getFacts(String predicate);
+
+	/**
+	 * Retrieves the facts that a query is evaluated against. The engine adds the facts that it derives to them.
+	 * <p>
+	 * The default is {@link #allFacts()} itself, so that the derived facts are kept in the EDB and queries
+	 * must not run concurrently with each other or with writes. Implementations that support concurrent reads
+	 * return an isolated snapshot instead, like {@link codalog.storage.VersionedEDB}.
+	 * </p>
+	 * @return The facts; must be passed to {@link #endRead(IndexedSet)} when the query is done
+	 */
+	public default IndexedSet<Expression, String> beginRead() {
+		return allFacts();
+	}
+
+	/**
+	 * Releases the facts returned by {@link #beginRead()}.
+	 * @param facts The facts
+	 */
+	public default void endRead(IndexedSet<Expression, String> facts) {
+	}
+
+	/**
+	 * Tells whether queries can run concurrently with each other and with writes, because {@link #beginRead()}
+	 * returns isolated snapshots and the writes are thread-safe.
+	 * @return true if the EDB supports concurrent access; false by default
+	 */
+	public default boolean supportsConcurrentReads() {
+		return false;
+	}
+
+	/**
+	 * Estimates the memory held by the facts, per predicate, with their indexes and the dictionary of their terms.
+	 * <p>
+	 * The default estimates {@link #allFacts()} as a set of {@link Expression}s, see
+	 * {@link MemoryFootprint#estimate(IndexedSet)}; implementations with storage of their own override it.
+	 * </p>
+	 * @return The footprint
+	 */
+	public default MemoryFootprint footprint() {
+		return MemoryFootprint.estimate(allFacts());
+	}
 }
@@ -1,10 +1,12 @@
 package codalog.interfaces;
 
 import java.util.Collection;
+import java.util.List;
 import java.util.Map;
 
 import codalog.CodalogException;
 import codalog.DatalogInterpreter;
+import codalog.Expression;
 import codalog.predicate.StatementFactory;
 
 
@@ -55,6 +57,24 @@ public interface PredicateInterface {
 	default public Collection<Map<String, String>> execute(DatalogInterpreter datalog) throws CodalogException {
 		return execute(datalog, null);
 	}
+
+	/**
+	 * Retrieves the goals of a query statement, so that consecutive queries can be evaluated together through
+	 * {@link DatalogInterpreter#queryAll(List, Map)}.
+	 * @return The goals, or null if the statement is not a query
+	 */
+	default public List<Expression> getQueryGoals() {
+		return null;
+	}
+
+	/**
+	 * Retrieves the fact of a statement that inserts one, so that consecutive facts can be inserted together by
+	 * {@link codalog.ParallelLoader}.
+	 * @return The fact, or null if the statement doesn't insert a fact
+	 */
+	default public Expression getFact() {
+		return null;
+	}
 	
 	
 }
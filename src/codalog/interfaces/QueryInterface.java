@@ -15,6 +15,12 @@ import codalog.output.OutputUtils;
  * all the results from the separate queries, with their goals.
  * Otherwise, if you set the QueryOutput parameter to {@code null}, {@link DatalogInterpreter#executeAll(Reader, QueryInterface)}
  * will just return the answers from the last query.
+ * </p><p>
+ * {@link codalog.output.DelimitedQueryOutput} and {@link codalog.output.JsonLinesQueryOutput} stream large results
+ * to a file as CSV, TSV or JSON lines.
+ * </p><p>
+ * The answers of most queries are a {@link codalog.engine.ResultTable}, whose rows can be read without making a
+ * map of each.
  * </p>
  * @see OutputUtils#answersToString(Collection)
  * @see OutputUtils#bindingsToString(Map)
@@ -0,0 +1,138 @@
+package codalog.output;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.List;
+
+import codalog.interfaces.PredicateInterface;
+
+/**
+ * Writes the answers of queries as CSV or as tab-separated values, with a header line of the names of the
+ * variables before the answers of each query.
+ * <p>
+ * In CSV, values that contain a comma, a quote or a line break are quoted and their quotes doubled, as in
+ * RFC 4180. In TSV, tabs, line breaks and backslashes are escaped as {@code \t}, {@code \n}, {@code \r} and
+ * {@code \\}, the way databases export them. Unbound values are empty and lines end with {@code \n}. The answers
+ * of several queries written to the same output follow each other, each with its own header; a query without
+ * variables has no header, and writes an empty line if it is true.
+ * </p>
+ * @see StreamingQueryOutput
+ */
+public class DelimitedQueryOutput extends StreamingQueryOutput {
+
+	/**
+	 * The formats of the values.
+	 */
+	public enum Format {
+		/** Comma-separated values */
+		CSV,
+		/** Tab-separated values */
+		TSV
+	}
+
+	private final Format format;
+	private final boolean header;
+
+	/**
+	 * Creates an output with a header line for each query.
+	 * @param out The writer
+	 * @param format The format of the values
+	 */
+	public DelimitedQueryOutput(Writer out, Format format) {
+		this(out, format, true);
+	}
+
+	/**
+	 * Creates an output.
+	 * @param out The writer
+	 * @param format The format of the values
+	 * @param header Whether to write the names of the columns before the answers of each query
+	 */
+	public DelimitedQueryOutput(Writer out, Format format, boolean header) {
+		super(out);
+		this.format = format;
+		this.header = header;
+	}
+
+	/**
+	 * Creates an output of UTF-8 text with a header line for each query.
+	 * @param out The stream
+	 * @param format The format of the values
+	 */
+	public DelimitedQueryOutput(OutputStream out, Format format) {
+		super(out);
+		this.format = format;
+		this.header = true;
+	}
+
+	@Override
+	protected void beginResult(PredicateInterface statement, List<String> columns) throws IOException {
+		if(header && !columns.isEmpty()) {
+			writeRecord(columns.toArray(new String[columns.size()]));
+		}
+	}
+
+	@Override
+	protected void writeAnswer(List<String> columns, String[] values) throws IOException {
+		writeRecord(values);
+	}
+
+	private void writeRecord(String[] values) throws IOException {
+		char delimiter = format == Format.CSV ? ',' : '\t';
+		for(int i = 0; i < values.length; i++) {
+			if(i > 0)
+				out.write(delimiter);
+			if(values[i] == null)
+				continue;
+			if(format == Format.CSV) {
+				writeCsv(values[i]);
+			} else {
+				writeTsv(values[i]);
+			}
+		}
+		out.write('\n');
+	}
+
+	private void writeCsv(String value) throws IOException {
+		boolean quote = false;
+		for(int i = 0; i < value.length() && !quote; i++) {
+			char c = value.charAt(i);
+			quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+		}
+		if(!quote) {
+			out.write(value);
+			return;
+		}
+		out.write('"');
+		int start = 0;
+		for(int i = 0; i < value.length(); i++) {
+			if(value.charAt(i) == '"') {
+				out.write(value, start, i + 1 - start);
+				out.write('"');
+				start = i + 1;
+			}
+		}
+		out.write(value, start, value.length() - start);
+		out.write('"');
+	}
+
+	private void writeTsv(String value) throws IOException {
+		int start = 0;
+		for(int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i), escape;
+			switch(c) {
+			case '\t': escape = 't'; break;
+			case '\n': escape = 'n'; break;
+			case '\r': escape = 'r'; break;
+			case '\\': escape = '\\'; break;
+			default: continue;
+			}
+			out.write(value, start, i - start);
+			out.write('\\');
+			out.write(escape);
+			start = i + 1;
+		}
+		out.write(value, start, value.length() - start);
+	}
+}
@@ -0,0 +1,105 @@
+package codalog.output;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.List;
+
+/**
+ * Writes the answers of queries as JSON lines: one object per answer, with a member per variable in the order of
+ * the columns, like {@code {"X":"alice","Y":"42"}}.
+ * <p>
+ * The values are strings, whatever the type of the terms, and unbound values are {@code null}. A query without
+ * variables that is true writes {@code {}}, and one that is false writes nothing.
+ * </p>
+ * @see StreamingQueryOutput
+ */
+public class JsonLinesQueryOutput extends StreamingQueryOutput {
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	// The names of the columns, escaped and followed by ':', for the last list of columns
+	private List<String> columns;
+	private String[] names;
+
+	/**
+	 * Creates an output.
+	 * @param out The writer
+	 */
+	public JsonLinesQueryOutput(Writer out) {
+		super(out);
+	}
+
+	/**
+	 * Creates an output of UTF-8 text.
+	 * @param out The stream
+	 */
+	public JsonLinesQueryOutput(OutputStream out) {
+		super(out);
+	}
+
+	@Override
+	protected void writeAnswer(List<String> columns, String[] values) throws IOException {
+		if(columns != this.columns) {
+			this.columns = columns;
+			names = new String[columns.size()];
+			for(int i = 0; i < names.length; i++) {
+				StringBuilder name = new StringBuilder();
+				appendString(name, columns.get(i));
+				names[i] = name.append(':').toString();
+			}
+		}
+		out.write('{');
+		for(int i = 0; i < values.length; i++) {
+			if(i > 0)
+				out.write(',');
+			out.write(names[i]);
+			if(values[i] == null) {
+				out.write("null");
+			} else {
+				writeString(values[i]);
+			}
+		}
+		out.write("}\n");
+	}
+
+	private void writeString(String value) throws IOException {
+		out.write('"');
+		int start = 0;
+		for(int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if(c >= 0x20 && c != '"' && c != '\\')
+				continue;
+			out.write(value, start, i - start);
+			writeEscape(c);
+			start = i + 1;
+		}
+		out.write(value, start, value.length() - start);
+		out.write('"');
+	}
+
+	private void writeEscape(char c) throws IOException {
+		switch(c) {
+		case '"': out.write("\\\""); break;
+		case '\\': out.write("\\\\"); break;
+		case '\n': out.write("\\n"); break;
+		case '\r': out.write("\\r"); break;
+		case '\t': out.write("\\t"); break;
+		default:
+			out.write("\\u00");
+			out.write(HEX[c >> 4]);
+			out.write(HEX[c & 0xF]);
+		}
+	}
+
+	private static void appendString(StringBuilder sb, String value) {
+		sb.append('"');
+		for(int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if(c == '"' || c == '\\')
+				sb.append('\\');
+			sb.append(c);
+		}
+		sb.append('"');
+	}
+}
@@ -5,6 +5,7 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
+import codalog.engine.ResultTable;
 
 /**
  * Utilities for processing {@link DatalogInterpreter}'s output.
@@ -33,20 +34,50 @@ public class OutputUtils {
         StringBuilder sb = new StringBuilder("{");
         int s = bindings.size(), i = 0;
         for(String k : bindings.keySet()) {
-            String v = bindings.get(k);
-            sb.append(k).append(": ");
-            if(v.startsWith("\"")) {
-                // Needs more org.apache.commons.lang3.StringEscapeUtils#escapeJava(String)
-                sb.append('"').append(v.substring(1).replaceAll("\"", "\\\\\"")).append("\"");
-            } else {
-                sb.append(v);
-            }
+            appendBinding(sb, k, bindings.get(k));
             if(++i < s) sb.append(", ");
         }
         sb.append("}");
         return sb.toString();
     }
 
+    /**
+     * Formats a row of a {@link ResultTable} the way {@link #bindingsToString(Map)} formats the answer that it holds,
+     * with the bound columns in the order of the table.
+     * @param table the table
+     * @param row the row
+     * @return A string representing the variable bindings of the row
+     */
+    public static String rowToString(ResultTable table, int row) {
+        StringBuilder sb = new StringBuilder();
+        appendRow(sb, table, row);
+        return sb.toString();
+    }
+
+    private static void appendRow(StringBuilder sb, ResultTable table, int row) {
+        sb.append("{");
+        boolean first = true;
+        for(int column = 0; column < table.getColumnCount(); column++) {
+            String v = table.get(row, column);
+            if(v == null)
+                continue;
+            if(!first) sb.append(", ");
+            appendBinding(sb, table.getColumns().get(column), v);
+            first = false;
+        }
+        sb.append("}");
+    }
+
+    private static void appendBinding(StringBuilder sb, String k, String v) {
+        sb.append(k).append(": ");
+        if(v.startsWith("\"")) {
+            // Needs more org.apache.commons.lang3.StringEscapeUtils#escapeJava(String)
+            sb.append('"').append(v.substring(1).replaceAll("\"", "\\\\\"")).append("\"");
+        } else {
+            sb.append(v);
+        }
+    }
+
     /**
      * Helper method to convert a collection of answers to a String.
      * <ul>
@@ -73,6 +104,14 @@ public class OutputUtils {
             if(!answers.isEmpty()){
                 if(answers.iterator().next().isEmpty()) {
                     resultBuilder.append("True");
+                } else if(answers instanceof ResultTable) {
+                    ResultTable table = (ResultTable) answers;
+                    for(int row = 0; row < table.size(); row++) {
+                        if(row > 0) {
+                            resultBuilder.append("\n");
+                        }
+                        appendRow(resultBuilder, table, row);
+                    }
                 } else {
                     Iterator<Map<String, String>> iter = answers.iterator();
                     while (iter.hasNext()) {
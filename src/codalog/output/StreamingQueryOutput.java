@@ -0,0 +1,159 @@
+package codalog.output;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+import codalog.Expression;
+import codalog.engine.ResultTable;
+import codalog.interfaces.PredicateInterface;
+import codalog.interfaces.QueryInterface;
+
+/**
+ * Base class of the {@link QueryInterface}s that write the answers of queries as records to a buffered
+ * {@link Writer}, one answer at a time, for exporting large results.
+ * <p>
+ * The columns of a result are the variables of its query, in the order in which they first appear in the goals
+ * that aren't negated, so every answer of a query is written with the same columns in the same order; see
+ * {@link ResultTable#columns(List, Map)}. The rows of a {@link ResultTable} are read directly, and the values of
+ * other answers are read with {@link Map#get(Object)}, which doesn't flatten the {@link codalog.engine.StackMap}s
+ * of the answers the way iterating over their keys, as {@link OutputUtils#bindingsToString(Map)} does, would.
+ * Quoted strings are written without the {@code "} that marks them internally. A query without variables that is
+ * true has a single answer with no columns.
+ * </p><p>
+ * The output is flushed after each result, not after each answer. {@link #close()} closes the underlying writer.
+ * Since {@link QueryInterface#writeResult(PredicateInterface, Collection)} can't throw checked exceptions, I/O
+ * errors are thrown as {@link UncheckedIOException}s.
+ * </p>
+ * @see DelimitedQueryOutput
+ * @see JsonLinesQueryOutput
+ */
+public abstract class StreamingQueryOutput implements QueryInterface, Flushable, Closeable {
+
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	/** The writer of the records */
+	protected final Writer out;
+
+	/**
+	 * Creates an output that writes to a writer, buffering it unless it is a {@link BufferedWriter} already.
+	 * @param out The writer
+	 */
+	protected StreamingQueryOutput(Writer out) {
+		this.out = out instanceof BufferedWriter ? out : new BufferedWriter(out, BUFFER_SIZE);
+	}
+
+	/**
+	 * Creates an output that writes UTF-8 text to a stream.
+	 * @param out The stream
+	 */
+	protected StreamingQueryOutput(OutputStream out) {
+		this(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+	}
+
+	@Override
+	public void writeResult(PredicateInterface statement, Collection<Map<String, String>> answers) {
+		try {
+			if(answers instanceof ResultTable) {
+				writeTable(statement, (ResultTable) answers);
+			} else {
+				List<String> columns = columns(statement, answers);
+				String[] values = new String[columns.size()];
+				beginResult(statement, columns);
+				for(Map<String, String> answer : answers) {
+					for(int i = 0; i < values.length; i++) {
+						values[i] = value(answer.get(columns.get(i)));
+					}
+					writeAnswer(columns, values);
+				}
+				endResult(statement, answers.size());
+			}
+			out.flush();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/* Writes the rows of a table without making a map of each */
+	private void writeTable(PredicateInterface statement, ResultTable table) throws IOException {
+		List<String> columns = table.getColumns();
+		String[] values = new String[columns.size()];
+		beginResult(statement, columns);
+		for(int row = 0; row < table.size(); row++) {
+			table.getRow(row, values);
+			for(int i = 0; i < values.length; i++) {
+				values[i] = value(values[i]);
+			}
+			writeAnswer(columns, values);
+		}
+		endResult(statement, table.size());
+	}
+
+	/**
+	 * Called before the answers of a result are written, for example to write a header.
+	 * @param statement The query
+	 * @param columns The names of the columns
+	 * @throws IOException if the output can't be written
+	 */
+	protected void beginResult(PredicateInterface statement, List<String> columns) throws IOException {
+	}
+
+	/**
+	 * Writes the record of one answer.
+	 * @param columns The names of the columns
+	 * @param values The values of the columns, in the same order; null where the answer doesn't bind a variable.
+	 *     The array is reused for the next answer.
+	 * @throws IOException if the output can't be written
+	 */
+	protected abstract void writeAnswer(List<String> columns, String[] values) throws IOException;
+
+	/**
+	 * Called after the answers of a result are written.
+	 * @param statement The query
+	 * @param count The number of answers
+	 * @throws IOException if the output can't be written
+	 */
+	protected void endResult(PredicateInterface statement, int count) throws IOException {
+	}
+
+	@Override
+	public void flush() throws IOException {
+		out.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		out.close();
+	}
+
+	/* The columns of a result that isn't a table. Statements that aren't queries don't know their variables, so
+	 * the columns are then the variables of the first answer, sorted. */
+	private static List<String> columns(PredicateInterface statement, Collection<Map<String, String>> answers) {
+		List<Expression> goals = statement.getQueryGoals();
+		if(goals != null)
+			return ResultTable.columns(goals, null);
+		Iterator<Map<String, String>> iterator = answers.iterator();
+		if(!iterator.hasNext())
+			return new ArrayList<>();
+		return new ArrayList<>(new TreeSet<>(iterator.next().keySet()));
+	}
+
+	/* The text of a term: quoted strings lose the " that marks them */
+	private static String value(String term) {
+		if(term != null && term.startsWith("\""))
+			return term.substring(1);
+		return term;
+	}
+}
@@ -0,0 +1,45 @@
+package codalog.predicate;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import codalog.CodalogException;
+import codalog.DatalogInterpreter;
+import codalog.Expression;
+import codalog.interfaces.PredicateInterface;
+
+class ExplainStatement implements PredicateInterface {
+
+	private List<Expression> goals;
+	private boolean analyze;
+
+	ExplainStatement(List<Expression> goals, boolean analyze) {
+		this.goals = goals;
+		this.analyze = analyze;
+	}
+
+	@Override
+	public Collection<Map<String, String>> execute(DatalogInterpreter datalog, Map<String, String> bindings) throws CodalogException {
+		String plan = datalog.explain(goals, bindings, analyze);
+		List<Map<String, String>> lines = new ArrayList<>();
+		for(String line : plan.split("\n")) {
+			lines.add(Collections.singletonMap("Plan", line));
+		}
+		return lines;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder(analyze ? "explain analyze " : "explain ");
+		for (int i = 0; i < goals.size(); i++) {
+			sb.append(goals.get(i).toString());
+			if (i < goals.size() - 1)
+				sb.append(", ");
+		}
+		sb.append("?");
+		return sb.toString();
+	}
+}
@@ -29,4 +29,9 @@ public class InsertFactStatement implements PredicateInterface {
 		return null;
 	}
 
+	@Override
+	public Expression getFact() {
+		return fact;
+	}
+
 }
@@ -22,6 +22,11 @@ class QueryStatement implements PredicateInterface {
 		return datalog.query(goals, bindings);
 	}
 
+	@Override
+	public List<Expression> getQueryGoals() {
+		return goals;
+	}
+
 	@Override
 	public String toString() {
 		StringBuilder sb = new StringBuilder();
@@ -28,6 +28,16 @@ public class StatementFactory {
 		return new QueryStatement(goals);
 	}
 	
+	/**
+	 * Creates a statement that describes how a query is evaluated, as {@link DatalogInterpreter#explain(List, java.util.Map, boolean)}.
+	 * @param goals The goals of the query
+	 * @param analyze Whether to evaluate the query and annotate the plan with the work that was done
+	 * @return A statement that answers with one binding of {@code Plan} per line of the plan.
+	 */
+	public static PredicateInterface explain(List<Expression> goals, boolean analyze) {
+		return new ExplainStatement(goals, analyze);
+	}
+	
 	/**
 	 * Creates a statement that will insert a fact into the EDB.
 	 * @param fact The fact to insert
@@ -0,0 +1,237 @@
+package codalog.server;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+import codalog.CodalogException;
+import codalog.DatalogInterpreter;
+import codalog.output.OutputUtils;
+
+/**
+ * Serves a {@link DatalogInterpreter} over TCP on the loopback interface, so that the knowledge base is loaded once
+ * and then queried and updated by any number of clients.
+ * <p>
+ * The protocol is line based, in UTF-8. Every line that a client sends is a request holding one or more Datalog
+ * statements, like {@code e(a, b). path(a, Y)?}, which are executed as by {@link DatalogInterpreter#executeAll(String)}.
+ * The response to a request is one line per answer of the last query in it, encoded by
+ * {@link OutputUtils#bindingsToString(Map)} as the answer is written, followed by a status line:
+ * </p>
+ * <ul>
+ * <li>{@code OK n} after a query with {@code n} answers; a query without variables that is true has a single
+ *     answer, {@code {}}
+ * <li>{@code OK} after statements that aren't queries
+ * <li>{@code ERROR message} if a statement can't be parsed or executed
+ * </ul>
+ * <p>
+ * Requests are pipelined: a client can send several requests without waiting for the responses, which come back
+ * in the same order. The requests of a connection are executed one after the other, each in its own task - a
+ * virtual thread on runtimes that have them, a pooled thread otherwise - so a later request sees the effects of
+ * the earlier ones. Requests from different connections run concurrently if the EDB
+ * {@link codalog.interfaces.EDBInterface#supportsConcurrentReads() supports concurrent reads}, like
+ * {@link codalog.storage.VersionedEDB}; otherwise the interpreter serializes them.
+ * </p>
+ */
+public class QueryServer implements Closeable {
+
+	/** The number of requests of a connection that can be waiting for their turn before reading stops */
+	public static final int MAX_PIPELINED_REQUESTS = 64;
+
+	private final DatalogInterpreter interpreter;
+	private final ServerSocket serverSocket;
+	private final ExecutorService executor = newRequestExecutor();
+	private final Set<Socket> connections = ConcurrentHashMap.newKeySet();
+	private volatile boolean closed;
+
+	/**
+	 * Creates a server and binds it to a port of the loopback interface. Call {@link #start()} to accept connections.
+	 * @param interpreter The interpreter to serve
+	 * @param port The port, or 0 for any free port
+	 * @throws IOException if the port can't be bound
+	 */
+	public QueryServer(DatalogInterpreter interpreter, int port) throws IOException {
+		this.interpreter = interpreter;
+		this.serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+	}
+
+	/**
+	 * The port the server is bound to.
+	 * @return The port
+	 */
+	public int getPort() {
+		return serverSocket.getLocalPort();
+	}
+
+	/**
+	 * Starts accepting connections in a background thread.
+	 * @return this server
+	 */
+	public QueryServer start() {
+		Thread acceptor = new Thread(this::accept, "codalog-server-" + getPort());
+		acceptor.setDaemon(true);
+		acceptor.start();
+		return this;
+	}
+
+	@Override
+	public void close() throws IOException {
+		closed = true;
+		serverSocket.close();
+		for(Socket socket : connections) {
+			socket.close();
+		}
+		executor.shutdown();
+	}
+
+	private void accept() {
+		while(!closed) {
+			try {
+				Socket socket = serverSocket.accept();
+				connections.add(socket);
+				executor.execute(() -> serve(socket));
+			} catch (IOException e) {
+				if(!closed)
+					System.err.println("[ERROR]: " + e.getMessage());
+			}
+		}
+	}
+
+	/* Reads the requests of a connection and chains their execution, so that they run and respond in order */
+	private void serve(Socket socket) {
+		Semaphore pending = new Semaphore(MAX_PIPELINED_REQUESTS);
+		CompletableFuture<Void> last = CompletableFuture.completedFuture(null);
+		try {
+			BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+			Writer out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+			String line;
+			while((line = in.readLine()) != null) {
+				if(line.trim().isEmpty())
+					continue;
+				pending.acquire();
+				String request = line;
+				last = last.thenRunAsync(() -> {
+					try {
+						respond(request, out, pending.availablePermits() == MAX_PIPELINED_REQUESTS - 1);
+					} finally {
+						pending.release();
+					}
+				}, executor);
+			}
+		} catch (IOException | InterruptedException e) {
+			// The connection was closed
+		}
+		last.whenComplete((result, error) -> {
+			connections.remove(socket);
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// Already closed
+			}
+		});
+	}
+
+	/* Executes a request and writes its response; the output is flushed when no other request is waiting */
+	private void respond(String request, Writer out, boolean flush) {
+		try {
+			Collection<Map<String, String>> answers;
+			try {
+				answers = interpreter.executeAll(request);
+			} catch (CodalogException | RuntimeException e) {
+				// A failed request must not stop the ones pipelined after it
+				out.write("ERROR " + message(e) + "\n");
+				if(flush)
+					out.flush();
+				return;
+			}
+			if(answers == null) {
+				out.write("OK\n");
+			} else {
+				for(Map<String, String> answer : answers) {
+					out.write(OutputUtils.bindingsToString(answer));
+					out.write('\n');
+				}
+				out.write("OK " + answers.size() + "\n");
+			}
+			if(flush)
+				out.flush();
+		} catch (SocketException e) {
+			// The client went away
+		} catch (IOException e) {
+			System.err.println("[ERROR]: " + e.getMessage());
+		}
+	}
+
+	/* The messages of an exception and its causes on one line; a cause that was wrapped with its own message
+	 * is only written once */
+	private static String message(Throwable e) {
+		StringBuilder sb = new StringBuilder();
+		String previous = null;
+		for(Throwable t = e; t != null; t = t.getCause()) {
+			if(t.getMessage() == null || t.getMessage().equals(previous))
+				continue;
+			previous = t.getMessage();
+			if(sb.length() > 0)
+				sb.append(": ");
+			sb.append(t.getMessage().replace('\n', ' '));
+		}
+		return sb.length() > 0 ? sb.toString() : e.getClass().getSimpleName();
+	}
+
+	/* One virtual thread per task if the runtime has them (Java 21+), otherwise a pool of daemon threads */
+	private static ExecutorService newRequestExecutor() {
+		try {
+			Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) factory.invoke(null);
+		} catch (ReflectiveOperationException e) {
+			return Executors.newCachedThreadPool(task -> {
+				Thread thread = new Thread(task, "codalog-request");
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+	}
+
+	/**
+	 * Loads files into an interpreter and serves it until the process is stopped.
+	 * @param args The port, then the files to load
+	 */
+	public static void main(String... args) {
+		if(args.length == 0) {
+			System.out.println("Usage: QueryServer port [file...]");
+			return;
+		}
+		try {
+			DatalogInterpreter interpreter = new DatalogInterpreter();
+			for(int i = 1; i < args.length; i++) {
+				try (Reader reader = new BufferedReader(new FileReader(args[i]))) {
+					interpreter.executeAll(reader, null);
+				}
+			}
+			QueryServer server = new QueryServer(interpreter, Integer.parseInt(args[0]));
+			System.out.println("Listening on " + InetAddress.getLoopbackAddress().getHostAddress() + ":" + server.getPort());
+			server.accept();
+		} catch (CodalogException | IOException | NumberFormatException e) {
+			e.printStackTrace();
+		}
+	}
+}
@@ -0,0 +1,63 @@
+package codalog.storage;
+
+import java.util.Collection;
+
+import codalog.EDB;
+import codalog.Expression;
+import codalog.engine.IndexedSet;
+import codalog.engine.MemoryFootprint;
+import codalog.interfaces.EDBInterface;
+
+/**
+ * {@link EDBInterface} that stores the facts of each predicate in primitive columns.
+ * <p>
+ * The terms of the facts are translated to {@code int} ids through a dictionary, and every predicate
+ * becomes a relation with one {@code int[]} column per argument position. Compared to the default
+ * {@link EDB}, where every fact is a separate {@link Expression} with its own list of terms, this needs a
+ * fraction of the memory per fact, and the engine's scans and joins read the columns directly through the
+ * {@link codalog.engine.FactScanner} interface.
+ * </p><p>
+ * Use it through {@link codalog.DatalogInterpreter#setEdbProvider(EDBInterface)} before adding any facts.
+ * </p>
+ * @see EDB
+ */
+public class ColumnarEDB implements EDBInterface {
+
+	private final ColumnarFactSet facts = new ColumnarFactSet();
+
+	@Override
+	public IndexedSet<Expression, String> allFacts() {
+		return facts;
+	}
+
+	@Override
+	public void add(Expression fact) {
+		facts.add(fact);
+	}
+
+	@Override
+	public boolean removeAll(Collection<Expression> facts) {
+		return this.facts.removeAll(facts);
+	}
+
+	@Override
+	public Collection<Expression> getFacts(String predicate) {
+		return facts.getIndexed(predicate);
+	}
+
+	/**
+	 * Retrieves the approximate amount of memory used by the columns and indexes of the relations.
+	 * @return the number of bytes in use
+	 */
+	public long getUsedBytes() {
+		return facts.usedBytes();
+	}
+
+	/**
+	 * Accounts for the columns, the row tables and the column indexes of every predicate, and for the dictionary.
+	 */
+	@Override
+	public MemoryFootprint footprint() {
+		return facts.footprint();
+	}
+}
@@ -0,0 +1,458 @@
+package codalog.storage;
+
+import java.util.AbstractList;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import codalog.DatalogInterpreter;
+import codalog.Expression;
+import codalog.engine.FactScanner;
+import codalog.engine.IndexedSet;
+import codalog.engine.MemoryFootprint;
+import codalog.engine.StackMap;
+
+/**
+ * {@link IndexedSet} of facts that stores each predicate as a {@link ColumnarRelation} of dictionary ids.
+ * <p>
+ * The engine matches goals against the set through {@link FactScanner#scan(Expression, Map)}: the constants and
+ * bound variables of the goal are translated to ids once, after which the candidate rows are found through a
+ * column index and filtered with {@code int} comparisons. Only the rows that match produce bindings.
+ * </p><p>
+ * Iterating over the set, or over the sets returned by {@link #getIndexed(String)}, produces lightweight
+ * {@link Expression}s that read their terms from the columns. Those views don't support removal.
+ * </p>
+ */
+class ColumnarFactSet extends IndexedSet<Expression, String> implements FactScanner {
+
+	private final TermDictionary dictionary = new TermDictionary();
+
+	// A predicate may be used with different arities, so each predicate can have several relations
+	private final Map<String, List<ColumnarRelation>> relations = new HashMap<>();
+	private int size = 0;
+
+	@Override
+	public Iterable<Map<String, String>> scan(Expression goal, Map<String, String> bindings) {
+		ColumnarRelation relation = relation(goal.getPredicate(), goal.arity(), false);
+		if(relation == null || relation.rows() == 0) {
+			return Collections.emptyList();
+		}
+		List<String> terms = goal.getTerms();
+		int arity = terms.size();
+		int[] wanted = new int[arity];
+		int[] sameAs = new int[arity];
+		String[] variables = new String[arity];
+		for(int i = 0; i < arity; i++) {
+			String term = terms.get(i);
+			wanted[i] = -1;
+			sameAs[i] = -1;
+			if(DatalogInterpreter.isVariable(term)) {
+				String value = bindings == null ? null : bindings.get(term);
+				if(value == null) {
+					// An unbound variable; if it appeared earlier in the goal, the columns must be equal
+					for(int j = 0; j < i; j++) {
+						if(term.equals(variables[j])) {
+							sameAs[i] = j;
+							break;
+						}
+					}
+					if(sameAs[i] < 0) {
+						variables[i] = term;
+					}
+					continue;
+				}
+				term = value;
+			}
+			wanted[i] = dictionary.getId(term);
+			if(wanted[i] < 0) {
+				// The term doesn't occur in any fact
+				return Collections.emptyList();
+			}
+		}
+
+		// Use the index of the most selective bound column, if there is one
+		int access = -1, candidates = relation.rows();
+		for(int i = 0; i < arity; i++) {
+			if(wanted[i] >= 0) {
+				int count = relation.count(i, wanted[i]);
+				if(count < candidates || access < 0) {
+					access = i;
+					candidates = count;
+				}
+			}
+		}
+		if(candidates == 0) {
+			return Collections.emptyList();
+		}
+		final int column = access;
+		return () -> new ScanIterator(relation, column, wanted, sameAs, variables, bindings);
+	}
+
+	@Override
+	public Set<Expression> getIndexed(String predicate) {
+		List<ColumnarRelation> list = relations.get(predicate);
+		if(list == null) return Collections.emptySet();
+		return new RelationsView(list);
+	}
+
+	@Override
+	public Collection<String> getIndexes() {
+		Collection<String> indexes = new ArrayList<>();
+		for(Map.Entry<String, List<ColumnarRelation>> entry : relations.entrySet()) {
+			for(ColumnarRelation relation : entry.getValue()) {
+				if(relation.rows() > 0) {
+					indexes.add(entry.getKey());
+					break;
+				}
+			}
+		}
+		return indexes;
+	}
+
+	@Override
+	public boolean add(Expression fact) {
+		List<String> terms = fact.getTerms();
+		int[] ids = new int[terms.size()];
+		for(int i = 0; i < ids.length; i++) {
+			ids[i] = dictionary.intern(terms.get(i));
+		}
+		if(relation(fact.getPredicate(), ids.length, true).add(ids, fact.isNew())) {
+			invalidate(fact.getPredicate());
+			size++;
+			return true;
+		}
+		return false;
+	}
+
+	@Override
+	public boolean addAll(Collection<? extends Expression> facts) {
+		boolean result = false;
+		for(Expression fact : facts) {
+			if(add(fact))
+				result = true;
+		}
+		return result;
+	}
+
+	@Override
+	public void clear() {
+		for(String predicate : relations.keySet()) {
+			invalidate(predicate);
+		}
+		relations.clear();
+		size = 0;
+	}
+
+	@Override
+	public boolean contains(Object o) {
+		if(!(o instanceof Expression)) {
+			return false;
+		}
+		Expression fact = (Expression) o;
+		if(fact.isNegated()) {
+			return false;
+		}
+		ColumnarRelation relation = relation(fact.getPredicate(), fact.arity(), false);
+		if(relation == null) {
+			return false;
+		}
+		int[] ids = encode(fact);
+		return ids != null && relation.find(ids) >= 0;
+	}
+
+	@Override
+	public boolean containsAll(Collection<?> c) {
+		for(Object o : c) {
+			if(!contains(o))
+				return false;
+		}
+		return true;
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	@Override
+	public Iterator<Expression> iterator() {
+		List<ColumnarRelation> all = new ArrayList<>();
+		for(List<ColumnarRelation> list : relations.values()) {
+			all.addAll(list);
+		}
+		return new RowIterator(all);
+	}
+
+	@Override
+	public boolean remove(Object o) {
+		if(!(o instanceof Expression)) {
+			return false;
+		}
+		Expression fact = (Expression) o;
+		ColumnarRelation relation = relation(fact.getPredicate(), fact.arity(), false);
+		if(relation == null) {
+			return false;
+		}
+		int[] ids = encode(fact);
+		if(ids != null && relation.remove(ids)) {
+			invalidate(fact.getPredicate());
+			size--;
+			return true;
+		}
+		return false;
+	}
+
+	@Override
+	public boolean removeAll(Collection<?> c) {
+		boolean changed = false;
+		for(Object o : c) {
+			if(remove(o))
+				changed = true;
+		}
+		return changed;
+	}
+
+	@Override
+	public boolean retainAll(Collection<?> c) {
+		List<Expression> remove = new ArrayList<>();
+		for(Expression fact : this) {
+			if(!c.contains(fact))
+				remove.add(fact);
+		}
+		return removeAll(remove);
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public Object[] toArray() {
+		return new ArrayList<>(this).toArray();
+	}
+
+	@Override
+	public <A> A[] toArray(A[] a) {
+		return new ArrayList<>(this).toArray(a);
+	}
+
+	/* Approximate number of bytes used by the relations; the dictionary is not included */
+	long usedBytes() {
+		long bytes = 0;
+		for(List<ColumnarRelation> list : relations.values()) {
+			for(ColumnarRelation relation : list) {
+				bytes += relation.usedBytes();
+			}
+		}
+		return bytes;
+	}
+
+	/* The footprint of the relations of each predicate and of the dictionary */
+	MemoryFootprint footprint() {
+		List<MemoryFootprint.Relation> footprints = new ArrayList<>();
+		for(Map.Entry<String, List<ColumnarRelation>> entry : relations.entrySet()) {
+			int rows = 0;
+			long columnBytes = 0;
+			long indexBytes = 0;
+			for(ColumnarRelation relation : entry.getValue()) {
+				rows += relation.rows();
+				columnBytes += relation.columnBytes();
+				indexBytes += relation.indexBytes();
+			}
+			footprints.add(new MemoryFootprint.Relation(entry.getKey(), rows, columnBytes, indexBytes));
+		}
+		return new MemoryFootprint(footprints, dictionary.size(), dictionary.usedBytes());
+	}
+
+	/* Number of distinct terms in the dictionary */
+	int terms() {
+		return dictionary.size();
+	}
+
+	/* Looks up the ids of the terms of a fact without adding them to the dictionary;
+	 * returns null if one of the terms is unknown, because then the fact can't be in the set */
+	private int[] encode(Expression fact) {
+		List<String> terms = fact.getTerms();
+		int[] ids = new int[terms.size()];
+		for(int i = 0; i < ids.length; i++) {
+			ids[i] = dictionary.getId(terms.get(i));
+			if(ids[i] < 0)
+				return null;
+		}
+		return ids;
+	}
+
+	private ColumnarRelation relation(String predicate, int arity, boolean create) {
+		List<ColumnarRelation> list = relations.get(predicate);
+		if(list == null) {
+			if(!create)
+				return null;
+			list = new ArrayList<>(1);
+			relations.put(predicate, list);
+		}
+		for(ColumnarRelation relation : list) {
+			if(relation.arity() == arity)
+				return relation;
+		}
+		if(!create)
+			return null;
+		ColumnarRelation relation = new ColumnarRelation(predicate, arity);
+		list.add(relation);
+		return relation;
+	}
+
+	/* Walks the candidate rows of a relation - through a column index if one of the columns is bound,
+	 * otherwise all of them - and produces the bindings for the rows that match. */
+	private final class ScanIterator implements Iterator<Map<String, String>> {
+		private final ColumnarRelation relation;
+		private final int access;
+		private final int[] wanted;
+		private final int[] sameAs;
+		private final String[] variables;
+		private final Map<String, String> bindings;
+		private int row = -1;
+		private boolean started = false;
+
+		ScanIterator(ColumnarRelation relation, int access, int[] wanted, int[] sameAs, String[] variables, Map<String, String> bindings) {
+			this.relation = relation;
+			this.access = access;
+			this.wanted = wanted;
+			this.sameAs = sameAs;
+			this.variables = variables;
+			this.bindings = bindings;
+			advance();
+		}
+
+		@Override
+		public boolean hasNext() {
+			return row >= 0;
+		}
+
+		@Override
+		public Map<String, String> next() {
+			if(row < 0)
+				throw new NoSuchElementException();
+			Map<String, String> newBindings = new StackMap<String, String>(bindings);
+			for(int i = 0; i < variables.length; i++) {
+				if(variables[i] != null) {
+					newBindings.put(variables[i], dictionary.get(relation.get(row, i)));
+				}
+			}
+			advance();
+			return newBindings;
+		}
+
+		private void advance() {
+			do {
+				if(access >= 0) {
+					row = started ? relation.nextRow(access, row) : relation.firstRow(access, wanted[access]);
+				} else {
+					row = (row + 1 < relation.rows()) ? row + 1 : -1;
+				}
+				started = true;
+			} while(row >= 0 && !matches(row));
+		}
+
+		private boolean matches(int row) {
+			for(int i = 0; i < wanted.length; i++) {
+				int[] column = relation.column(i);
+				if(wanted[i] >= 0 && column[row] != wanted[i]) {
+					return false;
+				}
+				if(sameAs[i] >= 0 && column[row] != relation.column(sameAs[i])[row]) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
+	/* Flyweight for the terms of a row in a relation */
+	private final class RowTerms extends AbstractList<String> {
+		private final ColumnarRelation relation;
+		private final int row;
+
+		RowTerms(ColumnarRelation relation, int row) {
+			this.relation = relation;
+			this.row = row;
+		}
+
+		@Override
+		public String get(int index) {
+			if(index < 0 || index >= relation.arity())
+				throw new IndexOutOfBoundsException("Index: " + index);
+			return dictionary.get(relation.get(row, index));
+		}
+
+		@Override
+		public int size() {
+			return relation.arity();
+		}
+	}
+
+	/* Iterates over the rows of several relations, producing a lightweight Expression for each */
+	private final class RowIterator implements Iterator<Expression> {
+		private final List<ColumnarRelation> list;
+		private int current = 0;
+		private int row = 0;
+
+		RowIterator(List<ColumnarRelation> list) {
+			this.list = list;
+		}
+
+		@Override
+		public boolean hasNext() {
+			while(current < list.size() && row >= list.get(current).rows()) {
+				current++;
+				row = 0;
+			}
+			return current < list.size();
+		}
+
+		@Override
+		public Expression next() {
+			if(!hasNext())
+				throw new NoSuchElementException();
+			ColumnarRelation relation = list.get(current);
+			Expression fact = Expression.view(relation.getPredicate(), new RowTerms(relation, row), relation.isNew(row));
+			row++;
+			return fact;
+		}
+	}
+
+	/* The facts of a single predicate, as returned by getIndexed() */
+	private final class RelationsView extends AbstractSet<Expression> {
+		private final List<ColumnarRelation> list;
+
+		RelationsView(List<ColumnarRelation> list) {
+			this.list = list;
+		}
+
+		@Override
+		public Iterator<Expression> iterator() {
+			return new RowIterator(list);
+		}
+
+		@Override
+		public int size() {
+			int rows = 0;
+			for(ColumnarRelation relation : list) {
+				rows += relation.rows();
+			}
+			return rows;
+		}
+
+		@Override
+		public boolean contains(Object o) {
+			return ColumnarFactSet.this.contains(o);
+		}
+	}
+}
@@ -0,0 +1,323 @@
+package codalog.storage;
+
+import java.util.Arrays;
+
+/**
+ * The facts of a single predicate and arity, stored as primitive columns of dictionary ids.
+ * <p>
+ * Each argument position is an {@code int[]} column, so a scan over a relation reads contiguous memory
+ * rather than chasing pointers through {@code Expression} objects. Rows are deduplicated through an open
+ * addressing hash table of row numbers. Rows are removed by moving the last row into the hole, as in
+ * {@link OffHeapRelation}, so the row numbers are dense, but not stable across removals.
+ * </p><p>
+ * For joins, each column can have an index that chains the rows with the same value together:
+ * {@code head[id]} holds the first row with the term {@code id} in that column and {@code next[row]} the
+ * row after it. The indexes are only built for the columns that are actually looked up, and are kept up to
+ * date as rows are appended and removed; the chains are linked both ways, so that a row can be taken out of
+ * its chain without following it.
+ * </p>
+ */
+final class ColumnarRelation {
+
+	private static final int INITIAL_CAPACITY = 16;
+
+	private final String predicate;
+	private final int arity;
+
+	private int[][] columns;
+	private int[] hashes;
+	private boolean[] flags;
+	private int rows = 0;
+
+	// Open addressing hash table of row+1; 0 means an empty slot
+	private int[] table;
+	private int mask;
+
+	private ColumnIndex[] indexes;
+
+	ColumnarRelation(String predicate, int arity) {
+		this.predicate = predicate;
+		this.arity = arity;
+		this.columns = new int[arity][INITIAL_CAPACITY];
+		this.hashes = new int[INITIAL_CAPACITY];
+		this.flags = new boolean[INITIAL_CAPACITY];
+		this.table = new int[INITIAL_CAPACITY * 2];
+		this.mask = table.length - 1;
+		this.indexes = new ColumnIndex[arity];
+	}
+
+	String getPredicate() {
+		return predicate;
+	}
+
+	int arity() {
+		return arity;
+	}
+
+	int rows() {
+		return rows;
+	}
+
+	/* The raw column; only the first rows() elements are valid */
+	int[] column(int column) {
+		return columns[column];
+	}
+
+	int get(int row, int column) {
+		return columns[column][row];
+	}
+
+	boolean isNew(int row) {
+		return flags[row];
+	}
+
+	/* Returns the row that holds the tuple {@code ids}, or -1 if there isn't one */
+	int find(int[] ids) {
+		int hash = hash(ids);
+		for(int slot = hash & mask; ; slot = (slot + 1) & mask) {
+			int entry = table[slot];
+			if(entry == 0) {
+				return -1;
+			}
+			if(hashes[entry - 1] == hash && matches(entry - 1, ids)) {
+				return entry - 1;
+			}
+		}
+	}
+
+	/* Adds a tuple; returns false if it was already present */
+	boolean add(int[] ids, boolean isNew) {
+		int hash = hash(ids);
+		int slot = hash & mask;
+		for(; ; slot = (slot + 1) & mask) {
+			int entry = table[slot];
+			if(entry == 0) {
+				break;
+			}
+			if(hashes[entry - 1] == hash && matches(entry - 1, ids)) {
+				return false;
+			}
+		}
+		if(rows == hashes.length) {
+			int capacity = rows * 2;
+			for(int i = 0; i < arity; i++) {
+				columns[i] = Arrays.copyOf(columns[i], capacity);
+			}
+			hashes = Arrays.copyOf(hashes, capacity);
+			flags = Arrays.copyOf(flags, capacity);
+		}
+		int row = rows++;
+		for(int i = 0; i < arity; i++) {
+			columns[i][row] = ids[i];
+			if(indexes[i] != null) {
+				indexes[i].add(row, ids[i]);
+			}
+		}
+		hashes[row] = hash;
+		flags[row] = isNew;
+		table[slot] = row + 1;
+		if(rows * 2 > mask) {
+			rehash(table.length * 2);
+		}
+		return true;
+	}
+
+	/* Removes a tuple; returns false if it wasn't present */
+	boolean remove(int[] ids) {
+		int row = find(ids);
+		if(row < 0) {
+			return false;
+		}
+		unlink(slotOf(row));
+		for(int i = 0; i < arity; i++) {
+			if(indexes[i] != null) {
+				indexes[i].remove(row, columns[i][row]);
+			}
+		}
+		int last = rows - 1;
+		if(row != last) {
+			// Fill the hole with the last row, and point its hash table entry and its index chains at the new position
+			table[slotOf(last)] = row + 1;
+			for(int i = 0; i < arity; i++) {
+				columns[i][row] = columns[i][last];
+				if(indexes[i] != null) {
+					indexes[i].move(last, row, columns[i][last]);
+				}
+			}
+			hashes[row] = hashes[last];
+			flags[row] = flags[last];
+		}
+		rows = last;
+		return true;
+	}
+
+	/* The first row with value {@code id} in a column, or -1 */
+	int firstRow(int column, int id) {
+		return index(column).first(id);
+	}
+
+	/* The next row with the same value in a column as {@code row}, or -1 */
+	int nextRow(int column, int row) {
+		return indexes[column].next[row] - 1;
+	}
+
+	/* The number of rows with value {@code id} in a column */
+	int count(int column, int id) {
+		return index(column).count(id);
+	}
+
+	/* Approximate number of bytes used by the relation */
+	long usedBytes() {
+		return columnBytes() + indexBytes();
+	}
+
+	/* Approximate number of bytes used by the columns, the hashes and the flags of the rows */
+	long columnBytes() {
+		return (long)hashes.length * (arity * 4 + 4 + 1);
+	}
+
+	/* Approximate number of bytes used by the hash table of the rows and the indexes of the columns */
+	long indexBytes() {
+		long bytes = table.length * 4L;
+		for(ColumnIndex index : indexes) {
+			if(index != null) {
+				bytes += (index.head.length + index.counts.length + index.next.length + index.previous.length) * 4L;
+			}
+		}
+		return bytes;
+	}
+
+	private ColumnIndex index(int column) {
+		ColumnIndex index = indexes[column];
+		if(index == null) {
+			index = new ColumnIndex();
+			for(int row = 0; row < rows; row++) {
+				index.add(row, columns[column][row]);
+			}
+			indexes[column] = index;
+		}
+		return index;
+	}
+
+	private boolean matches(int row, int[] ids) {
+		for(int i = 0; i < arity; i++) {
+			if(columns[i][row] != ids[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private int slotOf(int row) {
+		int slot = hashes[row] & mask;
+		while(table[slot] != row + 1) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	/* Removes the entry in a slot of the hash table, shifting the entries after it back
+	 * so that linear probing still finds them */
+	private void unlink(int hole) {
+		int slot = hole;
+		while(true) {
+			slot = (slot + 1) & mask;
+			int entry = table[slot];
+			if(entry == 0) {
+				break;
+			}
+			int home = hashes[entry - 1] & mask;
+			boolean movable = (slot > hole) ? (home <= hole || home > slot) : (home <= hole && home > slot);
+			if(movable) {
+				table[hole] = entry;
+				hole = slot;
+			}
+		}
+		table[hole] = 0;
+	}
+
+	private void rehash(int capacity) {
+		table = new int[capacity];
+		mask = capacity - 1;
+		for(int row = 0; row < rows; row++) {
+			int slot = hashes[row] & mask;
+			while(table[slot] != 0) {
+				slot = (slot + 1) & mask;
+			}
+			table[slot] = row + 1;
+		}
+	}
+
+	private static int hash(int[] ids) {
+		int h = 0x2545F491;
+		for(int id : ids) {
+			h = (h ^ id) * 0x9E3779B9;
+			h ^= h >>> 15;
+		}
+		return h;
+	}
+
+	/* Chains the rows that share a value in a column. Row numbers are stored +1 so that 0 marks the ends of a chain. */
+	private final class ColumnIndex {
+		int[] head = new int[INITIAL_CAPACITY];
+		int[] counts = new int[INITIAL_CAPACITY];
+		int[] next = new int[hashes.length];
+		int[] previous = new int[hashes.length];
+
+		void add(int row, int id) {
+			if(id >= head.length) {
+				int capacity = Math.max(head.length * 2, id + 1);
+				head = Arrays.copyOf(head, capacity);
+				counts = Arrays.copyOf(counts, capacity);
+			}
+			if(row >= next.length) {
+				next = Arrays.copyOf(next, hashes.length);
+				previous = Arrays.copyOf(previous, hashes.length);
+			}
+			next[row] = head[id];
+			previous[row] = 0;
+			if(head[id] != 0) {
+				previous[head[id] - 1] = row + 1;
+			}
+			head[id] = row + 1;
+			counts[id]++;
+		}
+
+		/* Takes a row out of the chain of its value */
+		void remove(int row, int id) {
+			int before = previous[row], after = next[row];
+			if(before == 0) {
+				head[id] = after;
+			} else {
+				next[before - 1] = after;
+			}
+			if(after != 0) {
+				previous[after - 1] = before;
+			}
+			counts[id]--;
+		}
+
+		/* Puts row `to` in the place of row `from` in the chain of their value */
+		void move(int from, int to, int id) {
+			int before = previous[from], after = next[from];
+			next[to] = after;
+			previous[to] = before;
+			if(before == 0) {
+				head[id] = to + 1;
+			} else {
+				next[before - 1] = to + 1;
+			}
+			if(after != 0) {
+				previous[after - 1] = to + 1;
+			}
+		}
+
+		int first(int id) {
+			return id < head.length ? head[id] - 1 : -1;
+		}
+
+		int count(int id) {
+			return id < counts.length ? counts[id] : 0;
+		}
+	}
+}
@@ -0,0 +1,81 @@
+package codalog.storage;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+/**
+ * A growable array of {@code int}s that lives in native memory.
+ * <p>
+ * The array is split in pages obtained from an {@link OffHeapArena}, so growing it never copies the
+ * existing elements. Each column of an {@link OffHeapRelation} is stored in one of these.
+ * </p>
+ */
+final class NativeIntArray {
+
+	private final OffHeapArena arena;
+	private final int pageShift;
+	private final int pageMask;
+
+	private ByteBuffer[] pages = new ByteBuffer[4];
+	private IntBuffer[] views = new IntBuffer[4];
+	private int pageCount = 0;
+	private long size = 0;
+
+	NativeIntArray(OffHeapArena arena) {
+		this.arena = arena;
+		int intsPerPage = Integer.highestOneBit(Math.max(arena.getPageSize() / 4, 1));
+		this.pageShift = Integer.numberOfTrailingZeros(intsPerPage);
+		this.pageMask = intsPerPage - 1;
+	}
+
+	int get(long i) {
+		return views[(int)(i >>> pageShift)].get((int)(i & pageMask));
+	}
+
+	void set(long i, int value) {
+		views[(int)(i >>> pageShift)].put((int)(i & pageMask), value);
+	}
+
+	/* Appends a value and returns its position */
+	long add(int value) {
+		long i = size;
+		int page = (int)(i >>> pageShift);
+		if(page == pageCount) {
+			addPage();
+		}
+		views[page].put((int)(i & pageMask), value);
+		size++;
+		return i;
+	}
+
+	long size() {
+		return size;
+	}
+
+	/* Drops the elements from position newSize onwards, releasing pages that are no longer used */
+	void truncate(long newSize) {
+		if(newSize > size) {
+			throw new IllegalArgumentException("Cannot truncate to " + newSize + " elements; size is " + size);
+		}
+		size = newSize;
+		int needed = (int)((newSize + pageMask) >>> pageShift);
+		while(pageCount > needed) {
+			pageCount--;
+			arena.release(pages[pageCount]);
+			pages[pageCount] = null;
+			views[pageCount] = null;
+		}
+	}
+
+	private void addPage() {
+		if(pageCount == pages.length) {
+			pages = Arrays.copyOf(pages, pageCount * 2);
+			views = Arrays.copyOf(views, pageCount * 2);
+		}
+		ByteBuffer page = arena.allocate((pageMask + 1) * 4);
+		pages[pageCount] = page;
+		views[pageCount] = page.asIntBuffer();
+		pageCount++;
+	}
+}
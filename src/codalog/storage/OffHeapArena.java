@@ -0,0 +1,88 @@
+package codalog.storage;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Allocator for the native memory used by {@link OffHeapEDB}.
+ * <p>
+ * All of the off-heap structures (dictionary pages, fact columns and hash indexes) obtain their
+ * memory from an arena, so that the amount of native memory reserved for a database can be tracked
+ * in one place. Memory is handed out as direct {@link ByteBuffer}s in native byte order; it is returned to
+ * the operating system when the buffers become unreachable, which is why the structures built on top
+ * of the arena hold on to as few of them as possible.
+ * </p>
+ */
+public class OffHeapArena {
+
+	/** Default size of a page of native memory: 1 MiB */
+	public static final int DEFAULT_PAGE_SIZE = 1 << 20;
+
+	private final int pageSize;
+	private final AtomicLong reserved = new AtomicLong();
+
+	/**
+	 * Creates an arena with the default page size.
+	 */
+	public OffHeapArena() {
+		this(DEFAULT_PAGE_SIZE);
+	}
+
+	/**
+	 * Creates an arena with a specific page size.
+	 * @param pageSize The size in bytes of the pages handed out by {@link #allocatePage()}
+	 */
+	public OffHeapArena(int pageSize) {
+		if(pageSize <= 0) {
+			throw new IllegalArgumentException("Invalid page size " + pageSize);
+		}
+		this.pageSize = pageSize;
+	}
+
+	/**
+	 * Allocates a page of native memory of {@link #getPageSize()} bytes.
+	 * @return the page
+	 */
+	ByteBuffer allocatePage() {
+		return allocate(pageSize);
+	}
+
+	/**
+	 * Allocates a block of native memory of arbitrary size.
+	 * @param bytes The number of bytes to allocate
+	 * @return the block of memory, in native byte order
+	 */
+	ByteBuffer allocate(int bytes) {
+		ByteBuffer buffer = ByteBuffer.allocateDirect(bytes).order(ByteOrder.nativeOrder());
+		reserved.addAndGet(bytes);
+		return buffer;
+	}
+
+	/**
+	 * Informs the arena that a block previously obtained through {@link #allocate(int)} is no longer
+	 * referenced. The memory is freed by the JVM once the buffer is collected.
+	 * @param buffer The buffer that was released
+	 */
+	void release(ByteBuffer buffer) {
+		if(buffer != null) {
+			reserved.addAndGet(-buffer.capacity());
+		}
+	}
+
+	/**
+	 * Retrieves the size of the pages allocated by this arena.
+	 * @return the page size in bytes
+	 */
+	public int getPageSize() {
+		return pageSize;
+	}
+
+	/**
+	 * Retrieves the total amount of native memory currently reserved through this arena.
+	 * @return the number of bytes reserved
+	 */
+	public long getReservedBytes() {
+		return reserved.get();
+	}
+}
@@ -0,0 +1,161 @@
+package codalog.storage;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Dictionary that maps the terms of facts to dense {@code int} ids, keeping the terms themselves in native memory.
+ * <p>
+ * The terms are stored as UTF-8 in pages allocated from an {@link OffHeapArena}, prefixed with their length.
+ * The id of a term is found through an open addressing hash table that is also kept off-heap, so the heap
+ * footprint of the dictionary doesn't depend on the number of terms it holds. The price is that
+ * {@link #get(int)} decodes a new {@code String} on every call.
+ * </p><p>
+ * Like {@link codalog.EDB}, the dictionary is not thread-safe.
+ * </p>
+ */
+final class OffHeapDictionary {
+
+	private static final int INITIAL_CAPACITY = 1 << 10;
+
+	private final OffHeapArena arena;
+
+	private final List<ByteBuffer> pages = new ArrayList<>();
+	private ByteBuffer current = null;
+
+	// For each id: the page, the offset within the page and the hash of the term
+	private final NativeIntArray locations;
+	private final NativeIntArray hashes;
+
+	// Open addressing hash table of id+1; 0 means an empty slot
+	private ByteBuffer tableMemory;
+	private IntBuffer table;
+	private int mask;
+
+	OffHeapDictionary(OffHeapArena arena) {
+		this.arena = arena;
+		this.locations = new NativeIntArray(arena);
+		this.hashes = new NativeIntArray(arena);
+		allocateTable(INITIAL_CAPACITY);
+	}
+
+	/* Number of terms in the dictionary */
+	int size() {
+		return (int)hashes.size();
+	}
+
+	/* Returns the id of a term, or -1 if the term is not in the dictionary */
+	int getId(String term) {
+		byte[] bytes = term.getBytes(StandardCharsets.UTF_8);
+		int hash = hash(term);
+		for(int slot = hash & mask; ; slot = (slot + 1) & mask) {
+			int entry = table.get(slot);
+			if(entry == 0) {
+				return -1;
+			}
+			int id = entry - 1;
+			if(hashes.get(id) == hash && matches(id, bytes)) {
+				return id;
+			}
+		}
+	}
+
+	/* Returns the id of a term, adding it to the dictionary if necessary */
+	int intern(String term) {
+		byte[] bytes = term.getBytes(StandardCharsets.UTF_8);
+		int hash = hash(term);
+		int slot = hash & mask;
+		for(; ; slot = (slot + 1) & mask) {
+			int entry = table.get(slot);
+			if(entry == 0) {
+				break;
+			}
+			int id = entry - 1;
+			if(hashes.get(id) == hash && matches(id, bytes)) {
+				return id;
+			}
+		}
+		int id = store(bytes, hash);
+		table.put(slot, id + 1);
+		// Keep the load factor under 1/2 so that the linear probes stay short
+		if(size() * 2 > mask) {
+			allocateTable((mask + 1) * 2);
+		}
+		return id;
+	}
+
+	/* Decodes the term with a specific id */
+	String get(int id) {
+		ByteBuffer page = pages.get(locations.get(id * 2L));
+		int offset = locations.get(id * 2L + 1);
+		int length = page.getInt(offset);
+		byte[] bytes = new byte[length];
+		for(int i = 0; i < length; i++) {
+			bytes[i] = page.get(offset + 4 + i);
+		}
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/* Bytes of native memory in use by the dictionary pages and the hash table */
+	long reservedBytes() {
+		long bytes = tableMemory.capacity();
+		for(ByteBuffer page : pages) {
+			bytes += page.capacity();
+		}
+		return bytes;
+	}
+
+	private boolean matches(int id, byte[] bytes) {
+		ByteBuffer page = pages.get(locations.get(id * 2L));
+		int offset = locations.get(id * 2L + 1);
+		if(page.getInt(offset) != bytes.length) {
+			return false;
+		}
+		for(int i = 0; i < bytes.length; i++) {
+			if(page.get(offset + 4 + i) != bytes[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private int store(byte[] bytes, int hash) {
+		int needed = bytes.length + 4;
+		if(current == null || current.remaining() < needed) {
+			// Terms that are larger than a page get a page of their own.
+			current = needed > arena.getPageSize() ? arena.allocate(needed) : arena.allocatePage();
+			pages.add(current);
+		}
+		int offset = current.position();
+		current.putInt(bytes.length);
+		current.put(bytes);
+		int id = size();
+		locations.add(pages.size() - 1);
+		locations.add(offset);
+		hashes.add(hash);
+		return id;
+	}
+
+	private void allocateTable(int capacity) {
+		ByteBuffer oldMemory = tableMemory;
+		tableMemory = arena.allocate(capacity * 4);
+		table = tableMemory.asIntBuffer();
+		mask = capacity - 1;
+		for(int id = 0; id < size(); id++) {
+			int slot = hashes.get(id) & mask;
+			while(table.get(slot) != 0) {
+				slot = (slot + 1) & mask;
+			}
+			table.put(slot, id + 1);
+		}
+		arena.release(oldMemory);
+	}
+
+	private static int hash(String term) {
+		int h = term.hashCode() * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+}
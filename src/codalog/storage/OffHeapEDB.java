@@ -0,0 +1,90 @@
+package codalog.storage;
+
+import java.util.Collection;
+
+import codalog.EDB;
+import codalog.Expression;
+import codalog.engine.IndexedSet;
+import codalog.engine.MemoryFootprint;
+import codalog.interfaces.EDBInterface;
+
+/**
+ * {@link EDBInterface} that keeps its facts in native memory rather than on the Java heap.
+ * <p>
+ * The default {@link EDB} stores each fact as an {@link Expression} with its own list of terms, which
+ * becomes a burden on the garbage collector once there are many millions of facts. This provider encodes
+ * the terms of each fact as {@code int} ids in a dictionary and stores the facts of every predicate in
+ * fixed-width columns with an off-heap hash index, all of it allocated from an {@link OffHeapArena}.
+ * The engine accesses the facts through flyweight {@link Expression}s, so the heap usage stays flat
+ * regardless of the number of facts loaded.
+ * </p><p>
+ * Use it through {@link codalog.DatalogInterpreter#setEdbProvider(EDBInterface)} before adding any facts.
+ * </p>
+ * @see EDB
+ */
+public class OffHeapEDB implements EDBInterface {
+
+	private final OffHeapArena arena;
+	private final OffHeapFactSet facts;
+
+	/**
+	 * Creates an off-heap EDB with its own arena.
+	 */
+	public OffHeapEDB() {
+		this(new OffHeapArena());
+	}
+
+	/**
+	 * Creates an off-heap EDB that allocates its memory from a specific arena.
+	 * @param arena The arena to allocate native memory from
+	 */
+	public OffHeapEDB(OffHeapArena arena) {
+		this.arena = arena;
+		this.facts = new OffHeapFactSet(arena);
+	}
+
+	@Override
+	public IndexedSet<Expression, String> allFacts() {
+		return facts;
+	}
+
+	@Override
+	public void add(Expression fact) {
+		facts.add(fact);
+	}
+
+	@Override
+	public boolean removeAll(Collection<Expression> facts) {
+		return this.facts.removeAll(facts);
+	}
+
+	@Override
+	public Collection<Expression> getFacts(String predicate) {
+		return facts.getIndexed(predicate);
+	}
+
+	/**
+	 * Retrieves the arena from which this EDB allocates its memory.
+	 * @return the arena
+	 */
+	public OffHeapArena getArena() {
+		return arena;
+	}
+
+	/**
+	 * Retrieves the amount of native memory that is used by the facts, their indexes and the dictionary.
+	 * @return the number of bytes in use
+	 */
+	public long getUsedBytes() {
+		return facts.reservedBytes();
+	}
+
+	/**
+	 * Accounts for the native memory of the rows, the row tables and the dictionary; the heap holds little more
+	 * than the handles of the buffers.
+	 */
+	@Override
+	public MemoryFootprint footprint() {
+		return facts.footprint();
+	}
+}
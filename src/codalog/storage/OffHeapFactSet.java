@@ -0,0 +1,336 @@
+package codalog.storage;
+
+import java.util.AbstractList;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import codalog.Expression;
+import codalog.engine.IndexedSet;
+import codalog.engine.MemoryFootprint;
+
+/**
+ * {@link IndexedSet} of facts whose contents are kept in native memory by {@link OffHeapRelation}s.
+ * <p>
+ * The engine sees the facts as ordinary {@link Expression}s, but these are flyweights: an expression
+ * produced by this set only refers to a row of a relation and decodes its terms from the
+ * {@link OffHeapDictionary} when they are asked for. The flyweights are short-lived, so the heap
+ * footprint of the set is independent of the number of facts in it.
+ * </p><p>
+ * The views returned by {@link #getIndexed(String)} and {@link #iterator()} don't support removal.
+ * </p>
+ */
+class OffHeapFactSet extends IndexedSet<Expression, String> {
+
+	private final OffHeapArena arena;
+	private final OffHeapDictionary dictionary;
+
+	// A predicate may be used with different arities, so each predicate can have several relations
+	private final Map<String, List<OffHeapRelation>> relations = new HashMap<>();
+	private int size = 0;
+
+	OffHeapFactSet(OffHeapArena arena) {
+		this.arena = arena;
+		this.dictionary = new OffHeapDictionary(arena);
+	}
+
+	@Override
+	public Set<Expression> getIndexed(String predicate) {
+		List<OffHeapRelation> list = relations.get(predicate);
+		if(list == null) return Collections.emptySet();
+		return new RelationsView(list);
+	}
+
+	@Override
+	public Collection<String> getIndexes() {
+		Collection<String> indexes = new ArrayList<>();
+		for(Map.Entry<String, List<OffHeapRelation>> entry : relations.entrySet()) {
+			for(OffHeapRelation relation : entry.getValue()) {
+				if(relation.rows() > 0) {
+					indexes.add(entry.getKey());
+					break;
+				}
+			}
+		}
+		return indexes;
+	}
+
+	@Override
+	public boolean add(Expression fact) {
+		List<String> terms = fact.getTerms();
+		int[] ids = new int[terms.size()];
+		for(int i = 0; i < ids.length; i++) {
+			ids[i] = dictionary.intern(terms.get(i));
+		}
+		if(relation(fact.getPredicate(), ids.length, true).add(ids, fact.isNew())) {
+			invalidate(fact.getPredicate());
+			size++;
+			return true;
+		}
+		return false;
+	}
+
+	@Override
+	public boolean addAll(Collection<? extends Expression> facts) {
+		boolean result = false;
+		for(Expression fact : facts) {
+			if(add(fact))
+				result = true;
+		}
+		return result;
+	}
+
+	@Override
+	public void clear() {
+		for(Map.Entry<String, List<OffHeapRelation>> entry : relations.entrySet()) {
+			invalidate(entry.getKey());
+			for(OffHeapRelation relation : entry.getValue()) {
+				relation.release();
+			}
+		}
+		relations.clear();
+		size = 0;
+	}
+
+	@Override
+	public boolean contains(Object o) {
+		if(!(o instanceof Expression)) {
+			return false;
+		}
+		Expression fact = (Expression) o;
+		if(fact.isNegated()) {
+			return false;
+		}
+		OffHeapRelation relation = relation(fact.getPredicate(), fact.arity(), false);
+		if(relation == null) {
+			return false;
+		}
+		int[] ids = encode(fact);
+		return ids != null && relation.find(ids) >= 0;
+	}
+
+	@Override
+	public boolean containsAll(Collection<?> c) {
+		for(Object o : c) {
+			if(!contains(o))
+				return false;
+		}
+		return true;
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	@Override
+	public Iterator<Expression> iterator() {
+		List<OffHeapRelation> all = new ArrayList<>();
+		for(List<OffHeapRelation> list : relations.values()) {
+			all.addAll(list);
+		}
+		return new RowIterator(all);
+	}
+
+	@Override
+	public boolean remove(Object o) {
+		if(!(o instanceof Expression)) {
+			return false;
+		}
+		Expression fact = (Expression) o;
+		OffHeapRelation relation = relation(fact.getPredicate(), fact.arity(), false);
+		if(relation == null) {
+			return false;
+		}
+		int[] ids = encode(fact);
+		if(ids != null && relation.remove(ids)) {
+			invalidate(fact.getPredicate());
+			size--;
+			return true;
+		}
+		return false;
+	}
+
+	@Override
+	public boolean removeAll(Collection<?> c) {
+		boolean changed = false;
+		for(Object o : c) {
+			if(remove(o))
+				changed = true;
+		}
+		return changed;
+	}
+
+	@Override
+	public boolean retainAll(Collection<?> c) {
+		List<Expression> remove = new ArrayList<>();
+		for(Expression fact : this) {
+			if(!c.contains(fact))
+				remove.add(fact);
+		}
+		return removeAll(remove);
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public Object[] toArray() {
+		return new ArrayList<>(this).toArray();
+	}
+
+	@Override
+	public <A> A[] toArray(A[] a) {
+		return new ArrayList<>(this).toArray(a);
+	}
+
+	/* Bytes of native memory in use by the dictionary and the relations */
+	long reservedBytes() {
+		long bytes = dictionary.reservedBytes();
+		for(List<OffHeapRelation> list : relations.values()) {
+			for(OffHeapRelation relation : list) {
+				bytes += relation.reservedBytes();
+			}
+		}
+		return bytes;
+	}
+
+	/* The footprint in native memory of the relations of each predicate and of the dictionary */
+	MemoryFootprint footprint() {
+		List<MemoryFootprint.Relation> footprints = new ArrayList<>();
+		for(Map.Entry<String, List<OffHeapRelation>> entry : relations.entrySet()) {
+			int rows = 0;
+			long rowBytes = 0;
+			long tableBytes = 0;
+			for(OffHeapRelation relation : entry.getValue()) {
+				rows += relation.rows();
+				rowBytes += relation.rowBytes();
+				tableBytes += relation.reservedBytes() - relation.rowBytes();
+			}
+			footprints.add(new MemoryFootprint.Relation(entry.getKey(), rows, rowBytes, tableBytes));
+		}
+		return new MemoryFootprint(footprints, dictionary.size(), dictionary.reservedBytes());
+	}
+
+	/* Looks up the ids of the terms of a fact without adding them to the dictionary;
+	 * returns null if one of the terms is unknown, because then the fact can't be in the set */
+	private int[] encode(Expression fact) {
+		List<String> terms = fact.getTerms();
+		int[] ids = new int[terms.size()];
+		for(int i = 0; i < ids.length; i++) {
+			ids[i] = dictionary.getId(terms.get(i));
+			if(ids[i] < 0)
+				return null;
+		}
+		return ids;
+	}
+
+	private OffHeapRelation relation(String predicate, int arity, boolean create) {
+		List<OffHeapRelation> list = relations.get(predicate);
+		if(list == null) {
+			if(!create)
+				return null;
+			list = new ArrayList<>(1);
+			relations.put(predicate, list);
+		}
+		for(OffHeapRelation relation : list) {
+			if(relation.arity() == arity)
+				return relation;
+		}
+		if(!create)
+			return null;
+		OffHeapRelation relation = new OffHeapRelation(arena, predicate, arity);
+		list.add(relation);
+		return relation;
+	}
+
+	/* Flyweight for the terms of a row in a relation */
+	private final class RowTerms extends AbstractList<String> {
+		private final OffHeapRelation relation;
+		private final int row;
+
+		RowTerms(OffHeapRelation relation, int row) {
+			this.relation = relation;
+			this.row = row;
+		}
+
+		@Override
+		public String get(int index) {
+			if(index < 0 || index >= relation.arity())
+				throw new IndexOutOfBoundsException("Index: " + index);
+			return dictionary.get(relation.get(row, index));
+		}
+
+		@Override
+		public int size() {
+			return relation.arity();
+		}
+	}
+
+	/* Iterates over the rows of several relations, producing a flyweight Expression for each */
+	private final class RowIterator implements Iterator<Expression> {
+		private final List<OffHeapRelation> list;
+		private int current = 0;
+		private int row = 0;
+
+		RowIterator(List<OffHeapRelation> list) {
+			this.list = list;
+		}
+
+		@Override
+		public boolean hasNext() {
+			while(current < list.size() && row >= list.get(current).rows()) {
+				current++;
+				row = 0;
+			}
+			return current < list.size();
+		}
+
+		@Override
+		public Expression next() {
+			if(!hasNext())
+				throw new NoSuchElementException();
+			OffHeapRelation relation = list.get(current);
+			Expression fact = Expression.view(relation.getPredicate(), new RowTerms(relation, row), relation.isNew(row));
+			row++;
+			return fact;
+		}
+	}
+
+	/* The facts of a single predicate, as returned by getIndexed() */
+	private final class RelationsView extends AbstractSet<Expression> {
+		private final List<OffHeapRelation> list;
+
+		RelationsView(List<OffHeapRelation> list) {
+			this.list = list;
+		}
+
+		@Override
+		public Iterator<Expression> iterator() {
+			return new RowIterator(list);
+		}
+
+		@Override
+		public int size() {
+			int rows = 0;
+			for(OffHeapRelation relation : list) {
+				rows += relation.rows();
+			}
+			return rows;
+		}
+
+		@Override
+		public boolean contains(Object o) {
+			return OffHeapFactSet.this.contains(o);
+		}
+	}
+}
@@ -0,0 +1,212 @@
+package codalog.storage;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+
+/**
+ * The facts of a single predicate and arity, stored in native memory.
+ * <p>
+ * Every term is encoded as a fixed-width {@code int} id from an {@link OffHeapDictionary} and each argument
+ * position is stored in its own column. The rows are deduplicated through an open addressing hash table of
+ * row numbers that lives off-heap as well. Rows are removed by moving the last row into the hole, so the
+ * row numbers are dense, but not stable across removals.
+ * </p>
+ */
+final class OffHeapRelation {
+
+	private static final int INITIAL_CAPACITY = 1 << 6;
+
+	private final OffHeapArena arena;
+	private final String predicate;
+	private final NativeIntArray[] columns;
+	private final NativeIntArray hashes;
+	private final NativeIntArray flags;
+	private int rows = 0;
+
+	// Open addressing hash table of row+1; 0 means an empty slot
+	private ByteBuffer tableMemory;
+	private IntBuffer table;
+	private int mask;
+
+	OffHeapRelation(OffHeapArena arena, String predicate, int arity) {
+		this.arena = arena;
+		this.predicate = predicate;
+		this.columns = new NativeIntArray[arity];
+		for(int i = 0; i < arity; i++) {
+			columns[i] = new NativeIntArray(arena);
+		}
+		this.hashes = new NativeIntArray(arena);
+		this.flags = new NativeIntArray(arena);
+		allocateTable(INITIAL_CAPACITY);
+	}
+
+	String getPredicate() {
+		return predicate;
+	}
+
+	int arity() {
+		return columns.length;
+	}
+
+	int rows() {
+		return rows;
+	}
+
+	int get(int row, int column) {
+		return columns[column].get(row);
+	}
+
+	boolean isNew(int row) {
+		return flags.get(row) != 0;
+	}
+
+	/* Returns the row that holds the tuple {@code ids}, or -1 if there isn't one */
+	int find(int[] ids) {
+		int hash = hash(ids);
+		for(int slot = hash & mask; ; slot = (slot + 1) & mask) {
+			int entry = table.get(slot);
+			if(entry == 0) {
+				return -1;
+			}
+			if(hashes.get(entry - 1) == hash && matches(entry - 1, ids)) {
+				return entry - 1;
+			}
+		}
+	}
+
+	/* Adds a tuple; returns false if it was already present */
+	boolean add(int[] ids, boolean isNew) {
+		int hash = hash(ids);
+		int slot = hash & mask;
+		for(; ; slot = (slot + 1) & mask) {
+			int entry = table.get(slot);
+			if(entry == 0) {
+				break;
+			}
+			if(hashes.get(entry - 1) == hash && matches(entry - 1, ids)) {
+				return false;
+			}
+		}
+		for(int i = 0; i < ids.length; i++) {
+			columns[i].add(ids[i]);
+		}
+		hashes.add(hash);
+		flags.add(isNew ? 1 : 0);
+		table.put(slot, ++rows);
+		if(rows * 2 > mask) {
+			allocateTable((mask + 1) * 2);
+		}
+		return true;
+	}
+
+	/* Removes a tuple; returns false if it wasn't present */
+	boolean remove(int[] ids) {
+		int row = find(ids);
+		if(row < 0) {
+			return false;
+		}
+		unlink(slotOf(row));
+		int last = rows - 1;
+		if(row != last) {
+			// Fill the hole with the last row, and point its hash table entry at the new position
+			int lastSlot = slotOf(last);
+			for(NativeIntArray column : columns) {
+				column.set(row, column.get(last));
+			}
+			hashes.set(row, hashes.get(last));
+			flags.set(row, flags.get(last));
+			table.put(lastSlot, row + 1);
+		}
+		rows = last;
+		for(NativeIntArray column : columns) {
+			column.truncate(last);
+		}
+		hashes.truncate(last);
+		flags.truncate(last);
+		return true;
+	}
+
+	/* Returns the native memory of the relation to the arena; the relation can't be used afterwards */
+	void release() {
+		for(NativeIntArray column : columns) {
+			column.truncate(0);
+		}
+		hashes.truncate(0);
+		flags.truncate(0);
+		arena.release(tableMemory);
+		tableMemory = null;
+		table = null;
+		rows = 0;
+	}
+
+	/* Bytes of native memory in use by the relation */
+	long reservedBytes() {
+		return tableMemory.capacity() + rowBytes();
+	}
+
+	/* Bytes of native memory in use by the columns, the hashes and the flags of the rows */
+	long rowBytes() {
+		return (long)rows * (columns.length + 2) * 4;
+	}
+
+	private boolean matches(int row, int[] ids) {
+		for(int i = 0; i < ids.length; i++) {
+			if(columns[i].get(row) != ids[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private int slotOf(int row) {
+		int slot = hashes.get(row) & mask;
+		while(table.get(slot) != row + 1) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	/* Removes the entry in a slot of the hash table, shifting the entries after it back
+	 * so that linear probing still finds them */
+	private void unlink(int hole) {
+		int slot = hole;
+		while(true) {
+			slot = (slot + 1) & mask;
+			int entry = table.get(slot);
+			if(entry == 0) {
+				break;
+			}
+			int home = hashes.get(entry - 1) & mask;
+			boolean movable = (slot > hole) ? (home <= hole || home > slot) : (home <= hole && home > slot);
+			if(movable) {
+				table.put(hole, entry);
+				hole = slot;
+			}
+		}
+		table.put(hole, 0);
+	}
+
+	private void allocateTable(int capacity) {
+		ByteBuffer oldMemory = tableMemory;
+		tableMemory = arena.allocate(capacity * 4);
+		table = tableMemory.asIntBuffer();
+		mask = capacity - 1;
+		for(int row = 0; row < rows; row++) {
+			int slot = hashes.get(row) & mask;
+			while(table.get(slot) != 0) {
+				slot = (slot + 1) & mask;
+			}
+			table.put(slot, row + 1);
+		}
+		arena.release(oldMemory);
+	}
+
+	private static int hash(int[] ids) {
+		int h = 0x2545F491;
+		for(int id : ids) {
+			h = (h ^ id) * 0x9E3779B9;
+			h ^= h >>> 15;
+		}
+		return h;
+	}
+}
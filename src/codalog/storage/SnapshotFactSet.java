@@ -0,0 +1,290 @@
+package codalog.storage;
+
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import codalog.Expression;
+import codalog.engine.IndexedSet;
+
+/**
+ * {@link IndexedSet} of the facts of a {@link VersionedEDB} at an epoch, with the changes made by a single reader.
+ * <p>
+ * The facts of the epoch are shared with the other readers and never modified. The facts that the engine adds to
+ * the set while it evaluates a query, and the committed facts that it removes, are kept in the set itself, so they
+ * are private to the reader and discarded with the set.
+ * </p>
+ */
+class SnapshotFactSet extends IndexedSet<Expression, String> {
+
+	private final VersionedEDB owner;
+	private final long epoch;
+	private final AtomicBoolean pinned;
+
+	// The facts added by the reader, and the committed facts it removed, by predicate
+	private final Map<String, Set<Expression>> added = new HashMap<>();
+	private final Map<String, Set<Expression>> removed = new HashMap<>();
+
+	SnapshotFactSet(VersionedEDB owner, long epoch, boolean pinned) {
+		this.owner = owner;
+		this.epoch = epoch;
+		this.pinned = new AtomicBoolean(pinned);
+	}
+
+	VersionedEDB getOwner() {
+		return owner;
+	}
+
+	long getEpoch() {
+		return epoch;
+	}
+
+	/* Marks the snapshot as released; false if it was released already, or never pinned */
+	boolean release() {
+		return pinned.getAndSet(false);
+	}
+
+	@Override
+	public Set<Expression> getIndexed(String predicate) {
+		Set<Expression> committed = owner.facts(predicate, epoch);
+		Set<Expression> plus = added.get(predicate);
+		Set<Expression> minus = removed.get(predicate);
+		if(plus == null && minus == null)
+			return committed;
+		if(committed.isEmpty() && plus != null)
+			return Collections.unmodifiableSet(plus);
+		return new View(committed, plus, minus);
+	}
+
+	@Override
+	public Collection<String> getIndexes() {
+		Set<String> indexes = new LinkedHashSet<>();
+		for(String predicate : owner.predicates()) {
+			if(!getIndexed(predicate).isEmpty())
+				indexes.add(predicate);
+		}
+		indexes.addAll(added.keySet());
+		return indexes;
+	}
+
+	@Override
+	public boolean add(Expression fact) {
+		String predicate = fact.getPredicate();
+		Set<Expression> minus = removed.get(predicate);
+		if(minus != null && minus.remove(fact)) {
+			if(minus.isEmpty())
+				removed.remove(predicate);
+		} else if(owner.facts(predicate, epoch).contains(fact)) {
+			return false;
+		} else {
+			Set<Expression> plus = added.get(predicate);
+			if(plus == null) {
+				plus = new HashSet<>();
+				added.put(predicate, plus);
+			}
+			if(!plus.add(fact))
+				return false;
+		}
+		invalidate(predicate);
+		return true;
+	}
+
+	@Override
+	public boolean addAll(Collection<? extends Expression> facts) {
+		boolean changed = false;
+		for(Expression fact : facts) {
+			if(add(fact))
+				changed = true;
+		}
+		return changed;
+	}
+
+	@Override
+	public boolean remove(Object o) {
+		if(!(o instanceof Expression))
+			return false;
+		Expression fact = (Expression) o;
+		String predicate = fact.getPredicate();
+		Set<Expression> plus = added.get(predicate);
+		if(plus != null && plus.remove(fact)) {
+			if(plus.isEmpty())
+				added.remove(predicate);
+		} else if(owner.facts(predicate, epoch).contains(fact)) {
+			Set<Expression> minus = removed.get(predicate);
+			if(minus == null) {
+				minus = new HashSet<>();
+				removed.put(predicate, minus);
+			}
+			if(!minus.add(fact))
+				return false;
+		} else {
+			return false;
+		}
+		invalidate(predicate);
+		return true;
+	}
+
+	@Override
+	public boolean removeAll(Collection<?> c) {
+		boolean changed = false;
+		for(Object o : c) {
+			if(remove(o))
+				changed = true;
+		}
+		return changed;
+	}
+
+	@Override
+	public boolean retainAll(Collection<?> c) {
+		List<Expression> remove = new ArrayList<>();
+		for(Expression fact : this) {
+			if(!c.contains(fact))
+				remove.add(fact);
+		}
+		return removeAll(remove);
+	}
+
+	@Override
+	public void clear() {
+		removeAll(new ArrayList<>(this));
+	}
+
+	@Override
+	public boolean contains(Object o) {
+		if(!(o instanceof Expression))
+			return false;
+		return getIndexed(((Expression) o).getPredicate()).contains(o);
+	}
+
+	@Override
+	public boolean containsAll(Collection<?> c) {
+		for(Object o : c) {
+			if(!contains(o))
+				return false;
+		}
+		return true;
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return size() == 0;
+	}
+
+	@Override
+	public Iterator<Expression> iterator() {
+		List<Set<Expression>> sets = new ArrayList<>();
+		for(String predicate : getIndexes()) {
+			sets.add(getIndexed(predicate));
+		}
+		return new Concatenation(sets);
+	}
+
+	@Override
+	public int size() {
+		int size = 0;
+		for(String predicate : getIndexes()) {
+			size += getIndexed(predicate).size();
+		}
+		return size;
+	}
+
+	@Override
+	public Object[] toArray() {
+		return new ArrayList<>(this).toArray();
+	}
+
+	@Override
+	public <A> A[] toArray(A[] a) {
+		return new ArrayList<>(this).toArray(a);
+	}
+
+	/* The committed facts of a predicate with the reader's changes; `plus` and `minus` may be null */
+	private static final class View extends AbstractSet<Expression> {
+		private final Set<Expression> committed;
+		private final Set<Expression> plus;
+		private final Set<Expression> minus;
+
+		View(Set<Expression> committed, Set<Expression> plus, Set<Expression> minus) {
+			this.committed = committed;
+			this.plus = plus != null ? plus : Collections.<Expression>emptySet();
+			this.minus = minus != null ? minus : Collections.<Expression>emptySet();
+		}
+
+		@Override
+		public boolean contains(Object o) {
+			return plus.contains(o) || (committed.contains(o) && !minus.contains(o));
+		}
+
+		@Override
+		public int size() {
+			return committed.size() - minus.size() + plus.size();
+		}
+
+		@Override
+		public Iterator<Expression> iterator() {
+			return new Iterator<Expression>() {
+				private final Iterator<Expression> first = committed.iterator();
+				private final Iterator<Expression> second = plus.iterator();
+				private Expression next = advance();
+
+				private Expression advance() {
+					while(first.hasNext()) {
+						Expression fact = first.next();
+						if(!minus.contains(fact))
+							return fact;
+					}
+					return second.hasNext() ? second.next() : null;
+				}
+
+				@Override
+				public boolean hasNext() {
+					return next != null;
+				}
+
+				@Override
+				public Expression next() {
+					if(next == null)
+						throw new NoSuchElementException();
+					Expression fact = next;
+					next = advance();
+					return fact;
+				}
+			};
+		}
+	}
+
+	/* Iterates over several sets in turn */
+	private static final class Concatenation implements Iterator<Expression> {
+		private final Iterator<Set<Expression>> sets;
+		private Iterator<Expression> current = Collections.emptyIterator();
+
+		Concatenation(List<Set<Expression>> sets) {
+			this.sets = sets.iterator();
+		}
+
+		@Override
+		public boolean hasNext() {
+			while(!current.hasNext() && sets.hasNext()) {
+				current = sets.next().iterator();
+			}
+			return current.hasNext();
+		}
+
+		@Override
+		public Expression next() {
+			if(!hasNext())
+				throw new NoSuchElementException();
+			return current.next();
+		}
+	}
+}
@@ -0,0 +1,434 @@
+package codalog.storage;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.WeakHashMap;
+
+import codalog.Expression;
+
+/**
+ * An immutable file of the facts of one predicate, sorted by their terms, written when a {@link SpillingFactSet}
+ * moves a relation out of memory.
+ * <p>
+ * The facts are written in blocks of {@value #BLOCK_FACTS}. The first fact of every block and the offset of the
+ * block are kept in memory, so a fact is found by a binary search over the blocks and a read of one block, and the
+ * facts with a given first term are read from the first block that can hold them onwards. A Bloom filter of about
+ * ten bits per fact answers most lookups of facts that aren't in the run without reading it. The last blocks that
+ * were read are cached.
+ * </p><p>
+ * All the reads go through one file handle per run. A run that is deleted while it is being scanned, by a merge, is
+ * kept until the scans are drained or garbage-collected.
+ * </p><p>
+ * The terms are written in UTF-8, prefixed with their length in bytes.
+ * </p>
+ */
+final class SortedRun implements Closeable {
+
+	static final int BLOCK_FACTS = 128;
+	private static final int CACHED_BLOCKS = 8;
+	private static final int BLOOM_BITS_PER_FACT = 10;
+	private static final int BLOOM_HASHES = 4;
+
+	/** Orders the facts of a predicate by their terms, then by their arity */
+	static final Comparator<Expression> ORDER = (a, b) -> {
+		List<String> x = a.getTerms(), y = b.getTerms();
+		int n = Math.min(x.size(), y.size());
+		for(int i = 0; i < n; i++) {
+			int c = x.get(i).compareTo(y.get(i));
+			if(c != 0)
+				return c;
+		}
+		return Integer.compare(x.size(), y.size());
+	};
+
+	private final File file;
+	private final String predicate;
+	private final int count;
+	private final List<Expression> blockKeys;
+	private final long[] blockOffsets;
+	private final long[] bloom;
+	private RandomAccessFile reader;
+
+	// The scans that weren't drained yet, and whether the run was deleted; guarded by this
+	private final Map<FactIterator, Boolean> scans = new WeakHashMap<>();
+	private boolean deleted;
+
+	// The runs that were deleted while they were being scanned; guarded by itself
+	private static final List<SortedRun> retired = new ArrayList<>();
+
+	// The blocks that were read last, by index; guarded by this
+	private final Map<Integer, Expression[]> cache = new LinkedHashMap<Integer, Expression[]>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Integer, Expression[]> eldest) {
+			return size() > CACHED_BLOCKS;
+		}
+	};
+
+	private SortedRun(File file, String predicate, int count, List<Expression> blockKeys, long[] blockOffsets, long[] bloom) {
+		this.file = file;
+		this.predicate = predicate;
+		this.count = count;
+		this.blockKeys = blockKeys;
+		this.blockOffsets = blockOffsets;
+		this.bloom = bloom;
+	}
+
+	/**
+	 * Writes facts, which must be sorted by {@link #ORDER} and distinct, to a new run.
+	 * @param directory Where to create the file
+	 * @param predicate The predicate of the facts
+	 * @param facts The facts
+	 * @param expected The number of facts, or an upper bound of it, to size the Bloom filter
+	 * @return The run
+	 */
+	static SortedRun write(File directory, String predicate, Iterator<Expression> facts, int expected) {
+		sweep();
+		File file;
+		try {
+			file = File.createTempFile("codalog-" + predicate.replaceAll("[^A-Za-z0-9_]", "_") + "-", ".run", directory);
+		} catch (IOException e) {
+			throw new UncheckedIOException("Can't create a run file in " + directory, e);
+		}
+		long[] bloom = new long[Math.max(1, (int) Math.min(Integer.MAX_VALUE / 64, (long) expected * BLOOM_BITS_PER_FACT / 64 + 1))];
+		List<Expression> blockKeys = new ArrayList<>();
+		List<Long> offsets = new ArrayList<>();
+		int count = 0;
+		try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file), 1 << 16)) {
+			ByteArrayOutputStream block = new ByteArrayOutputStream(BLOCK_FACTS * 32);
+			DataOutputStream data = new DataOutputStream(block);
+			long offset = 0;
+			while(facts.hasNext()) {
+				Expression fact = facts.next();
+				if(count % BLOCK_FACTS == 0) {
+					if(block.size() > 0) {
+						block.writeTo(out);
+						offset += block.size();
+						block.reset();
+					}
+					blockKeys.add(fact);
+					offsets.add(offset);
+				}
+				data.writeBoolean(fact.isNew());
+				data.writeShort(fact.arity());
+				for(String term : fact.getTerms()) {
+					byte[] bytes = term.getBytes(StandardCharsets.UTF_8);
+					data.writeInt(bytes.length);
+					data.write(bytes);
+				}
+				addToBloom(bloom, fact);
+				count++;
+			}
+			block.writeTo(out);
+			offsets.add(offset + block.size());
+		} catch (IOException e) {
+			file.delete();
+			throw new UncheckedIOException("Can't write " + file, e);
+		}
+		long[] blockOffsets = new long[offsets.size()];
+		for(int i = 0; i < blockOffsets.length; i++) {
+			blockOffsets[i] = offsets.get(i);
+		}
+		return new SortedRun(file, predicate, count, blockKeys, blockOffsets, bloom);
+	}
+
+	int size() {
+		return count;
+	}
+
+	long fileBytes() {
+		return blockOffsets[blockOffsets.length - 1];
+	}
+
+	/* Bytes of heap used by the block keys, the offsets and the Bloom filter */
+	long indexBytes() {
+		return blockKeys.size() * (80L + 8) + bloom.length * 8L;
+	}
+
+	boolean contains(Expression fact) {
+		if(count == 0 || !mightContain(bloom, fact))
+			return false;
+		int block = blockOf(fact);
+		if(block < 0)
+			return false;
+		for(Expression candidate : readBlock(block)) {
+			int c = ORDER.compare(candidate, fact);
+			if(c == 0)
+				return true;
+			if(c > 0)
+				return false;
+		}
+		return false;
+	}
+
+	/* All the facts, in order, read block by block */
+	Iterator<Expression> iterator() {
+		return new FactIterator();
+	}
+
+	/* The facts whose first term is `first`, in order. They are read through the block cache when the iterator is
+	 * created, since a join looks up the same terms again and again and only needs a few blocks each time. */
+	Iterator<Expression> withFirstTerm(String first) {
+		// The last block that starts before `first`, since its tail may hold facts with `first`
+		int low = 0, high = blockKeys.size() - 1, block = 0;
+		while(low <= high) {
+			int mid = (low + high) >>> 1;
+			Expression key = blockKeys.get(mid);
+			if(key.arity() == 0 || key.getTerms().get(0).compareTo(first) < 0) {
+				block = mid;
+				low = mid + 1;
+			} else {
+				high = mid - 1;
+			}
+		}
+		List<Expression> facts = new ArrayList<>();
+		for(; block < blockKeys.size(); block++) {
+			for(Expression fact : readBlock(block)) {
+				if(fact.arity() == 0)
+					continue;
+				int c = fact.getTerms().get(0).compareTo(first);
+				if(c > 0)
+					return facts.iterator();
+				if(c == 0)
+					facts.add(fact);
+			}
+		}
+		return facts.iterator();
+	}
+
+	/* Deletes the file, or lets the last scan of it do so */
+	void delete() {
+		boolean scanned;
+		synchronized(this) {
+			deleted = true;
+			scanned = !scans.isEmpty();
+		}
+		if(scanned) {
+			synchronized(retired) {
+				retired.add(this);
+			}
+		} else {
+			release();
+		}
+		sweep();
+	}
+
+	private synchronized void release() {
+		close();
+		if(!file.delete() && file.exists()) {
+			// Held open by another process on a platform that doesn't delete open files
+			file.deleteOnExit();
+		}
+	}
+
+	/* Releases the deleted runs whose scans were drained or garbage-collected since */
+	private static void sweep() {
+		synchronized(retired) {
+			for(Iterator<SortedRun> i = retired.iterator(); i.hasNext(); ) {
+				SortedRun run = i.next();
+				synchronized(run) {
+					if(run.scans.isEmpty()) {
+						run.release();
+						i.remove();
+					}
+				}
+			}
+		}
+	}
+
+	@Override
+	public synchronized void close() {
+		if(reader != null) {
+			try {
+				reader.close();
+			} catch (IOException e) {
+				// Nothing to release
+			}
+			reader = null;
+		}
+		cache.clear();
+	}
+
+	@Override
+	public String toString() {
+		return file.getName() + " (" + predicate + ", " + count + " facts)";
+	}
+
+	/* The block that holds the fact if any does, or -1 */
+	private int blockOf(Expression fact) {
+		int low = 0, high = blockKeys.size() - 1, found = -1;
+		while(low <= high) {
+			int mid = (low + high) >>> 1;
+			if(ORDER.compare(blockKeys.get(mid), fact) <= 0) {
+				found = mid;
+				low = mid + 1;
+			} else {
+				high = mid - 1;
+			}
+		}
+		return found;
+	}
+
+	private synchronized Expression[] readBlock(int block) {
+		Expression[] facts = cache.get(block);
+		if(facts == null) {
+			facts = loadBlock(block);
+			cache.put(block, facts);
+		}
+		return facts;
+	}
+
+	/* Reads a block from the file, bypassing the cache */
+	private synchronized Expression[] loadBlock(int block) {
+		Expression[] facts;
+		try {
+			if(reader == null)
+				reader = new RandomAccessFile(file, "r");
+			byte[] bytes = new byte[(int) (blockOffsets[block + 1] - blockOffsets[block])];
+			reader.seek(blockOffsets[block]);
+			reader.readFully(bytes);
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+			int size = Math.min(BLOCK_FACTS, count - block * BLOCK_FACTS);
+			facts = new Expression[size];
+			for(int i = 0; i < size; i++) {
+				facts[i] = readFact(in);
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException("Can't read " + file, e);
+		}
+		return facts;
+	}
+
+	private Expression readFact(DataInputStream in) throws IOException {
+		boolean isNew = in.readBoolean();
+		String[] terms = new String[in.readUnsignedShort()];
+		for(int i = 0; i < terms.length; i++) {
+			byte[] bytes = new byte[in.readInt()];
+			in.readFully(bytes);
+			terms[i] = new String(bytes, StandardCharsets.UTF_8);
+		}
+		Expression fact = new Expression(predicate, terms);
+		return isNew ? fact.asNew() : fact;
+	}
+
+	private static void addToBloom(long[] bloom, Expression fact) {
+		int h = fact.hashCode(), step = Integer.rotateLeft(h, 16) * 0x9E3779B9 | 1;
+		long bits = bloom.length * 64L;
+		for(int i = 0; i < BLOOM_HASHES; i++, h += step) {
+			long bit = (h & 0xFFFFFFFFL) % bits;
+			bloom[(int) (bit >>> 6)] |= 1L << bit;
+		}
+	}
+
+	private static boolean mightContain(long[] bloom, Expression fact) {
+		int h = fact.hashCode(), step = Integer.rotateLeft(h, 16) * 0x9E3779B9 | 1;
+		long bits = bloom.length * 64L;
+		for(int i = 0; i < BLOOM_HASHES; i++, h += step) {
+			long bit = (h & 0xFFFFFFFFL) % bits;
+			if((bloom[(int) (bit >>> 6)] & (1L << bit)) == 0)
+				return false;
+		}
+		return true;
+	}
+
+	/* Reads the facts block by block, without caching the blocks, so that a scan doesn't evict the ones that the
+	 * lookups use. The iterator is registered with the run until it is drained, so that a merge can delete the run
+	 * while it is in use; if it is dropped before, the registration goes away with it. */
+	private final class FactIterator implements Iterator<Expression> {
+		private Expression[] facts = new Expression[0];
+		private int block, position;
+
+		FactIterator() {
+			synchronized(SortedRun.this) {
+				scans.put(this, Boolean.TRUE);
+			}
+		}
+
+		@Override
+		public boolean hasNext() {
+			if(position < facts.length)
+				return true;
+			if(block < blockKeys.size()) {
+				facts = loadBlock(block++);
+				position = 0;
+				return true;
+			}
+			boolean release;
+			synchronized(SortedRun.this) {
+				release = scans.remove(this) != null && deleted && scans.isEmpty();
+			}
+			if(release)
+				sweep();
+			return false;
+		}
+
+		@Override
+		public Expression next() {
+			if(!hasNext())
+				throw new NoSuchElementException();
+			return facts[position++];
+		}
+	}
+
+	/* Merges sorted iterators of distinct facts into one sorted iterator without duplicates */
+	static Iterator<Expression> merge(List<Iterator<Expression>> sources) {
+		if(sources.isEmpty())
+			return Collections.emptyIterator();
+		if(sources.size() == 1)
+			return sources.get(0);
+		return new Iterator<Expression>() {
+			private final Expression[] heads = new Expression[sources.size()];
+			{
+				for(int i = 0; i < heads.length; i++) {
+					heads[i] = sources.get(i).hasNext() ? sources.get(i).next() : null;
+				}
+			}
+
+			@Override
+			public boolean hasNext() {
+				for(Expression head : heads) {
+					if(head != null)
+						return true;
+				}
+				return false;
+			}
+
+			@Override
+			public Expression next() {
+				Expression min = null;
+				for(Expression head : heads) {
+					if(head != null && (min == null || ORDER.compare(head, min) < 0))
+						min = head;
+				}
+				if(min == null)
+					throw new NoSuchElementException();
+				for(int i = 0; i < heads.length; i++) {
+					if(heads[i] != null && ORDER.compare(heads[i], min) == 0) {
+						heads[i] = sources.get(i).hasNext() ? sources.get(i).next() : null;
+					}
+				}
+				return min;
+			}
+		};
+	}
+}
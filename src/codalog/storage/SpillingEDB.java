@@ -0,0 +1,127 @@
+package codalog.storage;
+
+import java.io.File;
+import java.util.Collection;
+
+import codalog.EDB;
+import codalog.Expression;
+import codalog.engine.IndexedSet;
+import codalog.engine.MemoryFootprint;
+import codalog.interfaces.EDBInterface;
+
+/**
+ * {@link EDBInterface} that keeps the facts within a memory budget by spilling the predicates that aren't in use
+ * to sorted run files on disk, so that an evaluation that derives more facts than the heap can hold finishes,
+ * more slowly, instead of failing with an {@code OutOfMemoryError}.
+ * <p>
+ * The budget covers the facts of the EDB, including the ones that the engine derives into it, and the facts that the
+ * engine derives in each iteration of a fixpoint, which are spilled the same way before they are merged into the
+ * EDB. While the facts fit in the budget, this behaves like the default {@link EDB}. When they don't, the facts in
+ * memory of the predicate that was used the longest time ago are sorted and written to a run; the runs of a
+ * predicate are merged when there are too many of them. Joins read the runs sequentially, or only the facts that
+ * have the bound first term of a goal, and lookups of single facts go through the Bloom filter and the sparse index
+ * of each run. See {@link SpillingFactSet} and {@link SortedRun}.
+ * </p><p>
+ * Size the budget well below the maximum heap: the evaluation also needs memory for the bindings of the rules that
+ * it matches, for the indexes that the engine builds, and for the terms of the facts, which aren't counted. The run
+ * files are deleted when the facts are cleared; they are left behind if the JVM exits before.
+ * </p><p>
+ * Use it through {@link codalog.DatalogInterpreter#setEdbProvider(EDBInterface)} before adding any facts.
+ * </p>
+ * @see EDB
+ */
+public class SpillingEDB implements EDBInterface {
+
+	private final SpillingFactSet.Budget budget;
+	private final SpillingFactSet facts;
+
+	/**
+	 * Creates an EDB that spills to the temporary directory.
+	 * @param budgetBytes The bytes of facts to keep in memory
+	 */
+	public SpillingEDB(long budgetBytes) {
+		this(budgetBytes, new File(System.getProperty("java.io.tmpdir")));
+	}
+
+	/**
+	 * Creates an EDB that spills to a specific directory.
+	 * @param budgetBytes The bytes of facts to keep in memory
+	 * @param directory The directory of the run files; it must exist
+	 */
+	public SpillingEDB(long budgetBytes, File directory) {
+		if(budgetBytes <= 0)
+			throw new IllegalArgumentException("The memory budget must be positive");
+		if(!directory.isDirectory())
+			throw new IllegalArgumentException(directory + " is not a directory");
+		this.budget = new SpillingFactSet.Budget(budgetBytes, directory);
+		this.facts = new SpillingFactSet(budget);
+	}
+
+	@Override
+	public IndexedSet<Expression, String> allFacts() {
+		return facts;
+	}
+
+	@Override
+	public void add(Expression fact) {
+		facts.add(fact);
+	}
+
+	@Override
+	public boolean removeAll(Collection<Expression> facts) {
+		return this.facts.removeAll(facts);
+	}
+
+	@Override
+	public Collection<Expression> getFacts(String predicate) {
+		return facts.getIndexed(predicate);
+	}
+
+	/**
+	 * Accounts for the facts of every predicate that are in memory and for the indexes of its runs.
+	 */
+	@Override
+	public MemoryFootprint footprint() {
+		return facts.footprint();
+	}
+
+	/**
+	 * Retrieves the memory budget.
+	 * @return the number of bytes of facts that are kept in memory
+	 */
+	public long getBudgetBytes() {
+		return budget.getLimit();
+	}
+
+	/**
+	 * Retrieves the estimated memory used by the facts in memory, of the EDB and of the evaluation in progress.
+	 * @return the number of bytes in use
+	 */
+	public long getUsedBytes() {
+		return budget.getUsed();
+	}
+
+	/**
+	 * Retrieves the size of the run files that the facts were spilled to.
+	 * @return the number of bytes on disk
+	 */
+	public long getSpilledBytes() {
+		return budget.getSpilledBytes();
+	}
+
+	/**
+	 * Retrieves the number of times that the facts of a predicate were spilled to a new run.
+	 * @return the number of spills
+	 */
+	public long getSpills() {
+		return budget.getSpills();
+	}
+
+	/**
+	 * Retrieves the number of times that the runs of a predicate were merged into one.
+	 * @return the number of merges
+	 */
+	public long getMerges() {
+		return budget.getMerges();
+	}
+}
@@ -0,0 +1,542 @@
+package codalog.storage;
+
+import java.io.File;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import codalog.DatalogInterpreter;
+import codalog.Expression;
+import codalog.engine.FactScanner;
+import codalog.engine.IndexedSet;
+import codalog.engine.MemoryFootprint;
+import codalog.engine.StackMap;
+
+/**
+ * {@link IndexedSet} of facts that keeps the facts of each predicate in memory until a memory budget is exceeded,
+ * and then moves the facts of the predicate that was used the longest time ago to a {@link SortedRun} on disk.
+ * <p>
+ * A relation is the facts of one predicate: the ones in memory, in a {@code HashSet}, and the runs it spilled,
+ * minus the facts of the runs that were removed since. When a relation has more than {@value #MAX_RUNS} runs, they
+ * are merged into one, dropping the removed facts, like the merge phase of an external sort. The set itself and the
+ * sets of the facts derived in each iteration, see {@link #newDelta()}, share the budget, so the relation that is
+ * spilled can be any of them; the relations that the engine is working on are the last to go.
+ * </p><p>
+ * The engine matches goals against the set through {@link FactScanner#scan(Expression, Map)}: the facts in memory
+ * are unified with the goal one by one, as they would be by the engine, and from the runs only the facts with the
+ * goal's first term are read if it is bound, otherwise all of them, sequentially. Checking whether a fact is in a
+ * run reads at most one block of it.
+ * </p><p>
+ * The budget applies to the facts and their entries in the sets, estimated like
+ * {@link MemoryFootprint#estimate(IndexedSet)} does; the terms aren't counted, since facts share them. The
+ * structures that the engine derives from the facts of a predicate, like the sorted copies of a range index, are
+ * built from all of its facts, including the spilled ones, and aren't counted either.
+ * </p>
+ */
+class SpillingFactSet extends IndexedSet<Expression, String> implements FactScanner {
+
+	static final int MAX_RUNS = 8;
+
+	// The estimated size of a fact in memory and of its entries in the set of its relation, without its terms
+	private static final long FACT_BYTES = 32 + 24 + 16 + 16 + 32 + 8;
+
+	private final Budget budget;
+	private final Map<String, Relation> relations = new HashMap<>();
+	private int size = 0;
+
+	SpillingFactSet(Budget budget) {
+		this.budget = budget;
+	}
+
+	/**
+	 * The memory budget and the spill directory shared by a set and its deltas.
+	 */
+	static final class Budget {
+		private final long limit;
+		private final File directory;
+		private final Set<Relation> relations = new HashSet<>();
+		private long used;
+		private long clock;
+		private long spills;
+		private long merges;
+
+		Budget(long limit, File directory) {
+			this.limit = limit;
+			this.directory = directory;
+		}
+
+		long getLimit() {
+			return limit;
+		}
+
+		File getDirectory() {
+			return directory;
+		}
+
+		synchronized long getUsed() {
+			return used;
+		}
+
+		synchronized long getSpills() {
+			return spills;
+		}
+
+		synchronized long getMerges() {
+			return merges;
+		}
+
+		/* The bytes of the runs of all the relations on disk */
+		synchronized long getSpilledBytes() {
+			long bytes = 0;
+			for(Relation relation : relations) {
+				for(SortedRun run : relation.runs) {
+					bytes += run.fileBytes();
+				}
+			}
+			return bytes;
+		}
+
+		synchronized long tick() {
+			return ++clock;
+		}
+
+		/* Accounts for memory that a relation took, spilling the coldest relations while the budget is exceeded */
+		synchronized void reserve(long bytes) {
+			used += bytes;
+			while(used > limit) {
+				Relation coldest = null;
+				for(Relation relation : relations) {
+					if(!relation.memory.isEmpty() && (coldest == null || relation.lastUsed < coldest.lastUsed))
+						coldest = relation;
+				}
+				if(coldest == null)
+					return;
+				coldest.spill();
+			}
+		}
+
+		synchronized void release(long bytes) {
+			used -= bytes;
+		}
+
+		synchronized void register(Relation relation) {
+			relations.add(relation);
+		}
+
+		synchronized void unregister(Relation relation) {
+			relations.remove(relation);
+		}
+	}
+
+	/* The facts of a predicate, in memory and in runs */
+	private final class Relation {
+		final String predicate;
+		// Replaced rather than cleared when spilled, so that the iterators over it stay valid
+		Set<Expression> memory = new HashSet<>();
+		long memoryBytes;
+		// Copied on write, for the same reason
+		List<SortedRun> runs = Collections.emptyList();
+		// The facts of the runs that were removed
+		Set<Expression> removed = new HashSet<>();
+		int spilled;
+		long lastUsed;
+
+		Relation(String predicate) {
+			this.predicate = predicate;
+			budget.register(this);
+		}
+
+		int size() {
+			return memory.size() + spilled;
+		}
+
+		void touch() {
+			lastUsed = budget.tick();
+		}
+
+		boolean inRuns(Expression fact) {
+			for(SortedRun run : runs) {
+				if(run.contains(fact))
+					return true;
+			}
+			return false;
+		}
+
+		boolean contains(Expression fact) {
+			return memory.contains(fact) || !runs.isEmpty() && !removed.contains(fact) && inRuns(fact);
+		}
+
+		/* Writes the facts in memory to a new run; called by the budget, which holds its lock */
+		void spill() {
+			List<Expression> sorted = new ArrayList<>(memory);
+			sorted.sort(SortedRun.ORDER);
+			SortedRun run = SortedRun.write(budget.getDirectory(), predicate, sorted.iterator(), sorted.size());
+			List<SortedRun> next = new ArrayList<>(runs);
+			next.add(run);
+			runs = next;
+			spilled += sorted.size();
+			memory = new HashSet<>();
+			budget.used -= memoryBytes;
+			memoryBytes = 0;
+			budget.spills++;
+			if(runs.size() > MAX_RUNS)
+				merge();
+		}
+
+		/* Merges the runs into one, without the removed facts */
+		private void merge() {
+			List<Iterator<Expression>> sources = new ArrayList<>();
+			int expected = 0;
+			for(SortedRun run : runs) {
+				sources.add(run.iterator());
+				expected += run.size();
+			}
+			Set<Expression> dropped = removed;
+			Iterator<Expression> merged = SortedRun.merge(sources);
+			Iterator<Expression> kept = new Iterator<Expression>() {
+				private Expression next = advance();
+
+				private Expression advance() {
+					while(merged.hasNext()) {
+						Expression fact = merged.next();
+						if(!dropped.contains(fact))
+							return fact;
+					}
+					return null;
+				}
+
+				@Override
+				public boolean hasNext() {
+					return next != null;
+				}
+
+				@Override
+				public Expression next() {
+					if(next == null)
+						throw new NoSuchElementException();
+					Expression fact = next;
+					next = advance();
+					return fact;
+				}
+			};
+			SortedRun run = SortedRun.write(budget.getDirectory(), predicate, kept, expected);
+			List<SortedRun> old = runs;
+			runs = Collections.singletonList(run);
+			removed = new HashSet<>();
+			spilled = run.size();
+			for(SortedRun o : old) {
+				o.delete();
+			}
+			budget.merges++;
+		}
+
+		void drop() {
+			for(SortedRun run : runs) {
+				run.delete();
+			}
+			runs = Collections.emptyList();
+			budget.release(memoryBytes);
+			budget.unregister(this);
+		}
+
+		/* The facts of the relation; with `first`, only the ones in runs whose first term is `first`, but all the
+		 * ones in memory */
+		Iterator<Expression> iterator(String first) {
+			List<Iterator<Expression>> parts = new ArrayList<>();
+			parts.add(memory.iterator());
+			Set<Expression> removed = this.removed;
+			for(SortedRun run : runs) {
+				Iterator<Expression> facts = first == null ? run.iterator() : run.withFirstTerm(first);
+				parts.add(removed.isEmpty() ? facts : new Iterator<Expression>() {
+					private Expression next = advance();
+
+					private Expression advance() {
+						while(facts.hasNext()) {
+							Expression fact = facts.next();
+							if(!removed.contains(fact))
+								return fact;
+						}
+						return null;
+					}
+
+					@Override
+					public boolean hasNext() {
+						return next != null;
+					}
+
+					@Override
+					public Expression next() {
+						if(next == null)
+							throw new NoSuchElementException();
+						Expression fact = next;
+						next = advance();
+						return fact;
+					}
+				});
+			}
+			return concat(parts);
+		}
+	}
+
+	/**
+	 * Creates an empty set that shares the budget and the spill directory of this one.
+	 */
+	@Override
+	public IndexedSet<Expression, String> newDelta() {
+		return new SpillingFactSet(budget);
+	}
+
+	@Override
+	public Iterable<Map<String, String>> scan(Expression goal, Map<String, String> bindings) {
+		Relation relation = relations.get(goal.getPredicate());
+		if(relation == null || relation.size() == 0)
+			return Collections.emptyList();
+		relation.touch();
+		String first = null;
+		if(goal.arity() > 0) {
+			first = goal.getTerms().get(0);
+			if(DatalogInterpreter.isVariable(first))
+				first = bindings == null ? null : bindings.get(first);
+		}
+		String bound = first;
+		return () -> new Iterator<Map<String, String>>() {
+			private final Iterator<Expression> facts = relation.iterator(bound);
+			private Map<String, String> next = advance();
+
+			private Map<String, String> advance() {
+				while(facts.hasNext()) {
+					Map<String, String> newBindings = new StackMap<>(bindings);
+					if(facts.next().unify(goal, newBindings))
+						return newBindings;
+				}
+				return null;
+			}
+
+			@Override
+			public boolean hasNext() {
+				return next != null;
+			}
+
+			@Override
+			public Map<String, String> next() {
+				if(next == null)
+					throw new NoSuchElementException();
+				Map<String, String> result = next;
+				next = advance();
+				return result;
+			}
+		};
+	}
+
+	@Override
+	public Set<Expression> getIndexed(String predicate) {
+		Relation relation = relations.get(predicate);
+		if(relation == null) return Collections.emptySet();
+		relation.touch();
+		return new AbstractSet<Expression>() {
+			@Override
+			public Iterator<Expression> iterator() {
+				return relation.iterator(null);
+			}
+
+			@Override
+			public int size() {
+				return relation.size();
+			}
+
+			@Override
+			public boolean contains(Object o) {
+				return o instanceof Expression && relation.contains((Expression) o);
+			}
+		};
+	}
+
+	@Override
+	public Collection<String> getIndexes() {
+		Collection<String> indexes = new ArrayList<>();
+		for(Relation relation : relations.values()) {
+			if(relation.size() > 0)
+				indexes.add(relation.predicate);
+		}
+		return indexes;
+	}
+
+	@Override
+	public boolean add(Expression fact) {
+		Relation relation = relations.get(fact.getPredicate());
+		if(relation == null) {
+			relation = new Relation(fact.getPredicate());
+			relations.put(fact.getPredicate(), relation);
+		}
+		relation.touch();
+		if(relation.memory.contains(fact))
+			return false;
+		if(!relation.runs.isEmpty() && relation.inRuns(fact)) {
+			// A fact of a run that was removed is added back
+			if(!relation.removed.remove(fact))
+				return false;
+			relation.spilled++;
+		} else {
+			relation.memory.add(fact);
+			long bytes = FACT_BYTES + 4L * fact.arity();
+			relation.memoryBytes += bytes;
+			budget.reserve(bytes);
+		}
+		invalidate(fact.getPredicate());
+		size++;
+		return true;
+	}
+
+	@Override
+	public boolean addAll(Collection<? extends Expression> facts) {
+		boolean result = false;
+		for(Expression fact : facts) {
+			if(add(fact))
+				result = true;
+		}
+		return result;
+	}
+
+	@Override
+	public void clear() {
+		for(Relation relation : relations.values()) {
+			invalidate(relation.predicate);
+			relation.drop();
+		}
+		relations.clear();
+		size = 0;
+	}
+
+	@Override
+	public boolean contains(Object o) {
+		if(!(o instanceof Expression))
+			return false;
+		Relation relation = relations.get(((Expression) o).getPredicate());
+		return relation != null && relation.contains((Expression) o);
+	}
+
+	@Override
+	public boolean containsAll(Collection<?> c) {
+		for(Object o : c) {
+			if(!contains(o))
+				return false;
+		}
+		return true;
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	@Override
+	public Iterator<Expression> iterator() {
+		List<Iterator<Expression>> parts = new ArrayList<>();
+		for(Relation relation : new ArrayList<>(relations.values())) {
+			parts.add(relation.iterator(null));
+		}
+		return concat(parts);
+	}
+
+	@Override
+	public boolean remove(Object o) {
+		if(!(o instanceof Expression))
+			return false;
+		Expression fact = (Expression) o;
+		Relation relation = relations.get(fact.getPredicate());
+		if(relation == null)
+			return false;
+		if(relation.memory.remove(fact)) {
+			long bytes = FACT_BYTES + 4L * fact.arity();
+			relation.memoryBytes -= bytes;
+			budget.release(bytes);
+		} else if(relation.runs.isEmpty() || relation.removed.contains(fact) || !relation.inRuns(fact)) {
+			return false;
+		} else {
+			relation.removed.add(fact);
+			relation.spilled--;
+		}
+		invalidate(fact.getPredicate());
+		size--;
+		return true;
+	}
+
+	@Override
+	public boolean removeAll(Collection<?> c) {
+		boolean changed = false;
+		for(Object o : c) {
+			if(remove(o))
+				changed = true;
+		}
+		return changed;
+	}
+
+	@Override
+	public boolean retainAll(Collection<?> c) {
+		List<Expression> remove = new ArrayList<>();
+		for(Expression fact : this) {
+			if(!c.contains(fact))
+				remove.add(fact);
+		}
+		return removeAll(remove);
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public Object[] toArray() {
+		return new ArrayList<>(this).toArray();
+	}
+
+	@Override
+	public <A> A[] toArray(A[] a) {
+		return new ArrayList<>(this).toArray(a);
+	}
+
+	/* The facts in memory and the index of the runs of each predicate; the runs themselves are on disk */
+	MemoryFootprint footprint() {
+		List<MemoryFootprint.Relation> footprints = new ArrayList<>();
+		for(Relation relation : relations.values()) {
+			long indexBytes = MemoryFootprint.hashMapBytes(relation.memory.size()) - relation.memory.size() * 32L;
+			for(SortedRun run : relation.runs) {
+				indexBytes += run.indexBytes();
+			}
+			footprints.add(new MemoryFootprint.Relation(relation.predicate, relation.size(), relation.memoryBytes, indexBytes));
+		}
+		return new MemoryFootprint(footprints, 0, 0);
+	}
+
+	private static Iterator<Expression> concat(List<Iterator<Expression>> parts) {
+		return new Iterator<Expression>() {
+			private int current = 0;
+
+			@Override
+			public boolean hasNext() {
+				while(current < parts.size()) {
+					if(parts.get(current).hasNext())
+						return true;
+					current++;
+				}
+				return false;
+			}
+
+			@Override
+			public Expression next() {
+				if(!hasNext())
+					throw new NoSuchElementException();
+				return parts.get(current).next();
+			}
+		};
+	}
+}
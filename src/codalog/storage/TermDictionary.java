@@ -0,0 +1,56 @@
+package codalog.storage;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import codalog.engine.MemoryFootprint;
+
+/**
+ * Dictionary that maps the terms of facts to dense {@code int} ids.
+ * <p>
+ * Every distinct term is stored once, so the relations of a {@link ColumnarFactSet} only need to
+ * store {@code int}s. Ids are never reused, which means that the ids of the terms can be used to index arrays.
+ * </p>
+ */
+final class TermDictionary {
+
+	private final Map<String, Integer> ids = new HashMap<>();
+	private final List<String> terms = new ArrayList<>();
+
+	/* Returns the id of a term, or -1 if the term is not in the dictionary */
+	int getId(String term) {
+		Integer id = ids.get(term);
+		return id == null ? -1 : id;
+	}
+
+	/* Returns the id of a term, adding it to the dictionary if necessary */
+	int intern(String term) {
+		Integer id = ids.get(term);
+		if(id == null) {
+			id = terms.size();
+			ids.put(term, id);
+			terms.add(term);
+		}
+		return id;
+	}
+
+	String get(int id) {
+		return terms.get(id);
+	}
+
+	int size() {
+		return terms.size();
+	}
+
+	/* Approximate number of bytes used by the map, the list and the terms; the ids above 127 are boxed */
+	long usedBytes() {
+		long bytes = MemoryFootprint.hashMapBytes(ids.size()) + 24 + 16 + terms.size() * 4L
+				+ Math.max(0, terms.size() - 128) * 16L;
+		for(String term : terms) {
+			bytes += MemoryFootprint.stringBytes(term);
+		}
+		return bytes;
+	}
+}
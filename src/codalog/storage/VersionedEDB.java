@@ -0,0 +1,308 @@
+package codalog.storage;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import codalog.EDB;
+import codalog.Expression;
+import codalog.engine.IndexedSet;
+import codalog.interfaces.EDBInterface;
+
+/**
+ * {@link EDBInterface} with multi-version storage, so that queries can run while facts are added and removed.
+ * <p>
+ * Every write - {@link #add(Expression)}, {@link #addAll(Collection)} or {@link #removeAll(Collection)} - commits
+ * atomically as a new epoch. The facts of each predicate are kept in an append-only log in which every entry records
+ * the epoch that added it and the epoch that removed it, so the state of the database at any epoch can be read
+ * from the log while it keeps growing.
+ * </p><p>
+ * {@link #beginRead()} pins the current epoch and returns a snapshot of the facts at that epoch, which the engine
+ * evaluates the query against without taking any lock; the facts that it derives stay in the snapshot. Writers
+ * serialize among themselves only. The set of facts of a predicate at an epoch is built once and shared by all
+ * the snapshots that see the same version of the predicate, so readers only pay for it after a write.
+ * </p><p>
+ * Entries removed in an epoch that no pinned snapshot can see anymore are dropped from the logs, so the old
+ * versions are reclaimed once the last reader that needs them calls {@link #endRead(IndexedSet)}.
+ * {@link #allFacts()} returns an unpinned snapshot of the latest epoch, which is only consistent as long as
+ * nothing is removed concurrently; it also doesn't keep the facts derived by
+ * {@link codalog.DatalogInterpreter#expand()}, since those are never committed.
+ * </p>
+ * @see EDB
+ */
+public class VersionedEDB implements EDBInterface {
+
+	// Logs with more removed entries than this, and at least half of them removed, are compacted
+	private static final int COMPACTION_THRESHOLD = 64;
+
+	private final Map<String, Relation> relations = new ConcurrentHashMap<>();
+
+	// The last committed epoch; written by the writers only, while they hold the lock on this
+	private volatile long epoch = 0;
+
+	// The epochs pinned by the readers, with the number of readers for each; guarded by itself
+	private final TreeMap<Long, Integer> pins = new TreeMap<>();
+
+	@Override
+	public IndexedSet<Expression, String> allFacts() {
+		return new SnapshotFactSet(this, epoch, false);
+	}
+
+	@Override
+	public IndexedSet<Expression, String> beginRead() {
+		synchronized(pins) {
+			long pinned = epoch;
+			pins.merge(pinned, 1, Integer::sum);
+			return new SnapshotFactSet(this, pinned, true);
+		}
+	}
+
+	@Override
+	public void endRead(IndexedSet<Expression, String> facts) {
+		if(!(facts instanceof SnapshotFactSet))
+			return;
+		SnapshotFactSet snapshot = (SnapshotFactSet) facts;
+		if(snapshot.getOwner() != this || !snapshot.release())
+			return;
+		synchronized(pins) {
+			Integer readers = pins.get(snapshot.getEpoch());
+			if(readers == null)
+				return;
+			if(readers == 1) {
+				pins.remove(snapshot.getEpoch());
+			} else {
+				pins.put(snapshot.getEpoch(), readers - 1);
+			}
+		}
+	}
+
+	@Override
+	public boolean supportsConcurrentReads() {
+		return true;
+	}
+
+	@Override
+	public void add(Expression fact) {
+		addAll(Collections.singletonList(fact));
+	}
+
+	/**
+	 * Adds facts to the database in a single epoch, so that a reader either sees all of them or none.
+	 * @param facts The facts to add
+	 * @return true if some of the facts were not in the database yet
+	 */
+	public synchronized boolean addAll(Collection<Expression> facts) {
+		long next = epoch + 1;
+		Set<Relation> changed = new HashSet<>();
+		for(Expression fact : facts) {
+			Relation relation = relations.computeIfAbsent(fact.getPredicate(), p -> new Relation());
+			if(relation.add(fact.intern(), next))
+				changed.add(relation);
+		}
+		return commit(next, changed);
+	}
+
+	/**
+	 * Removes facts from the database in a single epoch, so that a reader either sees all of them removed or none.
+	 * @param facts The facts to remove
+	 * @return true if facts were removed
+	 */
+	@Override
+	public synchronized boolean removeAll(Collection<Expression> facts) {
+		long next = epoch + 1;
+		Set<Relation> changed = new HashSet<>();
+		for(Expression fact : facts) {
+			Relation relation = relations.get(fact.getPredicate());
+			if(relation != null && relation.remove(fact, next))
+				changed.add(relation);
+		}
+		if(!commit(next, changed))
+			return false;
+		long oldest = getOldestPinnedEpoch();
+		for(Relation relation : changed) {
+			relation.compact(oldest);
+		}
+		return true;
+	}
+
+	/* Publishes the epoch of a write, if it changed anything */
+	private boolean commit(long next, Collection<Relation> changed) {
+		if(changed.isEmpty())
+			return false;
+		for(Relation relation : changed) {
+			relation.modified = next;
+		}
+		epoch = next;
+		return true;
+	}
+
+	@Override
+	public Collection<Expression> getFacts(String predicate) {
+		return facts(predicate, epoch);
+	}
+
+	/* The facts of a predicate at an epoch */
+	Set<Expression> facts(String predicate, long at) {
+		Relation relation = relations.get(predicate);
+		if(relation == null)
+			return Collections.emptySet();
+		return relation.facts(at);
+	}
+
+	/* The predicates that have facts at some epoch, and possibly others */
+	Collection<String> predicates() {
+		return relations.keySet();
+	}
+
+	/**
+	 * The last committed epoch.
+	 * @return The epoch; it increases by one with every write that changes the database
+	 */
+	public long getEpoch() {
+		return epoch;
+	}
+
+	/**
+	 * The oldest epoch that a reader still needs.
+	 * @return The oldest pinned epoch, or the last committed epoch if no snapshot is pinned
+	 */
+	public long getOldestPinnedEpoch() {
+		synchronized(pins) {
+			return pins.isEmpty() ? epoch : pins.firstKey();
+		}
+	}
+
+	/**
+	 * The number of snapshots returned by {@link #beginRead()} that haven't been released yet.
+	 * @return The number of readers
+	 */
+	public int getReaders() {
+		synchronized(pins) {
+			int readers = 0;
+			for(int count : pins.values()) {
+				readers += count;
+			}
+			return readers;
+		}
+	}
+
+	/* A fact in the log of a relation, with the epochs in which it was added and removed */
+	private static final class Entry {
+		final Expression fact;
+		final long added;
+		volatile long removed = Long.MAX_VALUE;
+
+		Entry(Expression fact, long added) {
+			this.fact = fact;
+			this.added = added;
+		}
+
+		boolean isVisible(long at) {
+			return added <= at && at < removed;
+		}
+	}
+
+	/* A prefix of a log. The entries beyond `size` are written by the writer and never read through this */
+	private static final class Log {
+		final Entry[] entries;
+		final int size;
+
+		Log(Entry[] entries, int size) {
+			this.entries = entries;
+			this.size = size;
+		}
+	}
+
+	/* The facts of a version of a relation, and the epoch of that version */
+	private static final class Version {
+		final Set<Expression> facts;
+		final long modified;
+
+		Version(Set<Expression> facts, long modified) {
+			this.facts = facts;
+			this.modified = modified;
+		}
+	}
+
+	/* The versions of the facts of a predicate */
+	private static final class Relation {
+		private volatile Log log = new Log(new Entry[16], 0);
+		// The epoch of the last write to the relation
+		volatile long modified;
+		private volatile Version latest;
+
+		// The entries that aren't removed, and the number of the others; only used by the writers
+		private final Map<Expression, Entry> live = new HashMap<>();
+		private int removed;
+
+		boolean add(Expression fact, long at) {
+			if(live.containsKey(fact))
+				return false;
+			Entry entry = new Entry(fact, at);
+			live.put(fact, entry);
+			Log current = log;
+			Entry[] entries = current.entries;
+			if(current.size == entries.length)
+				entries = Arrays.copyOf(entries, entries.length * 2);
+			entries[current.size] = entry;
+			log = new Log(entries, current.size + 1);
+			return true;
+		}
+
+		boolean remove(Expression fact, long at) {
+			Entry entry = live.remove(fact);
+			if(entry == null)
+				return false;
+			entry.removed = at;
+			removed++;
+			return true;
+		}
+
+		/* Drops the entries that were removed at or before an epoch, which no reader can see anymore */
+		void compact(long oldest) {
+			Log current = log;
+			if(removed <= COMPACTION_THRESHOLD || removed * 2 < current.size)
+				return;
+			List<Entry> kept = new ArrayList<>(current.size - removed);
+			int stillRemoved = 0;
+			for(int i = 0; i < current.size; i++) {
+				Entry entry = current.entries[i];
+				if(entry.removed <= oldest)
+					continue;
+				kept.add(entry);
+				if(entry.removed != Long.MAX_VALUE)
+					stillRemoved++;
+			}
+			Entry[] entries = kept.toArray(new Entry[Math.max(16, kept.size() * 2)]);
+			log = new Log(entries, kept.size());
+			removed = stillRemoved;
+		}
+
+		Set<Expression> facts(long at) {
+			Version version = latest;
+			long modified = this.modified;
+			if(version != null && version.modified == modified && at >= modified)
+				return version.facts;
+			Log current = log;
+			Set<Expression> facts = new HashSet<>();
+			for(int i = 0; i < current.size; i++) {
+				Entry entry = current.entries[i];
+				if(entry.isVisible(at))
+					facts.add(entry.fact);
+			}
+			facts = Collections.unmodifiableSet(facts);
+			// Only the latest version is worth sharing; a snapshot of an older one is being evaluated already
+			if(at >= modified)
+				latest = new Version(facts, modified);
+			return facts;
+		}
+	}
+}
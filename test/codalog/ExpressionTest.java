@@ -0,0 +1,52 @@
+package codalog;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Checks the interning of expressions, and that marking a fact as new doesn't change the facts it is equal to.
+ */
+public class ExpressionTest {
+
+	@Test
+	public void newFactsAreInternedApart() {
+		Expression fact = new Expression("p", "a", "b").intern();
+		Expression derived = new Expression("p", "a", "b").asNew().intern();
+		assertFalse(fact.isNew());
+		assertTrue(derived.isNew());
+		assertEquals(fact, derived);
+		assertNotSame(fact, derived);
+		assertSame(fact, new Expression("p", "a", "b").intern());
+		assertSame(derived, derived.asNew());
+	}
+
+	@Test
+	public void derivedFactsDontMarkTheInsertedOnes() throws CodalogException {
+		DatalogInterpreter interpreter = new DatalogInterpreter();
+		interpreter.executeAll("e(a, b). e(b, c). p(a, b). p(X, Y) :- e(X, Y).");
+		interpreter.executeAll("p(X, Y)?");
+		for(Expression fact : interpreter.getEdbProvider().getFacts("p")) {
+			assertEquals(fact.toString(), !fact.getTerms().get(0).equals("a"), fact.isNew());
+		}
+	}
+
+	@Test
+	public void viewsAreCopiedWhenInterned() {
+		List<String> terms = new ArrayList<>(Arrays.asList("x", "y"));
+		Expression view = Expression.view("q", terms, true);
+		Expression interned = view.intern();
+		terms.set(0, "z");
+		assertEquals(new Expression("q", "x", "y"), interned);
+		assertEquals(Arrays.asList("x", "y"), interned.getTerms());
+		assertTrue(interned.isNew());
+	}
+}
@@ -0,0 +1,135 @@
+package codalog;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import codalog.interfaces.QueryInterface;
+
+/**
+ * Checks that {@link ParallelLoader} loads files exactly like {@link DatalogInterpreter#executeAll(Reader, QueryInterface)},
+ * whatever the size of its chunks, so that no chunk is cut inside a statement.
+ */
+public class ParallelLoaderTest {
+
+	// Terminators inside quotes and comments, CRLF line breaks, statements over several lines, and numbers
+	// next to the end of their statement
+	private static final String FIRST = String.join("\r\n",
+			"% A comment with a period. And a question? And a tilde~ too.",
+			"e(a, b). e(b, \"c. d\"). e(\"x? y\", 'z~ w').",
+			"// A comment in the other style. p(a).",
+			"e(c,",
+			"  d).",
+			"e(n1, 3.14). e(n2, -2). e(n3, 9007199254740993).",
+			"e(d, \"an \\\"escaped. \\\" quote\").",
+			"path(X, Y) :- e(X, Y).",
+			"path(X, Y) :- path(X, Z), e(Z, Y).",
+			"path(a, Y)?",
+			"small(X, V) :- e(X, V), V < 4.",
+			"small(X, V)? e(q, r).% A comment right after a statement.",
+			"big(X, V) :- e(X, V), V > 9007199254740992.",
+			"big(X, V)?");
+
+	private static final String SECOND = "e(d, e).\n\npath(X, Y)?\r\ne(e, f). path(b, Y)?\n% The end.";
+
+	private static final String ERROR = "e(g, h).\r\ne(h, i).\r\ne(i, j) e(j, k).\r\ne(k, l).\r\n";
+
+	private File directory;
+
+	@Before
+	public void createDirectory() throws IOException {
+		directory = Files.createTempDirectory("codalog-test").toFile();
+	}
+
+	@After
+	public void deleteDirectory() {
+		File[] files = directory.listFiles();
+		if(files != null) {
+			for(File file : files) {
+				file.delete();
+			}
+		}
+		directory.delete();
+	}
+
+	@Test
+	public void chunkBoundaries() throws Exception {
+		List<File> files = Arrays.asList(write("first.cdl", FIRST), write("second.cdl", SECOND));
+		DatalogInterpreter sequential = new DatalogInterpreter();
+		List<String> expected = new ArrayList<>();
+		for(File file : files) {
+			try (Reader reader = new FileReader(file)) {
+				sequential.executeAll(reader, collect(expected));
+			}
+		}
+		expected.add(sorted(sequential.executeAll("e(X, Y)?")));
+
+		for(int threads : new int[] {1, 3}) {
+			for(int chunkSize = 1; chunkSize <= 80; chunkSize++) {
+				DatalogInterpreter parallel = new DatalogInterpreter();
+				List<String> actual = new ArrayList<>();
+				new ParallelLoader(parallel, threads, chunkSize).load(files, collect(actual));
+				actual.add(sorted(parallel.executeAll("e(X, Y)?")));
+				assertEquals("threads=" + threads + ", chunk size=" + chunkSize, expected, actual);
+			}
+		}
+	}
+
+	@Test
+	public void statementsBeforeAnErrorAreApplied() throws Exception {
+		List<File> files = Arrays.asList(write("first.cdl", FIRST), write("error.cdl", ERROR), write("second.cdl", SECOND));
+		for(int chunkSize : new int[] {1, 8, ParallelLoader.DEFAULT_CHUNK_SIZE}) {
+			DatalogInterpreter parallel = new DatalogInterpreter();
+			try {
+				new ParallelLoader(parallel, 2, chunkSize).load(files, null);
+				fail("The syntax error wasn't reported");
+			} catch (CodalogException e) {
+				// Expected
+			}
+			assertEquals("chunk size=" + chunkSize, 1, parallel.executeAll("e(h, i)?").size());
+			assertEquals("chunk size=" + chunkSize, 0, parallel.executeAll("e(k, l)?").size());
+			assertEquals("chunk size=" + chunkSize, 0, parallel.executeAll("e(d, e)?").size());
+		}
+	}
+
+	@Test(expected = IOException.class)
+	public void missingFile() throws Exception {
+		new ParallelLoader(new DatalogInterpreter()).load(Arrays.asList(new File(directory, "missing.cdl")), null);
+	}
+
+	private File write(String name, String text) throws IOException {
+		File file = new File(directory, name);
+		Files.write(file.toPath(), text.getBytes(StandardCharsets.UTF_8));
+		return file;
+	}
+
+	private static QueryInterface collect(List<String> results) {
+		return (statement, answers) -> results.add(sorted(answers));
+	}
+
+	private static String sorted(Collection<Map<String, String>> answers) {
+		List<String> rows = new ArrayList<>();
+		for(Map<String, String> answer : answers) {
+			rows.add(new TreeMap<>(answer).toString());
+		}
+		Collections.sort(rows);
+		return rows.toString();
+	}
+}
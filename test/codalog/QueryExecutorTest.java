@@ -0,0 +1,81 @@
+package codalog;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import codalog.server.QueryServer;
+
+/**
+ * Shares an interpreter over the default EDB, which isn't thread-safe, between a {@link QueryExecutor}, a
+ * {@link QueryServer} and a thread that calls it directly.
+ */
+public class QueryExecutorTest {
+
+	private static final int FACTS = 100;
+
+	@Test(timeout = 60000)
+	public void frontEndsShareTheInterpreter() throws Exception {
+		DatalogInterpreter interpreter = new DatalogInterpreter();
+		interpreter.setQueryCache(null);
+		interpreter.executeAll("e(n0, n1). hop(X, Y) :- e(X, Z), e(Z, Y).");
+		AtomicReference<Throwable> error = new AtomicReference<>();
+
+		// Direct calls, on a thread of their own
+		Thread direct = new Thread(() -> {
+			try {
+				for(int i = 0; i < FACTS; i++) {
+					interpreter.fact("e", "d" + i, "d" + (i + 1));
+					interpreter.query(new Expression("hop", "d0", "Y"));
+				}
+			} catch (Throwable e) {
+				error.set(e);
+			}
+		});
+		direct.start();
+
+		try (QueryExecutor executor = new QueryExecutor(interpreter, 4, FACTS * 2);
+				QueryServer server = new QueryServer(interpreter, 0).start();
+				Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.getPort())) {
+			List<CompletableFuture<?>> futures = new ArrayList<>();
+			for(int i = 0; i < FACTS; i++) {
+				futures.add(executor.execute("e(x" + i + ", x" + (i + 1) + ")."));
+				futures.add(executor.query(new Expression("hop", "x0", "Y")));
+			}
+			Writer out = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+			for(int i = 0; i < FACTS; i++) {
+				out.write("e(s" + i + ", s" + (i + 1) + "). hop(s0, Y)?\n");
+			}
+			out.flush();
+			BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+			for(int responses = 0; responses < FACTS; ) {
+				String line = in.readLine();
+				if(line.startsWith("ERROR"))
+					throw new AssertionError(line);
+				if(line.startsWith("OK"))
+					responses++;
+			}
+			for(CompletableFuture<?> future : futures) {
+				future.get();
+			}
+		}
+		direct.join();
+		if(error.get() != null)
+			throw new AssertionError(error.get());
+
+		assertEquals(3 * FACTS + 1, interpreter.query(new Expression("e", "X", "Y")).size());
+		assertEquals(3 * FACTS - 3, interpreter.query(new Expression("hop", "X", "Y")).size());
+	}
+}
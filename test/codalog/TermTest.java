@@ -0,0 +1,102 @@
+package codalog;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import codalog.engine.Bindings;
+
+/**
+ * Checks the typing and the comparison of terms, and that number literals are parsed without losing digits.
+ */
+public class TermTest {
+
+	@Test
+	public void integersAreComparedExactly() {
+		assertTrue(Term.compare(Term.of("9007199254740993"), Term.of("9007199254740992")) > 0);
+		assertTrue(Term.compare(Term.of("123456789012345678901"), Term.of("123456789012345678902")) < 0);
+		assertTrue(Term.compare(Term.of("18014398509481987"), Term.of("18014398509481986.5")) > 0);
+		assertFalse(Term.equal(Term.of("3"), Term.of("2.99999999999999999999")));
+		assertTrue(Term.equal(Term.of("1E2"), Term.of("100")));
+		assertTrue(Term.compare(Term.of("abc"), Term.of("0")) == 0);
+	}
+
+	@Test
+	public void literalsAreNormalized() {
+		assertEquals("7", Term.normalize("007"));
+		assertEquals("2.5", Term.normalize("2.50"));
+		assertEquals("5", Term.normalize("5.0"));
+		assertEquals("1500", Term.normalize("1.5e3"));
+		assertEquals("123456789012345678901234567890", Term.normalize("123456789012345678901234567890"));
+		assertEquals("0", Term.normalize("-0.0"));
+		assertEquals("abc", Term.normalize("abc"));
+	}
+
+	@Test
+	public void numbersAreParsedExactly() throws CodalogException {
+		DatalogInterpreter interpreter = new DatalogInterpreter();
+		interpreter.executeAll("n(9007199254740993). n(9007199254740992). n(007). n(7). n(2.50). n(-3).");
+		assertEquals("[-3, 2.5, 7, 9007199254740992, 9007199254740993]", values(interpreter.executeAll("n(X)?")));
+		assertEquals("[9007199254740993]", values(interpreter.executeAll("n(X), X > 9007199254740992?")));
+		assertEquals("[-3]", values(interpreter.executeAll("n(X), X < -1?")));
+	}
+
+	@Test
+	public void periodsEndStatementsAfterNumbersAndWords() throws CodalogException {
+		DatalogInterpreter interpreter = new DatalogInterpreter();
+		interpreter.executeAll("n(1). n(5). n(12).p(a).q(b).\n"
+				+ "big(X) :- n(X), X > 5.\n"
+				+ "less(X, D) :- n(X), D = X -1.\n"
+				+ "more(X, D) :- n(X), D = X - -1.\n"
+				+ "r(X) :- q(X), X = b.");
+		assertEquals("[12]", values(interpreter.executeAll("big(X)?")));
+		assertEquals("[0]", values(interpreter.executeAll("less(1, D)?")));
+		assertEquals("[11]", values(interpreter.executeAll("less(12, D)?")));
+		assertEquals("[13]", values(interpreter.executeAll("more(12, D)?")));
+		assertEquals("[a]", values(interpreter.executeAll("p(X)?")));
+		assertEquals("[b]", values(interpreter.executeAll("r(X)?")));
+	}
+
+	@Test
+	public void termsAreTypedOnce() {
+		Expression fact = new Expression("n", "5", "abc", "2.5").intern();
+		assertSame(fact.getType(0), fact.getType(0));
+		assertSame(fact.getType(2), fact.getType(2));
+		assertEquals(Term.Type.SYMBOL, fact.getType(1).getType());
+		Expression comparison = new Expression("<", "X", "10");
+		assertSame(comparison.getType(1), comparison.getType(1));
+
+		// The built-ins read the values of the variables from the facts they were bound from
+		Expression goal = new Expression("n", "X", "Y", "Z");
+		Bindings bindings = new Bindings(new HashMap<>(), fact, goal);
+		assertTrue(fact.unify(goal, bindings));
+		assertSame(fact.getType(0), bindings.getType("X"));
+		assertSame(fact.getType(2), bindings.getType("Z"));
+		Bindings sum = Bindings.builtIn(bindings);
+		assertTrue(new Expression("+", "D", "X", "Z").evalBuiltIn(sum));
+		assertEquals("7.5", sum.get("D"));
+		assertEquals(Term.Type.DECIMAL, sum.getType("D").getType());
+		assertTrue(comparison.evalBuiltIn(Bindings.builtIn(sum)));
+		assertFalse(new Expression(">", "Z", "X").evalBuiltIn(Bindings.builtIn(bindings)));
+	}
+
+	/* The values of the single variable of some answers, sorted */
+	private static String values(Collection<Map<String, String>> answers) {
+		List<String> values = new ArrayList<>();
+		for(Map<String, String> answer : answers) {
+			values.addAll(answer.values());
+		}
+		Collections.sort(values);
+		return values.toString();
+	}
+}
@@ -0,0 +1,88 @@
+package codalog.server;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import codalog.DatalogInterpreter;
+
+/**
+ * Talks to a {@link QueryServer} over the loopback interface.
+ */
+public class QueryServerTest {
+
+	private QueryServer server;
+
+	@Before
+	public void startServer() throws Exception {
+		DatalogInterpreter interpreter = new DatalogInterpreter();
+		interpreter.executeAll("e(a, b). e(b, c). path(X, Y) :- e(X, Y). path(X, Y) :- path(X, Z), e(Z, Y).");
+		server = new QueryServer(interpreter, 0).start();
+	}
+
+	@After
+	public void stopServer() throws IOException {
+		server.close();
+	}
+
+	@Test(timeout = 10000)
+	public void pipelinedRequests() throws IOException {
+		List<String> responses = exchange(4, "path(a, Y)?", "e(c, d).", "path(a, d)?", "path(d, Y)?");
+		assertEquals("[{Y: b}, {Y: c}]", sorted(responses.subList(0, 2)));
+		assertEquals("OK 2", responses.get(2));
+		assertEquals("OK", responses.get(3));
+		assertEquals("{}", responses.get(4));
+		assertEquals("OK 1", responses.get(5));
+		assertEquals("OK 0", responses.get(6));
+	}
+
+	@Test(timeout = 10000)
+	public void errorsAreReportedWithTheirMessage() throws IOException {
+		List<String> responses = exchange(3, "p(a, Y", "q(X) :- r(Y).", "e(X, c)?");
+		assertEquals("ERROR [line 1] Expected ')'", responses.get(0));
+		assertEquals("ERROR [line 1] Error executing statement: "
+				+ "Variables X from the head of rule q(X) :- r(Y) must appear in the body", responses.get(1));
+		// The requests after a failed one are still served
+		assertEquals("{X: b}", responses.get(2));
+		assertEquals("OK 1", responses.get(3));
+	}
+
+	/* Sends requests without waiting, then reads the responses until `statuses` of them are complete */
+	private List<String> exchange(int statuses, String... requests) throws IOException {
+		try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.getPort())) {
+			Writer out = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+			for(String request : requests) {
+				out.write(request + "\n");
+			}
+			out.flush();
+			BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+			List<String> lines = new ArrayList<>();
+			while(statuses > 0) {
+				String line = in.readLine();
+				lines.add(line);
+				if(line.startsWith("OK") || line.startsWith("ERROR"))
+					statuses--;
+			}
+			return lines;
+		}
+	}
+
+	private static String sorted(List<String> lines) {
+		List<String> copy = new ArrayList<>(lines);
+		copy.sort(null);
+		return copy.toString();
+	}
+}
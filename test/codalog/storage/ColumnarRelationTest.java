@@ -0,0 +1,65 @@
+package codalog.storage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+/**
+ * Checks {@link ColumnarRelation} against a {@link HashSet} through random additions and removals, including the
+ * column indexes, which are kept up to date by both.
+ */
+public class ColumnarRelationTest {
+
+	@Test
+	public void randomAdditionsAndRemovals() {
+		Random random = new Random(3);
+		ColumnarRelation relation = new ColumnarRelation("p", 2);
+		Set<List<Integer>> expected = new HashSet<>();
+		for(int step = 0; step < 100000; step++) {
+			int[] ids = {random.nextInt(50), random.nextInt(300)};
+			List<Integer> tuple = Arrays.asList(ids[0], ids[1]);
+			if(random.nextInt(3) == 0) {
+				assertEquals("Removal at step " + step, expected.remove(tuple), relation.remove(ids));
+			} else {
+				assertEquals("Addition at step " + step, expected.add(tuple), relation.add(ids, false));
+			}
+			if(step % 997 == 0) {
+				// Builds the index of a column, which is then maintained from here on
+				relation.count(step % 2, 0);
+			}
+			if(step % 4999 == 0) {
+				check(relation, expected);
+			}
+		}
+		check(relation, expected);
+	}
+
+	private static void check(ColumnarRelation relation, Set<List<Integer>> expected) {
+		assertEquals(expected.size(), relation.rows());
+		for(List<Integer> tuple : expected) {
+			assertTrue("Missing " + tuple, relation.find(new int[] {tuple.get(0), tuple.get(1)}) >= 0);
+		}
+		for(int column = 0; column < 2; column++) {
+			int[] counts = new int[300];
+			for(List<Integer> tuple : expected) {
+				counts[tuple.get(column)]++;
+			}
+			for(int id = 0; id < counts.length; id++) {
+				int rows = 0;
+				for(int row = relation.firstRow(column, id); row >= 0; row = relation.nextRow(column, row)) {
+					assertEquals(id, relation.get(row, column));
+					rows++;
+				}
+				assertEquals("Rows with " + id + " in column " + column, counts[id], rows);
+				assertEquals("Count of " + id + " in column " + column, counts[id], relation.count(column, id));
+			}
+		}
+	}
+}
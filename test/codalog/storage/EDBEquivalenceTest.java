@@ -0,0 +1,155 @@
+package codalog.storage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import codalog.CodalogException;
+import codalog.DatalogInterpreter;
+import codalog.Expression;
+import codalog.interfaces.EDBInterface;
+import codalog.interfaces.QueryInterface;
+
+/**
+ * Checks that the EDBs of this package answer a program exactly like the default {@link codalog.EDB}, with both the
+ * semi-naive and the naive evaluation.
+ */
+public class EDBEquivalenceTest {
+
+	private static final String RULES =
+			"e(a, b). e(b, c). e(c, d). e(d, b). e(x, y). e(c, \"a quoted node\").\n"
+			+ "w(a, 3). w(b, -2). w(c, 10). w(d, 9007199254740993). w(x, 2.5).\n"
+			+ "node(X) :- e(X, Y).\n"
+			+ "node(Y) :- e(X, Y).\n"
+			+ "path(X, Y) :- e(X, Y).\n"
+			+ "path(X, Y) :- path(X, Z), e(Z, Y).\n"
+			+ "reach(X, Y) :- e(X, Y).\n"
+			+ "reach(X, Y) :- reach(X, Z), reach(Z, Y).\n"
+			+ "cyclic(X) :- path(X, X).\n"
+			+ "acyclic(X) :- node(X), not cyclic(X).\n"
+			+ "out(X, count<Y>) :- e(X, Y).\n"
+			+ "heavy(X, W) :- w(X, W), W > 2.\n"
+			+ "next(X, S) :- w(X, W), S = W + 1.\n"
+			+ "dist(X, Y, min<D>) :- g(X, Y), D = 1.\n"
+			+ "dist(X, Y, min<D>) :- dist(X, Z, D1), g(Z, Y), D = D1 + 1.\n"
+			+ "gp(X, Y) :- g(X, Y).\n"
+			+ "gp(X, Y) :- g(X, Z), gp(Z, Y).\n"
+			+ "fanout(X, count<Y>) :- gp(X, Y).\n";
+
+	private static final String QUERIES =
+			"path(X, Y)? reach(a, Y)? acyclic(X)? out(X, N)? heavy(X, W)? next(X, S)?\n"
+			+ "dist(n1, Y, D)? gp(n2, Y)? fanout(X, N)?\n"
+			+ "e(d, e).\n"
+			+ "path(a, Y)? cyclic(X)?\n";
+
+	// Queries keep the facts that they derive in the EDB, except for VersionedEDB, so only stored facts are compared
+	// after the deletions
+	private static final String AFTER_DELETE = "e(X, Y)? g(X, Y)? g(X, n7)? e(b, c)?\n";
+
+	private File directory;
+
+	@Before
+	public void createDirectory() throws IOException {
+		directory = Files.createTempDirectory("codalog-test").toFile();
+	}
+
+	@After
+	public void deleteDirectory() {
+		File[] files = directory.listFiles();
+		if(files != null) {
+			for(File file : files) {
+				file.delete();
+			}
+		}
+		directory.delete();
+	}
+
+	@Test
+	public void offHeap() throws Exception {
+		check(OffHeapEDB::new);
+	}
+
+	@Test
+	public void columnar() throws Exception {
+		check(ColumnarEDB::new);
+	}
+
+	@Test
+	public void versioned() throws Exception {
+		check(VersionedEDB::new);
+	}
+
+	@Test
+	public void spilling() throws Exception {
+		// A budget small enough that the relations are spilled and merged while the program runs
+		List<SpillingEDB> edbs = new ArrayList<>();
+		check(() -> {
+			SpillingEDB edb = new SpillingEDB(16 * 1024, directory);
+			edbs.add(edb);
+			return edb;
+		});
+		for(SpillingEDB edb : edbs) {
+			assertTrue("Nothing was spilled", edb.getSpills() > 0);
+		}
+	}
+
+	private interface Factory {
+		EDBInterface create();
+	}
+
+	private static void check(Factory factory) throws CodalogException {
+		for(boolean naive : new boolean[] {false, true}) {
+			List<String> expected = run(null, naive);
+			List<String> actual = run(factory.create(), naive);
+			assertEquals("Number of results, naive=" + naive, expected.size(), actual.size());
+			for(int i = 0; i < expected.size(); i++) {
+				assertEquals("Result " + i + ", naive=" + naive, expected.get(i), actual.get(i));
+			}
+		}
+	}
+
+	/* Runs the program, with facts added through the API and deletions, and returns the sorted answers of each of
+	 * its queries */
+	private static List<String> run(EDBInterface edb, boolean naive) throws CodalogException {
+		DatalogInterpreter interpreter = new DatalogInterpreter();
+		if(edb != null) {
+			interpreter.setEdbProvider(edb);
+		}
+		interpreter.setIsNaive(naive);
+		Random random = new Random(42);
+		for(int i = 0; i < 150; i++) {
+			interpreter.fact("g", "n" + random.nextInt(60), "n" + random.nextInt(60));
+		}
+		List<String> results = new ArrayList<>();
+		QueryInterface output = (statement, answers) -> results.add(sorted(answers));
+		interpreter.executeAll(new StringReader(RULES + QUERIES), output);
+		interpreter.delete(new Expression("e", "b", "c"));
+		interpreter.delete(new Expression("g", "X", "n7"));
+		interpreter.executeAll(new StringReader(AFTER_DELETE), output);
+		return results;
+	}
+
+	private static String sorted(Collection<Map<String, String>> answers) {
+		List<String> rows = new ArrayList<>();
+		for(Map<String, String> answer : answers) {
+			rows.add(new TreeMap<>(answer).toString());
+		}
+		Collections.sort(rows);
+		return rows.size() + " " + rows;
+	}
+}
@@ -0,0 +1,42 @@
+package codalog.storage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import codalog.Expression;
+
+/**
+ * Checks the native memory that an {@link OffHeapFactSet} reserves from its {@link OffHeapArena}.
+ */
+public class OffHeapFactSetTest {
+
+	@Test
+	public void clearReleasesTheRelations() {
+		OffHeapArena arena = new OffHeapArena(4096);
+		OffHeapFactSet facts = new OffHeapFactSet(arena);
+		long empty = arena.getReservedBytes();
+		long loaded = 0, cleared = 0;
+		for(int round = 0; round < 5; round++) {
+			for(int i = 0; i < 5000; i++) {
+				facts.add(new Expression("e", "n" + i, "n" + (i + 1)));
+				facts.add(new Expression("w", "n" + i));
+			}
+			if(round == 0) {
+				loaded = arena.getReservedBytes();
+			} else {
+				assertEquals("Reserved after loading, round " + round, loaded, arena.getReservedBytes());
+			}
+			facts.clear();
+			assertTrue(facts.isEmpty());
+			if(round == 0) {
+				cleared = arena.getReservedBytes();
+				// The dictionary keeps the terms, but the relations are gone
+				assertTrue(cleared - empty < loaded - cleared);
+			} else {
+				assertEquals("Reserved after clearing, round " + round, cleared, arena.getReservedBytes());
+			}
+		}
+	}
+}
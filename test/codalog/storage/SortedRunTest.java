@@ -0,0 +1,106 @@
+package codalog.storage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import codalog.Expression;
+
+/**
+ * Writes {@link SortedRun}s to a temporary directory and reads them back.
+ */
+public class SortedRunTest {
+
+	private File directory;
+
+	@Before
+	public void createDirectory() throws IOException {
+		directory = Files.createTempDirectory("codalog-test").toFile();
+	}
+
+	@After
+	public void deleteDirectory() {
+		File[] files = directory.listFiles();
+		if(files != null) {
+			for(File file : files) {
+				file.delete();
+			}
+		}
+		directory.delete();
+	}
+
+	@Test
+	public void abandonedScansDontHoldFiles() {
+		File descriptors = new File("/proc/self/fd");
+		Assume.assumeTrue(descriptors.isDirectory());
+		SortedRun run = write(facts(1000));
+		int open = descriptors.list().length;
+		for(int i = 0; i < 1000; i++) {
+			Iterator<Expression> scan = run.iterator();
+			assertEquals(new Expression("e", "n0000", "n0001"), scan.next());
+		}
+		assertTrue(descriptors.list().length <= open + 1);
+		run.close();
+	}
+
+	@Test
+	public void runDeletedDuringAScanIsKeptUntilTheScanIsDrained() {
+		List<Expression> facts = facts(1000);
+		SortedRun run = write(facts);
+		Iterator<Expression> scan = run.iterator();
+		List<Expression> read = new ArrayList<>();
+		for(int i = 0; i < 300; i++) {
+			read.add(scan.next());
+		}
+		run.delete();
+		assertEquals(1, directory.list().length);
+		while(scan.hasNext()) {
+			read.add(scan.next());
+		}
+		assertEquals(facts, read);
+		assertEquals(0, directory.list().length);
+	}
+
+	@Test
+	public void termsLongerThan64KB() {
+		StringBuilder sb = new StringBuilder("\"");
+		while(sb.length() < 100000) {
+			sb.append("long term, λ ");
+		}
+		String term = sb.append('"').toString();
+		List<Expression> facts = new ArrayList<>();
+		facts.add(new Expression("e", term, "a"));
+		facts.add(new Expression("e", "n", term));
+		SortedRun run = write(facts);
+		List<Expression> read = new ArrayList<>();
+		run.iterator().forEachRemaining(read::add);
+		assertEquals(facts, read);
+		assertTrue(run.contains(new Expression("e", "n", term)));
+		assertEquals(facts.get(0), run.withFirstTerm(term).next());
+		run.delete();
+	}
+
+	private SortedRun write(List<Expression> facts) {
+		return SortedRun.write(directory, "e", facts.iterator(), facts.size());
+	}
+
+	/* A chain of facts, already in the order of the runs */
+	private static List<Expression> facts(int n) {
+		List<Expression> facts = new ArrayList<>();
+		for(int i = 0; i < n; i++) {
+			facts.add(new Expression("e", String.format("n%04d", i), String.format("n%04d", i + 1)));
+		}
+		return facts;
+	}
+}